@@ -0,0 +1,285 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ashomok.lullabies;
+
+import android.content.ComponentCallbacks2;
+import android.graphics.Bitmap;
+import android.graphics.Color;
+import android.os.Build;
+import android.util.Log;
+import android.util.SparseArray;
+
+import androidx.test.internal.runner.junit4.AndroidJUnit4ClassRunner;
+
+import com.ashomok.lullabies.utils.BitmapHelper;
+import com.ashomok.lullabies.utils.BitmapPool;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+/**
+ * Android instrumentation unit tests for {@link AlbumArtCache}.
+ */
+@RunWith(AndroidJUnit4ClassRunner.class)
+public class AlbumArtCacheTest {
+
+    private static final String TAG = "AlbumArtCacheTest";
+
+    private static final int KEY_COUNT = 4;
+    private static final int CALLER_COUNT = 8;
+    private static final long DECODE_TIME_MS = 200;
+    private static final int ICON_SIZE = 128;
+
+    // The size of the bundled album arts.
+    private static final int ART_WIDTH = 865;
+    private static final int ART_HEIGHT = 649;
+    private static final int PAGE_COUNT = 16;
+    private static final int WARM_UP_PAGES = 4;
+    // Pages kept on each side of the current one, as in ViewPager.
+    private static final int OFFSCREEN_PAGE_LIMIT = 1;
+
+    private final ConcurrentHashMap<String, AtomicInteger> decodes = new ConcurrentHashMap<>();
+    private AlbumArtCache cache;
+
+    @Before
+    public void setUpCache() {
+        cache = new AlbumArtCache((artUrl, width, height, config, pool) -> {
+            decodes.putIfAbsent(artUrl, new AtomicInteger());
+            decodes.get(artUrl).incrementAndGet();
+            // Slow enough for every caller to ask while the decode is still running.
+            Thread.sleep(DECODE_TIME_MS);
+            return Bitmap.createBitmap(8, 8, config);
+        });
+    }
+
+    @Test
+    public void testConcurrentFetchesDecodeOncePerKey() throws Exception {
+        CountDownLatch start = new CountDownLatch(1);
+        CountDownLatch fetched = new CountDownLatch(KEY_COUNT * CALLER_COUNT);
+        for (int i = 0; i < CALLER_COUNT; i++) {
+            new Thread(() -> {
+                try {
+                    start.await();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                for (int key = 0; key < KEY_COUNT; key++) {
+                    cache.fetch(artUrl(key), new AlbumArtCache.FetchListener() {
+                        @Override
+                        public void onFetched(String artUrl, Bitmap bigImage, Bitmap iconImage) {
+                            fetched.countDown();
+                        }
+                    });
+                }
+            }).start();
+        }
+        start.countDown();
+
+        assertTrue(fetched.await(10, TimeUnit.SECONDS));
+        assertEquals(KEY_COUNT, decodes.size());
+        for (int key = 0; key < KEY_COUNT; key++) {
+            assertEquals(1, decodes.get(artUrl(key)).get());
+        }
+    }
+
+    @Test
+    public void testCancelledListenerIsNotNotified() throws Exception {
+        CountDownLatch fetched = new CountDownLatch(1);
+        AtomicInteger cancelledCalls = new AtomicInteger();
+        AlbumArtCache.FetchListener cancelled = new AlbumArtCache.FetchListener() {
+            @Override
+            public void onFetched(String artUrl, Bitmap bigImage, Bitmap iconImage) {
+                cancelledCalls.incrementAndGet();
+            }
+        };
+        AlbumArtCache.FetchListener kept = new AlbumArtCache.FetchListener() {
+            @Override
+            public void onFetched(String artUrl, Bitmap bigImage, Bitmap iconImage) {
+                fetched.countDown();
+            }
+        };
+
+        cache.fetch(artUrl(0), cancelled);
+        cache.fetch(artUrl(0), kept);
+        cache.cancel(artUrl(0), cancelled);
+
+        assertTrue(fetched.await(10, TimeUnit.SECONDS));
+        assertEquals(0, cancelledCalls.get());
+        assertEquals(1, decodes.get(artUrl(0)).get());
+    }
+
+    @Test
+    public void testLoadsRunByPriority() throws Exception {
+        CountDownLatch blocked = new CountDownLatch(1);
+        CountDownLatch unblock = new CountDownLatch(1);
+        List<Integer> order = Collections.synchronizedList(new ArrayList<>());
+        AlbumArtCache priorityCache = new AlbumArtCache((artUrl, width, height, config, pool) -> {
+            if (pageOf(artUrl) == 0) {
+                blocked.countDown();
+                unblock.await();
+            } else {
+                order.add(pageOf(artUrl));
+            }
+            return Bitmap.createBitmap(8, 8, config);
+        }, new BitmapPool(0), Integer.MAX_VALUE, new ArtLoadScheduler(1));
+        CountDownLatch fetched = new CountDownLatch(4);
+        AlbumArtCache.FetchListener listener = new AlbumArtCache.FetchListener() {
+            @Override
+            public void onFetched(String artUrl, Bitmap bigImage, Bitmap iconImage) {
+                fetched.countDown();
+            }
+        };
+
+        // Keeps the only thread busy while the other loads are queued.
+        priorityCache.fetch(artUrl(0), listener);
+        assertTrue(blocked.await(10, TimeUnit.SECONDS));
+        priorityCache.fetch(artUrl(1), AlbumArtCache.Priority.SPECULATIVE, listener);
+        priorityCache.fetch(artUrl(2), AlbumArtCache.Priority.SPECULATIVE, listener);
+        priorityCache.fetch(artUrl(3), AlbumArtCache.Priority.NEXT, listener);
+        // Scrolled to: moves ahead of the load queued before it.
+        priorityCache.fetch(artUrl(2), AlbumArtCache.Priority.VISIBLE, listener);
+        unblock.countDown();
+
+        assertTrue(fetched.await(10, TimeUnit.SECONDS));
+        assertEquals(Arrays.asList(2, 3, 1), order);
+    }
+
+    @Test
+    public void testTrimMemoryShrinksAndForegroundGrowsBack() throws Exception {
+        // The big image and the icon, both at the icon size in ARGB_8888.
+        int artSize = 2 * ICON_SIZE * ICON_SIZE * 4;
+        AlbumArtCache trimCache = new AlbumArtCache((artUrl, width, height, config, pool) ->
+                Bitmap.createBitmap(ICON_SIZE, ICON_SIZE, config),
+                new BitmapPool(0), KEY_COUNT * artSize);
+        CountDownLatch fetched = new CountDownLatch(KEY_COUNT);
+        for (int key = 0; key < KEY_COUNT; key++) {
+            trimCache.fetch(artUrl(key), new AlbumArtCache.FetchListener() {
+                @Override
+                public void onFetched(String artUrl, Bitmap bigImage, Bitmap iconImage) {
+                    fetched.countDown();
+                }
+            });
+        }
+        assertTrue(fetched.await(10, TimeUnit.SECONDS));
+        assertEquals(KEY_COUNT * artSize, trimCache.getStats().size);
+
+        trimCache.onTrimMemory(ComponentCallbacks2.TRIM_MEMORY_UI_HIDDEN);
+        AlbumArtCache.Stats stats = trimCache.getStats();
+        assertEquals(KEY_COUNT * artSize / 4, stats.maxSize);
+        assertTrue(stats.size <= stats.maxSize);
+        assertTrue(stats.evictionCount > 0);
+
+        trimCache.onTrimMemory(ComponentCallbacks2.TRIM_MEMORY_COMPLETE);
+        assertEquals(0, trimCache.getStats().size);
+        assertNull(trimCache.getBigImage(artUrl(0)));
+
+        trimCache.onForeground();
+        assertEquals(KEY_COUNT * artSize, trimCache.getStats().maxSize);
+        assertEquals(KEY_COUNT, trimCache.getStats().decodeCount);
+    }
+
+    @Test
+    public void testSwipingReusesBackgroundMemory() throws Exception {
+        assumeTrue(Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT);
+        byte[][] pngs = new byte[PAGE_COUNT][];
+        for (int page = 0; page < PAGE_COUNT; page++) {
+            Bitmap art = Bitmap.createBitmap(ART_WIDTH, ART_HEIGHT, Bitmap.Config.ARGB_8888);
+            art.eraseColor(Color.rgb(page * 16, 255 - page * 16, 128));
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            art.compress(Bitmap.CompressFormat.PNG, 100, out);
+            art.recycle();
+            pngs[page] = out.toByteArray();
+        }
+        int backgroundSize = ART_WIDTH * ART_HEIGHT * 2;
+        BitmapPool pool = new BitmapPool(2 * backgroundSize);
+        // Room for the pages the pager holds and one more.
+        AlbumArtCache swipeCache = new AlbumArtCache((artUrl, width, height, config, p) ->
+                BitmapHelper.decodeAndRescaleBitmap(
+                        new ByteArrayInputStream(pngs[pageOf(artUrl)]), width, height, config, p),
+                pool, (2 * OFFSCREEN_PAGE_LIMIT + 2) * backgroundSize);
+
+        SparseArray<Bitmap> shown = new SparseArray<>();
+        for (int page = 0; page <= OFFSCREEN_PAGE_LIMIT; page++) {
+            shown.put(page, fetchBackground(swipeCache, page));
+        }
+        long warmedUpBytes = 0;
+        for (int current = 1; current < PAGE_COUNT; current++) {
+            if (current == WARM_UP_PAGES) {
+                warmedUpBytes = pool.getAllocatedBytes();
+            }
+            // Like ViewPager: destroy the page that went out of reach, instantiate the new one.
+            int destroyed = current - OFFSCREEN_PAGE_LIMIT - 1;
+            if (destroyed >= 0) {
+                swipeCache.releaseBackground(shown.get(destroyed));
+                shown.remove(destroyed);
+            }
+            int instantiated = current + OFFSCREEN_PAGE_LIMIT;
+            if (instantiated < PAGE_COUNT) {
+                shown.put(instantiated, fetchBackground(swipeCache, instantiated));
+            }
+        }
+        long bytesPerPage = (pool.getAllocatedBytes() - warmedUpBytes)
+                / (PAGE_COUNT - WARM_UP_PAGES);
+
+        Log.i(TAG, "Bytes allocated per page after warm up: " + bytesPerPage
+                + ", pool hits: " + pool.getHitCount() + ", misses: " + pool.getMissCount());
+        assertTrue("Allocated " + bytesPerPage + " bytes per page",
+                bytesPerPage < backgroundSize / 4);
+    }
+
+    private static Bitmap fetchBackground(AlbumArtCache cache, int page) throws Exception {
+        CountDownLatch fetched = new CountDownLatch(1);
+        Bitmap[] result = new Bitmap[1];
+        cache.fetchBackground(artUrl(page), new AlbumArtCache.FetchListener() {
+            @Override
+            public void onFetched(String artUrl, Bitmap bigImage, Bitmap iconImage) {
+                result[0] = bigImage;
+                fetched.countDown();
+            }
+        });
+        assertTrue(fetched.await(10, TimeUnit.SECONDS));
+        assertNotNull(result[0]);
+        return result[0];
+    }
+
+    private static int pageOf(String artUrl) {
+        return Integer.parseInt(artUrl.substring(artUrl.lastIndexOf('/') + 1,
+                artUrl.lastIndexOf('.')));
+    }
+
+    private static String artUrl(int key) {
+        return "/assets/images/base/" + key + ".png";
+    }
+}
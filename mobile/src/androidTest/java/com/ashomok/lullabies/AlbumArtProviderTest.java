@@ -0,0 +1,75 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.ashomok.lullabies;
+
+import android.net.Uri;
+import android.support.v4.media.MediaMetadataCompat;
+
+import androidx.test.internal.runner.junit4.AndroidJUnit4ClassRunner;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.FileNotFoundException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+/**
+ * Android instrumentation unit tests for {@link AlbumArtProvider}.
+ */
+@RunWith(AndroidJUnit4ClassRunner.class)
+public class AlbumArtProviderTest {
+
+    private static final String ART_URL = "https://icons.com/album 1.png?size=large";
+
+    @Test
+    public void testUrisLeadBackToTheAlbumArt() {
+        Uri art = AlbumArtProvider.getArtUri(ART_URL);
+        Uri icon = AlbumArtProvider.getIconUri(ART_URL);
+        assertEquals("content", art.getScheme());
+        assertEquals(AlbumArtProvider.AUTHORITY, icon.getAuthority());
+        assertEquals(ART_URL, AlbumArtProvider.getArtUrl(art.toString()));
+        assertEquals(ART_URL, AlbumArtProvider.getArtUrl(icon.toString()));
+        assertEquals(ART_URL, AlbumArtProvider.getArtUrl(ART_URL));
+    }
+
+    @Test
+    public void testMetadataCarriesProviderUris() {
+        MediaMetadataCompat metadata = new MediaMetadataCompat.Builder()
+                .putString(MediaMetadataCompat.METADATA_KEY_MEDIA_ID, "1")
+                .putString(MediaMetadataCompat.METADATA_KEY_ALBUM_ART_URI, ART_URL)
+                .build();
+        MediaMetadataCompat withArt = AlbumArtProvider.withArtUris(metadata);
+        assertEquals(ART_URL, withArt.getString(MediaMetadataCompat.METADATA_KEY_ALBUM_ART_URI));
+        assertEquals(AlbumArtProvider.getArtUri(ART_URL).toString(),
+                withArt.getString(MediaMetadataCompat.METADATA_KEY_ART_URI));
+        assertEquals(AlbumArtProvider.getIconUri(ART_URL), withArt.getDescription().getIconUri());
+        assertNull(withArt.getDescription().getIconBitmap());
+
+        MediaMetadataCompat noArt = new MediaMetadataCompat.Builder()
+                .putString(MediaMetadataCompat.METADATA_KEY_MEDIA_ID, "2")
+                .build();
+        assertSame(noArt, AlbumArtProvider.withArtUris(noArt));
+    }
+
+    @Test(expected = FileNotFoundException.class)
+    public void testArtOutsideCatalogIsNotServed() throws Exception {
+        new AlbumArtProvider().openFile(
+                AlbumArtProvider.getArtUri("https://example.com/anything.png"), "r");
+    }
+}
@@ -0,0 +1,111 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ashomok.lullabies;
+
+import android.content.res.AssetManager;
+import android.graphics.Bitmap;
+import android.os.SystemClock;
+import android.util.Log;
+
+import androidx.test.internal.runner.junit4.AndroidJUnit4ClassRunner;
+import androidx.test.platform.app.InstrumentationRegistry;
+
+import com.ashomok.lullabies.utils.BitmapHelper;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+
+/**
+ * Android instrumentation microbenchmark of {@link AssetArtLoader} against the class loader
+ * resource lookup of {@link BitmapHelper#fetchAndRescaleBitmap}, over the bundled album arts.
+ */
+@RunWith(AndroidJUnit4ClassRunner.class)
+public class AssetArtLoaderBenchmarkTest {
+
+    private static final String TAG = "AssetArtLoaderBenchmark";
+
+    private static final String IMAGES_DIR = "images";
+    private static final int WIDTH = 800;
+    private static final int HEIGHT = 480;
+    private static final int ROUNDS = 5;
+
+    private AssetManager assets;
+    private final List<String> artUrls = new ArrayList<>();
+
+    @Before
+    public void listBundledArt() throws Exception {
+        assets = InstrumentationRegistry.getInstrumentation().getTargetContext().getAssets();
+        for (String category : assets.list(IMAGES_DIR)) {
+            for (String file : assets.list(IMAGES_DIR + "/" + category)) {
+                artUrls.add("/assets/" + IMAGES_DIR + "/" + category + "/" + file);
+            }
+        }
+        assertFalse(artUrls.isEmpty());
+    }
+
+    @Test
+    public void testAssetLoaderAgainstClassLoaderLookup() throws Exception {
+        AssetArtLoader loader = new AssetArtLoader(assets);
+
+        // The first call of each path pays for its setup: the APK scan of the class loader.
+        long start = SystemClock.elapsedRealtimeNanos();
+        Bitmap fromResource = BitmapHelper.fetchAndRescaleBitmap(artUrls.get(0), WIDTH, HEIGHT);
+        long firstResourceNanos = SystemClock.elapsedRealtimeNanos() - start;
+        start = SystemClock.elapsedRealtimeNanos();
+        Bitmap fromAsset = loader.load(artUrls.get(0), WIDTH, HEIGHT,
+                Bitmap.Config.ARGB_8888, null);
+        long firstAssetNanos = SystemClock.elapsedRealtimeNanos() - start;
+        assertSameImage(fromResource, fromAsset);
+
+        long resourceNanos = 0;
+        long assetNanos = 0;
+        for (int round = 0; round < ROUNDS; round++) {
+            for (String artUrl : artUrls) {
+                start = SystemClock.elapsedRealtimeNanos();
+                fromResource = BitmapHelper.fetchAndRescaleBitmap(artUrl, WIDTH, HEIGHT);
+                resourceNanos += SystemClock.elapsedRealtimeNanos() - start;
+
+                start = SystemClock.elapsedRealtimeNanos();
+                fromAsset = loader.load(artUrl, WIDTH, HEIGHT, Bitmap.Config.ARGB_8888, null);
+                assetNanos += SystemClock.elapsedRealtimeNanos() - start;
+
+                assertSameImage(fromResource, fromAsset);
+            }
+        }
+        int loads = ROUNDS * artUrls.size();
+        Log.i(TAG, "First load: class loader " + firstResourceNanos / 1000 + "us, asset manager "
+                + firstAssetNanos / 1000 + "us");
+        Log.i(TAG, "Average load of " + artUrls.size() + " album arts: class loader "
+                + resourceNanos / loads / 1000 + "us, asset manager "
+                + assetNanos / loads / 1000 + "us");
+    }
+
+    private static void assertSameImage(Bitmap expected, Bitmap actual) {
+        assertNotNull(expected);
+        assertNotNull(actual);
+        assertEquals(expected.getWidth(), actual.getWidth());
+        assertEquals(expected.getHeight(), actual.getHeight());
+    }
+}
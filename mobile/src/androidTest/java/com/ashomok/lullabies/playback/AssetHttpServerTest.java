@@ -0,0 +1,135 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.ashomok.lullabies.playback;
+
+import android.content.Context;
+import android.content.res.AssetFileDescriptor;
+
+import androidx.test.internal.runner.junit4.AndroidJUnit4ClassRunner;
+import androidx.test.platform.app.InstrumentationRegistry;
+
+import com.ashomok.lullabies.model.LocalJSONSource;
+import com.ashomok.lullabies.model.MusicProviderSource;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assume.assumeNoException;
+
+/**
+ * Android instrumentation unit tests for {@link AssetHttpServer}, over the local network.
+ */
+@RunWith(AndroidJUnit4ClassRunner.class)
+public class AssetHttpServerTest {
+
+    private static final String ASSET_URI_PREFIX = "file:///android_asset/";
+
+    private AssetHttpServer server;
+    private String source;
+    private long assetLength;
+
+    @Before
+    public void setUp() throws Exception {
+        Context context = InstrumentationRegistry.getInstrumentation().getTargetContext();
+        source = new LocalJSONSource(context).iterator().next()
+                .getString(MusicProviderSource.CUSTOM_METADATA_TRACK_SOURCE);
+        AssetFileDescriptor fd = context.getAssets().openFd(
+                source.substring(ASSET_URI_PREFIX.length()));
+        assetLength = fd.getLength();
+        fd.close();
+
+        server = new AssetHttpServer(context);
+        try {
+            server.start();
+        } catch (IOException e) {
+            // The device is not on a local network.
+            assumeNoException(e);
+        }
+    }
+
+    @After
+    public void tearDown() {
+        server.stop();
+    }
+
+    @Test
+    public void testRangeRequestGetsPartialContent() throws Exception {
+        String url = server.toServerUrl(source);
+        assertNotEquals(source, url);
+
+        HttpURLConnection connection = (HttpURLConnection) new URL(url).openConnection();
+        try {
+            connection.setRequestProperty("Range", "bytes=100-1123");
+            assertEquals(206, connection.getResponseCode());
+            assertEquals("bytes 100-1123/" + assetLength,
+                    connection.getHeaderField("Content-Range"));
+            assertEquals(1024, readFully(connection.getInputStream()));
+        } finally {
+            connection.disconnect();
+        }
+    }
+
+    @Test
+    public void testOpenEndedRangeGetsTheRestOfTheAsset() throws Exception {
+        HttpURLConnection connection =
+                (HttpURLConnection) new URL(server.toServerUrl(source)).openConnection();
+        try {
+            connection.setRequestProperty("Range", "bytes=1000-");
+            assertEquals(206, connection.getResponseCode());
+            assertEquals("bytes 1000-" + (assetLength - 1) + "/" + assetLength,
+                    connection.getHeaderField("Content-Range"));
+            assertEquals(assetLength - 1000, readFully(connection.getInputStream()));
+        } finally {
+            connection.disconnect();
+        }
+    }
+
+    @Test
+    public void testUnsatisfiableRangeIsRejected() throws Exception {
+        HttpURLConnection connection =
+                (HttpURLConnection) new URL(server.toServerUrl(source)).openConnection();
+        try {
+            connection.setRequestProperty("Range", "bytes=" + assetLength + "-");
+            assertEquals(416, connection.getResponseCode());
+            assertEquals("bytes */" + assetLength, connection.getHeaderField("Content-Range"));
+        } finally {
+            connection.disconnect();
+        }
+    }
+
+    private static long readFully(InputStream in) throws IOException {
+        try {
+            byte[] buffer = new byte[8 * 1024];
+            long total = 0;
+            int read;
+            while ((read = in.read(buffer)) >= 0) {
+                total += read;
+            }
+            return total;
+        } finally {
+            in.close();
+        }
+    }
+}
@@ -0,0 +1,191 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ashomok.lullabies.playback;
+
+import android.support.v4.media.MediaMetadataCompat;
+import android.support.v4.media.session.MediaSessionCompat;
+import android.test.mock.MockResources;
+
+import androidx.annotation.NonNull;
+import androidx.test.internal.runner.junit4.AndroidJUnit4ClassRunner;
+import androidx.test.platform.app.InstrumentationRegistry;
+
+import com.ashomok.lullabies.TestSetupHelper;
+import com.ashomok.lullabies.model.MusicProvider;
+import com.ashomok.lullabies.utils.MediaIDHelper;
+import com.ashomok.lullabies.utils.SimpleMusicProviderSource;
+import com.google.android.gms.cast.MediaQueueItem;
+import com.google.android.gms.cast.MediaStatus;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Android instrumentation unit tests for {@link CastPlayback}, against a
+ * {@link FakeCastMediaClient}.
+ */
+@RunWith(AndroidJUnit4ClassRunner.class)
+public class CastPlaybackTest {
+
+    private static final String GENRE = "Genre 1";
+    private static final int TRACK_COUNT = 8;
+
+    private List<MediaSessionCompat.QueueItem> queue;
+    private FakeCastMediaClient client;
+    private CastPlayback playback;
+    private final List<String> currentMediaIds = new ArrayList<>();
+    private int completions;
+
+    @Before
+    public void setUpPlayback() throws Exception {
+        SimpleMusicProviderSource source = new SimpleMusicProviderSource();
+        for (int i = 1; i <= TRACK_COUNT; i++) {
+            source.add("Music " + i, "Album 1", "Smith Singer", GENRE,
+                    "https://examplemusic.com/music" + i + ".mp3", null, i, TRACK_COUNT, 3200);
+        }
+        MusicProvider provider = TestSetupHelper.setupMusicProvider(source);
+
+        QueueManager queueManager = new QueueManager(provider, new MockResources() {
+            @NonNull
+            @Override
+            public String getString(int id, Object... formatArgs) throws NotFoundException {
+                return "";
+            }
+        }, new QueueManager.MetadataUpdateListener() {
+            @Override
+            public void onMetadataChanged(MediaMetadataCompat metadata) {
+            }
+
+            @Override
+            public void onMetadataRetrieveError() {
+            }
+
+            @Override
+            public void onCurrentQueueIndexUpdated(int queueIndex) {
+            }
+
+            @Override
+            public void onQueueUpdated(String title, List<MediaSessionCompat.QueueItem> newQueue) {
+            }
+        });
+        MediaMetadataCompat first = provider.getMusicsByCategory(GENRE).get(0);
+        queueManager.setQueueFromMusic(MediaIDHelper.createMediaID(
+                first.getDescription().getMediaId(), MediaIDHelper.MEDIA_ID_MUSICS_BY_CATEGORY,
+                GENRE));
+        queue = queueManager.getPlayingQueue();
+        assertEquals(TRACK_COUNT, queue.size());
+
+        client = new FakeCastMediaClient();
+        playback = new CastPlayback(provider, queueManager, client, null);
+        runOnMainSync(() -> {
+            playback.setCallback(new Playback.Callback() {
+                @Override
+                public void onCompletion() {
+                    completions++;
+                }
+
+                @Override
+                public void onPlaybackStatusChanged(int state) {
+                }
+
+                @Override
+                public void onError(String error) {
+                }
+
+                @Override
+                public void setCurrentMediaId(String mediaId) {
+                    currentMediaIds.add(mediaId);
+                }
+            });
+            playback.start();
+            playback.play(queue.get(0));
+        });
+    }
+
+    @Test
+    public void testPlayLoadsQueueWindow() {
+        assertEquals(1, client.queueLoadCount);
+        assertEquals(0, client.loadCount);
+        assertEquals(CastPlayback.QUEUE_WINDOW_SIZE + 1, client.queue.size());
+        for (int i = 0; i < client.queue.size(); i++) {
+            MediaQueueItem item = client.queue.get(i);
+            assertEquals(mediaIdAt(i), item.getMedia().getCustomData().optString("itemId"));
+            assertTrue(item.getAutoplay());
+            assertEquals(CastPlayback.PRELOAD_TIME_S, item.getPreloadTime(), 0);
+        }
+    }
+
+    @Test
+    public void testReceiverAdvanceSyncsQueueAndExtendsWindow() {
+        runOnMainSync(client::advance);
+
+        assertEquals(1, currentMediaIds.size());
+        assertEquals(mediaIdAt(1), currentMediaIds.get(0));
+        assertEquals(1, client.appendCount);
+        assertEquals(CastPlayback.QUEUE_WINDOW_SIZE + 2, client.queue.size());
+
+        // The queue manager follows the receiver and asks to play the track it is already on.
+        runOnMainSync(() -> playback.play(queue.get(1)));
+        assertEquals(1, client.queueLoadCount);
+        assertEquals(0, client.jumpCount);
+    }
+
+    @Test
+    public void testSkipWithinWindowJumps() {
+        runOnMainSync(() -> playback.play(queue.get(3)));
+
+        assertEquals(1, client.queueLoadCount);
+        assertEquals(1, client.jumpCount);
+        assertEquals(mediaIdAt(3),
+                client.getCurrentItem().getMedia().getCustomData().optString("itemId"));
+    }
+
+    @Test
+    public void testSkipOutsideWindowReloads() {
+        runOnMainSync(() -> playback.play(queue.get(TRACK_COUNT - 1)));
+
+        assertEquals(2, client.queueLoadCount);
+        assertEquals(1, client.queue.size());
+    }
+
+    @Test
+    public void testEndOfQueueCompletes() {
+        for (int i = 0; i < TRACK_COUNT && client.isPlaying(); i++) {
+            runOnMainSync(client::advance);
+        }
+
+        assertEquals(MediaStatus.PLAYER_STATE_IDLE, client.playerState);
+        assertEquals(TRACK_COUNT, client.queue.size());
+        assertEquals(1, client.queueLoadCount);
+        assertEquals(1, completions);
+    }
+
+    private String mediaIdAt(int index) {
+        return queue.get(index).getDescription().getMediaId();
+    }
+
+    private static void runOnMainSync(Runnable task) {
+        InstrumentationRegistry.getInstrumentation().runOnMainSync(task);
+    }
+}
@@ -0,0 +1,197 @@
+/*
+* Copyright (C) 2014 The Android Open Source Project
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*      http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+package com.ashomok.lullabies.playback;
+
+import androidx.annotation.NonNull;
+
+import com.google.android.gms.cast.MediaInfo;
+import com.google.android.gms.cast.MediaQueueItem;
+import com.google.android.gms.cast.MediaStatus;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * In-memory receiver: keeps a queue, assigns item ids and records the requests it gets.
+ */
+class FakeCastMediaClient implements CastMediaClient {
+
+    final List<MediaQueueItem> queue = new ArrayList<>();
+    int currentItemId = MediaQueueItem.INVALID_ITEM_ID;
+    int playerState = MediaStatus.PLAYER_STATE_IDLE;
+    int idleReason = MediaStatus.IDLE_REASON_NONE;
+
+    int loadCount;
+    int queueLoadCount;
+    int appendCount;
+    int jumpCount;
+    int playCount;
+
+    private int nextItemId = 1;
+    private Listener listener;
+
+    /**
+     * Move to the next item of the queue, like a receiver at the end of a track.
+     */
+    void advance() {
+        int index = indexOf(currentItemId);
+        if (index + 1 < queue.size()) {
+            currentItemId = queue.get(index + 1).getItemId();
+            playerState = MediaStatus.PLAYER_STATE_PLAYING;
+        } else {
+            currentItemId = MediaQueueItem.INVALID_ITEM_ID;
+            playerState = MediaStatus.PLAYER_STATE_IDLE;
+            idleReason = MediaStatus.IDLE_REASON_FINISHED;
+        }
+        if (listener != null) {
+            listener.onQueueStatusUpdated();
+            listener.onStatusUpdated();
+        }
+    }
+
+    @Override
+    public void addListener(@NonNull Listener listener) {
+        this.listener = listener;
+    }
+
+    @Override
+    public void removeListener(@NonNull Listener listener) {
+        this.listener = null;
+    }
+
+    @Override
+    public boolean isConnected() {
+        return true;
+    }
+
+    @Override
+    public boolean hasMediaSession() {
+        return currentItemId != MediaQueueItem.INVALID_ITEM_ID;
+    }
+
+    @Override
+    public boolean isPlaying() {
+        return playerState == MediaStatus.PLAYER_STATE_PLAYING;
+    }
+
+    @Override
+    public long getApproximateStreamPosition() {
+        return 0;
+    }
+
+    @Override
+    public int getPlayerState() {
+        return playerState;
+    }
+
+    @Override
+    public int getIdleReason() {
+        return idleReason;
+    }
+
+    @Override
+    public MediaInfo getMediaInfo() {
+        MediaQueueItem item = getCurrentItem();
+        return item == null ? null : item.getMedia();
+    }
+
+    @Override
+    public MediaQueueItem getCurrentItem() {
+        int index = indexOf(currentItemId);
+        return index < 0 ? null : queue.get(index);
+    }
+
+    @NonNull
+    @Override
+    public List<MediaQueueItem> getQueueItems() {
+        return new ArrayList<>(queue);
+    }
+
+    @Override
+    public void load(@NonNull MediaInfo media, boolean autoPlay, long position,
+                     JSONObject customData) {
+        loadCount++;
+        queue.clear();
+        add(new MediaQueueItem.Builder(media).build());
+        currentItemId = queue.get(0).getItemId();
+        playerState = autoPlay ? MediaStatus.PLAYER_STATE_PLAYING : MediaStatus.PLAYER_STATE_PAUSED;
+    }
+
+    @Override
+    public void queueLoad(@NonNull MediaQueueItem[] items, int startIndex, long position,
+                          JSONObject customData) {
+        queueLoadCount++;
+        queue.clear();
+        for (MediaQueueItem item : items) {
+            add(item);
+        }
+        currentItemId = queue.get(startIndex).getItemId();
+        playerState = MediaStatus.PLAYER_STATE_PLAYING;
+    }
+
+    @Override
+    public void queueAppendItems(@NonNull MediaQueueItem[] items, JSONObject customData) {
+        appendCount++;
+        for (MediaQueueItem item : items) {
+            add(item);
+        }
+    }
+
+    @Override
+    public void queueJumpToItem(int itemId, long position, JSONObject customData) {
+        jumpCount++;
+        currentItemId = itemId;
+        playerState = MediaStatus.PLAYER_STATE_PLAYING;
+    }
+
+    @Override
+    public void play() {
+        playCount++;
+        playerState = MediaStatus.PLAYER_STATE_PLAYING;
+    }
+
+    @Override
+    public void pause() {
+        playerState = MediaStatus.PLAYER_STATE_PAUSED;
+    }
+
+    @Override
+    public void seek(long position) {
+    }
+
+    private void add(MediaQueueItem item) {
+        try {
+            // Like a receiver, give each new item an id of its own.
+            JSONObject json = item.toJson();
+            json.put("itemId", nextItemId++);
+            queue.add(new MediaQueueItem.Builder(json).build());
+        } catch (JSONException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private int indexOf(int itemId) {
+        for (int i = 0; i < queue.size(); i++) {
+            if (queue.get(i).getItemId() == itemId) {
+                return i;
+            }
+        }
+        return -1;
+    }
+}
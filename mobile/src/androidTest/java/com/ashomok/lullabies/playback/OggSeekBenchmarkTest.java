@@ -0,0 +1,275 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ashomok.lullabies.playback;
+
+import android.content.Context;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.SystemClock;
+import android.util.Log;
+
+import androidx.test.internal.runner.junit4.AndroidJUnit4ClassRunner;
+import androidx.test.platform.app.InstrumentationRegistry;
+
+import com.google.android.exoplayer2.C;
+import com.google.android.exoplayer2.DefaultRenderersFactory;
+import com.google.android.exoplayer2.ExoPlayerFactory;
+import com.google.android.exoplayer2.Player;
+import com.google.android.exoplayer2.SimpleExoPlayer;
+import com.google.android.exoplayer2.extractor.DefaultExtractorInput;
+import com.google.android.exoplayer2.extractor.DefaultExtractorsFactory;
+import com.google.android.exoplayer2.extractor.DummyTrackOutput;
+import com.google.android.exoplayer2.extractor.Extractor;
+import com.google.android.exoplayer2.extractor.ExtractorInput;
+import com.google.android.exoplayer2.extractor.ExtractorOutput;
+import com.google.android.exoplayer2.extractor.ExtractorsFactory;
+import com.google.android.exoplayer2.extractor.PositionHolder;
+import com.google.android.exoplayer2.extractor.SeekMap;
+import com.google.android.exoplayer2.extractor.TrackOutput;
+import com.google.android.exoplayer2.source.ExtractorMediaSource;
+import com.google.android.exoplayer2.trackselection.DefaultTrackSelector;
+import com.google.android.exoplayer2.upstream.AssetDataSource;
+import com.google.android.exoplayer2.upstream.DataSpec;
+import com.google.android.exoplayer2.upstream.DefaultDataSourceFactory;
+import com.google.android.exoplayer2.util.Util;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Android instrumentation benchmark of seeking a bundled Ogg track, with and without its
+ * {@link OggSeekTable}.
+ */
+@RunWith(AndroidJUnit4ClassRunner.class)
+public class OggSeekBenchmarkTest {
+
+    private static final String TAG = "OggSeekBenchmark";
+
+    private static final String SOURCE = "file:///android_asset/music/base/1.ogg";
+    private static final int ROUNDS = 3;
+    private static final long TIMEOUT_SECONDS = 10;
+    // A seek that lands on the right page reads a few KB; bisecting the file takes far longer.
+    private static final long MAX_AVERAGE_SEEK_MS = 250;
+
+    private Context context;
+    private HandlerThread playerThread;
+    private Handler playerHandler;
+
+    @Before
+    public void setUp() {
+        context = InstrumentationRegistry.getInstrumentation().getTargetContext();
+        playerThread = new HandlerThread("OggSeekBenchmark");
+        playerThread.start();
+        playerHandler = new Handler(playerThread.getLooper());
+    }
+
+    @After
+    public void tearDown() {
+        playerThread.quit();
+    }
+
+    @Test
+    public void testSeekTableIsBundled() {
+        OggSeekTable seekTable = OggSeekTable.forSource(context, SOURCE);
+        assertNotNull(seekTable);
+        assertTrue(seekTable.getDurationUs() > 0);
+    }
+
+    @Test
+    public void testExtractorSeeksThroughTable() throws Exception {
+        OggSeekTable seekTable = OggSeekTable.forSource(context, SOURCE);
+        assertNotNull(seekTable);
+        SeekMap seekMap = readSeekMap(new SeekTableOggExtractor(seekTable));
+        assertNotNull(seekMap);
+        assertTrue(seekMap.isSeekable());
+        assertEquals(seekTable.getDurationUs(), seekMap.getDurationUs());
+        for (long positionMs : seekPositions(seekTable.getDurationUs() / 1000)) {
+            long timeUs = positionMs * 1000;
+            int index = seekTable.indexOf(timeUs);
+            SeekMap.SeekPoints seekPoints = seekMap.getSeekPoints(timeUs);
+            assertEquals(seekTable.getOffset(index), seekPoints.first.position);
+            assertEquals(seekTable.getTimeUs(index), seekPoints.first.timeUs);
+        }
+    }
+
+    @Test
+    public void testSeekLatency() throws Exception {
+        OggSeekTable seekTable = OggSeekTable.forSource(context, SOURCE);
+        assertNotNull(seekTable);
+        long[] positionsMs = seekPositions(seekTable.getDurationUs() / 1000);
+
+        // Warm up the decoder and the page cache before measuring anything.
+        measureSeeks(new DefaultExtractorsFactory(), positionsMs);
+
+        long withoutTable = 0;
+        long withTable = 0;
+        for (int i = 0; i < ROUNDS; i++) {
+            withoutTable += measureSeeks(new DefaultExtractorsFactory(), positionsMs);
+            withTable += measureSeeks(SeekTableOggExtractor.factory(seekTable), positionsMs);
+        }
+        int seeks = ROUNDS * positionsMs.length;
+        Log.i(TAG, "Average seek latency without table: " + withoutTable / seeks + "ms, with table: "
+                + withTable / seeks + "ms");
+        assertTrue("Average seek with table took " + withTable / seeks + "ms",
+                withTable / seeks <= MAX_AVERAGE_SEEK_MS);
+    }
+
+    private static long[] seekPositions(long durationMs) {
+        // Jump back and forth over the whole track, so no seek is served from the buffer.
+        return new long[]{
+                durationMs * 3 / 4, durationMs / 4, durationMs * 9 / 10, durationMs / 10,
+                durationMs / 2, durationMs * 2 / 3, durationMs / 3};
+    }
+
+    /**
+     * Read the asset through the extractor until it reports its seek map.
+     */
+    private SeekMap readSeekMap(Extractor extractor) throws Exception {
+        SeekMap[] seekMap = new SeekMap[1];
+        extractor.init(new ExtractorOutput() {
+            @Override
+            public TrackOutput track(int id, int type) {
+                return new DummyTrackOutput();
+            }
+
+            @Override
+            public void endTracks() {
+            }
+
+            @Override
+            public void seekMap(SeekMap map) {
+                seekMap[0] = map;
+            }
+        });
+        AssetDataSource dataSource = new AssetDataSource(context);
+        PositionHolder seekPosition = new PositionHolder();
+        long position = 0;
+        boolean sniffed = false;
+        while (seekMap[0] == null) {
+            long length = dataSource.open(new DataSpec(Uri.parse(SOURCE), position, C.LENGTH_UNSET,
+                    null));
+            try {
+                ExtractorInput input = new DefaultExtractorInput(dataSource, position,
+                        length == C.LENGTH_UNSET ? C.LENGTH_UNSET : position + length);
+                if (!sniffed) {
+                    assertTrue(extractor.sniff(input));
+                    input.resetPeekPosition();
+                    sniffed = true;
+                }
+                int result = Extractor.RESULT_CONTINUE;
+                while (result == Extractor.RESULT_CONTINUE && seekMap[0] == null) {
+                    result = extractor.read(input, seekPosition);
+                }
+                if (result == Extractor.RESULT_END_OF_INPUT) {
+                    break;
+                }
+                if (result == Extractor.RESULT_SEEK) {
+                    position = seekPosition.position;
+                }
+            } finally {
+                dataSource.close();
+            }
+        }
+        extractor.release();
+        return seekMap[0];
+    }
+
+    /**
+     * @return total milliseconds between each seek and the player being ready again.
+     */
+    private long measureSeeks(ExtractorsFactory extractorsFactory, long[] positionsMs)
+            throws Exception {
+        SeekListener listener = new SeekListener();
+        SimpleExoPlayer[] player = new SimpleExoPlayer[1];
+        runOnPlayerThread(() -> {
+            player[0] = ExoPlayerFactory.newSimpleInstance(
+                    new DefaultRenderersFactory(context), new DefaultTrackSelector());
+            player[0].setVolume(0);
+            player[0].addListener(listener);
+            player[0].prepare(new ExtractorMediaSource.Factory(
+                    new DefaultDataSourceFactory(context, Util.getUserAgent(context, "uamp")))
+                    .setExtractorsFactory(extractorsFactory)
+                    .createMediaSource(Uri.parse(SOURCE)));
+        });
+        try {
+            listener.awaitReady();
+
+            long total = 0;
+            for (long positionMs : positionsMs) {
+                listener.expectSeek();
+                long start = SystemClock.elapsedRealtime();
+                runOnPlayerThread(() -> player[0].seekTo(positionMs));
+                listener.awaitReady();
+                total += SystemClock.elapsedRealtime() - start;
+            }
+            return total;
+        } finally {
+            runOnPlayerThread(() -> player[0].release());
+        }
+    }
+
+    private void runOnPlayerThread(Runnable task) throws InterruptedException {
+        CountDownLatch done = new CountDownLatch(1);
+        playerHandler.post(() -> {
+            task.run();
+            done.countDown();
+        });
+        assertTrue(done.await(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+    }
+
+    private static class SeekListener extends Player.DefaultEventListener {
+        private volatile CountDownLatch ready = new CountDownLatch(1);
+        private volatile boolean seekProcessed = true;
+        private volatile int playbackState = Player.STATE_IDLE;
+
+        void expectSeek() {
+            seekProcessed = false;
+            ready = new CountDownLatch(1);
+        }
+
+        void awaitReady() throws InterruptedException {
+            assertTrue(ready.await(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+        }
+
+        @Override
+        public void onSeekProcessed() {
+            seekProcessed = true;
+            // A seek into the buffer does not leave the ready state.
+            if (playbackState == Player.STATE_READY) {
+                ready.countDown();
+            }
+        }
+
+        @Override
+        public void onPlayerStateChanged(boolean playWhenReady, int playbackState) {
+            this.playbackState = playbackState;
+            if (seekProcessed && playbackState == Player.STATE_READY) {
+                ready.countDown();
+            }
+        }
+    }
+}
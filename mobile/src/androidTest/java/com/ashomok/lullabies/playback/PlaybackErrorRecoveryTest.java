@@ -0,0 +1,136 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.ashomok.lullabies.playback;
+
+import android.content.Context;
+import android.net.Uri;
+import android.support.v4.media.MediaMetadataCompat;
+
+import androidx.test.internal.runner.junit4.AndroidJUnit4ClassRunner;
+import androidx.test.platform.app.InstrumentationRegistry;
+
+import com.ashomok.lullabies.model.LocalJSONSource;
+import com.ashomok.lullabies.model.MusicProviderSource;
+import com.google.android.exoplayer2.ExoPlaybackException;
+import com.google.android.exoplayer2.upstream.DataSpec;
+import com.google.android.exoplayer2.upstream.HttpDataSource;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.FileNotFoundException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Android instrumentation unit tests for {@link PlaybackErrorRecovery}.
+ */
+@RunWith(AndroidJUnit4ClassRunner.class)
+public class PlaybackErrorRecoveryTest {
+
+    private static final String STREAM_URL = "https://examplemusic.com/music1.mp3";
+
+    private PlaybackErrorRecovery recovery;
+    private MediaMetadataCompat bundledTrack;
+
+    @Before
+    public void setUp() {
+        Context context = InstrumentationRegistry.getInstrumentation().getTargetContext();
+        recovery = new PlaybackErrorRecovery(context);
+        bundledTrack = new LocalJSONSource(context).iterator().next();
+    }
+
+    @Test
+    public void testTransientErrorsBackOffUpToTheCap() {
+        long[] expected = {1000, 2000, 4000, 8000};
+        assertEquals(expected.length, PlaybackErrorRecovery.MAX_RETRIES);
+        for (long delay : expected) {
+            assertEquals(delay, recovery.onError(networkError(), STREAM_URL));
+            assertTrue(recovery.isRecovering());
+        }
+        // Retries are exhausted.
+        assertEquals(-1, recovery.onError(networkError(), STREAM_URL));
+
+        PlaybackErrorRecovery.Metrics metrics = recovery.getMetrics();
+        assertEquals(expected.length + 1, metrics.errors);
+        assertEquals(expected.length, metrics.retries);
+    }
+
+    @Test
+    public void testBackoffIsCapped() {
+        assertEquals(8000, PlaybackErrorRecovery.retryDelay(3));
+        assertEquals(16000, PlaybackErrorRecovery.retryDelay(4));
+        assertEquals(16000, PlaybackErrorRecovery.retryDelay(5));
+        assertEquals(16000, PlaybackErrorRecovery.retryDelay(100));
+
+        // The retry count starts over once the track plays again.
+        for (int round = 0; round < 3; round++) {
+            assertEquals(PlaybackErrorRecovery.INITIAL_RETRY_DELAY_MS,
+                    recovery.onError(networkError(), STREAM_URL));
+            recovery.onRecovered();
+        }
+        assertEquals(3, recovery.getMetrics().recovered);
+    }
+
+    @Test
+    public void testLocalErrorsAreNotRetried() {
+        String bundledSource = bundledTrack.getString(
+                MusicProviderSource.CUSTOM_METADATA_TRACK_SOURCE);
+        ExoPlaybackException missing = ExoPlaybackException.createForSource(
+                new FileNotFoundException(bundledSource));
+        assertEquals(-1, recovery.onError(missing, bundledSource));
+        assertEquals(-1, recovery.onError(networkError(), bundledSource));
+        assertNull(recovery.getFallbackSource(
+                bundledTrack.getDescription().getMediaId(), bundledSource));
+        assertFalse(recovery.isRecovering());
+    }
+
+    @Test
+    public void testStreamFallsBackToBundledSource() {
+        String musicId = bundledTrack.getDescription().getMediaId();
+        for (int i = 0; i < PlaybackErrorRecovery.MAX_RETRIES; i++) {
+            recovery.onError(networkError(), STREAM_URL);
+        }
+        assertEquals(-1, recovery.onError(networkError(), STREAM_URL));
+        String fallback = recovery.getFallbackSource(musicId, STREAM_URL);
+        assertEquals(bundledTrack.getString(MusicProviderSource.CUSTOM_METADATA_TRACK_SOURCE),
+                fallback);
+        assertTrue(recovery.isRecovering());
+        // The bundled source is not retried, and has nothing to fall back to.
+        assertEquals(-1, recovery.onError(networkError(), fallback));
+        assertNull(recovery.getFallbackSource(musicId, fallback));
+
+        assertNull(recovery.getFallbackSource("not in the catalog", STREAM_URL));
+        recovery.onFailed();
+        assertFalse(recovery.isRecovering());
+
+        PlaybackErrorRecovery.Metrics metrics = recovery.getMetrics();
+        assertEquals(1, metrics.fallbacks);
+        assertEquals(1, metrics.failed);
+        assertEquals(PlaybackErrorRecovery.MAX_RETRIES, metrics.retries);
+        assertEquals(PlaybackErrorRecovery.MAX_RETRIES + 2, metrics.errors);
+    }
+
+    private static ExoPlaybackException networkError() {
+        return ExoPlaybackException.createForSource(new HttpDataSource.HttpDataSourceException(
+                "Connection reset", new DataSpec(Uri.parse(STREAM_URL)),
+                HttpDataSource.HttpDataSourceException.TYPE_OPEN));
+    }
+}
@@ -34,10 +34,15 @@ import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Semaphore;
 import java.util.concurrent.TimeUnit;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
 
 /**
  * Android instrumentation unit tests for {@link PlaybackManager} and related classes.
@@ -211,5 +216,114 @@ public class PlaybackManagerTest {
                 queueManager.getCurrentMusic().getDescription().getMediaId()));
     }
 
+    @Test
+    public void testQueuedSkipsPrepareOnlyTheFinalTrack() throws Exception {
+        final int skips = 4;
+        SkipFixture fixture = new SkipFixture();
+        List<MediaSessionCompat.QueueItem> queue = fixture.start();
+        int start = indexOf(queue, fixture.played.get(0));
+        fixture.played.clear();
+
+        // Hold the playback thread, so that the skips queue up behind this command.
+        final CountDownLatch release = new CountDownLatch(1);
+        fixture.commandQueue.enqueue(PlaybackCommandQueue.Command.of(() -> {
+            try {
+                release.await(5, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }));
+        for (int i = 0; i < skips; i++) {
+            fixture.controls.onSkipToNext();
+        }
+        release.countDown();
+
+        assertTrue(fixture.plays.tryAcquire(5, TimeUnit.SECONDS));
+        assertFalse(fixture.plays.tryAcquire(3 * PlaybackManager.SKIP_SETTLE_MS,
+                TimeUnit.MILLISECONDS));
+        assertEquals(1, fixture.played.size());
+        assertEquals(queue.get((start + skips) % queue.size()).getDescription().getMediaId(),
+                fixture.played.get(0).getDescription().getMediaId());
+        fixture.release();
+    }
+
+    @Test
+    public void testBurstOfSkipsSkipsPreparingTracksInBetween() throws Exception {
+        SkipFixture fixture = new SkipFixture();
+        List<MediaSessionCompat.QueueItem> queue = fixture.start();
+        int start = indexOf(queue, fixture.played.get(0));
+        fixture.played.clear();
+
+        // A lone skip plays right away.
+        fixture.controls.onSkipToNext();
+        assertTrue(fixture.plays.tryAcquire(PlaybackManager.SKIP_SETTLE_MS,
+                TimeUnit.MILLISECONDS));
+        // The skips right after it only play the track they end on, once they settle.
+        fixture.controls.onSkipToNext();
+        fixture.controls.onSkipToNext();
+        assertTrue(fixture.plays.tryAcquire(5, TimeUnit.SECONDS));
+        assertFalse(fixture.plays.tryAcquire(3 * PlaybackManager.SKIP_SETTLE_MS,
+                TimeUnit.MILLISECONDS));
+
+        assertEquals(2, fixture.played.size());
+        assertEquals(queue.get((start + 1) % queue.size()).getDescription().getMediaId(),
+                fixture.played.get(0).getDescription().getMediaId());
+        assertEquals(queue.get((start + 3) % queue.size()).getDescription().getMediaId(),
+                fixture.played.get(1).getDescription().getMediaId());
+        fixture.release();
+    }
+
+    private static int indexOf(List<MediaSessionCompat.QueueItem> queue,
+                               MediaSessionCompat.QueueItem item) {
+        for (int i = 0; i < queue.size(); i++) {
+            if (queue.get(i).getDescription().getMediaId()
+                    .equals(item.getDescription().getMediaId())) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * A {@link PlaybackManager} on its own command queue, with a playback recording what it is
+     * asked to play.
+     */
+    private class SkipFixture {
+        final List<MediaSessionCompat.QueueItem> played = new CopyOnWriteArrayList<>();
+        final Semaphore plays = new Semaphore(0);
+        final PlaybackCommandQueue commandQueue = new PlaybackCommandQueue();
+        final QueueManager queueManager = new QueueManager(musicProvider, resources,
+                new SimpleMetadataUpdateListener());
+        final PlaybackManager playbackManager = new PlaybackManager(
+                new SimplePlaybackServiceCallback(), resources, musicProvider, queueManager,
+                new SimplePlayback() {
+                    @Override
+                    public void play(MediaSessionCompat.QueueItem item) {
+                        played.add(item);
+                        plays.release();
+                    }
+                }, commandQueue);
+        final MediaSessionCompat.Callback controls = playbackManager.getMediaSessionCallback();
+
+        /**
+         * Play the first track of the first category, and wait for it.
+         *
+         * @return the queue it is played from.
+         */
+        List<MediaSessionCompat.QueueItem> start() throws InterruptedException {
+            String mediaId = MediaIDHelper.MEDIA_ID_ROOT;
+            while (MediaIDHelper.isBrowseable(mediaId)) {
+                mediaId = musicProvider.getChildren(mediaId, resources).get(0).getMediaId();
+            }
+            controls.onPlayFromMediaId(mediaId, null);
+            assertTrue(plays.tryAcquire(5, TimeUnit.SECONDS));
+            List<MediaSessionCompat.QueueItem> queue = queueManager.getPlayingQueue();
+            assertTrue(queue.size() > 1);
+            return queue;
+        }
 
-}
\ No newline at end of file
+        void release() {
+            playbackManager.release();
+        }
+    }
+}
@@ -0,0 +1,115 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.ashomok.lullabies.utils;
+
+import android.graphics.Bitmap;
+import android.os.Bundle;
+import android.support.v4.media.MediaBrowserCompat;
+import android.support.v4.media.MediaBrowserCompat.MediaItem;
+import android.support.v4.media.MediaMetadataCompat;
+import android.test.mock.MockResources;
+
+import androidx.test.internal.runner.junit4.AndroidJUnit4ClassRunner;
+
+import com.ashomok.lullabies.TestSetupHelper;
+import com.ashomok.lullabies.model.MusicProvider;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Android instrumentation unit tests for {@link BrowsePages}.
+ */
+@RunWith(AndroidJUnit4ClassRunner.class)
+public class BrowsePagesTest {
+
+    private static final int TRACK_COUNT = 10000;
+    private static final int PAGE_SIZE = 100;
+
+    private MusicProvider provider;
+    private String categoryMediaId;
+
+    @Before
+    public void setupMusicProvider() throws Exception {
+        SimpleMusicProviderSource source = new SimpleMusicProviderSource();
+        for (int i = 0; i < TRACK_COUNT; i++) {
+            source.add("Music " + i, "Album " + (i / 10), "Singer " + (i % 50), "Genre 1",
+                    "https://examplemusic.com/music" + i + ".mp3",
+                    "https://icons.com/album" + (i / 10) + ".png", i % 10 + 1, 10, 180000);
+        }
+        provider = TestSetupHelper.setupMusicProvider(source);
+        categoryMediaId = MediaIDHelper.createMediaID(
+                null, MediaIDHelper.MEDIA_ID_MUSICS_BY_CATEGORY, "Genre 1");
+    }
+
+    @Test
+    public void testEachPageOfLargeCategoryFits() {
+        // Art loaded for a track must not travel with the browse items.
+        Bitmap art = Bitmap.createBitmap(512, 512, Bitmap.Config.ARGB_8888);
+        MediaMetadataCompat first = provider.getMusicsByCategory("Genre 1").get(0);
+        provider.updateMusicArt(first.getDescription().getMediaId(), art, art);
+
+        List<MediaItem> tracks = provider.getChildren(categoryMediaId, new MockResources());
+        assertEquals(TRACK_COUNT, tracks.size());
+
+        int pageCount = (TRACK_COUNT + PAGE_SIZE - 1) / PAGE_SIZE;
+        int seen = 0;
+        for (int page = 0; page < pageCount; page++) {
+            List<MediaItem> items = BrowsePages.page(tracks, pageOptions(page, PAGE_SIZE));
+            assertEquals(PAGE_SIZE, items.size());
+            assertTrue("Page " + page + " takes " + BrowsePages.sizeOf(items) + " bytes",
+                    BrowsePages.sizeOf(items) <= BrowsePages.MAX_PAGE_BYTES);
+            for (MediaItem item : items) {
+                assertNull(item.getDescription().getIconBitmap());
+                assertEquals(tracks.get(seen).getMediaId(), item.getMediaId());
+                seen++;
+            }
+        }
+        assertEquals(TRACK_COUNT, seen);
+        assertTrue(BrowsePages.page(tracks, pageOptions(pageCount, PAGE_SIZE)).isEmpty());
+    }
+
+    @Test
+    public void testUnpagedReplyIsCutToFit() {
+        List<MediaItem> tracks = provider.getChildren(categoryMediaId, new MockResources());
+        assertTrue(BrowsePages.sizeOf(tracks) > BrowsePages.MAX_PAGE_BYTES);
+
+        List<MediaItem> reply = BrowsePages.page(tracks, null);
+        assertTrue(reply.size() > 0);
+        assertTrue(reply.size() < TRACK_COUNT);
+        assertTrue(BrowsePages.sizeOf(reply) <= BrowsePages.MAX_PAGE_BYTES);
+        assertEquals(tracks.get(reply.size() - 1).getMediaId(),
+                reply.get(reply.size() - 1).getMediaId());
+
+        // A page too large for a reply is cut the same way.
+        List<MediaItem> page = BrowsePages.page(tracks, pageOptions(0, TRACK_COUNT));
+        assertEquals(reply.size(), page.size());
+    }
+
+    private static Bundle pageOptions(int page, int pageSize) {
+        Bundle options = new Bundle();
+        options.putInt(MediaBrowserCompat.EXTRA_PAGE, page);
+        options.putInt(MediaBrowserCompat.EXTRA_PAGE_SIZE, pageSize);
+        return options;
+    }
+}
@@ -0,0 +1,115 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.ashomok.lullabies.utils;
+
+import android.os.Looper;
+
+import androidx.test.internal.runner.junit4.AndroidJUnit4ClassRunner;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Android instrumentation unit tests for {@link StartupOrchestrator}.
+ */
+@RunWith(AndroidJUnit4ClassRunner.class)
+public class StartupOrchestratorTest {
+
+    @Test
+    public void testCriticalStartsWhenAdded() {
+        StartupOrchestrator startup = new StartupOrchestrator("test");
+        StartupOrchestrator.Component<String> critical = startup.add("critical",
+                StartupOrchestrator.Mode.CRITICAL, false, () -> "critical");
+        assertEquals("critical", startup.peek(critical));
+    }
+
+    @Test
+    public void testDeferredWaitsForStartAndDependencies() throws Exception {
+        final List<String> started = new CopyOnWriteArrayList<>();
+        final CountDownLatch done = new CountDownLatch(1);
+        StartupOrchestrator startup = new StartupOrchestrator("test");
+        StartupOrchestrator.Component<String> first = startup.add("first",
+                StartupOrchestrator.Mode.AFTER_FIRST_FRAME, true, () -> {
+                    started.add("first");
+                    return "first";
+                });
+        StartupOrchestrator.Component<String> second = startup.add("second",
+                StartupOrchestrator.Mode.AFTER_FIRST_FRAME, true, () -> {
+                    started.add("second");
+                    done.countDown();
+                    return "second";
+                }, first);
+        assertTrue(started.isEmpty());
+        assertNull(startup.peek(second));
+
+        startup.start();
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        assertEquals("second", startup.get(second));
+        assertEquals(2, started.size());
+        assertEquals("first", started.get(0));
+    }
+
+    @Test
+    public void testOnFirstUseStartsWhenAsked() {
+        StartupOrchestrator startup = new StartupOrchestrator("test");
+        startup.start();
+        StartupOrchestrator.Component<String> lazy = startup.add("lazy",
+                StartupOrchestrator.Mode.ON_FIRST_USE, true, () -> "lazy");
+        assertNull(startup.peek(lazy));
+        assertEquals("lazy", startup.get(lazy));
+        assertEquals("lazy", startup.peek(lazy));
+    }
+
+    @Test
+    public void testMainThreadComponentStartsOnMainThread() {
+        StartupOrchestrator startup = new StartupOrchestrator("test");
+        StartupOrchestrator.Component<Looper> main = startup.add("main",
+                StartupOrchestrator.Mode.ON_FIRST_USE, false, Looper::myLooper);
+        // Instrumentation tests run off the main thread.
+        assertNotSame(Looper.getMainLooper(), Looper.myLooper());
+        assertSame(Looper.getMainLooper(), startup.get(main));
+    }
+
+    @Test
+    public void testFailedDependencyFailsDependents() {
+        StartupOrchestrator startup = new StartupOrchestrator("test");
+        StartupOrchestrator.Component<String> broken = startup.add("broken",
+                StartupOrchestrator.Mode.ON_FIRST_USE, true, () -> {
+                    throw new IllegalArgumentException("broken");
+                });
+        StartupOrchestrator.Component<String> dependent = startup.add("dependent",
+                StartupOrchestrator.Mode.ON_FIRST_USE, true, () -> "dependent", broken);
+        try {
+            startup.get(dependent);
+            fail("The dependent of a failed component should fail");
+        } catch (IllegalStateException expected) {
+            // Expected.
+        }
+        assertNull(startup.peek(dependent));
+    }
+}
@@ -16,27 +16,65 @@
 
 package com.ashomok.lullabies;
 
+import android.content.ComponentCallbacks2;
 import android.graphics.Bitmap;
-import android.util.LruCache;
+import android.os.SystemClock;
+
+import androidx.collection.LruCache;
 
 import com.ashomok.lullabies.utils.BitmapHelper;
+import com.ashomok.lullabies.utils.BitmapPool;
 import com.ashomok.lullabies.utils.LogHelper;
 
-import java.io.IOException;
-
-import javax.inject.Inject;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
 
 import io.reactivex.Single;
 import io.reactivex.android.schedulers.AndroidSchedulers;
+import io.reactivex.disposables.Disposable;
 import io.reactivex.schedulers.Schedulers;
 
 /**
  * Implements a basic cache of album arts, with async loading support.
+ * <p>
+ * Only one load runs per album art at a time: fetches of an album art that is already being
+ * loaded attach to the pending load, and all their listeners are notified together when it
+ * completes.
+ * <p>
+ * Besides the big image and icon, which end up in media metadata and notifications and so are
+ * never reused, an album art can be fetched as a full-bleed background. Backgrounds are counted
+ * while they are handed out, and once the cache has evicted one and no one displays it anymore
+ * its memory goes to a {@link BitmapPool} that the next decode reuses.
+ * <p>
+ * An album art can be asked for by its URL or by its {@link AlbumArtProvider} URI, which
+ * media descriptions carry; both load the same album art, from the same disk cache entries.
+ * <p>
+ * Views that know their size ask for an album art at that size instead. They get the smallest
+ * cached image that covers it, or a new one that is scaled down from a bigger cached image if
+ * there is one, and decoded from the album art with power-of-two subsampling otherwise.
+ * <p>
+ * Loads run on an {@link ArtLoadScheduler} by {@link Priority}: what is on screen first, then
+ * what is shown next, then prefetches. Fetching an album art that is still queued at a higher
+ * priority moves its load ahead.
+ * <p>
+ * The cache shrinks as the system runs low on memory or the app goes to the background, so that
+ * a process that plays all night in the background is not a bigger kill target than it needs to
+ * be, and grows back once the app is in the foreground again. {@link #getStats} tells how well
+ * it does.
+ * <p>
+ * There is one cache per process, {@link #getInstance}, which the application's Dagger graph
+ * provides too.
  */
 public final class AlbumArtCache {
     private static final String TAG = LogHelper.makeLogTag(AlbumArtCache.class);
 
     private static final int MAX_ALBUM_ART_CACHE_SIZE = 12 * 1024 * 1024;  // 12 MB
+    private static final int MAX_BITMAP_POOL_SIZE = 4 * 1024 * 1024;  // 4 MB
     private static final int MAX_ART_WIDTH = 800;  // pixels
     private static final int MAX_ART_HEIGHT = 480;  // pixels
 
@@ -47,10 +85,39 @@ public final class AlbumArtCache {
     private static final int MAX_ART_WIDTH_ICON = 128;  // pixels
     private static final int MAX_ART_HEIGHT_ICON = 128;  // pixels
 
+    private static final String ART_SIZE_SPEC = MAX_ART_WIDTH + "x" + MAX_ART_HEIGHT + "/"
+            + MAX_ART_WIDTH_ICON + "x" + MAX_ART_HEIGHT_ICON;
+    private static final String BACKGROUND_SIZE_SPEC =
+            MAX_ART_WIDTH + "x" + MAX_ART_HEIGHT + "/RGB_565";
+    private static final String BACKGROUND_KEY_SUFFIX = "#background";
+    private static final String SIZED_KEY_SEPARATOR = "#size=";
+
     private static final int BIG_BITMAP_INDEX = 0;
     private static final int ICON_BITMAP_INDEX = 1;
 
     private final LruCache<String, Bitmap[]> mCache;
+    private final int mMaxSize;
+    private final ArtLoader mLoader;
+    private final BitmapPool mPool;
+    private final ArtLoadScheduler mScheduler;
+    private volatile ArtLoader mBundledLoader;
+    private volatile AlbumArtDiskCache mDiskCache;
+
+    // Loads in progress, by cache key. Guarded by itself.
+    private final Map<String, PendingFetch> mPendingFetches = new HashMap<>();
+
+    // References to each background, held by the memory cache and by whoever displays it.
+    // Guarded by itself.
+    private final Map<Bitmap, Integer> mBackgroundRefs = new IdentityHashMap<>();
+
+    // Sized images in the memory cache, by album art URL. May still list evicted images.
+    // Guarded by itself.
+    private final Map<String, List<SizedImage>> mSizedImages = new HashMap<>();
+
+    private final AtomicLong mHitCount = new AtomicLong();
+    private final AtomicLong mMissCount = new AtomicLong();
+    private final AtomicLong mDecodeCount = new AtomicLong();
+    private final AtomicLong mDecodeNanos = new AtomicLong();
 
     private static final AlbumArtCache sInstance = new AlbumArtCache();
 
@@ -58,79 +125,704 @@ public final class AlbumArtCache {
         return sInstance;
     }
 
-    @Inject
-    public AlbumArtCache() {
+    private AlbumArtCache() {
+        this(BitmapHelper::fetchAndRescaleBitmap);
+    }
+
+    AlbumArtCache(ArtLoader loader) {
         // Holds no more than MAX_ALBUM_ART_CACHE_SIZE bytes, bounded by maxmemory/4 and
         // Integer.MAX_VALUE:
-        int maxSize = Math.min(MAX_ALBUM_ART_CACHE_SIZE,
-                (int) (Math.min(Integer.MAX_VALUE, Runtime.getRuntime().maxMemory() / 4)));
+        this(loader, new BitmapPool(MAX_BITMAP_POOL_SIZE), Math.min(MAX_ALBUM_ART_CACHE_SIZE,
+                (int) (Math.min(Integer.MAX_VALUE, Runtime.getRuntime().maxMemory() / 4))));
+    }
+
+    AlbumArtCache(ArtLoader loader, BitmapPool pool, int maxSize) {
+        this(loader, pool, maxSize, new ArtLoadScheduler());
+    }
+
+    AlbumArtCache(ArtLoader loader, BitmapPool pool, int maxSize, ArtLoadScheduler scheduler) {
+        mLoader = loader;
+        mPool = pool;
+        mScheduler = scheduler;
+        mMaxSize = maxSize;
         mCache = new LruCache<String, Bitmap[]>(maxSize) {
             @Override
             protected int sizeOf(String key, Bitmap[] value) {
-                return value[BIG_BITMAP_INDEX].getByteCount()
-                        + value[ICON_BITMAP_INDEX].getByteCount();
+                int size = 0;
+                for (Bitmap bitmap : value) {
+                    size += bitmap.getByteCount();
+                }
+                return size;
+            }
+
+            @Override
+            protected void entryRemoved(boolean evicted, String key,
+                                        Bitmap[] oldValue, Bitmap[] newValue) {
+                if (isBackgroundKey(key)) {
+                    releaseBackground(oldValue[BIG_BITMAP_INDEX]);
+                } else if (key.contains(SIZED_KEY_SEPARATOR)) {
+                    forgetSizedImage(key);
+                }
             }
         };
     }
 
+    /**
+     * Decode the album arts bundled in the APK with the given loader rather than the default one.
+     */
+    public void setBundledArtLoader(ArtLoader loader) {
+        mBundledLoader = loader;
+    }
+
+    /**
+     * Keep loaded album arts on disk too, so that they are not decoded and rescaled again after
+     * the process restarts.
+     */
+    public void setDiskCache(AlbumArtDiskCache diskCache) {
+        mDiskCache = diskCache;
+    }
+
+    /**
+     * Give memory back as the system asks for it, see {@link ComponentCallbacks2#onTrimMemory}.
+     * The cache keeps half of its size while memory runs low, a quarter of it in the background,
+     * and empties once the process is in line to be killed.
+     */
+    public void onTrimMemory(int level) {
+        int maxSize;
+        if (level >= ComponentCallbacks2.TRIM_MEMORY_UI_HIDDEN
+                || level == ComponentCallbacks2.TRIM_MEMORY_RUNNING_CRITICAL) {
+            maxSize = mMaxSize / 4;
+        } else if (level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_MODERATE) {
+            maxSize = mMaxSize / 2;
+        } else {
+            return;
+        }
+        LogHelper.d(TAG, "onTrimMemory: level ", level, ", shrinking from ", mCache.size(),
+                " bytes to ", maxSize);
+        // Never grows the cache: a lower level may come after a higher one.
+        mCache.resize(Math.max(1, Math.min(maxSize, mCache.maxSize())));
+        if (level >= ComponentCallbacks2.TRIM_MEMORY_MODERATE) {
+            mCache.evictAll();
+        }
+        // After the cache, whose evicted backgrounds go to the pool.
+        mPool.clear();
+    }
+
+    /**
+     * Grow the cache back to its full size once the app is in the foreground again.
+     */
+    public void onForeground() {
+        if (mCache.maxSize() < mMaxSize) {
+            LogHelper.d(TAG, "onForeground: growing back to ", mMaxSize, " bytes");
+            mCache.resize(mMaxSize);
+        }
+    }
+
+    /**
+     * @return the counters of the cache so far, for debugging.
+     */
+    public Stats getStats() {
+        return new Stats(mHitCount.get(), mMissCount.get(), mCache.evictionCount(),
+                mDecodeCount.get(), mDecodeNanos.get(), mCache.size(), mCache.maxSize());
+    }
+
     public Bitmap getBigImage(String artUrl) {
-        Bitmap[] result = mCache.get(artUrl);
+        Bitmap[] result = lookUp(artUrl);
         return result == null ? null : result[BIG_BITMAP_INDEX];
     }
 
     public Bitmap getIconImage(String artUrl) {
-        Bitmap[] result = mCache.get(artUrl);
+        Bitmap[] result = lookUp(artUrl);
         return result == null ? null : result[ICON_BITMAP_INDEX];
     }
 
+    /**
+     * Get an album art from the cache at about the given size.
+     *
+     * @return the smallest cached image that covers width x height pixels without being twice as
+     * big, or null if there is none.
+     */
+    public Bitmap getImage(String artUrl, int width, int height) {
+        Bitmap[] result = mCache.get(sizedKey(artUrl, width, height));
+        if (result != null) {
+            mHitCount.incrementAndGet();
+            return result[BIG_BITMAP_INDEX];
+        }
+        Bitmap image = findCachedImage(artUrl, width, height);
+        if (image == null || image.getWidth() >= 2 * width || image.getHeight() >= 2 * height) {
+            mMissCount.incrementAndGet();
+            return null;
+        }
+        mHitCount.incrementAndGet();
+        return image;
+    }
+
+    /**
+     * Get the album art from the cache, or load it on the calling thread, which must be a
+     * background thread.
+     *
+     * @return the big image and the icon.
+     */
+    Bitmap[] load(String artUrl) {
+        Bitmap[] bitmaps = lookUp(artUrl);
+        return bitmaps != null ? bitmaps : fetchImageSingle(artUrl, false).blockingGet();
+    }
+
+    /**
+     * Get the background of an album art from the cache. A background that is returned must be
+     * given back with {@link #releaseBackground} once it is not displayed anymore.
+     */
+    public Bitmap getBackgroundImage(String artUrl) {
+        synchronized (mBackgroundRefs) {
+            Bitmap[] result = lookUp(backgroundKey(artUrl));
+            if (result == null) {
+                return null;
+            }
+            retainBackground(result[BIG_BITMAP_INDEX], 1);
+            return result[BIG_BITMAP_INDEX];
+        }
+    }
+
+    /**
+     * Get the album art from the cache, or load it.
+     * <p>
+     * The listener is called on the main thread, right away if the album art is in the cache.
+     * If the same album art is already being loaded, the listener waits for that load instead of
+     * starting another one.
+     */
     public void fetch(final String artUrl, final FetchListener listener) {
-        // WARNING: for the sake of simplicity, simultaneous multi-thread fetch requests
-        // are not handled properly: they may cause redundant costly operations, like HTTP
-        // requests and bitmap rescales. For production-level apps, we recommend you use
-        // a proper image loading library, like Glide.
-        Bitmap[] bitmap = mCache.get(artUrl);
+        fetch(artUrl, Priority.VISIBLE, listener);
+    }
+
+    /**
+     * Like {@link #fetch(String, FetchListener)}, for an album art that is not displayed yet.
+     * Fetching it again with the same listener at a higher priority moves its load ahead.
+     */
+    public void fetch(final String artUrl, final Priority priority,
+                      final FetchListener listener) {
+        Bitmap[] bitmap = lookUp(artUrl);
         if (bitmap != null) {
             LogHelper.d(TAG, "getOrFetch: album art is in cache, using it", artUrl);
             listener.onFetched(artUrl, bitmap[BIG_BITMAP_INDEX], bitmap[ICON_BITMAP_INDEX]);
             return;
         }
-        LogHelper.d(TAG, "getOrFetch: starting asynctask to fetch ", artUrl);
+        fetch(artUrl, artUrl, fetchImageSingle(artUrl, false), false, priority, listener);
+    }
+
+    /**
+     * Like {@link #fetch}, but for an image that covers width x height pixels, as given by
+     * {@link #getImage}. Views pass their size in pixels, so the display density is accounted
+     * for. The listener gets the image as the big image, and a null icon.
+     */
+    public void fetch(final String artUrl, final int width, final int height,
+                      final FetchListener listener) {
+        Bitmap image = getImage(artUrl, width, height);
+        if (image != null) {
+            LogHelper.d(TAG, "fetch: album art is in cache at ", width, "x", height, artUrl);
+            listener.onFetched(artUrl, image, null);
+            return;
+        }
+        fetch(artUrl, sizedKey(artUrl, width, height),
+                fetchSizedImageSingle(artUrl, width, height), false, Priority.VISIBLE, listener);
+    }
+
+    /**
+     * Like {@link #fetch}, but for a background: an opaque, full-bleed image in a config with
+     * half the memory of the big image. The listener gets it as the big image, and a null icon.
+     * It must be given back with {@link #releaseBackground} once it is not displayed anymore.
+     */
+    public void fetchBackground(final String artUrl, final FetchListener listener) {
+        fetchBackground(artUrl, Priority.VISIBLE, listener);
+    }
+
+    /**
+     * Like {@link #fetchBackground(String, FetchListener)}, for a page that is not displayed yet.
+     * Fetching it again with the same listener at a higher priority moves its load ahead.
+     */
+    public void fetchBackground(final String artUrl, final Priority priority,
+                                final FetchListener listener) {
+        Bitmap background = getBackgroundImage(artUrl);
+        if (background != null) {
+            LogHelper.d(TAG, "fetchBackground: background is in cache, using it", artUrl);
+            listener.onFetched(artUrl, background, null);
+            return;
+        }
+        fetch(artUrl, backgroundKey(artUrl), fetchImageSingle(artUrl, true), true, priority,
+                listener);
+    }
+
+    /**
+     * Give back a background from {@link #getBackgroundImage} or {@link #fetchBackground}.
+     */
+    public void releaseBackground(Bitmap background) {
+        synchronized (mBackgroundRefs) {
+            Integer refs = mBackgroundRefs.get(background);
+            if (refs == null) {
+                return;
+            }
+            if (refs > 1) {
+                mBackgroundRefs.put(background, refs - 1);
+                return;
+            }
+            mBackgroundRefs.remove(background);
+        }
+        mPool.put(background);
+    }
 
-        fetchImageSingle(artUrl)
+    private void fetch(final String artUrl, final String key, final Single<Bitmap[]> load,
+                       final boolean background, final Priority priority,
+                       final FetchListener listener) {
+        PendingFetch pending;
+        synchronized (mPendingFetches) {
+            pending = mPendingFetches.get(key);
+            if (pending != null) {
+                LogHelper.d(TAG, "getOrFetch: joining the pending fetch of ", key);
+                if (!pending.listeners.contains(listener)) {
+                    pending.listeners.add(listener);
+                }
+                if (pending.started || priority.compareTo(pending.priority) >= 0) {
+                    return;
+                }
+                LogHelper.d(TAG, "getOrFetch: moving the fetch of ", key, " up to ", priority);
+                if (pending.disposable != null) {
+                    pending.disposable.dispose();
+                }
+            } else {
+                pending = new PendingFetch(artUrl, key, load, background);
+                pending.listeners.add(listener);
+                mPendingFetches.put(key, pending);
+            }
+            pending.priority = priority;
+            pending.disposable = null;
+            pending.generation++;
+        }
+        start(pending);
+    }
+
+    /**
+     * Queue the load of a pending fetch at its current priority.
+     */
+    private void start(final PendingFetch fetch) {
+        final int generation;
+        final Priority priority;
+        synchronized (mPendingFetches) {
+            generation = fetch.generation;
+            priority = fetch.priority;
+        }
+        LogHelper.d(TAG, "getOrFetch: starting asynctask to fetch ", fetch.key, " at ", priority);
+
+        Disposable disposable = fetch.load
+                .doOnSubscribe(d -> fetch.started = true)
+                .subscribeOn(mScheduler.scheduler(priority))
                 .observeOn(AndroidSchedulers.mainThread())
-                .subscribeOn(Schedulers.io())
                 .subscribe(bitmaps -> {
-                    if (bitmaps == null) {
-                    listener.onError(artUrl, new IllegalArgumentException("got null bitmaps"));
-                } else {
-                    listener.onFetched(artUrl,
-                        bitmaps[BIG_BITMAP_INDEX], bitmaps[ICON_BITMAP_INDEX]);
                     LogHelper.d(TAG, "onFetched");
-                }
+                    List<FetchListener> listeners = complete(fetch);
+                    if (listeners == null) {
+                        return;
+                    }
+                    if (fetch.background) {
+                        // Counted before it is cached, so that it can not be evicted and
+                        // reused before the listeners get it.
+                        synchronized (mBackgroundRefs) {
+                            retainBackground(bitmaps[BIG_BITMAP_INDEX], listeners.size() + 1);
+                        }
+                        mCache.put(fetch.key, bitmaps);
+                    }
+                    for (FetchListener l : listeners) {
+                        l.onFetched(fetch.artUrl, bitmaps[BIG_BITMAP_INDEX], bitmaps.length >
+                                ICON_BITMAP_INDEX ? bitmaps[ICON_BITMAP_INDEX] : null);
+                    }
                 }, throwable -> {
                     LogHelper.e(TAG, throwable.getMessage());
+                    List<FetchListener> listeners = complete(fetch);
+                    if (listeners == null) {
+                        return;
+                    }
+                    Exception e = throwable instanceof Exception
+                            ? (Exception) throwable : new Exception(throwable);
+                    for (FetchListener l : listeners) {
+                        l.onError(fetch.artUrl, e);
+                    }
                 });
+        synchronized (mPendingFetches) {
+            if (mPendingFetches.get(fetch.key) == fetch && fetch.generation == generation) {
+                fetch.disposable = disposable;
+            } else {
+                // Already completed, moved up to a higher priority, or every listener was
+                // cancelled in the meantime.
+                disposable.dispose();
+            }
+        }
+    }
+
+    /**
+     * Withdraw a listener passed to {@link #fetch} or {@link #fetchBackground}. The load itself
+     * is cancelled once no one is waiting for it anymore.
+     */
+    public void cancel(String artUrl, FetchListener listener) {
+        cancelFetch(artUrl, listener);
+        cancelFetch(backgroundKey(artUrl), listener);
     }
 
-    Single<Bitmap[]> fetchImageSingle(final String artUrl) {
-        return Single.create(emitter -> {
-            Bitmap[] bitmaps = null;
-            try {
-                Bitmap bitmap = BitmapHelper.fetchAndRescaleBitmap(artUrl,
-                        MAX_ART_WIDTH, MAX_ART_HEIGHT);
-                Bitmap icon = BitmapHelper.scaleBitmap(bitmap,
-                        MAX_ART_WIDTH_ICON, MAX_ART_HEIGHT_ICON);
-                bitmaps = new Bitmap[]{bitmap, icon};
+    /**
+     * Withdraw a listener passed to {@link #fetch(String, int, int, FetchListener)}.
+     */
+    public void cancel(String artUrl, int width, int height, FetchListener listener) {
+        cancelFetch(sizedKey(artUrl, width, height), listener);
+    }
+
+    private void cancelFetch(String key, FetchListener listener) {
+        synchronized (mPendingFetches) {
+            PendingFetch pending = mPendingFetches.get(key);
+            if (pending == null || !pending.listeners.remove(listener)
+                    || !pending.listeners.isEmpty()) {
+                return;
+            }
+            mPendingFetches.remove(key);
+            if (pending.disposable != null) {
+                pending.disposable.dispose();
+            }
+        }
+        LogHelper.d(TAG, "cancel: no one is waiting for ", key, " anymore");
+    }
+
+    /**
+     * Forget a pending fetch that has completed.
+     *
+     * @return the listeners still waiting for it, or null if it was not pending anymore.
+     */
+    private List<FetchListener> complete(PendingFetch fetch) {
+        synchronized (mPendingFetches) {
+            if (mPendingFetches.get(fetch.key) != fetch) {
+                return null;
+            }
+            mPendingFetches.remove(fetch.key);
+            return new ArrayList<>(fetch.listeners);
+        }
+    }
+
+    /**
+     * Load an album art. The big image and icon are put in the cache here; a background is put
+     * in the cache by {@link #fetchBackground} once it is counted.
+     */
+    Single<Bitmap[]> fetchImageSingle(final String artUrl, final boolean background) {
+        return Single.fromCallable(() -> {
+            AlbumArtDiskCache diskCache = mDiskCache;
+            String diskKey = diskCache == null ? null : AlbumArtDiskCache.keyFor(
+                    AlbumArtProvider.getArtUrl(artUrl),
+                    background ? BACKGROUND_SIZE_SPEC : ART_SIZE_SPEC);
+            Bitmap[] bitmaps = diskKey == null ? null : diskCache.get(diskKey, mPool);
+            if (bitmaps != null) {
+                LogHelper.d(TAG, "doInBackground: album art is in disk cache ", artUrl);
+            } else {
+                long start = SystemClock.elapsedRealtimeNanos();
+                bitmaps = loadArt(artUrl, background);
+                recordDecode(start);
+                if (diskKey != null) {
+                    putOnDisk(diskCache, diskKey, bitmaps);
+                }
+            }
+            if (!background) {
                 mCache.put(artUrl, bitmaps);
-            } catch (Exception e) {
-                emitter.onError(e);
+                LogHelper.d(TAG, "doInBackground: putting bitmap in cache. cache size=" +
+                        mCache.size());
+            }
+            return bitmaps;
+        });
+    }
+
+    /**
+     * Load an album art at a size, and put it in the cache.
+     */
+    Single<Bitmap[]> fetchSizedImageSingle(final String artUrl, final int width,
+                                           final int height) {
+        return Single.fromCallable(() -> {
+            Bitmap image;
+            Bitmap source = findCachedImage(artUrl, width, height);
+            if (source != null) {
+                LogHelper.d(TAG, "doInBackground: scaling a cached image of ", artUrl);
+                image = BitmapHelper.scaleBitmapToCover(source, width, height,
+                        Bitmap.Config.ARGB_8888, mPool);
+            } else {
+                AlbumArtDiskCache diskCache = mDiskCache;
+                String diskKey = diskCache == null ? null
+                        : AlbumArtDiskCache.keyFor(AlbumArtProvider.getArtUrl(artUrl),
+                        "cover " + width + "x" + height);
+                Bitmap[] cached = diskKey == null ? null : diskCache.get(diskKey, mPool);
+                if (cached != null) {
+                    image = cached[BIG_BITMAP_INDEX];
+                } else {
+                    long start = SystemClock.elapsedRealtimeNanos();
+                    String source = AlbumArtProvider.getArtUrl(artUrl);
+                    Bitmap decoded = loaderFor(source).load(source, width, height,
+                            Bitmap.Config.ARGB_8888, mPool);
+                    image = BitmapHelper.scaleBitmapToCover(decoded, width, height,
+                            Bitmap.Config.ARGB_8888, mPool);
+                    if (image != decoded) {
+                        mPool.put(decoded);
+                    }
+                    recordDecode(start);
+                    if (diskKey != null) {
+                        putOnDisk(diskCache, diskKey, new Bitmap[]{image});
+                    }
+                }
             }
-            LogHelper.d(TAG, "doInBackground: putting bitmap in cache. cache size=" +
-                    mCache.size());
-            emitter.onSuccess(bitmaps);
+            String key = sizedKey(artUrl, width, height);
+            mCache.put(key, new Bitmap[]{image});
+            synchronized (mSizedImages) {
+                List<SizedImage> images = mSizedImages.get(artUrl);
+                if (images == null) {
+                    images = new ArrayList<>();
+                    mSizedImages.put(artUrl, images);
+                }
+                images.add(new SizedImage(key, image.getWidth(), image.getHeight()));
+            }
+            return new Bitmap[]{image};
         });
     }
 
+    /**
+     * Write a loaded album art to the disk tier without holding up its delivery: only its pixels
+     * are copied here, the write and its sync are a separate io task.
+     */
+    private static void putOnDisk(AlbumArtDiskCache diskCache, String key, Bitmap[] bitmaps) {
+        ByteBuffer entry = AlbumArtDiskCache.toEntry(bitmaps);
+        Schedulers.io().scheduleDirect(() -> diskCache.put(key, entry));
+    }
+
+    /**
+     * @return the smallest cached big image, icon or sized image of the album art that covers
+     * width x height, or null if there is none.
+     */
+    private Bitmap findCachedImage(String artUrl, int width, int height) {
+        Bitmap best = null;
+        Bitmap[] art = mCache.get(artUrl);
+        if (art != null) {
+            for (Bitmap bitmap : art) {
+                if (covers(bitmap.getWidth(), bitmap.getHeight(), width, height)
+                        && (best == null || area(bitmap) < area(best))) {
+                    best = bitmap;
+                }
+            }
+        }
+        List<SizedImage> images;
+        synchronized (mSizedImages) {
+            images = mSizedImages.get(artUrl);
+            images = images == null ? null : new ArrayList<>(images);
+        }
+        if (images == null) {
+            return best;
+        }
+        for (SizedImage image : images) {
+            if (!covers(image.width, image.height, width, height)
+                    || (best != null && image.width * image.height >= area(best))) {
+                continue;
+            }
+            Bitmap[] cached = mCache.get(image.key);
+            if (cached != null) {
+                best = cached[BIG_BITMAP_INDEX];
+            } else {
+                forgetSizedImage(image.key);
+            }
+        }
+        return best;
+    }
+
+    private void forgetSizedImage(String key) {
+        String artUrl = key.substring(0, key.lastIndexOf(SIZED_KEY_SEPARATOR));
+        synchronized (mSizedImages) {
+            List<SizedImage> images = mSizedImages.get(artUrl);
+            if (images == null) {
+                return;
+            }
+            for (int i = images.size() - 1; i >= 0; i--) {
+                if (images.get(i).key.equals(key)) {
+                    images.remove(i);
+                }
+            }
+            if (images.isEmpty()) {
+                mSizedImages.remove(artUrl);
+            }
+        }
+    }
+
+    /**
+     * Get an entry of the memory cache, counting it as a hit or a miss.
+     */
+    private Bitmap[] lookUp(String key) {
+        Bitmap[] result = mCache.get(key);
+        if (result != null) {
+            mHitCount.incrementAndGet();
+        } else {
+            mMissCount.incrementAndGet();
+        }
+        return result;
+    }
+
+    private void recordDecode(long startNanos) {
+        mDecodeCount.incrementAndGet();
+        mDecodeNanos.addAndGet(SystemClock.elapsedRealtimeNanos() - startNanos);
+    }
+
+    private ArtLoader loaderFor(String artUrl) {
+        ArtLoader bundledLoader = mBundledLoader;
+        return bundledLoader != null && AssetArtLoader.isBundled(artUrl)
+                ? bundledLoader : mLoader;
+    }
+
+    private Bitmap[] loadArt(String url, boolean background) throws Exception {
+        // The album arts of the app's art provider load from the album art they serve.
+        String artUrl = AlbumArtProvider.getArtUrl(url);
+        ArtLoader loader = loaderFor(artUrl);
+        if (background) {
+            // The album arts are opaque, so a background does not need an alpha channel.
+            return new Bitmap[]{loader.load(artUrl,
+                    MAX_ART_WIDTH, MAX_ART_HEIGHT, Bitmap.Config.RGB_565, mPool)};
+        }
+        Bitmap bitmap = loader.load(artUrl,
+                MAX_ART_WIDTH, MAX_ART_HEIGHT, Bitmap.Config.ARGB_8888, mPool);
+        Bitmap icon;
+        if (loader == mBundledLoader) {
+            // The build ships the icon at its size (see art_variants.gradle), so decode it rather
+            // than scale the big image down.
+            double scaleFactor = Math.min(((double) MAX_ART_WIDTH_ICON) / bitmap.getWidth(),
+                    ((double) MAX_ART_HEIGHT_ICON) / bitmap.getHeight());
+            icon = loader.load(artUrl, Math.max(1, (int) (bitmap.getWidth() * scaleFactor)),
+                    Math.max(1, (int) (bitmap.getHeight() * scaleFactor)),
+                    Bitmap.Config.ARGB_8888, mPool);
+            if (icon.getWidth() > MAX_ART_WIDTH_ICON || icon.getHeight() > MAX_ART_HEIGHT_ICON) {
+                Bitmap decoded = icon;
+                icon = BitmapHelper.scaleBitmap(decoded, MAX_ART_WIDTH_ICON, MAX_ART_HEIGHT_ICON,
+                        Bitmap.Config.ARGB_8888, mPool);
+                mPool.put(decoded);
+            }
+        } else {
+            icon = BitmapHelper.scaleBitmap(bitmap,
+                    MAX_ART_WIDTH_ICON, MAX_ART_HEIGHT_ICON, Bitmap.Config.ARGB_8888, mPool);
+        }
+        return new Bitmap[]{bitmap, icon};
+    }
+
+    private void retainBackground(Bitmap background, int count) {
+        Integer refs = mBackgroundRefs.get(background);
+        mBackgroundRefs.put(background, refs == null ? count : refs + count);
+    }
+
+    private static String backgroundKey(String artUrl) {
+        return artUrl + BACKGROUND_KEY_SUFFIX;
+    }
+
+    private static boolean isBackgroundKey(String key) {
+        return key.endsWith(BACKGROUND_KEY_SUFFIX);
+    }
+
+    private static String sizedKey(String artUrl, int width, int height) {
+        return artUrl + SIZED_KEY_SEPARATOR + width + "x" + height;
+    }
+
+    private static boolean covers(int width, int height, int targetWidth, int targetHeight) {
+        return width >= targetWidth && height >= targetHeight;
+    }
+
+    private static int area(Bitmap bitmap) {
+        return bitmap.getWidth() * bitmap.getHeight();
+    }
+
+    /**
+     * Decodes an album art. Called on a background thread.
+     */
+    public interface ArtLoader {
+        /**
+         * @return the album art subsampled by a power of two, but no smaller than width x height
+         * unless the album art itself is, preferably decoded into a bitmap from the pool.
+         */
+        Bitmap load(String artUrl, int width, int height, Bitmap.Config config, BitmapPool pool)
+                throws Exception;
+    }
+
+    private static final class SizedImage {
+        final String key;
+        final int width;
+        final int height;
+
+        SizedImage(String key, int width, int height) {
+            this.key = key;
+            this.width = width;
+            this.height = height;
+        }
+    }
+
+    /**
+     * Counters of the cache since the process started. Lookups count the album arts asked for
+     * that were, or were not, in memory; decodes count the album arts that were neither in
+     * memory nor on disk.
+     */
+    public static final class Stats {
+        public final long hitCount;
+        public final long missCount;
+        public final long evictionCount;
+        public final long decodeCount;
+        public final long decodeTimeNanos;
+        public final int size;
+        public final int maxSize;
+
+        Stats(long hitCount, long missCount, long evictionCount, long decodeCount,
+              long decodeTimeNanos, int size, int maxSize) {
+            this.hitCount = hitCount;
+            this.missCount = missCount;
+            this.evictionCount = evictionCount;
+            this.decodeCount = decodeCount;
+            this.decodeTimeNanos = decodeTimeNanos;
+            this.size = size;
+            this.maxSize = maxSize;
+        }
+
+        @Override
+        public String toString() {
+            long lookups = hitCount + missCount;
+            return "AlbumArtCache: " + size + "/" + maxSize + " bytes, "
+                    + hitCount + " hits, " + missCount + " misses ("
+                    + (lookups == 0 ? 0 : 100 * hitCount / lookups) + "% hit rate), "
+                    + evictionCount + " evictions, " + decodeCount + " decodes ("
+                    + (decodeCount == 0 ? 0 : decodeTimeNanos / decodeCount / 1000000)
+                    + " ms average)";
+        }
+    }
+
+    /**
+     * How soon an album art is needed. Loads run in this order.
+     */
+    public enum Priority {
+        // Displayed now.
+        VISIBLE,
+        // Displayed next: the pages next to the current one, or the next item in the queue.
+        NEXT,
+        // Might be displayed soon.
+        SPECULATIVE
+    }
+
+    private static final class PendingFetch {
+        final String artUrl;
+        final String key;
+        final Single<Bitmap[]> load;
+        final boolean background;
+        final List<FetchListener> listeners = new ArrayList<>();
+        // Guarded by mPendingFetches.
+        Priority priority;
+        int generation;
+        Disposable disposable;
+        // Set once the load runs, after which it is too late to move it up.
+        volatile boolean started;
+
+        PendingFetch(String artUrl, String key, Single<Bitmap[]> load, boolean background) {
+            this.artUrl = artUrl;
+            this.key = key;
+            this.load = load;
+            this.background = background;
+        }
+    }
+
     public static abstract class FetchListener {
 
         public abstract void onFetched(String artUrl, Bitmap bigImage, Bitmap iconImage);
@@ -0,0 +1,439 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ashomok.lullabies;
+
+import android.graphics.Bitmap;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import com.ashomok.lullabies.utils.BitmapPool;
+import com.ashomok.lullabies.utils.LogHelper;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Disk tier of {@link AlbumArtCache}: keeps decoded and rescaled album art across restarts.
+ * <p>
+ * Each entry holds the raw pixels of a set of bitmaps, so reading it back is a memory copy
+ * from a mapped file instead of a PNG or JPEG decode. Entries are evicted in least recently used
+ * order once their total size exceeds the byte budget.
+ * <p>
+ * The index is a journal of {@code CLEAN key size}, {@code READ key} and {@code REMOVE key}
+ * lines. Entries are written to a temporary file and renamed into place before their CLEAN line
+ * is appended, so after a crash the journal never points at a partial entry; files the journal
+ * does not know about are deleted when the cache is opened. The journal is compacted when it
+ * holds too many redundant lines.
+ * <p>
+ * All methods but {@link #toEntry} do disk I/O and must be called on a background thread.
+ */
+public final class AlbumArtDiskCache {
+
+    private static final String TAG = LogHelper.makeLogTag(AlbumArtDiskCache.class);
+
+    public static final long DEFAULT_MAX_SIZE = 32 * 1024 * 1024;  // 32 MB
+
+    static final String JOURNAL_FILE = "journal";
+    private static final String JOURNAL_FILE_TMP = "journal.tmp";
+    private static final String JOURNAL_HEADER = "lullabies.AlbumArtDiskCache 1";
+    private static final String CLEAN = "CLEAN";
+    private static final String READ = "READ";
+    private static final String REMOVE = "REMOVE";
+    private static final String TMP_SUFFIX = ".tmp";
+
+    private static final int ENTRY_MAGIC = 0x41525432;  // "ART2"
+    private static final int ENTRY_HEADER_SIZE = 8;
+    private static final int BITMAP_HEADER_SIZE = 12;
+    private static final int CONFIG_ARGB_8888 = 1;
+    private static final int CONFIG_RGB_565 = 2;
+    private static final int REDUNDANT_OP_COMPACT_THRESHOLD = 500;
+
+    private final File mDirectory;
+    private final long mMaxSize;
+
+    // Entry sizes in access order. Guarded by this.
+    private final LinkedHashMap<String, Long> mEntries = new LinkedHashMap<>(0, 0.75f, true);
+    private long mSize;
+    private int mRedundantOpCount;
+    private Writer mJournalWriter;
+    private boolean mOpened;
+
+    public AlbumArtDiskCache(@NonNull File directory, long maxSize) {
+        mDirectory = directory;
+        mMaxSize = maxSize;
+    }
+
+    /**
+     * @return the key of an album art at a given size, usable as a file name.
+     */
+    @NonNull
+    public static String keyFor(@NonNull String artUrl, @NonNull String sizeSpec) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-1");
+            byte[] hash = digest.digest((artUrl + '|' + sizeSpec).getBytes("UTF-8"));
+            StringBuilder key = new StringBuilder(hash.length * 2);
+            for (byte b : hash) {
+                key.append(Character.forDigit((b >> 4) & 0xF, 16))
+                        .append(Character.forDigit(b & 0xF, 16));
+            }
+            return key.toString();
+        } catch (NoSuchAlgorithmException | IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * @param pool the bitmaps are read into bitmaps taken from it.
+     * @return the bitmaps stored under the key, or null if there are none.
+     */
+    @Nullable
+    public Bitmap[] get(@NonNull String key, @NonNull BitmapPool pool) {
+        synchronized (this) {
+            if (!ensureOpen() || !mEntries.containsKey(key)) {
+                return null;
+            }
+            appendToJournal(READ, key);
+        }
+        try {
+            return readEntry(new File(mDirectory, key), pool);
+        } catch (FileNotFoundException e) {
+            // Evicted in the meantime.
+            return null;
+        } catch (IOException | RuntimeException e) {
+            LogHelper.w(TAG, e, "Dropping unreadable album art entry ", key);
+            remove(key);
+            return null;
+        }
+    }
+
+    /**
+     * Store the bitmaps under the key, replacing any previous entry.
+     */
+    public void put(@NonNull String key, @NonNull Bitmap[] bitmaps) {
+        put(key, toEntry(bitmaps));
+    }
+
+    /**
+     * Store an entry made by {@link #toEntry} under the key, replacing any previous entry.
+     */
+    public void put(@NonNull String key, @NonNull ByteBuffer entry) {
+        synchronized (this) {
+            if (!ensureOpen()) {
+                return;
+            }
+        }
+        File tmp = new File(mDirectory, key + TMP_SUFFIX + Thread.currentThread().getId());
+        long size;
+        try {
+            size = writeEntry(tmp, entry);
+        } catch (IOException e) {
+            LogHelper.w(TAG, e, "Could not write album art entry ", key);
+            tmp.delete();
+            return;
+        }
+        synchronized (this) {
+            if (!tmp.renameTo(new File(mDirectory, key))) {
+                tmp.delete();
+                return;
+            }
+            Long previous = mEntries.put(key, size);
+            if (previous != null) {
+                mSize -= previous;
+                mRedundantOpCount++;
+            }
+            mSize += size;
+            appendToJournal(CLEAN, key + ' ' + size);
+            trimToSize();
+            compactJournalIfNeeded();
+        }
+    }
+
+    public synchronized void remove(@NonNull String key) {
+        Long size = mEntries.remove(key);
+        if (size == null) {
+            return;
+        }
+        mSize -= size;
+        new File(mDirectory, key).delete();
+        appendToJournal(REMOVE, key);
+        mRedundantOpCount++;
+        compactJournalIfNeeded();
+    }
+
+    public synchronized long size() {
+        return mSize;
+    }
+
+    private boolean ensureOpen() {
+        if (mOpened) {
+            return mJournalWriter != null;
+        }
+        mOpened = true;
+        if (!mDirectory.isDirectory() && !mDirectory.mkdirs()) {
+            LogHelper.w(TAG, "Could not create ", mDirectory);
+            return false;
+        }
+        try {
+            readJournal();
+        } catch (IOException e) {
+            LogHelper.w(TAG, e, "Album art journal is corrupt, starting over");
+            mEntries.clear();
+            mSize = 0;
+        }
+        deleteUnknownFiles();
+        try {
+            rebuildJournal();
+        } catch (IOException e) {
+            LogHelper.e(TAG, e, "Could not write the album art journal");
+            return false;
+        }
+        trimToSize();
+        return true;
+    }
+
+    private void readJournal() throws IOException {
+        File journal = new File(mDirectory, JOURNAL_FILE);
+        if (!journal.exists()) {
+            return;
+        }
+        BufferedReader reader = new BufferedReader(new FileReader(journal));
+        try {
+            if (!JOURNAL_HEADER.equals(reader.readLine())) {
+                throw new IOException("Unexpected journal header");
+            }
+            String line;
+            int lineCount = 0;
+            while ((line = reader.readLine()) != null) {
+                lineCount++;
+                String[] parts = line.split(" ");
+                if (parts.length < 2) {
+                    // A line cut short by a crash; everything before it is still valid.
+                    break;
+                }
+                String key = parts[1];
+                if (CLEAN.equals(parts[0]) && parts.length == 3) {
+                    long size = Long.parseLong(parts[2]);
+                    Long previous = mEntries.put(key, size);
+                    mSize += size;
+                    if (previous != null) {
+                        mSize -= previous;
+                    }
+                } else if (REMOVE.equals(parts[0])) {
+                    Long previous = mEntries.remove(key);
+                    if (previous != null) {
+                        mSize -= previous;
+                    }
+                } else if (READ.equals(parts[0])) {
+                    // Touch the entry to restore the access order.
+                    mEntries.get(key);
+                }
+            }
+            mRedundantOpCount = lineCount - mEntries.size();
+        } catch (NumberFormatException e) {
+            throw new IOException("Corrupt journal line", e);
+        } finally {
+            reader.close();
+        }
+    }
+
+    private void deleteUnknownFiles() {
+        File[] files = mDirectory.listFiles();
+        if (files == null) {
+            return;
+        }
+        for (File file : files) {
+            String name = file.getName();
+            if (!name.equals(JOURNAL_FILE) && !mEntries.containsKey(name)) {
+                file.delete();
+            }
+        }
+        // Entries whose file is gone can not be read back.
+        Iterator<Map.Entry<String, Long>> it = mEntries.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<String, Long> entry = it.next();
+            if (!new File(mDirectory, entry.getKey()).exists()) {
+                mSize -= entry.getValue();
+                it.remove();
+            }
+        }
+    }
+
+    /**
+     * Write a journal holding only the current entries, in access order, and switch to it.
+     */
+    private void rebuildJournal() throws IOException {
+        if (mJournalWriter != null) {
+            mJournalWriter.close();
+            mJournalWriter = null;
+        }
+        File tmp = new File(mDirectory, JOURNAL_FILE_TMP);
+        Writer writer = new BufferedWriter(new FileWriter(tmp));
+        try {
+            writer.write(JOURNAL_HEADER);
+            writer.write('\n');
+            for (Map.Entry<String, Long> entry : mEntries.entrySet()) {
+                writer.write(CLEAN + ' ' + entry.getKey() + ' ' + entry.getValue() + '\n');
+            }
+        } finally {
+            writer.close();
+        }
+        if (!tmp.renameTo(new File(mDirectory, JOURNAL_FILE))) {
+            throw new IOException("Could not replace the journal");
+        }
+        mRedundantOpCount = 0;
+        mJournalWriter = new BufferedWriter(
+                new FileWriter(new File(mDirectory, JOURNAL_FILE), true));
+    }
+
+    private void appendToJournal(String op, String args) {
+        if (mJournalWriter == null) {
+            return;
+        }
+        try {
+            mJournalWriter.write(op + ' ' + args + '\n');
+            mJournalWriter.flush();
+        } catch (IOException e) {
+            LogHelper.w(TAG, e, "Could not append to the album art journal");
+        }
+        if (READ.equals(op)) {
+            mRedundantOpCount++;
+        }
+    }
+
+    private void compactJournalIfNeeded() {
+        if (mRedundantOpCount < REDUNDANT_OP_COMPACT_THRESHOLD
+                || mRedundantOpCount < mEntries.size()) {
+            return;
+        }
+        try {
+            rebuildJournal();
+        } catch (IOException e) {
+            LogHelper.w(TAG, e, "Could not compact the album art journal");
+        }
+    }
+
+    private void trimToSize() {
+        List<String> evicted = new ArrayList<>();
+        Iterator<Map.Entry<String, Long>> it = mEntries.entrySet().iterator();
+        while (mSize > mMaxSize && it.hasNext()) {
+            Map.Entry<String, Long> eldest = it.next();
+            mSize -= eldest.getValue();
+            evicted.add(eldest.getKey());
+            it.remove();
+        }
+        for (String key : evicted) {
+            new File(mDirectory, key).delete();
+            appendToJournal(REMOVE, key);
+            mRedundantOpCount++;
+        }
+    }
+
+    /**
+     * Copy the pixels of the bitmaps into an entry, for {@link #put(String, ByteBuffer)} to write
+     * later: the bitmaps may be handed out and reused as soon as this returns. This is a memory
+     * copy only, and may be called on any thread.
+     * <p>
+     * Entry layout (native byte order): magic, bitmap count, then for each bitmap its width,
+     * height, config and pixels. Configs other than RGB_565 are stored as ARGB_8888.
+     */
+    @NonNull
+    public static ByteBuffer toEntry(@NonNull Bitmap[] bitmaps) {
+        Bitmap[] stored = new Bitmap[bitmaps.length];
+        int size = ENTRY_HEADER_SIZE;
+        for (int i = 0; i < bitmaps.length; i++) {
+            Bitmap bitmap = bitmaps[i];
+            stored[i] = bitmap.getConfig() == Bitmap.Config.RGB_565
+                    || bitmap.getConfig() == Bitmap.Config.ARGB_8888
+                    ? bitmap : bitmap.copy(Bitmap.Config.ARGB_8888, false);
+            size += BITMAP_HEADER_SIZE + stored[i].getByteCount();
+        }
+        ByteBuffer entry = ByteBuffer.allocateDirect(size).order(ByteOrder.nativeOrder());
+        entry.putInt(ENTRY_MAGIC).putInt(stored.length);
+        for (Bitmap bitmap : stored) {
+            entry.putInt(bitmap.getWidth()).putInt(bitmap.getHeight())
+                    .putInt(bitmap.getConfig() == Bitmap.Config.RGB_565
+                            ? CONFIG_RGB_565 : CONFIG_ARGB_8888);
+            bitmap.copyPixelsToBuffer(entry);
+        }
+        entry.flip();
+        return entry;
+    }
+
+    private static long writeEntry(File file, ByteBuffer entry) throws IOException {
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            FileChannel channel = out.getChannel();
+            writeFully(channel, entry.duplicate());
+            out.getFD().sync();
+            return channel.size();
+        } finally {
+            out.close();
+        }
+    }
+
+    private static Bitmap[] readEntry(File file, BitmapPool pool) throws IOException {
+        FileInputStream in = new FileInputStream(file);
+        try {
+            FileChannel channel = in.getChannel();
+            ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size())
+                    .order(ByteOrder.nativeOrder());
+            if (buffer.getInt() != ENTRY_MAGIC) {
+                throw new IOException("Not an album art entry");
+            }
+            Bitmap[] bitmaps = new Bitmap[buffer.getInt()];
+            for (int i = 0; i < bitmaps.length; i++) {
+                int width = buffer.getInt();
+                int height = buffer.getInt();
+                Bitmap bitmap = pool.get(width, height, buffer.getInt() == CONFIG_RGB_565
+                        ? Bitmap.Config.RGB_565 : Bitmap.Config.ARGB_8888);
+                ByteBuffer pixels = buffer.slice();
+                pixels.limit(bitmap.getByteCount());
+                bitmap.copyPixelsFromBuffer(pixels);
+                buffer.position(buffer.position() + bitmap.getByteCount());
+                bitmaps[i] = bitmap;
+            }
+            return bitmaps;
+        } finally {
+            in.close();
+        }
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+}
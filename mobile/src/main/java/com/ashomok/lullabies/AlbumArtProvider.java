@@ -0,0 +1,377 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ashomok.lullabies;
+
+import android.content.ContentProvider;
+import android.content.ContentValues;
+import android.content.Context;
+import android.content.Intent;
+import android.database.Cursor;
+import android.graphics.Bitmap;
+import android.net.Uri;
+import android.os.ParcelFileDescriptor;
+import android.support.v4.media.MediaBrowserCompat;
+import android.support.v4.media.MediaDescriptionCompat;
+import android.support.v4.media.MediaMetadataCompat;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import com.ashomok.lullabies.utils.LogHelper;
+import com.ashomok.lullabies.utils.MediaIDHelper;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import io.reactivex.schedulers.Schedulers;
+
+/**
+ * Serves album art to the media controllers outside the app (Android Auto, the system media
+ * controls, the lock screen, TV cards), so that the media session metadata and the browse items
+ * carry {@code content://} URIs rather than bitmaps, and no pixels cross binder on each metadata
+ * change. Each controller reads the art it shows, once.
+ * <p>
+ * The art is served read-only, as a JPEG at one of two sizes: the big image or the icon of
+ * {@link AlbumArtCache}. The first read of an album art gets it through a pipe while it is
+ * encoded from the cache, which writes it to disk too; later reads get the file itself, which
+ * the reader maps or reads without the app copying it.
+ * <p>
+ * The provider is not exported. Only the art of the catalog is served, and only to the packages
+ * that were granted read access to the URIs they were sent, with {@link #grantRead}. The grants
+ * last until {@link #revokeReads}.
+ */
+public class AlbumArtProvider extends ContentProvider {
+
+    private static final String TAG = LogHelper.makeLogTag(AlbumArtProvider.class);
+
+    public static final String AUTHORITY = BuildConfig.APPLICATION_ID + ".art";
+
+    private static final String PATH_BIG = "big";
+    private static final String PATH_ICON = "icon";
+    private static final String MIME_TYPE = "image/jpeg";
+    private static final int JPEG_QUALITY = 90;
+    private static final String FILES_DIRECTORY = "album_art_files";
+    private static final long MAX_FILES_SIZE = 4 * 1024 * 1024;  // 4 MB
+
+    // The album arts of the catalog, and the URIs read access was granted to. Guarded by the
+    // class.
+    private static final Set<String> sArtUrls = new HashSet<>();
+    private static final Set<Uri> sGrantedUris = new HashSet<>();
+
+    private File mDirectory;
+
+    /**
+     * @return the URI of the big image of an album art.
+     */
+    @NonNull
+    public static Uri getArtUri(@NonNull String artUrl) {
+        return buildUri(PATH_BIG, artUrl);
+    }
+
+    /**
+     * @return the URI of the icon of an album art.
+     */
+    @NonNull
+    public static Uri getIconUri(@NonNull String artUrl) {
+        return buildUri(PATH_ICON, artUrl);
+    }
+
+    /**
+     * @return the URL of the album art an URI of this provider serves, or the URL itself if it is
+     * not one of them.
+     */
+    @NonNull
+    public static String getArtUrl(@NonNull String url) {
+        if (!url.startsWith("content://" + AUTHORITY + "/")) {
+            return url;
+        }
+        List<String> segments = Uri.parse(url).getPathSegments();
+        return segments.size() == 2 ? segments.get(1) : url;
+    }
+
+    /**
+     * @return a copy of the metadata that points at this provider for its art, if it has an
+     * album art URI. The album art URI is kept, for the cast receiver to load it itself. The
+     * provider serves that art from now on, to the packages granted read access to it.
+     */
+    @NonNull
+    public static MediaMetadataCompat withArtUris(@NonNull MediaMetadataCompat metadata) {
+        String artUrl = metadata.getString(MediaMetadataCompat.METADATA_KEY_ALBUM_ART_URI);
+        if (artUrl == null) {
+            return metadata;
+        }
+        synchronized (AlbumArtProvider.class) {
+            sArtUrls.add(artUrl);
+        }
+        return new MediaMetadataCompat.Builder(metadata)
+                .putString(MediaMetadataCompat.METADATA_KEY_ART_URI,
+                        getArtUri(artUrl).toString())
+                .putString(MediaMetadataCompat.METADATA_KEY_DISPLAY_ICON_URI,
+                        getIconUri(artUrl).toString())
+                .build();
+    }
+
+    /**
+     * Let a package read the album art the metadata points at.
+     */
+    public static void grantRead(@NonNull Context context, @NonNull String packageName,
+                                 @Nullable MediaMetadataCompat metadata) {
+        if (metadata == null) {
+            return;
+        }
+        grantRead(context, packageName,
+                metadata.getString(MediaMetadataCompat.METADATA_KEY_ART_URI));
+        grantRead(context, packageName,
+                metadata.getString(MediaMetadataCompat.METADATA_KEY_DISPLAY_ICON_URI));
+    }
+
+    /**
+     * Let a package read the album art of the browse items, and of the children they carry.
+     */
+    public static void grantRead(@NonNull Context context, @NonNull String packageName,
+                                 @NonNull List<MediaBrowserCompat.MediaItem> items) {
+        for (MediaBrowserCompat.MediaItem item : items) {
+            MediaDescriptionCompat description = item.getDescription();
+            if (description.getIconUri() != null) {
+                grantRead(context, packageName, description.getIconUri().toString());
+            }
+            List<MediaBrowserCompat.MediaItem> children =
+                    MediaIDHelper.getEmbeddedChildren(item);
+            if (children != null) {
+                grantRead(context, packageName, children);
+            }
+        }
+    }
+
+    private static void grantRead(Context context, String packageName, String uriString) {
+        if (uriString == null || packageName.equals(context.getPackageName())) {
+            return;
+        }
+        Uri uri = Uri.parse(uriString);
+        if (!AUTHORITY.equals(uri.getAuthority())) {
+            return;
+        }
+        try {
+            context.grantUriPermission(packageName, uri, Intent.FLAG_GRANT_READ_URI_PERMISSION);
+        } catch (RuntimeException e) {
+            // The package is not installed.
+            LogHelper.w(TAG, e, "Could not let ", packageName, " read ", uri);
+            return;
+        }
+        synchronized (AlbumArtProvider.class) {
+            sGrantedUris.add(uri);
+        }
+    }
+
+    /**
+     * Take back the read access to the album art from every package it was granted to.
+     */
+    public static void revokeReads(@NonNull Context context) {
+        List<Uri> uris;
+        synchronized (AlbumArtProvider.class) {
+            uris = new ArrayList<>(sGrantedUris);
+            sGrantedUris.clear();
+        }
+        for (Uri uri : uris) {
+            context.revokeUriPermission(uri, Intent.FLAG_GRANT_READ_URI_PERMISSION);
+        }
+    }
+
+    /**
+     * @return whether the album art is one this provider serves: a bundled one, or one of the
+     * catalog. Anything else would have the app download whatever URL a reader asks for.
+     */
+    private static boolean isServed(String artUrl) {
+        if (AssetArtLoader.isBundled(artUrl)) {
+            return true;
+        }
+        synchronized (AlbumArtProvider.class) {
+            return sArtUrls.contains(artUrl);
+        }
+    }
+
+    private static Uri buildUri(String size, String artUrl) {
+        return new Uri.Builder()
+                .scheme("content")
+                .authority(AUTHORITY)
+                .appendPath(size)
+                .appendPath(artUrl)
+                .build();
+    }
+
+    @Override
+    public boolean onCreate() {
+        mDirectory = new File(getContext().getCacheDir(), FILES_DIRECTORY);
+        return true;
+    }
+
+    @Nullable
+    @Override
+    public String getType(@NonNull Uri uri) {
+        return MIME_TYPE;
+    }
+
+    @Nullable
+    @Override
+    public ParcelFileDescriptor openFile(@NonNull Uri uri, @NonNull String mode)
+            throws FileNotFoundException {
+        if (!"r".equals(mode)) {
+            throw new FileNotFoundException("Album art is read-only: " + uri);
+        }
+        List<String> segments = uri.getPathSegments();
+        if (segments.size() != 2
+                || !(PATH_BIG.equals(segments.get(0)) || PATH_ICON.equals(segments.get(0)))) {
+            throw new FileNotFoundException("Not an album art: " + uri);
+        }
+        final boolean icon = PATH_ICON.equals(segments.get(0));
+        final String artUrl = segments.get(1);
+        if (!isServed(artUrl)) {
+            throw new FileNotFoundException("Not an album art of the catalog: " + uri);
+        }
+        final File file = new File(mDirectory,
+                AlbumArtDiskCache.keyFor(artUrl, segments.get(0)) + ".jpg");
+        if (file.exists()) {
+            // Touched, so that the least recently read files go first.
+            file.setLastModified(System.currentTimeMillis());
+            return ParcelFileDescriptor.open(file, ParcelFileDescriptor.MODE_READ_ONLY);
+        }
+        final ParcelFileDescriptor[] pipe;
+        try {
+            pipe = ParcelFileDescriptor.createPipe();
+        } catch (IOException e) {
+            throw new FileNotFoundException("Could not open a pipe for " + uri);
+        }
+        Schedulers.io().scheduleDirect(() -> writeArt(artUrl, icon, file, pipe[1]));
+        return pipe[0];
+    }
+
+    /**
+     * Encode an album art into the pipe, and into its file for the next reads.
+     */
+    private void writeArt(String artUrl, boolean icon, File file, ParcelFileDescriptor sink) {
+        OutputStream out = new ParcelFileDescriptor.AutoCloseOutputStream(sink);
+        try {
+            // Under the URI the app's own screens fetch it with, so that it is likely cached.
+            Bitmap[] bitmaps = AlbumArtCache.getInstance().load(getIconUri(artUrl).toString());
+            Bitmap bitmap = icon && bitmaps.length > 1 ? bitmaps[1] : bitmaps[0];
+            ByteArrayOutputStream jpeg = new ByteArrayOutputStream();
+            bitmap.compress(Bitmap.CompressFormat.JPEG, JPEG_QUALITY, jpeg);
+            // The file first, so that it is kept even if the reader does not wait for it.
+            writeFile(file, jpeg);
+            jpeg.writeTo(out);
+        } catch (Exception e) {
+            // The reader sees the pipe close early, and shows its placeholder.
+            LogHelper.w(TAG, e, "Could not serve the album art ", artUrl);
+        } finally {
+            try {
+                out.close();
+            } catch (IOException e) {
+                // The reader went away.
+            }
+        }
+    }
+
+    private void writeFile(File file, ByteArrayOutputStream jpeg) {
+        if (!mDirectory.isDirectory() && !mDirectory.mkdirs()) {
+            return;
+        }
+        File tmp = new File(mDirectory, file.getName() + ".tmp"
+                + Thread.currentThread().getId());
+        try {
+            FileOutputStream out = new FileOutputStream(tmp);
+            try {
+                jpeg.writeTo(out);
+            } finally {
+                out.close();
+            }
+            if (!tmp.renameTo(file)) {
+                tmp.delete();
+            }
+        } catch (IOException e) {
+            LogHelper.w(TAG, e, "Could not write ", file);
+            tmp.delete();
+            return;
+        }
+        trimFiles();
+    }
+
+    /**
+     * Delete the least recently read files once they take more than {@link #MAX_FILES_SIZE}.
+     */
+    private synchronized void trimFiles() {
+        File[] files = mDirectory.listFiles();
+        if (files == null) {
+            return;
+        }
+        long size = 0;
+        List<File> written = new ArrayList<>();
+        for (File file : files) {
+            // Not the files still being written.
+            if (!file.getName().contains(".tmp")) {
+                size += file.length();
+                written.add(file);
+            }
+        }
+        if (size <= MAX_FILES_SIZE) {
+            return;
+        }
+        Collections.sort(written, (a, b) -> a.lastModified() < b.lastModified() ? -1
+                : a.lastModified() == b.lastModified() ? 0 : 1);
+        for (File file : written) {
+            if (size <= MAX_FILES_SIZE) {
+                break;
+            }
+            size -= file.length();
+            file.delete();
+        }
+    }
+
+    @Nullable
+    @Override
+    public Cursor query(@NonNull Uri uri, @Nullable String[] projection,
+                        @Nullable String selection, @Nullable String[] selectionArgs,
+                        @Nullable String sortOrder) {
+        return null;
+    }
+
+    @Nullable
+    @Override
+    public Uri insert(@NonNull Uri uri, @Nullable ContentValues values) {
+        throw new UnsupportedOperationException("Album art is read-only");
+    }
+
+    @Override
+    public int delete(@NonNull Uri uri, @Nullable String selection,
+                      @Nullable String[] selectionArgs) {
+        throw new UnsupportedOperationException("Album art is read-only");
+    }
+
+    @Override
+    public int update(@NonNull Uri uri, @Nullable ContentValues values,
+                      @Nullable String selection, @Nullable String[] selectionArgs) {
+        throw new UnsupportedOperationException("Album art is read-only");
+    }
+}
@@ -0,0 +1,110 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ashomok.lullabies;
+
+import android.os.Process;
+
+import androidx.annotation.NonNull;
+
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import io.reactivex.Scheduler;
+import io.reactivex.schedulers.Schedulers;
+
+/**
+ * Runs album art loads on a fixed number of threads, one per CPU, since decoding and scaling are
+ * CPU bound. Queued loads run by {@link AlbumArtCache.Priority}, then in the order they were
+ * queued, so the album art on screen never waits behind a prefetch.
+ */
+public final class ArtLoadScheduler {
+
+    private static final int KEEP_ALIVE_SECONDS = 30;
+
+    private final ThreadPoolExecutor mExecutor;
+    private final Scheduler[] mSchedulers;
+    private final AtomicLong mSequence = new AtomicLong();
+
+    public ArtLoadScheduler() {
+        this(Math.max(1, Runtime.getRuntime().availableProcessors()));
+    }
+
+    public ArtLoadScheduler(int threads) {
+        mExecutor = new ThreadPoolExecutor(threads, threads, KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+                new PriorityBlockingQueue<>(), new ArtThreadFactory());
+        // Idle threads go away between bursts of loads.
+        mExecutor.allowCoreThreadTimeOut(true);
+
+        AlbumArtCache.Priority[] priorities = AlbumArtCache.Priority.values();
+        mSchedulers = new Scheduler[priorities.length];
+        for (final AlbumArtCache.Priority priority : priorities) {
+            mSchedulers[priority.ordinal()] = Schedulers.from(command -> mExecutor.execute(
+                    new PrioritizedTask(priority, mSequence.getAndIncrement(), command)));
+        }
+    }
+
+    /**
+     * @return a scheduler that runs work at the given priority.
+     */
+    public Scheduler scheduler(AlbumArtCache.Priority priority) {
+        return mSchedulers[priority.ordinal()];
+    }
+
+    private static final class PrioritizedTask implements Runnable, Comparable<PrioritizedTask> {
+        final AlbumArtCache.Priority priority;
+        final long sequence;
+        final Runnable command;
+
+        PrioritizedTask(AlbumArtCache.Priority priority, long sequence, Runnable command) {
+            this.priority = priority;
+            this.sequence = sequence;
+            this.command = command;
+        }
+
+        @Override
+        public void run() {
+            command.run();
+        }
+
+        @Override
+        public int compareTo(@NonNull PrioritizedTask other) {
+            if (priority != other.priority) {
+                return priority.compareTo(other.priority);
+            }
+            return sequence < other.sequence ? -1 : (sequence == other.sequence ? 0 : 1);
+        }
+    }
+
+    private static final class ArtThreadFactory implements ThreadFactory {
+        private final AtomicInteger mCount = new AtomicInteger();
+
+        @Override
+        public Thread newThread(@NonNull final Runnable runnable) {
+            Thread thread = new Thread(() -> {
+                // Like AsyncTask, so that loads do not compete with the UI thread.
+                Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                runnable.run();
+            }, "AlbumArt #" + mCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+}
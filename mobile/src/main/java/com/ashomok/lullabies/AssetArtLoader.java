@@ -0,0 +1,190 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ashomok.lullabies;
+
+import android.content.res.AssetFileDescriptor;
+import android.content.res.AssetManager;
+import android.graphics.Bitmap;
+
+import androidx.annotation.NonNull;
+
+import com.ashomok.lullabies.utils.BitmapHelper;
+import com.ashomok.lullabies.utils.BitmapPool;
+import com.ashomok.lullabies.utils.LogHelper;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Decodes the album arts bundled in the APK ({@code /assets/...}) through the
+ * {@link AssetManager}, instead of looking them up as class loader resources.
+ * <p>
+ * Images are stored uncompressed in the APK, so each one is read in place through a file
+ * descriptor on the APK: the bounds from its header, then the pixels, with no stream buffering
+ * in between. Compressed assets fall back to a buffered stream.
+ * <p>
+ * The build generates each album art at the sizes the app displays it at (see
+ * {@code art_variants.gradle}), so the smallest variant that covers the requested size is decoded
+ * rather than the original, and needs no scaling afterwards.
+ */
+public final class AssetArtLoader implements AlbumArtCache.ArtLoader {
+
+    private static final String TAG = LogHelper.makeLogTag(AssetArtLoader.class);
+
+    private static final String ASSETS_PATH = "/assets/";
+    static final String VARIANTS_MANIFEST = "art_variants/manifest.json";
+
+    private final AssetManager mAssets;
+
+    // Variants of each album art by asset path, read on first use. Guarded by this.
+    private Map<String, List<Variant>> mVariants;
+
+    public AssetArtLoader(@NonNull AssetManager assets) {
+        mAssets = assets;
+    }
+
+    /**
+     * @return whether the album art URL is one of the bundled album arts.
+     */
+    public static boolean isBundled(String artUrl) {
+        return artUrl.startsWith(ASSETS_PATH);
+    }
+
+    @Override
+    public Bitmap load(String artUrl, int width, int height, Bitmap.Config config,
+                       BitmapPool pool) throws IOException {
+        if (!isBundled(artUrl)) {
+            throw new IllegalArgumentException("Not a bundled album art: " + artUrl);
+        }
+        String path = artUrl.substring(ASSETS_PATH.length());
+        Variant variant = findVariant(path, width, height);
+        if (variant != null) {
+            path = variant.path;
+        }
+        AssetFileDescriptor descriptor;
+        try {
+            descriptor = mAssets.openFd(path);
+        } catch (FileNotFoundException e) {
+            LogHelper.w(TAG, "Album art ", path, " is compressed, decoding it from a stream");
+            InputStream is = new BufferedInputStream(mAssets.open(path));
+            try {
+                return BitmapHelper.decodeAndRescaleBitmap(is, width, height, config, pool);
+            } finally {
+                is.close();
+            }
+        }
+        try {
+            FileInputStream in = descriptor.createInputStream();
+            try {
+                return BitmapHelper.decodeAndRescaleBitmap(in, descriptor.getStartOffset(),
+                        width, height, config, pool);
+            } finally {
+                in.close();
+            }
+        } finally {
+            descriptor.close();
+        }
+    }
+
+    /**
+     * @return the smallest variant of the album art that covers width x height, or null if the
+     * original should be decoded.
+     */
+    private Variant findVariant(String path, int width, int height) {
+        Variant best = null;
+        for (Variant variant : getVariants(path)) {
+            if (variant.width >= width && variant.height >= height
+                    && (best == null || variant.width * variant.height < best.width * best.height)) {
+                best = variant;
+            }
+        }
+        return best;
+    }
+
+    private synchronized List<Variant> getVariants(String path) {
+        if (mVariants == null) {
+            mVariants = readManifest();
+        }
+        List<Variant> variants = mVariants.get(path);
+        return variants == null ? Collections.<Variant>emptyList() : variants;
+    }
+
+    private Map<String, List<Variant>> readManifest() {
+        Map<String, List<Variant>> variantsByPath = new HashMap<>();
+        try {
+            JSONObject manifest = new JSONObject(readAsset(VARIANTS_MANIFEST));
+            Iterator<String> paths = manifest.keys();
+            while (paths.hasNext()) {
+                String path = paths.next();
+                JSONArray array = manifest.getJSONObject(path).getJSONArray("variants");
+                List<Variant> variants = new ArrayList<>(array.length());
+                for (int i = 0; i < array.length(); i++) {
+                    JSONObject variant = array.getJSONObject(i);
+                    variants.add(new Variant(variant.getString("path"),
+                            variant.getInt("width"), variant.getInt("height")));
+                }
+                variantsByPath.put(path, variants);
+            }
+        } catch (FileNotFoundException e) {
+            LogHelper.w(TAG, "No album art variants, decoding the originals");
+        } catch (IOException | JSONException e) {
+            LogHelper.e(TAG, e, "Could not read the album art variants");
+        }
+        return variantsByPath;
+    }
+
+    private String readAsset(String path) throws IOException {
+        InputStream is = mAssets.open(path);
+        try {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buffer = new byte[8192];
+            int read;
+            while ((read = is.read(buffer)) != -1) {
+                out.write(buffer, 0, read);
+            }
+            return out.toString("UTF-8");
+        } finally {
+            is.close();
+        }
+    }
+
+    private static final class Variant {
+        final String path;
+        final int width;
+        final int height;
+
+        Variant(String path, int width, int height) {
+            this.path = path;
+            this.width = width;
+            this.height = height;
+        }
+    }
+}
@@ -27,15 +27,20 @@ import android.content.IntentFilter;
 import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
 import android.graphics.Color;
+import android.net.Uri;
 import android.os.Build;
+import android.os.Handler;
+import android.os.Looper;
 import android.os.RemoteException;
+import android.os.SystemClock;
 import android.support.v4.media.MediaDescriptionCompat;
-import android.support.v4.media.MediaMetadataCompat;
 import android.support.v4.media.session.MediaControllerCompat;
 import android.support.v4.media.session.MediaSessionCompat;
 import android.support.v4.media.session.PlaybackStateCompat;
+import android.text.TextUtils;
 
 import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
 import androidx.annotation.RequiresApi;
 import androidx.core.app.NotificationCompat;
 import androidx.media.app.NotificationCompat.MediaStyle;
@@ -48,6 +53,10 @@ import com.ashomok.lullabies.utils.ResourceHelper;
  * Keeps track of a notification and updates it automatically for a given
  * MediaSession. Maintaining a visible notification (usually) guarantees that the music service
  * won't be killed during playback.
+ * <p>
+ * The notification is built once and updated in place: each update sets only what differs from
+ * what it shows. Updates are posted no more often than every {@link #MIN_NOTIFY_INTERVAL_MS},
+ * since the system drops the updates of an app that posts too many.
  */
 
 //public class MediaNotificationManager extends BroadcastReceiver {
@@ -60,6 +69,8 @@ public class MediaNotificationManager extends BroadcastReceiver {
     public static final int NOTIFICATION_ID = 4125445;
     private static final int REQUEST_CODE = 143400;
 
+    private static final long MIN_NOTIFY_INTERVAL_MS = 250;
+
     public static final String ACTION_PAUSE = "com.ashomok.lullabies.pause";
     public static final String ACTION_PLAY = "com.ashomok.lullabies.play";
     public static final String ACTION_PREV = "com.ashomok.lullabies.prev";
@@ -76,9 +87,6 @@ public class MediaNotificationManager extends BroadcastReceiver {
     private MediaControllerCompat mController;
     private MediaControllerCompat.TransportControls mTransportControls;
 
-    private PlaybackStateCompat mPlaybackState;
-    private MediaMetadataCompat mMetadata;
-
     public NotificationManager getmNotificationManager() {
         return mNotificationManager;
     }
@@ -94,6 +102,50 @@ public class MediaNotificationManager extends BroadcastReceiver {
     private final PendingIntent mStopCastIntent;
 
     private final int mNotificationColor;
+    private final int mLargeIconWidth;
+    private final int mLargeIconHeight;
+
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+    private final Runnable mNotifyRunnable = this::notifyNow;
+
+    // The notification is built once, and then only the fields that change are set again; what
+    // it shows is kept below. Main thread only: the service hands playback state changes over
+    // from the playback thread.
+    private NotificationCompat.Builder mBuilder;
+    private long mShownActions = -1;
+    private boolean mShownPlaying;
+    private String mShownCastName;
+    private MediaSessionCompat.Token mShownToken;
+    private MediaDescriptionCompat mShownDescription;
+    private String mShownArtUrl;
+    private boolean mArtFetching;
+    private Bitmap mDefaultArt;
+
+    private boolean mReceiverRegistered;
+    private boolean mShowing;
+    private boolean mNotifyScheduled;
+    private long mLastNotifyTime;
+
+    private final AlbumArtCache.FetchListener mArtListener = new AlbumArtCache.FetchListener() {
+        @Override
+        public void onFetched(String artUrl, Bitmap bitmap, Bitmap icon) {
+            if (!mArtFetching || !artUrl.equals(mShownArtUrl)) {
+                return;
+            }
+            mArtFetching = false;
+            // If the media is still the same, update the notification:
+            LogHelper.d(TAG, "onFetched: set bitmap to ", artUrl);
+            mBuilder.setLargeIcon(bitmap);
+            scheduleNotify();
+        }
+
+        @Override
+        public void onError(String artUrl, Exception e) {
+            if (artUrl.equals(mShownArtUrl)) {
+                mArtFetching = false;
+            }
+        }
+    };
 
     public MediaNotificationManager(MusicService service) throws RemoteException {
         mService = service;
@@ -104,6 +156,11 @@ public class MediaNotificationManager extends BroadcastReceiver {
 
         mNotificationManager = (NotificationManager) mService.getSystemService(Context.NOTIFICATION_SERVICE);
 
+        mLargeIconWidth = mService.getResources().getDimensionPixelSize(
+                android.R.dimen.notification_large_icon_width);
+        mLargeIconHeight = mService.getResources().getDimensionPixelSize(
+                android.R.dimen.notification_large_icon_height);
+
         String pkg = mService.getPackageName();
         mPauseIntent = PendingIntent.getBroadcast(mService, REQUEST_CODE,
                 new Intent(ACTION_PAUSE).setPackage(pkg), PendingIntent.FLAG_CANCEL_CURRENT);
@@ -231,24 +288,6 @@ public class MediaNotificationManager extends BroadcastReceiver {
         return playPauseButtonPosition;
     }
 
-    private void fetchBitmapFromURLAsync(final String bitmapUrl,
-                                         final NotificationCompat.Builder builder, PlaybackStateCompat state) {
-        AlbumArtCache.getInstance().fetch(bitmapUrl, new AlbumArtCache.FetchListener() {
-
-            @Override
-            public void onFetched(String artUrl, Bitmap bitmap, Bitmap icon) {
-                if (mMetadata != null && mMetadata.getDescription().getIconUri() != null &&
-                        mMetadata.getDescription().getIconUri().toString().equals(artUrl)) {
-                    // If the media is still the same, update the notification:
-                    LogHelper.d(TAG, "fetchBitmapFromURLAsync: set bitmap to ", artUrl);
-                    builder.setLargeIcon(bitmap);
-                    addActions(builder, state);
-                    mNotificationManager.notify(NOTIFICATION_ID, builder.build());
-                }
-            }
-        });
-    }
-
     /**
      * Creates Notification Channel. This is required in Android O+ to display notifications.
      */
@@ -277,101 +316,208 @@ public class MediaNotificationManager extends BroadcastReceiver {
         }
     }
 
+    /**
+     * @return the notification, for the caller to post as the foreground notification.
+     */
     public Notification getNotification(MediaDescriptionCompat description,
                                         PlaybackStateCompat state,
                                         MediaSessionCompat.Token sessionToken) {
-        NotificationCompat.Builder builder =
-                buildNotification(state, sessionToken, description);
-
-        Notification notification = builder.build();
-
-        if (notification != null) {
-            IntentFilter filter = new IntentFilter();
-            filter.addAction(ACTION_NEXT);
-            filter.addAction(ACTION_PAUSE);
-            filter.addAction(ACTION_PLAY);
-            filter.addAction(ACTION_PREV);
-            filter.addAction(ACTION_STOP_CASTING);
-            mService.registerReceiver(this, filter);
-        }
+        registerReceiverOnce();
+        update(description, state, sessionToken);
+        // The caller posts it, with any update still waiting.
+        mHandler.removeCallbacks(mNotifyRunnable);
+        mNotifyScheduled = false;
+        mLastNotifyTime = SystemClock.uptimeMillis();
+        mShowing = true;
+        return mBuilder.build();
+    }
 
-        return notification;
+    /**
+     * Update the posted notification. Updates closer than {@link #MIN_NOTIFY_INTERVAL_MS} to the
+     * last one are posted together once the interval is over.
+     */
+    public void updateNotification(MediaDescriptionCompat description,
+                                   PlaybackStateCompat state,
+                                   MediaSessionCompat.Token sessionToken) {
+        registerReceiverOnce();
+        update(description, state, sessionToken);
+        mShowing = true;
+        scheduleNotify();
     }
 
-    private NotificationCompat.Builder buildNotification(PlaybackStateCompat state,
-                                                         MediaSessionCompat.Token sessionToken,
-                                                         MediaDescriptionCompat description) {
-
-        String fetchArtUrl = null;
-        Bitmap art = null;
-        if (description.getIconUri() != null) {
-            // This sample assumes the iconUri will be a valid URL formatted String, but
-            // it can actually be any valid Android Uri formatted String.
-            // async fetch the album art icon
-            String artUrl = description.getIconUri().toString();
-            art = AlbumArtCache.getInstance().getBigImage(artUrl);
-            if (art == null) {
-                fetchArtUrl = artUrl;
-                // use a placeholder art while the remote art is being downloaded
-                art = BitmapFactory.decodeResource(mService.getResources(),
-                        R.drawable.ic_default_art);
+    /**
+     * Set the fields of the notification that differ from what it shows.
+     */
+    private void update(MediaDescriptionCompat description, PlaybackStateCompat state,
+                        MediaSessionCompat.Token sessionToken) {
+        if (mBuilder == null) {
+            // Notification channels are only supported on Android O+.
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
+                createNotificationChannel();
             }
+            mBuilder = new NotificationCompat.Builder(mService, CHANNEL_ID)
+                    .setColor(mNotificationColor)
+                    .setSmallIcon(R.drawable.ic_notification)
+                    // When notification is deleted (when playback is paused and notification
+                    // can be deleted) fire MediaButtonPendingIntent with ACTION_STOP.
+                    .setDeleteIntent(mStopIntent)
+                    // Show controls on lock screen even when user hides sensitive content.
+                    .setVisibility(NotificationCompat.VISIBILITY_PUBLIC);
         }
 
-        // Notification channels are only supported on Android O+.
-        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
-            createNotificationChannel();
-        }
-
-        NotificationCompat.Builder builder = new NotificationCompat.Builder(mService, CHANNEL_ID);
-        final int playPauseButtonPosition = addActions(builder, state);
-
-        builder.setStyle(
-                new MediaStyle()
-                        .setMediaSession(sessionToken)
-                        .setShowActionsInCompactView(playPauseButtonPosition)
-                        // For backwards compatibility with Android L and earlier.
-                        .setShowCancelButton(true)
-                        .setCancelButtonIntent(mStopIntent))
-                .setColor(mNotificationColor)
-                .setSmallIcon(R.drawable.ic_notification)
-                // Pending intent that is fired when user clicks on notification.
-                .setContentIntent(createContentIntent(description))
-                // Title - Usually Song name.
-                .setContentTitle(description.getTitle())
-                // Subtitle - Usually Artist name.
-                .setContentText(description.getSubtitle())
-                .setLargeIcon(art)
-                // When notification is deleted (when playback is paused and notification can be
-                // deleted) fire MediaButtonPendingIntent with ACTION_STOP.
-                .setDeleteIntent(mStopIntent)
-                // Show controls on lock screen even when user hides sensitive content.
-                .setVisibility(NotificationCompat.VISIBILITY_PUBLIC);
-
+        String castName = null;
         if (mController != null && mController.getExtras() != null) {
-            String castName = mController.getExtras().getString(MusicService.EXTRA_CONNECTED_CAST);
+            castName = mController.getExtras().getString(MusicService.EXTRA_CONNECTED_CAST);
+        }
+        // The buttons depend on the skip actions and on whether it plays.
+        long actions = state.getActions() & (PlaybackStateCompat.ACTION_SKIP_TO_PREVIOUS
+                | PlaybackStateCompat.ACTION_SKIP_TO_NEXT);
+        boolean playing = state.getState() == PlaybackStateCompat.STATE_PLAYING;
+        if (actions != mShownActions || playing != mShownPlaying
+                || !TextUtils.equals(castName, mShownCastName)
+                || (sessionToken == null ? mShownToken != null
+                : !sessionToken.equals(mShownToken))) {
+            mShownActions = actions;
+            mShownPlaying = playing;
+            mShownCastName = castName;
+            mShownToken = sessionToken;
+            mBuilder.clearActions();
+            final int playPauseButtonPosition = addActions(mBuilder, state);
             if (castName != null) {
-                String castInfo = mService.getResources()
-                        .getString(R.string.casting_to_device, castName);
-                builder.setSubText(castInfo);
-                builder.addAction(R.drawable.ic_close_black_24dp,
+                mBuilder.setSubText(mService.getResources()
+                        .getString(R.string.casting_to_device, castName));
+                mBuilder.addAction(R.drawable.ic_close_black_24dp,
                         mService.getString(R.string.stop_casting), mStopCastIntent);
+            } else {
+                mBuilder.setSubText(null);
             }
+            mBuilder.setStyle(
+                    new MediaStyle()
+                            .setMediaSession(sessionToken)
+                            .setShowActionsInCompactView(playPauseButtonPosition)
+                            // For backwards compatibility with Android L and earlier.
+                            .setShowCancelButton(true)
+                            .setCancelButtonIntent(mStopIntent));
         }
 
+        if (!isSameDescription(mShownDescription, description)) {
+            mShownDescription = description;
+            mBuilder
+                    // Pending intent that is fired when user clicks on notification.
+                    .setContentIntent(createContentIntent(description))
+                    // Title - Usually Song name.
+                    .setContentTitle(description.getTitle())
+                    // Subtitle - Usually Artist name.
+                    .setContentText(description.getSubtitle());
+            updateArt(description);
+        }
+    }
 
-        if (fetchArtUrl != null) {
-            fetchBitmapFromURLAsync(fetchArtUrl, builder, state);
+    private void updateArt(MediaDescriptionCompat description) {
+        String artUrl = null;
+        // From Android 11 the system media controls read the album art of the session metadata,
+        // through the AlbumArtProvider, so the notification does not carry it too.
+        if (description.getIconUri() != null && Build.VERSION.SDK_INT < Build.VERSION_CODES.R) {
+            artUrl = description.getIconUri().toString();
+        }
+        cancelArtFetch();
+        mShownArtUrl = artUrl;
+        if (artUrl == null) {
+            mBuilder.setLargeIcon(null);
+            return;
+        }
+        Bitmap art = AlbumArtCache.getInstance().getImage(artUrl,
+                mLargeIconWidth, mLargeIconHeight);
+        if (art != null) {
+            mBuilder.setLargeIcon(art);
+            return;
+        }
+        // use a placeholder art while the remote art is being downloaded
+        mBuilder.setLargeIcon(getDefaultArt());
+        mArtFetching = true;
+        AlbumArtCache.getInstance().fetch(artUrl, mLargeIconWidth, mLargeIconHeight,
+                mArtListener);
+    }
+
+    private void cancelArtFetch() {
+        if (mArtFetching) {
+            mArtFetching = false;
+            AlbumArtCache.getInstance().cancel(mShownArtUrl, mLargeIconWidth, mLargeIconHeight,
+                    mArtListener);
+        }
+    }
+
+    private Bitmap getDefaultArt() {
+        if (mDefaultArt == null) {
+            mDefaultArt = BitmapFactory.decodeResource(mService.getResources(),
+                    R.drawable.ic_default_art);
+        }
+        return mDefaultArt;
+    }
+
+    private void registerReceiverOnce() {
+        if (mReceiverRegistered) {
+            return;
+        }
+        IntentFilter filter = new IntentFilter();
+        filter.addAction(ACTION_NEXT);
+        filter.addAction(ACTION_PAUSE);
+        filter.addAction(ACTION_PLAY);
+        filter.addAction(ACTION_PREV);
+        filter.addAction(ACTION_STOP_CASTING);
+        mService.registerReceiver(this, filter);
+        mReceiverRegistered = true;
+    }
+
+    private void scheduleNotify() {
+        if (mNotifyScheduled) {
+            return;
+        }
+        long delay = mLastNotifyTime + MIN_NOTIFY_INTERVAL_MS - SystemClock.uptimeMillis();
+        if (delay <= 0) {
+            notifyNow();
+        } else {
+            mNotifyScheduled = true;
+            mHandler.postDelayed(mNotifyRunnable, delay);
+        }
+    }
+
+    private void notifyNow() {
+        mNotifyScheduled = false;
+        if (!mShowing) {
+            return;
+        }
+        mLastNotifyTime = SystemClock.uptimeMillis();
+        mNotificationManager.notify(NOTIFICATION_ID, mBuilder.build());
+    }
+
+    /**
+     * The notification shows the title and subtitle, and the album art, of the description.
+     */
+    private static boolean isSameDescription(@Nullable MediaDescriptionCompat last,
+                                             @NonNull MediaDescriptionCompat description) {
+        if (last == null) {
+            return false;
         }
-        return builder;
+        Uri lastIconUri = last.getIconUri();
+        Uri iconUri = description.getIconUri();
+        return TextUtils.equals(last.getMediaId(), description.getMediaId())
+                && TextUtils.equals(last.getTitle(), description.getTitle())
+                && TextUtils.equals(last.getSubtitle(), description.getSubtitle())
+                && (lastIconUri == null ? iconUri == null : lastIconUri.equals(iconUri));
     }
 
     public void unregisterReceiver() {
-        try {
-            mNotificationManager.cancel(NOTIFICATION_ID);
+        mShowing = false;
+        mHandler.removeCallbacks(mNotifyRunnable);
+        mNotifyScheduled = false;
+        cancelArtFetch();
+        // Set again in full when the notification is shown next.
+        mShownDescription = null;
+        mNotificationManager.cancel(NOTIFICATION_ID);
+        if (mReceiverRegistered) {
             mService.unregisterReceiver(this);
-        } catch (IllegalArgumentException ex) {
-            // ignore if the receiver is not registered.
+            mReceiverRegistered = false;
         }
     }
 }
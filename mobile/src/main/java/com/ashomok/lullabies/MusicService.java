@@ -26,9 +26,10 @@
  import android.media.session.PlaybackState;
  import android.os.Bundle;
  import android.os.Handler;
+ import android.os.Looper;
  import android.os.Message;
- import android.os.RemoteException;
  import android.service.media.MediaBrowserService;
+ import android.support.v4.media.MediaBrowserCompat;
  import android.support.v4.media.MediaBrowserCompat.MediaItem;
  import android.support.v4.media.MediaDescriptionCompat;
  import android.support.v4.media.MediaMetadataCompat;
@@ -41,13 +42,19 @@
  import androidx.mediarouter.media.MediaRouter;
 
  import com.ashomok.lullabies.model.MusicProvider;
+ import com.ashomok.lullabies.playback.AssetHttpServer;
  import com.ashomok.lullabies.playback.CastPlayback;
  import com.ashomok.lullabies.playback.LocalPlayback;
  import com.ashomok.lullabies.playback.Playback;
+ import com.ashomok.lullabies.playback.PlaybackCommandQueue;
+ import com.ashomok.lullabies.playback.PlaybackErrorRecovery;
  import com.ashomok.lullabies.playback.PlaybackManager;
  import com.ashomok.lullabies.playback.QueueManager;
  import com.ashomok.lullabies.ui.NowPlayingActivity;
+ import com.ashomok.lullabies.utils.BrowsePages;
  import com.ashomok.lullabies.utils.LogHelper;
+ import com.ashomok.lullabies.utils.MediaIDHelper;
+ import com.ashomok.lullabies.utils.StartupOrchestrator;
  import com.ashomok.lullabies.utils.TvHelper;
  import com.google.android.gms.cast.framework.CastContext;
  import com.google.android.gms.cast.framework.CastSession;
@@ -56,9 +63,22 @@
  import com.google.android.gms.common.ConnectionResult;
  import com.google.android.gms.common.GoogleApiAvailability;
 
+ import java.io.FileDescriptor;
+ import java.io.PrintWriter;
  import java.lang.ref.WeakReference;
  import java.util.ArrayList;
+ import java.util.Collections;
  import java.util.List;
+ import java.util.Set;
+ import java.util.concurrent.CopyOnWriteArraySet;
+
+ import javax.inject.Inject;
+
+ import dagger.android.AndroidInjection;
+ import io.reactivex.Completable;
+ import io.reactivex.android.schedulers.AndroidSchedulers;
+ import io.reactivex.disposables.Disposable;
+ import io.reactivex.schedulers.Schedulers;
 
  import static com.ashomok.lullabies.utils.MediaIDHelper.MEDIA_ID_EMPTY_ROOT;
  import static com.ashomok.lullabies.utils.MediaIDHelper.MEDIA_ID_ROOT;
@@ -132,16 +152,32 @@
      // Delay stopSelf by using a handler.
      private static final int STOP_DELAY = 30000;
 
-     private MusicProvider mMusicProvider;
+     // Draws the media controls from the session metadata.
+     private static final String SYSTEM_UI_PACKAGE = "com.android.systemui";
+
+     @Inject
+     MusicProvider mMusicProvider;
+     private PlaybackCommandQueue mPlaybackCommandQueue;
+     private QueueManager mQueueManager;
      private PlaybackManager mPlaybackManager;
+     private PlaybackErrorRecovery mErrorRecovery;
+     private AssetHttpServer mAssetHttpServer;
+     private Disposable mAssetHttpServerStart;
 
      private MediaSessionCompat mSession;
-     private ServiceManager serviceManager;
+     private StartupOrchestrator mStartup;
+     private StartupOrchestrator.Component<ServiceManager> serviceManager;
      private Bundle mSessionExtras;
      private final DelayedStopHandler mDelayedStopHandler = new DelayedStopHandler(this);
-     private MediaRouter mMediaRouter;
+     private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+     // The packages the album art URIs of the session metadata are granted to: the system UI, and
+     // the trusted browse clients that connected.
+     private final Set<String> mArtReaders =
+             new CopyOnWriteArraySet<>(Collections.singleton(SYSTEM_UI_PACKAGE));
+     private boolean mDestroyed;
+     private StartupOrchestrator.Component<MediaRouter> mMediaRouter;
      private PackageValidator mPackageValidator;
-     private SessionManager mCastSessionManager;
+     private StartupOrchestrator.Component<SessionManager> mCastSessionManager;
      private SessionManagerListener<CastSession> mCastSessionManagerListener;
 
      private boolean inStartedState; //todo remove & simplify
@@ -153,22 +189,30 @@
       */
      @Override
      public void onCreate() {
+         // The catalog is shared with the UI of this process.
+         AndroidInjection.inject(this);
          super.onCreate();
          LogHelper.d(TAG, "onCreate");
 
-         mMusicProvider = new MusicProvider(this);
-
          // To make the app more responsive, fetch and cache catalog information now.
          // This can help improve the response time in the method
          // {@link #onLoadChildren(String, Result<List<MediaItem>>) onLoadChildren()}.
          mMusicProvider.retrieveMediaAsync(null /* Callback */);
 
+         // Only the media session is needed for onCreate to return. The rest starts right after,
+         // or when first used if that is sooner.
+         mStartup = new StartupOrchestrator("MusicService");
+
+         // Reads the allowed callers on the first caller that is not this app.
          mPackageValidator = new PackageValidator(this);
 
-         QueueManager queueManager = new QueueManager(mMusicProvider, getResources(),
+         mQueueManager = new QueueManager(mMusicProvider, getResources(),
                  new QueueManager.MetadataUpdateListener() {
                      @Override
                      public void onMetadataChanged(MediaMetadataCompat metadata) {
+                         for (String reader : mArtReaders) {
+                             AlbumArtProvider.grantRead(MusicService.this, reader, metadata);
+                         }
                          mSession.setMetadata(metadata);
                      }
 
@@ -191,9 +235,15 @@
                      }
                  });
 
-         LocalPlayback playback = new LocalPlayback(this, mMusicProvider);
-         mPlaybackManager = new PlaybackManager(this, getResources(), mMusicProvider, queueManager,
-                 playback);
+         // All playback work runs on a dedicated thread, so media buttons and the UI never wait
+         // for a track to be prepared.
+         mPlaybackCommandQueue = new PlaybackCommandQueue();
+         // Shared by every local playback, so its counters survive switching to Cast and back.
+         mErrorRecovery = new PlaybackErrorRecovery(this);
+         LocalPlayback playback = new LocalPlayback(this, mMusicProvider,
+                 mPlaybackCommandQueue.getLooper(), mErrorRecovery);
+         mPlaybackManager = new PlaybackManager(this, getResources(), mMusicProvider, mQueueManager,
+                 playback, mPlaybackCommandQueue);
 
          // Start a new MediaSession
          mSession = new MediaSessionCompat(this, "MusicService");
@@ -214,23 +264,33 @@
 
          mPlaybackManager.updatePlaybackState(null);
 
-         try {
-             serviceManager = new ServiceManager(this);
-         } catch (RemoteException e) {
-             throw new IllegalStateException("Could not create a ServiceManager", e);
-         }
+         // Not waiting for the first playback, since it also clears the notification a killed
+         // service may have left behind.
+         serviceManager = mStartup.add("ServiceManager",
+                 StartupOrchestrator.Mode.AFTER_FIRST_FRAME, false,
+                 () -> new ServiceManager(this));
 
+         mMediaRouter = mStartup.add("MediaRouter", StartupOrchestrator.Mode.AFTER_FIRST_FRAME,
+                 false, () -> MediaRouter.getInstance(getApplicationContext()));
+
+         // Null if casting is not available.
+         mCastSessionManager = mStartup.add("Cast", StartupOrchestrator.Mode.AFTER_FIRST_FRAME,
+                 false, this::createCastSessionManager, mMediaRouter);
+
+         // A service draws no frame.
+         mStartup.start();
+     }
+
+     private SessionManager createCastSessionManager() {
          int playServicesAvailable =
                  GoogleApiAvailability.getInstance().isGooglePlayServicesAvailable(this);
-
-         if (!TvHelper.isTvUiMode(this) && playServicesAvailable == ConnectionResult.SUCCESS) {
-             mCastSessionManager = CastContext.getSharedInstance(this).getSessionManager();
-             mCastSessionManagerListener = new CastSessionManagerListener();
-             mCastSessionManager.addSessionManagerListener(mCastSessionManagerListener,
-                     CastSession.class);
+         if (TvHelper.isTvUiMode(this) || playServicesAvailable != ConnectionResult.SUCCESS) {
+             return null;
          }
-
-         mMediaRouter = MediaRouter.getInstance(getApplicationContext());
+         SessionManager sessionManager = CastContext.getSharedInstance(this).getSessionManager();
+         mCastSessionManagerListener = new CastSessionManagerListener();
+         sessionManager.addSessionManagerListener(mCastSessionManagerListener, CastSession.class);
+         return sessionManager;
      }
 
      //todo test solution https://stackoverflow.com/a/50888586/3627736 two starts
@@ -253,9 +313,9 @@
              String command = startIntent.getStringExtra(CMD_NAME);
              if (ACTION_CMD.equals(action)) {
                  if (CMD_PAUSE.equals(command)) {
-                     mPlaybackManager.handlePauseRequest();
+                     mPlaybackManager.getMediaSessionCallback().onPause();
                  } else if (CMD_STOP.equals(command)) {
-                     mPlaybackManager.handleStopRequest(null);
+                     mPlaybackManager.getMediaSessionCallback().onStop();
                  } else if (CMD_STOP_CASTING.equals(command)) {
                      CastContext.getSharedInstance(this).getSessionManager().endCurrentSession(true);
                  } else if (CMD_STOP_SERVICE.equals(command)) {
@@ -328,17 +388,50 @@
      @Override
      public void onDestroy() {
          LogHelper.d(TAG, "onDestroy");
+         mDestroyed = true;
+         mMainHandler.removeCallbacksAndMessages(null);
          // Service is being killed, so make sure we release our resources
-         mPlaybackManager.handleStopRequest(null);
-         serviceManager.moveServiceOutOfStartedState();
+         mPlaybackManager.release();
+         stopAssetHttpServer();
+         mStartup.cancel();
+         mPackageValidator.release();
+         ServiceManager manager = mStartup.peek(serviceManager);
+         if (manager != null) {
+             manager.moveServiceOutOfStartedState();
+         }
 
-         if (mCastSessionManager != null) {
-             mCastSessionManager.removeSessionManagerListener(mCastSessionManagerListener,
+         SessionManager castSessionManager = mStartup.peek(mCastSessionManager);
+         if (castSessionManager != null) {
+             castSessionManager.removeSessionManagerListener(mCastSessionManagerListener,
                      CastSession.class);
          }
 
          mDelayedStopHandler.removeCallbacksAndMessages(null);
          mSession.release();
+         AlbumArtProvider.revokeReads(this);
+     }
+
+     /**
+      * Prints the album art cache and the playback error recovery counters, with
+      * {@code adb shell dumpsys activity service com.ashomok.lullabies/.MusicService}.
+      */
+     @Override
+     public void dump(FileDescriptor fd, PrintWriter writer, String[] args) {
+         super.dump(fd, writer, args);
+         writer.println(AlbumArtCache.getInstance().getStats());
+         if (mErrorRecovery != null) {
+             writer.println("Playback recovery: " + mErrorRecovery.getMetrics());
+         }
+     }
+
+     private void stopAssetHttpServer() {
+         if (mAssetHttpServerStart != null) {
+             mAssetHttpServerStart.dispose();
+             mAssetHttpServerStart = null;
+         }
+         if (mAssetHttpServer != null) {
+             mAssetHttpServer.stop();
+         }
      }
 
      @Override
@@ -358,30 +451,73 @@
              return new BrowserRoot(MEDIA_ID_EMPTY_ROOT, null);
          }
 
+         // The browse items and the session metadata point at the art with content:// URIs.
+         if (mArtReaders.add(clientPackageName)) {
+             AlbumArtProvider.grantRead(this, clientPackageName,
+                     mSession.getController().getMetadata());
+         }
          return new BrowserRoot(MEDIA_ID_ROOT, null);
      }
 
      @Override
      public void onLoadChildren(@NonNull final String parentMediaId,
                                 @NonNull final Result<List<MediaItem>> result) {
-         LogHelper.d(TAG, "OnLoadChildren: parentMediaId=", parentMediaId);
+         loadChildren(parentMediaId, result, 0, null);
+     }
+
+     /**
+      * Answers paged browse requests, see {@link MediaBrowserCompat#EXTRA_PAGE}, and batched
+      * ones, which get the first page of the children of each browsable child along with it, see
+      * {@link MediaIDHelper#OPTION_CHILDREN_PAGE_SIZE}. Each reply is kept within
+      * {@link BrowsePages#MAX_PAGE_BYTES}.
+      */
+     @Override
+     public void onLoadChildren(@NonNull final String parentMediaId,
+                                @NonNull final Result<List<MediaItem>> result,
+                                @NonNull Bundle options) {
+         int childrenPageSize = options.getInt(MediaIDHelper.OPTION_CHILDREN_PAGE_SIZE, 0);
+         loadChildren(parentMediaId, result, childrenPageSize, options);
+     }
+
+     /**
+      * @param options the browse options to page the children with, or null for all of them
+      *                that fit in a reply.
+      */
+     private void loadChildren(@NonNull final String parentMediaId,
+                               @NonNull final Result<List<MediaItem>> result,
+                               final int childrenPageSize, final Bundle options) {
+         LogHelper.d(TAG, "OnLoadChildren: parentMediaId=", parentMediaId,
+                 " childrenPageSize=", childrenPageSize);
+         final String clientPackageName = getCurrentBrowserInfo().getPackageName();
          if (MEDIA_ID_EMPTY_ROOT.equals(parentMediaId)) {
              result.sendResult(new ArrayList<>());
          } else if (mMusicProvider.isInitialized()) {
              // if music library is ready, return immediately
-             result.sendResult(mMusicProvider.getChildren(parentMediaId, getResources()));
+             sendPage(result, clientPackageName, parentMediaId, childrenPageSize, options);
          } else {
              // otherwise, only return results when the music library is retrieved
              result.detach();
              mMusicProvider.retrieveMediaAsync(new MusicProvider.Callback() {
                  @Override
                  public void onMusicCatalogReady(boolean success) {
-                     result.sendResult(mMusicProvider.getChildren(parentMediaId, getResources()));
+                     sendPage(result, clientPackageName, parentMediaId, childrenPageSize,
+                             options);
                  }
              });
          }
      }
 
+     private void sendPage(Result<List<MediaItem>> result, String clientPackageName,
+                           String parentMediaId, int childrenPageSize, Bundle options) {
+         List<MediaItem> page = BrowsePages.page(mMusicProvider.getChildren(parentMediaId,
+                 getResources(), childrenPageSize), options);
+         // Only the clients trusted in onGetRoot get to read the album art of the page.
+         if (mArtReaders.contains(clientPackageName)) {
+             AlbumArtProvider.grantRead(this, clientPackageName, page);
+         }
+         result.sendResult(page);
+     }
+
      /**
       * Callback method called from PlaybackManager whenever the music is about to play.
       */
@@ -414,18 +550,31 @@
          mSession.setPlaybackState(newState);
      }
 
+     /**
+      * Called on the playback thread. The notification and the foreground state are only
+      * touched on the main thread, so the change is applied there, in order.
+      */
      @Override
-     public void updateServiceState(PlaybackStateCompat state, MediaDescriptionCompat description) {
+     public void updateServiceState(final PlaybackStateCompat state,
+                                    final MediaDescriptionCompat description) {
+         mMainHandler.post(() -> {
+             if (!mDestroyed) {
+                 applyServiceState(state, description);
+             }
+         });
+     }
 
+     private void applyServiceState(PlaybackStateCompat state,
+                                    MediaDescriptionCompat description) {
          switch (state.getState()) {
              case PlaybackStateCompat.STATE_PLAYING:
-                 serviceManager.moveServiceToStartedState(state, description);
+                 mStartup.get(serviceManager).moveServiceToStartedState(state, description);
                  break;
              case PlaybackStateCompat.STATE_PAUSED:
-                 serviceManager.updateNotificationForPause(state, description);
+                 mStartup.get(serviceManager).updateNotificationForPause(state, description);
                  break;
              case PlaybackStateCompat.STATE_STOPPED:
-                 serviceManager.moveServiceOutOfStartedState();
+                 mStartup.get(serviceManager).moveServiceOutOfStartedState();
                  break;
              default:
                  LogHelper.d(TAG, "state is " + state + " notification not required");
@@ -477,9 +626,11 @@
              LogHelper.d(TAG, "onSessionEnded");
              mSessionExtras.remove(EXTRA_CONNECTED_CAST);
              mSession.setExtras(mSessionExtras);
-             Playback playback = new LocalPlayback(MusicService.this, mMusicProvider);
-             mMediaRouter.setMediaSessionCompat(null);
+             Playback playback = new LocalPlayback(MusicService.this, mMusicProvider,
+                     mPlaybackCommandQueue.getLooper(), mErrorRecovery);
+             mStartup.get(mMediaRouter).setMediaSessionCompat(null);
              mPlaybackManager.switchToPlayback(playback, false);
+             stopAssetHttpServer();
          }
 
          @Override
@@ -492,9 +643,29 @@
              mSessionExtras.putString(EXTRA_CONNECTED_CAST,
                      session.getCastDevice().getFriendlyName());
              mSession.setExtras(mSessionExtras);
-             // Now we can switch to CastPlayback
-             Playback playback = new CastPlayback(mMusicProvider, MusicService.this);
-             mMediaRouter.setMediaSessionCompat(mSession);
+             // The receiver can not read our assets, so serve them on the local network. Binding
+             // the server looks up the network interfaces, which is not for the main thread.
+             if (mAssetHttpServer == null) {
+                 mAssetHttpServer = new AssetHttpServer(MusicService.this);
+             }
+             if (mAssetHttpServerStart != null) {
+                 mAssetHttpServerStart.dispose();
+             }
+             mAssetHttpServerStart = Completable.fromAction(mAssetHttpServer::start)
+                     .subscribeOn(Schedulers.io())
+                     .observeOn(AndroidSchedulers.mainThread())
+                     .subscribe(this::switchToCastPlayback, e -> {
+                         // Streamed tracks still play on the receiver.
+                         LogHelper.e(TAG, e, "Could not start the asset server");
+                         switchToCastPlayback();
+                     });
+         }
+
+         private void switchToCastPlayback() {
+             mAssetHttpServerStart = null;
+             Playback playback = new CastPlayback(mMusicProvider, mQueueManager,
+                     MusicService.this, mAssetHttpServer);
+             mStartup.get(mMediaRouter).setMediaSessionCompat(mSession);
              mPlaybackManager.switchToPlayback(playback, true);
          }
 
@@ -15,10 +15,15 @@
  */
 package com.ashomok.lullabies;
 
+import android.content.BroadcastReceiver;
 import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
 import android.content.pm.PackageInfo;
 import android.content.pm.PackageManager;
+import android.content.pm.Signature;
 import android.content.res.XmlResourceParser;
+import android.net.Uri;
 import android.os.Process;
 import android.util.Base64;
 
@@ -27,8 +32,12 @@ import com.ashomok.lullabies.utils.LogHelper;
 import org.xmlpull.v1.XmlPullParserException;
 
 import java.io.IOException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.Iterator;
 import java.util.Map;
 
 /**
@@ -42,23 +51,61 @@ import java.util.Map;
  * its signature, this class will print to logcat (INFO level) a message with the proper base64
  * version of the caller certificate that has not been validated. You can copy from logcat and
  * paste into allowed_media_browser_callers.xml. Spaces and newlines are ignored.
+ *
+ * Callers such as Android Auto, Wear and the system UI reconnect often, so the verdict for each
+ * (uid, package) is kept until that package is installed, replaced or removed. Certificates are
+ * compared by their SHA-256 digest, and the XML is only read for the first caller that is
+ * neither the framework nor this app. Call {@link #release} once the validator is not needed.
  */
 public class PackageValidator {
     private static final String TAG = LogHelper.makeLogTag(PackageValidator.class);
 
+    private static final String PLATFORM_PACKAGE = "android";
+
+    private final Context mContext;
+
     /**
-     * Map allowed callers' certificate keys to the expected caller information.
-     *
+     * Map allowed callers' certificate digests to the expected caller information. Read on
+     * first use, guarded by this.
      */
-    private final Map<String, ArrayList<CallerInfo>> mValidCertificates;
+    private Map<CertificateDigest, ArrayList<CallerInfo>> mValidCertificates;
+
+    // The digest of the platform certificate, or null if unknown. Guarded by this.
+    private CertificateDigest mPlatformDigest;
+    private boolean mPlatformDigestRead;
+
+    // Verdicts by uid and package. Guarded by this.
+    private final Map<String, Boolean> mVerdicts = new HashMap<>();
+
+    private final BroadcastReceiver mPackageReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            Uri data = intent.getData();
+            forget(data == null ? null : data.getSchemeSpecificPart());
+        }
+    };
 
     public PackageValidator(Context ctx) {
-        mValidCertificates = readValidCertificates(ctx.getResources().getXml(
-            R.xml.allowed_media_browser_callers));
+        mContext = ctx.getApplicationContext();
+        IntentFilter filter = new IntentFilter();
+        filter.addAction(Intent.ACTION_PACKAGE_ADDED);
+        filter.addAction(Intent.ACTION_PACKAGE_REPLACED);
+        filter.addAction(Intent.ACTION_PACKAGE_CHANGED);
+        filter.addAction(Intent.ACTION_PACKAGE_REMOVED);
+        filter.addDataScheme("package");
+        mContext.registerReceiver(mPackageReceiver, filter);
+    }
+
+    /**
+     * Stop following package changes.
+     */
+    public void release() {
+        mContext.unregisterReceiver(mPackageReceiver);
     }
 
-    private Map<String, ArrayList<CallerInfo>> readValidCertificates(XmlResourceParser parser) {
-        HashMap<String, ArrayList<CallerInfo>> validCertificates = new HashMap<>();
+    private Map<CertificateDigest, ArrayList<CallerInfo>> readValidCertificates(
+            XmlResourceParser parser) {
+        HashMap<CertificateDigest, ArrayList<CallerInfo>> validCertificates = new HashMap<>();
         try {
             int eventType = parser.next();
             while (eventType != XmlResourceParser.END_DOCUMENT) {
@@ -72,10 +119,18 @@ public class PackageValidator {
 
                     CallerInfo info = new CallerInfo(name, packageName, isRelease);
 
-                    ArrayList<CallerInfo> infos = validCertificates.get(certificate);
+                    CertificateDigest digest;
+                    try {
+                        digest = new CertificateDigest(Base64.decode(certificate, Base64.DEFAULT));
+                    } catch (IllegalArgumentException e) {
+                        LogHelper.e(TAG, e, "Invalid certificate for allowed caller ", name);
+                        eventType = parser.next();
+                        continue;
+                    }
+                    ArrayList<CallerInfo> infos = validCertificates.get(digest);
                     if (infos == null) {
                         infos = new ArrayList<>();
-                        validCertificates.put(certificate, infos);
+                        validCertificates.put(digest, infos);
                     }
                     LogHelper.v(TAG, "Adding allowed caller: ", info.name,
                         " package=", info.packageName, " release=", info.release,
@@ -86,6 +141,8 @@ public class PackageValidator {
             }
         } catch (XmlPullParserException | IOException e) {
             LogHelper.e(TAG, e, "Could not read allowed callers from XML.");
+        } finally {
+            parser.close();
         }
         return validCertificates;
     }
@@ -100,27 +157,44 @@ public class PackageValidator {
             return true;
         }
 
-        if (isPlatformSigned(context, callingPackage)) {
-            return true;
+        String key = callingUid + "/" + callingPackage;
+        synchronized (this) {
+            Boolean verdict = mVerdicts.get(key);
+            if (verdict != null) {
+                return verdict;
+            }
+        }
+        boolean allowed = verify(context, callingPackage);
+        synchronized (this) {
+            mVerdicts.put(key, allowed);
         }
+        return allowed;
+    }
 
+    private boolean verify(Context context, String callingPackage) {
         PackageInfo packageInfo = getPackageInfo(context, callingPackage);
-        if (packageInfo == null) {
+        if (packageInfo == null || packageInfo.signatures == null
+                || packageInfo.signatures.length == 0) {
             return false;
         }
+        CertificateDigest digest = new CertificateDigest(packageInfo.signatures[0]);
+
+        if (digest.equals(getPlatformDigest(context))) {
+            return true;
+        }
+
         if (packageInfo.signatures.length != 1) {
             LogHelper.w(TAG, "Caller does not have exactly one signature certificate!");
             return false;
         }
-        String signature = Base64.encodeToString(
-            packageInfo.signatures[0].toByteArray(), Base64.NO_WRAP);
 
         // Test for known signatures:
-        ArrayList<CallerInfo> validCallers = mValidCertificates.get(signature);
+        Map<CertificateDigest, ArrayList<CallerInfo>> validCertificates = getValidCertificates();
+        ArrayList<CallerInfo> validCallers = validCertificates.get(digest);
         if (validCallers == null) {
             LogHelper.v(TAG, "Signature for caller ", callingPackage, " is not valid: \n"
-                , signature);
-            if (mValidCertificates.isEmpty()) {
+                , encode(packageInfo.signatures[0]));
+            if (validCertificates.isEmpty()) {
                 LogHelper.w(TAG, "The list of valid certificates is empty. Either your file ",
                         "res/xml/allowed_media_browser_callers.xml is empty or there was an error ",
                         "while reading it. Check previous log messages.");
@@ -142,28 +216,55 @@ public class PackageValidator {
         LogHelper.i(TAG, "Caller has a valid certificate, but its package doesn't match any ",
             "expected package for the given certificate. Caller's package is ", callingPackage,
             ". Expected packages as defined in res/xml/allowed_media_browser_callers.xml are (",
-            expectedPackages, "). This caller's certificate is: \n", signature);
+            expectedPackages, "). This caller's certificate is: \n",
+            encode(packageInfo.signatures[0]));
 
         return false;
     }
 
+    private synchronized Map<CertificateDigest, ArrayList<CallerInfo>> getValidCertificates() {
+        if (mValidCertificates == null) {
+            mValidCertificates = readValidCertificates(mContext.getResources().getXml(
+                    R.xml.allowed_media_browser_callers));
+        }
+        return mValidCertificates;
+    }
+
     /**
-     * @return true if the installed package signature matches the platform signature.
+     * @return the digest of the platform signature, or null if it could not be found.
      */
-    private boolean isPlatformSigned(Context context, String pkgName) {
-        PackageInfo platformPackageInfo = getPackageInfo(context, "android");
-
-        // Should never happen.
-        if (platformPackageInfo == null || platformPackageInfo.signatures == null
-                || platformPackageInfo.signatures.length == 0) {
-            return false;
+    private synchronized CertificateDigest getPlatformDigest(Context context) {
+        if (!mPlatformDigestRead) {
+            PackageInfo platformPackageInfo = getPackageInfo(context, PLATFORM_PACKAGE);
+            // Should never be missing.
+            if (platformPackageInfo != null && platformPackageInfo.signatures != null
+                    && platformPackageInfo.signatures.length > 0) {
+                mPlatformDigest = new CertificateDigest(platformPackageInfo.signatures[0]);
+            }
+            mPlatformDigestRead = true;
         }
+        return mPlatformDigest;
+    }
 
-        PackageInfo clientPackageInfo = getPackageInfo(context, pkgName);
+    /**
+     * Forget the verdicts for the package, or for all packages if null.
+     */
+    private synchronized void forget(String packageName) {
+        if (packageName == null) {
+            mVerdicts.clear();
+            return;
+        }
+        String suffix = "/" + packageName;
+        Iterator<String> keys = mVerdicts.keySet().iterator();
+        while (keys.hasNext()) {
+            if (keys.next().endsWith(suffix)) {
+                keys.remove();
+            }
+        }
+    }
 
-        return (clientPackageInfo != null && clientPackageInfo.signatures != null
-                && clientPackageInfo.signatures.length > 0 &&
-                platformPackageInfo.signatures[0].equals(clientPackageInfo.signatures[0]));
+    private static String encode(Signature signature) {
+        return Base64.encodeToString(signature.toByteArray(), Base64.NO_WRAP);
     }
 
     /**
@@ -179,6 +280,38 @@ public class PackageValidator {
         return null;
     }
 
+    /**
+     * The SHA-256 digest of a signing certificate, as a map key.
+     */
+    private final static class CertificateDigest {
+        final byte[] digest;
+        final int hashCode;
+
+        CertificateDigest(Signature signature) {
+            this(signature.toByteArray());
+        }
+
+        CertificateDigest(byte[] certificate) {
+            try {
+                digest = MessageDigest.getInstance("SHA-256").digest(certificate);
+            } catch (NoSuchAlgorithmException e) {
+                throw new IllegalStateException("SHA-256 is not available", e);
+            }
+            hashCode = Arrays.hashCode(digest);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof CertificateDigest
+                    && Arrays.equals(digest, ((CertificateDigest) o).digest);
+        }
+
+        @Override
+        public int hashCode() {
+            return hashCode;
+        }
+    }
+
     private final static class CallerInfo {
         final String name;
         final String packageName;
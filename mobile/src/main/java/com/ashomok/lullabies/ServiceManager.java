@@ -45,12 +45,8 @@ public class ServiceManager {
                                            MediaDescriptionCompat mediaDescriptionCompat) {
         LogHelper.d(TAG, "updateNotificationForPause");
 //        musicService.stopForeground(false); //todo remove after testing
-        Notification notification =
-                mMediaNotificationManager.getNotification(
-                        mediaDescriptionCompat, state,
-                        musicService.getSessionToken());
-        mMediaNotificationManager.getmNotificationManager()
-                .notify(MediaNotificationManager.NOTIFICATION_ID, notification);
+        mMediaNotificationManager.updateNotification(
+                mediaDescriptionCompat, state, musicService.getSessionToken());
     }
 
     public void moveServiceOutOfStartedState() {
@@ -7,6 +7,8 @@ import com.ashomok.lullabies.ui.full_screen_player_activity.FullScreenPlayerActi
 import com.ashomok.lullabies.ui.full_screen_player_activity.FullScreenPlayerModule;
 import com.ashomok.lullabies.ui.main_activity.MusicPlayerActivity;
 import com.ashomok.lullabies.ui.main_activity.MusicPlayerModule;
+import com.ashomok.lullabies.ui.tv.TvBrowseActivity;
+import com.ashomok.lullabies.ui.tv.TvVerticalGridActivity;
 
 import dagger.Module;
 import dagger.android.ContributesAndroidInjector;
@@ -33,4 +35,10 @@ public abstract class ActivityBindingModule {
 
     @ContributesAndroidInjector(modules = FullScreenPlayerModule.class)
     abstract FullScreenPlayerActivity fullScreenPlayerActivity();
+
+    @ContributesAndroidInjector
+    abstract TvBrowseActivity tvBrowseActivity();
+
+    @ContributesAndroidInjector
+    abstract TvVerticalGridActivity tvVerticalGridActivity();
 }
@@ -3,8 +3,19 @@ package com.ashomok.lullabies.di_dagger;
 import android.app.Application;
 import android.content.Context;
 
+import androidx.annotation.NonNull;
+import androidx.core.os.TraceCompat;
+import androidx.lifecycle.DefaultLifecycleObserver;
+import androidx.lifecycle.LifecycleOwner;
+import androidx.lifecycle.ProcessLifecycleOwner;
 import androidx.multidex.MultiDex;
 
+import com.ashomok.lullabies.AlbumArtCache;
+import com.ashomok.lullabies.AlbumArtDiskCache;
+import com.ashomok.lullabies.AssetArtLoader;
+
+import java.io.File;
+
 import dagger.android.AndroidInjector;
 import dagger.android.DaggerApplication;
 
@@ -18,7 +29,42 @@ public class App extends DaggerApplication {
     @Override
     protected void attachBaseContext(Context base) {
         super.attachBaseContext(base);
-        MultiDex.install(this);
+        // Critical, like the Dagger graph: nothing outside the main dex loads before it. Both are
+        // traced with the components of the StartupOrchestrator, to show on the same timeline.
+        TraceCompat.beginSection("App:MultiDex");
+        try {
+            MultiDex.install(this);
+        } finally {
+            TraceCompat.endSection();
+        }
+    }
+
+    @Override
+    public void onCreate() {
+        // Builds the Dagger graph.
+        TraceCompat.beginSection("App:Dagger");
+        try {
+            super.onCreate();
+        } finally {
+            TraceCompat.endSection();
+        }
+        AlbumArtCache.getInstance().setBundledArtLoader(new AssetArtLoader(getAssets()));
+        // Opened lazily by the first album art fetch, off the main thread.
+        AlbumArtCache.getInstance().setDiskCache(new AlbumArtDiskCache(
+                new File(getCacheDir(), "album_art"), AlbumArtDiskCache.DEFAULT_MAX_SIZE));
+        // Album arts trimmed away in the background are kept again once the app is back.
+        ProcessLifecycleOwner.get().getLifecycle().addObserver(new DefaultLifecycleObserver() {
+            @Override
+            public void onStart(@NonNull LifecycleOwner owner) {
+                AlbumArtCache.getInstance().onForeground();
+            }
+        });
+    }
+
+    @Override
+    public void onTrimMemory(int level) {
+        super.onTrimMemory(level);
+        AlbumArtCache.getInstance().onTrimMemory(level);
     }
 
     @Override
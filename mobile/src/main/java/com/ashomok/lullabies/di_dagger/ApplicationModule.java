@@ -4,9 +4,13 @@ import android.app.Application;
 import android.content.Context;
 import android.content.SharedPreferences;
 
+import com.ashomok.lullabies.AlbumArtCache;
 import com.ashomok.lullabies.R;
+import com.ashomok.lullabies.model.MusicProvider;
 import com.ashomok.lullabies.utils.FirebaseAnalyticsHelper;
 
+import javax.inject.Singleton;
+
 import dagger.Binds;
 import dagger.Module;
 import dagger.Provides;
@@ -33,6 +37,20 @@ public abstract class ApplicationModule {
         return FirebaseAnalyticsHelper.getInstance(context);
     }
 
+    /**
+     * The catalog played by the MusicService, and read directly by the UI of the same process.
+     */
+    @Provides
+    @Singleton
+    static MusicProvider provideMusicProvider(Context context) {
+        return new MusicProvider(context);
+    }
+
+    @Provides
+    static AlbumArtCache provideAlbumArtCache() {
+        return AlbumArtCache.getInstance();
+    }
+
     @Binds
     abstract Context bindContext(Application application);
 }
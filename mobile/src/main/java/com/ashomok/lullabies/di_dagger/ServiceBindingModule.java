@@ -0,0 +1,15 @@
+package com.ashomok.lullabies.di_dagger;
+
+
+import com.ashomok.lullabies.MusicService;
+
+import dagger.Module;
+import dagger.android.ContributesAndroidInjector;
+
+
+@Module
+public abstract class ServiceBindingModule {
+
+    @ContributesAndroidInjector
+    abstract MusicService musicService();
+}
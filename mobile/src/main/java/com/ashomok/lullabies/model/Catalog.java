@@ -0,0 +1,122 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ashomok.lullabies.model;
+
+import android.content.Context;
+import android.content.res.Resources;
+import android.support.v4.media.MediaBrowserCompat;
+import android.support.v4.media.MediaBrowserCompat.MediaItem;
+
+import androidx.annotation.NonNull;
+
+import com.ashomok.lullabies.utils.LogHelper;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+
+import io.reactivex.Single;
+import io.reactivex.android.schedulers.AndroidSchedulers;
+import io.reactivex.disposables.Disposable;
+
+/**
+ * The browse tree of the music catalog, for the UI running in the same process as
+ * {@link com.ashomok.lullabies.MusicService}. It reads the {@link MusicProvider} the service
+ * plays from, rather than going through a {@link MediaBrowserCompat} subscription, which sends
+ * every list through binder IPC and back.
+ * <p>
+ * The children of each media ID are built once the catalog is retrieved and are then shared:
+ * the lists are unmodifiable.
+ */
+@Singleton
+public class Catalog {
+
+    private static final String TAG = LogHelper.makeLogTag(Catalog.class);
+
+    private final MusicProvider mMusicProvider;
+    private final Resources mResources;
+    private final ConcurrentMap<String, List<MediaItem>> mChildren = new ConcurrentHashMap<>();
+
+    @Inject
+    public Catalog(MusicProvider musicProvider, Context context) {
+        mMusicProvider = musicProvider;
+        mResources = context.getResources();
+    }
+
+    /**
+     * @return the children of the media ID, on the main thread, once the catalog is retrieved.
+     */
+    public Single<List<MediaItem>> getChildren(@NonNull String mediaId) {
+        return getChildren(mediaId, 0);
+    }
+
+    /**
+     * @param childrenPageSize if positive, each browsable child carries its first
+     *                         childrenPageSize children (see
+     *                         {@link com.ashomok.lullabies.utils.MediaIDHelper#getEmbeddedChildren}).
+     * @return the children of the media ID, on the main thread, once the catalog is retrieved.
+     */
+    public Single<List<MediaItem>> getChildren(@NonNull final String mediaId,
+                                               final int childrenPageSize) {
+        return Single.<List<MediaItem>>create(emitter ->
+                mMusicProvider.retrieveMediaAsync(success -> {
+                    if (success) {
+                        emitter.onSuccess(getRetrievedChildren(mediaId, childrenPageSize));
+                    } else {
+                        emitter.onError(new IllegalStateException(
+                                "Could not retrieve the music catalog"));
+                    }
+                }))
+                // The catalog is retrieved and delivered on the main thread.
+                .subscribeOn(AndroidSchedulers.mainThread());
+    }
+
+    /**
+     * Deliver the children of the media ID to a callback written for a
+     * {@link MediaBrowserCompat} subscription.
+     *
+     * @param childrenPageSize see {@link #getChildren(String, int)}.
+     * @return the load, to dispose once the children are no longer wanted.
+     */
+    public Disposable loadChildren(@NonNull final String mediaId, int childrenPageSize,
+                                   @NonNull final MediaBrowserCompat.SubscriptionCallback callback) {
+        return getChildren(mediaId, childrenPageSize).subscribe(
+                children -> callback.onChildrenLoaded(mediaId, children),
+                throwable -> {
+                    LogHelper.e(TAG, throwable, "Could not load the children of ", mediaId);
+                    callback.onError(mediaId);
+                });
+    }
+
+    private List<MediaItem> getRetrievedChildren(String mediaId, int childrenPageSize) {
+        String key = childrenPageSize > 0 ? mediaId + "#" + childrenPageSize : mediaId;
+        List<MediaItem> children = mChildren.get(key);
+        if (children == null) {
+            children = Collections.unmodifiableList(
+                    mMusicProvider.getChildren(mediaId, mResources, childrenPageSize));
+            List<MediaItem> built = mChildren.putIfAbsent(key, children);
+            if (built != null) {
+                children = built;
+            }
+        }
+        return children;
+    }
+}
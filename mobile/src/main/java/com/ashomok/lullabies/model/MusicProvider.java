@@ -20,11 +20,13 @@ import android.content.Context;
 import android.content.res.Resources;
 import android.graphics.Bitmap;
 import android.os.AsyncTask;
+import android.os.Bundle;
 import android.support.v4.media.MediaBrowserCompat;
 import android.support.v4.media.MediaDescriptionCompat;
 import android.support.v4.media.MediaMetadataCompat;
 
 import com.annimon.stream.Stream;
+import com.ashomok.lullabies.AlbumArtProvider;
 import com.ashomok.lullabies.R;
 import com.ashomok.lullabies.utils.LogHelper;
 import com.ashomok.lullabies.utils.MediaIDHelper;
@@ -271,7 +273,8 @@ public class MusicProvider {
 
                 Iterator<MediaMetadataCompat> tracks = mSource.iterator();
                 while (tracks.hasNext()) {
-                    MediaMetadataCompat item = tracks.next();
+                    // Controllers outside the app read the art from the art provider.
+                    MediaMetadataCompat item = AlbumArtProvider.withArtUris(tracks.next());
                     String musicId = item.getString(MediaMetadataCompat.METADATA_KEY_MEDIA_ID);
                     mMusicListById.put(musicId, new MutableMediaMetadata(musicId, item));
                 }
@@ -291,6 +294,16 @@ public class MusicProvider {
     }
 
     public List<MediaBrowserCompat.MediaItem> getChildren(String mediaId, Resources resources) {
+        return getChildren(mediaId, resources, 0);
+    }
+
+    /**
+     * Get the children of a media ID and, if childrenPageSize is positive, the first
+     * childrenPageSize children of each browsable child, in its description extras (see
+     * {@link MediaIDHelper#OPTION_CHILDREN_PAGE_SIZE}).
+     */
+    public List<MediaBrowserCompat.MediaItem> getChildren(String mediaId, Resources resources,
+                                                          int childrenPageSize) {
         List<MediaBrowserCompat.MediaItem> mediaItems = new ArrayList<>();
 
         if (!MediaIDHelper.isBrowseable(mediaId)) {
@@ -314,9 +327,48 @@ public class MusicProvider {
         } else {
             LogHelper.w(TAG, "Skipping unmatched mediaId: ", mediaId);
         }
+
+        if (childrenPageSize > 0) {
+            for (int i = 0; i < mediaItems.size(); i++) {
+                MediaBrowserCompat.MediaItem item = mediaItems.get(i);
+                if (item.isBrowsable()) {
+                    mediaItems.set(i, withChildren(item,
+                            getChildren(item.getMediaId(), resources), childrenPageSize));
+                }
+            }
+        }
         return mediaItems;
     }
 
+    private static MediaBrowserCompat.MediaItem withChildren(
+            MediaBrowserCompat.MediaItem item, List<MediaBrowserCompat.MediaItem> children,
+            int pageSize) {
+        MediaDescriptionCompat description = item.getDescription();
+        Bundle extras = description.getExtras() == null
+                ? new Bundle() : new Bundle(description.getExtras());
+        extras.putParcelableArrayList(MediaIDHelper.EXTRA_CHILDREN,
+                new ArrayList<>(children.subList(0, Math.min(pageSize, children.size()))));
+        extras.putInt(MediaIDHelper.EXTRA_CHILDREN_COUNT, children.size());
+        return new MediaBrowserCompat.MediaItem(describe(description, extras), item.getFlags());
+    }
+
+    /**
+     * @return a copy of the description with the given extras, and its art as a URI only: a
+     * bitmap would make each browse item take hundreds of kilobytes over binder.
+     */
+    private static MediaDescriptionCompat describe(MediaDescriptionCompat description,
+                                                   Bundle extras) {
+        return new MediaDescriptionCompat.Builder()
+                .setMediaId(description.getMediaId())
+                .setTitle(description.getTitle())
+                .setSubtitle(description.getSubtitle())
+                .setDescription(description.getDescription())
+                .setIconUri(description.getIconUri())
+                .setMediaUri(description.getMediaUri())
+                .setExtras(extras)
+                .build();
+    }
+
     private MediaBrowserCompat.MediaItem createBrowsableMediaItemForRoot(Resources resources) {
 
         MediaDescriptionCompat description = new MediaDescriptionCompat.Builder()
@@ -352,7 +404,8 @@ public class MusicProvider {
         MediaMetadataCompat copy = new MediaMetadataCompat.Builder(metadata)
                 .putString(MediaMetadataCompat.METADATA_KEY_MEDIA_ID, hierarchyAwareMediaID)
                 .build();
-        return new MediaBrowserCompat.MediaItem(copy.getDescription(),
+        MediaDescriptionCompat description = copy.getDescription();
+        return new MediaBrowserCompat.MediaItem(describe(description, description.getExtras()),
                 MediaBrowserCompat.MediaItem.FLAG_PLAYABLE);
 
     }
@@ -0,0 +1,481 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ashomok.lullabies.playback;
+
+import android.content.Context;
+import android.content.res.AssetFileDescriptor;
+import android.content.res.AssetManager;
+import android.net.Uri;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import com.ashomok.lullabies.utils.LogHelper;
+
+import java.io.Closeable;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.NetworkInterface;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.Charset;
+import java.util.Collections;
+import java.util.Locale;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+
+/**
+ * Minimal HTTP server exposing the bundled tracks and album art on the local network, so a Cast
+ * receiver can fetch them.
+ * <p>
+ * Only {@code GET} and {@code HEAD} of {@code /assets/music/...} and {@code /assets/images/...}
+ * are served, with support for single byte ranges. Bundled media is stored uncompressed in the
+ * APK, so it is sent straight from the asset file descriptor with
+ * {@link FileChannel#transferTo}, without copying it through the Java heap. At most
+ * {@link #MAX_CONNECTIONS} requests are served at a time; the others get a 503.
+ */
+public class AssetHttpServer {
+
+    private static final String TAG = LogHelper.makeLogTag(AssetHttpServer.class);
+
+    static final int MAX_CONNECTIONS = 4;
+
+    private static final String ASSET_URI_PREFIX = "file:///android_asset/";
+    private static final String ASSETS_PATH = "/assets/";
+    private static final String[] SERVED_DIRS = {"music/", "images/"};
+
+    private static final int MAX_REQUEST_HEADER_SIZE = 8 * 1024;
+    private static final int SOCKET_TIMEOUT_MS = 30000;
+    private static final Charset ASCII = Charset.forName("US-ASCII");
+
+    private final AssetManager mAssets;
+    private final Semaphore mConnectionPermits = new Semaphore(MAX_CONNECTIONS);
+
+    private ServerSocketChannel mServerChannel;
+    private ExecutorService mWorkers;
+    private Thread mAcceptThread;
+    private volatile String mBaseUrl;
+
+    public AssetHttpServer(@NonNull Context context) {
+        mAssets = context.getApplicationContext().getAssets();
+    }
+
+    /**
+     * Start listening on an ephemeral port of the local network address. Does nothing if the
+     * server is already running.
+     */
+    public synchronized void start() throws IOException {
+        if (mServerChannel != null) {
+            return;
+        }
+        InetAddress address = findLocalAddress();
+        if (address == null) {
+            throw new IOException("No local network address");
+        }
+        mServerChannel = ServerSocketChannel.open();
+        mServerChannel.socket().bind(new InetSocketAddress(address, 0));
+        mBaseUrl = "http://" + address.getHostAddress() + ":"
+                + mServerChannel.socket().getLocalPort();
+        mWorkers = Executors.newFixedThreadPool(MAX_CONNECTIONS);
+        mAcceptThread = new Thread(this::acceptLoop, "AssetHttpServer");
+        mAcceptThread.start();
+        LogHelper.i(TAG, "Serving assets at ", mBaseUrl);
+    }
+
+    public synchronized void stop() {
+        if (mServerChannel == null) {
+            return;
+        }
+        closeQuietly(mServerChannel);
+        mWorkers.shutdownNow();
+        mServerChannel = null;
+        mWorkers = null;
+        mAcceptThread = null;
+        mBaseUrl = null;
+    }
+
+    /**
+     * Rewrite a bundled track source ({@code file:///android_asset/...}) or album art path
+     * ({@code /assets/...}) to a URL of this server. Other sources are returned unchanged.
+     */
+    public String toServerUrl(@Nullable String source) {
+        String baseUrl = mBaseUrl;
+        if (source == null || baseUrl == null) {
+            return source;
+        }
+        if (source.startsWith(ASSET_URI_PREFIX)) {
+            return baseUrl + ASSETS_PATH + source.substring(ASSET_URI_PREFIX.length());
+        }
+        if (source.startsWith(ASSETS_PATH)) {
+            return baseUrl + source;
+        }
+        return source;
+    }
+
+    /**
+     * @return the MIME type of a media file, guessed from its extension.
+     */
+    @NonNull
+    public static String getMimeType(@Nullable String path) {
+        String lowerCasePath = path == null ? "" : path.toLowerCase(Locale.US);
+        if (lowerCasePath.endsWith(".ogg") || lowerCasePath.endsWith(".oga")) {
+            return "audio/ogg";
+        } else if (lowerCasePath.endsWith(".png")) {
+            return "image/png";
+        } else if (lowerCasePath.endsWith(".jpg") || lowerCasePath.endsWith(".jpeg")) {
+            return "image/jpeg";
+        } else if (lowerCasePath.endsWith(".m4a") || lowerCasePath.endsWith(".aac")) {
+            return "audio/mp4";
+        }
+        return "audio/mpeg";
+    }
+
+    private void acceptLoop() {
+        ServerSocketChannel serverChannel = mServerChannel;
+        ExecutorService workers = mWorkers;
+        while (serverChannel != null && serverChannel.isOpen()) {
+            SocketChannel client;
+            try {
+                client = serverChannel.accept();
+            } catch (IOException e) {
+                if (serverChannel.isOpen()) {
+                    LogHelper.e(TAG, e, "accept failed");
+                }
+                return;
+            }
+            if (!mConnectionPermits.tryAcquire()) {
+                LogHelper.w(TAG, "Too many connections, rejecting request");
+                try {
+                    sendError(client, "503 Service Unavailable");
+                } catch (IOException e) {
+                    // The client is gone already.
+                }
+                closeQuietly(client);
+                continue;
+            }
+            try {
+                workers.execute(() -> {
+                    try {
+                        serve(client);
+                    } catch (IOException e) {
+                        LogHelper.d(TAG, "Request failed: ", e.getMessage());
+                    } finally {
+                        closeQuietly(client);
+                        mConnectionPermits.release();
+                    }
+                });
+            } catch (RuntimeException e) {
+                // Rejected because the server is stopping.
+                closeQuietly(client);
+                mConnectionPermits.release();
+            }
+        }
+    }
+
+    private void serve(SocketChannel client) throws IOException {
+        client.socket().setSoTimeout(SOCKET_TIMEOUT_MS);
+        String header = readRequestHeader(client);
+        if (header == null) {
+            sendError(client, "400 Bad Request");
+            return;
+        }
+        String[] lines = header.split("\r\n");
+        String[] requestLine = lines[0].split(" ");
+        if (requestLine.length < 2) {
+            sendError(client, "400 Bad Request");
+            return;
+        }
+        String method = requestLine[0];
+        if (!"GET".equals(method) && !"HEAD".equals(method)) {
+            sendError(client, "405 Method Not Allowed");
+            return;
+        }
+        String assetPath = toAssetPath(requestLine[1]);
+        if (assetPath == null) {
+            sendError(client, "404 Not Found");
+            return;
+        }
+        String range = null;
+        for (int i = 1; i < lines.length; i++) {
+            int colon = lines[i].indexOf(':');
+            if (colon > 0 && lines[i].substring(0, colon).trim().equalsIgnoreCase("Range")) {
+                range = lines[i].substring(colon + 1).trim();
+            }
+        }
+
+        AssetFileDescriptor fd = null;
+        try {
+            fd = mAssets.openFd(assetPath);
+        } catch (FileNotFoundException e) {
+            // Missing, or stored compressed and so only readable as a stream.
+        }
+        try {
+            long length = fd != null ? fd.getLength() : streamLength(assetPath);
+            if (length < 0) {
+                sendError(client, "404 Not Found");
+                return;
+            }
+            long[] bounds = parseRange(range, length);
+            if (bounds == null) {
+                writeFully(client, "HTTP/1.1 416 Range Not Satisfiable\r\n"
+                        + "Content-Range: bytes */" + length + "\r\n"
+                        + "Content-Length: 0\r\nConnection: close\r\n\r\n");
+                return;
+            }
+            long start = bounds[0];
+            long count = bounds[1] - bounds[0] + 1;
+            StringBuilder response = new StringBuilder();
+            if (range != null) {
+                response.append("HTTP/1.1 206 Partial Content\r\n")
+                        .append("Content-Range: bytes ").append(bounds[0]).append('-')
+                        .append(bounds[1]).append('/').append(length).append("\r\n");
+            } else {
+                response.append("HTTP/1.1 200 OK\r\n");
+            }
+            response.append("Content-Type: ").append(getMimeType(assetPath)).append("\r\n")
+                    .append("Content-Length: ").append(count).append("\r\n")
+                    .append("Accept-Ranges: bytes\r\n")
+                    .append("Access-Control-Allow-Origin: *\r\n")
+                    .append("Connection: close\r\n\r\n");
+            writeFully(client, response.toString());
+            if ("HEAD".equals(method) || count == 0) {
+                return;
+            }
+            if (fd != null) {
+                transferFromDescriptor(fd, start, count, client);
+            } else {
+                transferFromStream(assetPath, start, count, client);
+            }
+        } finally {
+            if (fd != null) {
+                fd.close();
+            }
+        }
+    }
+
+    private static void transferFromDescriptor(AssetFileDescriptor fd, long start, long count,
+                                               SocketChannel client) throws IOException {
+        FileInputStream in = fd.createInputStream();
+        try {
+            FileChannel channel = in.getChannel();
+            // The descriptor is the whole APK: the asset starts at its start offset.
+            long position = fd.getStartOffset() + start;
+            long remaining = count;
+            while (remaining > 0) {
+                long sent = channel.transferTo(position, remaining, client);
+                if (sent <= 0) {
+                    throw new IOException("Connection closed");
+                }
+                position += sent;
+                remaining -= sent;
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    private void transferFromStream(String assetPath, long start, long count,
+                                    SocketChannel client) throws IOException {
+        InputStream in = mAssets.open(assetPath);
+        try {
+            long skipped = 0;
+            while (skipped < start) {
+                long n = in.skip(start - skipped);
+                if (n <= 0) {
+                    throw new IOException("Unexpected end of asset");
+                }
+                skipped += n;
+            }
+            ReadableByteChannel channel = Channels.newChannel(in);
+            ByteBuffer buffer = ByteBuffer.allocate(16 * 1024);
+            long remaining = count;
+            while (remaining > 0) {
+                buffer.clear();
+                if (remaining < buffer.capacity()) {
+                    buffer.limit((int) remaining);
+                }
+                int read = channel.read(buffer);
+                if (read < 0) {
+                    throw new IOException("Unexpected end of asset");
+                }
+                buffer.flip();
+                while (buffer.hasRemaining()) {
+                    client.write(buffer);
+                }
+                remaining -= read;
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    private long streamLength(String assetPath) {
+        InputStream in = null;
+        try {
+            in = mAssets.open(assetPath);
+            long length = 0;
+            long n;
+            while ((n = in.skip(Long.MAX_VALUE)) > 0) {
+                length += n;
+            }
+            return length;
+        } catch (IOException e) {
+            return -1;
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException e) {
+                    // ignore
+                }
+            }
+        }
+    }
+
+    /**
+     * @return the asset path of a request path, or null if it is not served.
+     */
+    @Nullable
+    static String toAssetPath(String requestPath) {
+        int query = requestPath.indexOf('?');
+        if (query >= 0) {
+            requestPath = requestPath.substring(0, query);
+        }
+        if (!requestPath.startsWith(ASSETS_PATH)) {
+            return null;
+        }
+        String assetPath = Uri.decode(requestPath.substring(ASSETS_PATH.length()));
+        if (assetPath.contains("..")) {
+            return null;
+        }
+        for (String dir : SERVED_DIRS) {
+            if (assetPath.startsWith(dir)) {
+                return assetPath;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Parse a {@code Range: bytes=...} header holding a single range.
+     *
+     * @return first and last byte positions, the whole content if there is no range, or null if
+     * the range can not be satisfied.
+     */
+    @Nullable
+    static long[] parseRange(@Nullable String range, long length) {
+        if (range == null) {
+            return new long[]{0, length - 1};
+        }
+        if (!range.startsWith("bytes=") || range.indexOf(',') >= 0) {
+            return null;
+        }
+        String spec = range.substring("bytes=".length()).trim();
+        int dash = spec.indexOf('-');
+        if (dash < 0) {
+            return null;
+        }
+        try {
+            long first;
+            long last;
+            if (dash == 0) {
+                // Suffix range: the last N bytes.
+                long suffix = Long.parseLong(spec.substring(1));
+                first = Math.max(0, length - suffix);
+                last = length - 1;
+            } else {
+                first = Long.parseLong(spec.substring(0, dash));
+                last = dash == spec.length() - 1
+                        ? length - 1
+                        : Math.min(Long.parseLong(spec.substring(dash + 1)), length - 1);
+            }
+            if (first >= length || first > last) {
+                return null;
+            }
+            return new long[]{first, last};
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    @Nullable
+    private static String readRequestHeader(SocketChannel client) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(MAX_REQUEST_HEADER_SIZE);
+        // Unlike the channel, the socket stream honors the read timeout.
+        InputStream in = client.socket().getInputStream();
+        int matched = 0;
+        while (buffer.hasRemaining()) {
+            int b = in.read();
+            if (b < 0) {
+                return null;
+            }
+            buffer.put((byte) b);
+            // Look for the blank line ending the header: \r\n\r\n
+            matched = (b == (matched % 2 == 0 ? '\r' : '\n')) ? matched + 1 : (b == '\r' ? 1 : 0);
+            if (matched == 4) {
+                return new String(buffer.array(), 0, buffer.position(), ASCII);
+            }
+        }
+        return null;
+    }
+
+    private static void sendError(SocketChannel client, String status) throws IOException {
+        writeFully(client, "HTTP/1.1 " + status + "\r\nContent-Length: 0\r\n"
+                + "Connection: close\r\n\r\n");
+    }
+
+    private static void writeFully(SocketChannel client, String text) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(text.getBytes(ASCII));
+        while (buffer.hasRemaining()) {
+            client.write(buffer);
+        }
+    }
+
+    @Nullable
+    private static InetAddress findLocalAddress() throws IOException {
+        for (NetworkInterface networkInterface
+                : Collections.list(NetworkInterface.getNetworkInterfaces())) {
+            if (!networkInterface.isUp() || networkInterface.isLoopback()) {
+                continue;
+            }
+            for (InetAddress address : Collections.list(networkInterface.getInetAddresses())) {
+                if (address instanceof Inet4Address && address.isSiteLocalAddress()) {
+                    return address;
+                }
+            }
+        }
+        return null;
+    }
+
+    private static void closeQuietly(Closeable closeable) {
+        try {
+            closeable.close();
+        } catch (IOException e) {
+            // ignore
+        }
+    }
+}
@@ -0,0 +1,263 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ashomok.lullabies.playback;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import com.google.android.gms.cast.MediaInfo;
+import com.google.android.gms.cast.MediaQueueItem;
+import com.google.android.gms.cast.MediaStatus;
+import com.google.android.gms.cast.framework.CastSession;
+import com.google.android.gms.cast.framework.media.RemoteMediaClient;
+
+import org.json.JSONObject;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The part of {@link RemoteMediaClient} used by {@link CastPlayback}, so it can be replaced by a
+ * fake in tests. All methods must be called on the main thread.
+ */
+interface CastMediaClient {
+
+    interface Listener {
+        void onStatusUpdated();
+
+        void onMetadataUpdated();
+
+        void onQueueStatusUpdated();
+    }
+
+    void addListener(@NonNull Listener listener);
+
+    void removeListener(@NonNull Listener listener);
+
+    boolean isConnected();
+
+    boolean hasMediaSession();
+
+    boolean isPlaying();
+
+    long getApproximateStreamPosition();
+
+    int getPlayerState();
+
+    int getIdleReason();
+
+    @Nullable
+    MediaInfo getMediaInfo();
+
+    /**
+     * @return the item the receiver is playing, or null if there is none.
+     */
+    @Nullable
+    MediaQueueItem getCurrentItem();
+
+    /**
+     * @return the items of the receiver queue, in order.
+     */
+    @NonNull
+    List<MediaQueueItem> getQueueItems();
+
+    void load(@NonNull MediaInfo media, boolean autoPlay, long position,
+              @Nullable JSONObject customData);
+
+    void queueLoad(@NonNull MediaQueueItem[] items, int startIndex, long position,
+                   @Nullable JSONObject customData);
+
+    /**
+     * Add items at the end of the receiver queue.
+     */
+    void queueAppendItems(@NonNull MediaQueueItem[] items, @Nullable JSONObject customData);
+
+    void queueJumpToItem(int itemId, long position, @Nullable JSONObject customData);
+
+    void play();
+
+    void pause();
+
+    void seek(long position);
+
+    /**
+     * @return a client talking to the receiver of the given session.
+     */
+    static CastMediaClient from(@NonNull CastSession castSession) {
+        return new RemoteMediaClientWrapper(castSession);
+    }
+
+    /**
+     * {@link CastMediaClient} backed by the {@link RemoteMediaClient} of a cast session.
+     */
+    final class RemoteMediaClientWrapper implements CastMediaClient {
+        private final CastSession mCastSession;
+        private final RemoteMediaClient mRemoteMediaClient;
+
+        RemoteMediaClientWrapper(CastSession castSession) {
+            mCastSession = castSession;
+            mRemoteMediaClient = castSession.getRemoteMediaClient();
+        }
+
+        @Override
+        public void addListener(@NonNull Listener listener) {
+            mRemoteMediaClient.addListener(new ListenerAdapter(listener));
+        }
+
+        @Override
+        public void removeListener(@NonNull Listener listener) {
+            mRemoteMediaClient.removeListener(new ListenerAdapter(listener));
+        }
+
+        @Override
+        public boolean isConnected() {
+            return mCastSession.isConnected();
+        }
+
+        @Override
+        public boolean hasMediaSession() {
+            return mRemoteMediaClient.hasMediaSession();
+        }
+
+        @Override
+        public boolean isPlaying() {
+            return mRemoteMediaClient.isPlaying();
+        }
+
+        @Override
+        public long getApproximateStreamPosition() {
+            return mRemoteMediaClient.getApproximateStreamPosition();
+        }
+
+        @Override
+        public int getPlayerState() {
+            return mRemoteMediaClient.getPlayerState();
+        }
+
+        @Override
+        public int getIdleReason() {
+            return mRemoteMediaClient.getIdleReason();
+        }
+
+        @Override
+        public MediaInfo getMediaInfo() {
+            return mRemoteMediaClient.getMediaInfo();
+        }
+
+        @Override
+        public MediaQueueItem getCurrentItem() {
+            return mRemoteMediaClient.getCurrentItem();
+        }
+
+        @NonNull
+        @Override
+        public List<MediaQueueItem> getQueueItems() {
+            MediaStatus status = mRemoteMediaClient.getMediaStatus();
+            if (status == null || status.getQueueItems() == null) {
+                return Collections.emptyList();
+            }
+            return status.getQueueItems();
+        }
+
+        @Override
+        public void load(@NonNull MediaInfo media, boolean autoPlay, long position,
+                         JSONObject customData) {
+            mRemoteMediaClient.load(media, autoPlay, position, customData);
+        }
+
+        @Override
+        public void queueLoad(@NonNull MediaQueueItem[] items, int startIndex, long position,
+                              JSONObject customData) {
+            mRemoteMediaClient.queueLoad(items, startIndex, MediaStatus.REPEAT_MODE_REPEAT_OFF,
+                    position, customData);
+        }
+
+        @Override
+        public void queueAppendItems(@NonNull MediaQueueItem[] items, JSONObject customData) {
+            mRemoteMediaClient.queueInsertItems(items, MediaQueueItem.INVALID_ITEM_ID, customData);
+        }
+
+        @Override
+        public void queueJumpToItem(int itemId, long position, JSONObject customData) {
+            mRemoteMediaClient.queueJumpToItem(itemId, position, customData);
+        }
+
+        @Override
+        public void play() {
+            mRemoteMediaClient.play();
+        }
+
+        @Override
+        public void pause() {
+            mRemoteMediaClient.pause();
+        }
+
+        @Override
+        public void seek(long position) {
+            mRemoteMediaClient.seek(position);
+        }
+    }
+
+    /**
+     * Forwards {@link RemoteMediaClient.Listener} events. Adapters of the same listener are
+     * equal, so a listener can be removed with a new adapter.
+     */
+    final class ListenerAdapter implements RemoteMediaClient.Listener {
+        private final Listener mListener;
+
+        ListenerAdapter(Listener listener) {
+            mListener = listener;
+        }
+
+        @Override
+        public void onStatusUpdated() {
+            mListener.onStatusUpdated();
+        }
+
+        @Override
+        public void onMetadataUpdated() {
+            mListener.onMetadataUpdated();
+        }
+
+        @Override
+        public void onQueueStatusUpdated() {
+            mListener.onQueueStatusUpdated();
+        }
+
+        @Override
+        public void onPreloadStatusUpdated() {
+        }
+
+        @Override
+        public void onSendingRemoteMediaRequest() {
+        }
+
+        @Override
+        public void onAdBreakStatusUpdated() {
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof ListenerAdapter && ((ListenerAdapter) o).mListener == mListener;
+        }
+
+        @Override
+        public int hashCode() {
+            return mListener.hashCode();
+        }
+    }
+}
@@ -17,6 +17,9 @@ package com.ashomok.lullabies.playback;
 
 import android.content.Context;
 import android.net.Uri;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
 import android.support.v4.media.MediaMetadataCompat;
 import android.support.v4.media.session.PlaybackStateCompat;
 import android.text.TextUtils;
@@ -25,59 +28,98 @@ import com.ashomok.lullabies.model.MusicProvider;
 import com.ashomok.lullabies.model.MusicProviderSource;
 import com.ashomok.lullabies.utils.LogHelper;
 import com.ashomok.lullabies.utils.MediaIDHelper;
+import com.ashomok.lullabies.utils.QueueHelper;
 import com.google.android.gms.cast.MediaInfo;
 import com.google.android.gms.cast.MediaMetadata;
+import com.google.android.gms.cast.MediaQueueItem;
 import com.google.android.gms.cast.MediaStatus;
 import com.google.android.gms.cast.framework.CastContext;
-import com.google.android.gms.cast.framework.CastSession;
-import com.google.android.gms.cast.framework.media.RemoteMediaClient;
 import com.google.android.gms.common.images.WebImage;
 
 import org.json.JSONException;
 import org.json.JSONObject;
 
+import java.util.ArrayList;
+import java.util.List;
+
 import static android.support.v4.media.session.MediaSessionCompat.QueueItem;
 
 /**
  * An implementation of Playback that talks to Cast.
+ * <p>
+ * The Cast framework must be used from the main thread, while {@link PlaybackManager} calls in
+ * from the playback thread. Commands are therefore posted to the main thread, and queries are
+ * answered from a snapshot of the remote state refreshed on every status update.
+ * <p>
+ * Instead of loading one track at a time, a window of the playing queue is sent to the receiver,
+ * with preload hints, so it moves from one track to the next without waiting for us. The window
+ * is extended as the receiver advances, and the {@link QueueManager} follows the receiver through
+ * {@link Callback#setCurrentMediaId}.
  */
 public class CastPlayback implements Playback {
 
     private static final String TAG = LogHelper.makeLogTag(CastPlayback.class);
 
-    private static final String MIME_TYPE_AUDIO_MPEG = "audio/mpeg";
     private static final String ITEM_ID = "itemId";
 
+    // Number of tracks sent to the receiver ahead of the current one.
+    static final int QUEUE_WINDOW_SIZE = 5;
+    // Seconds before the end of a track at which the receiver starts loading the next one.
+    static final double PRELOAD_TIME_S = 20;
+
     private final MusicProvider mMusicProvider;
-    private final Context mAppContext;
-    private final RemoteMediaClient mRemoteMediaClient;
-    private final RemoteMediaClient.Listener mRemoteMediaClientListener;
+    private final QueueManager mQueueManager;
+    private final CastMediaClient mRemoteMediaClient;
+    private final AssetHttpServer mAssetServer;
+    private final CastMediaClient.Listener mRemoteMediaClientListener;
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
 
-    private int mPlaybackState;
+    // Media id of the last receiver queue item we appended after, so an append still in flight
+    // is not sent twice. Main thread only.
+    private String mLastAppendedAfter;
+
+    private volatile int mPlaybackState;
 
     /** Playback interface Callbacks */
-    private Callback mCallback;
-    private long mCurrentPosition;
-    private String mCurrentMediaId;
+    private volatile Callback mCallback;
+    private volatile long mCurrentPosition;
+    private volatile String mCurrentMediaId;
 
-    public CastPlayback(MusicProvider musicProvider, Context context) {
-        mMusicProvider = musicProvider;
-        mAppContext = context.getApplicationContext();
+    // Snapshot of the remote state, written on the main thread.
+    private volatile boolean mRemoteConnected;
+    private volatile boolean mRemotePlaying;
+    private volatile long mRemotePosition;
+    private volatile long mRemotePositionTime;
+
+    /**
+     * @param assetServer server exposing the bundled tracks and album art to the receiver, or
+     *                    null to send sources unchanged.
+     */
+    public CastPlayback(MusicProvider musicProvider, QueueManager queueManager, Context context,
+                        AssetHttpServer assetServer) {
+        this(musicProvider, queueManager, CastMediaClient.from(
+                CastContext.getSharedInstance(context.getApplicationContext()).getSessionManager()
+                        .getCurrentCastSession()), assetServer);
+    }
 
-        CastSession castSession = CastContext.getSharedInstance(mAppContext).getSessionManager()
-                .getCurrentCastSession();
-        mRemoteMediaClient = castSession.getRemoteMediaClient();
+    CastPlayback(MusicProvider musicProvider, QueueManager queueManager,
+                 CastMediaClient remoteMediaClient, AssetHttpServer assetServer) {
+        mMusicProvider = musicProvider;
+        mQueueManager = queueManager;
+        mRemoteMediaClient = remoteMediaClient;
+        mAssetServer = assetServer;
         mRemoteMediaClientListener = new CastMediaClientListener();
+        refreshRemoteState();
     }
 
     @Override
     public void start() {
-        mRemoteMediaClient.addListener(mRemoteMediaClientListener);
+        runOnMainThread(() -> mRemoteMediaClient.addListener(mRemoteMediaClientListener));
     }
 
     @Override
     public void stop(boolean notifyListeners) {
-        mRemoteMediaClient.removeListener(mRemoteMediaClientListener);
+        runOnMainThread(() -> mRemoteMediaClient.removeListener(mRemoteMediaClientListener));
         mPlaybackState = PlaybackStateCompat.STATE_STOPPED;
         if (notifyListeners && mCallback != null) {
             mCallback.onPlaybackStatusChanged(mPlaybackState);
@@ -94,67 +136,81 @@ public class CastPlayback implements Playback {
         if (!isConnected()) {
             return mCurrentPosition;
         }
-        return (int) mRemoteMediaClient.getApproximateStreamPosition();
+        long position = mRemotePosition;
+        if (mRemotePlaying) {
+            position += SystemClock.elapsedRealtime() - mRemotePositionTime;
+        }
+        return position;
     }
 
     @Override
     public void updateLastKnownStreamPosition() {
-        mCurrentPosition = getCurrentStreamPosition();
+        runOnMainThread(() -> {
+            refreshRemoteState();
+            mCurrentPosition = getCurrentStreamPosition();
+        });
     }
 
     @Override
     public void play(QueueItem item) {
-        try {
-            loadMedia(item.getDescription().getMediaId(), true);
-            mPlaybackState = PlaybackStateCompat.STATE_BUFFERING;
-            if (mCallback != null) {
-                mCallback.onPlaybackStatusChanged(mPlaybackState);
-            }
-        } catch (JSONException e) {
-            LogHelper.e(TAG, "Exception loading media ", e, null);
-            if (mCallback != null) {
-                mCallback.onError(e.getMessage());
+        String mediaId = item.getDescription().getMediaId();
+        mPlaybackState = PlaybackStateCompat.STATE_BUFFERING;
+        runOnMainThread(() -> {
+            try {
+                if (!playFromRemoteQueue(mediaId)) {
+                    loadQueue(mediaId);
+                }
+                if (mCallback != null) {
+                    mCallback.onPlaybackStatusChanged(mPlaybackState);
+                }
+            } catch (JSONException e) {
+                LogHelper.e(TAG, "Exception loading media ", e, null);
+                if (mCallback != null) {
+                    mCallback.onError(e.getMessage());
+                }
             }
-        }
+        });
     }
 
     @Override
     public void pause() {
-        try {
-            if (mRemoteMediaClient.hasMediaSession()) {
-                mRemoteMediaClient.pause();
-                mCurrentPosition = (int) mRemoteMediaClient.getApproximateStreamPosition();
-            } else {
-                loadMedia(mCurrentMediaId, false);
-            }
-        } catch (JSONException e) {
-            LogHelper.e(TAG, e, "Exception pausing cast playback");
-            if (mCallback != null) {
-                mCallback.onError(e.getMessage());
+        runOnMainThread(() -> {
+            try {
+                if (mRemoteMediaClient.hasMediaSession()) {
+                    mRemoteMediaClient.pause();
+                    mCurrentPosition = (int) mRemoteMediaClient.getApproximateStreamPosition();
+                } else {
+                    loadMedia(mCurrentMediaId, false);
+                }
+            } catch (JSONException e) {
+                LogHelper.e(TAG, e, "Exception pausing cast playback");
+                if (mCallback != null) {
+                    mCallback.onError(e.getMessage());
+                }
             }
-        }
+        });
     }
 
     @Override
     public void seekTo(long position) {
+        mCurrentPosition = position;
         if (mCurrentMediaId == null) {
-            mCurrentPosition = position;
             return;
         }
-        try {
-            if (mRemoteMediaClient.hasMediaSession()) {
-                mRemoteMediaClient.seek(position);
-                mCurrentPosition = position;
-            } else {
-                mCurrentPosition = position;
-                loadMedia(mCurrentMediaId, false);
-            }
-        } catch (JSONException e) {
-            LogHelper.e(TAG, e, "Exception pausing cast playback");
-            if (mCallback != null) {
-                mCallback.onError(e.getMessage());
+        runOnMainThread(() -> {
+            try {
+                if (mRemoteMediaClient.hasMediaSession()) {
+                    mRemoteMediaClient.seek(position);
+                } else {
+                    loadMedia(mCurrentMediaId, false);
+                }
+            } catch (JSONException e) {
+                LogHelper.e(TAG, e, "Exception pausing cast playback");
+                if (mCallback != null) {
+                    mCallback.onError(e.getMessage());
+                }
             }
-        }
+        });
     }
 
     @Override
@@ -174,14 +230,12 @@ public class CastPlayback implements Playback {
 
     @Override
     public boolean isConnected() {
-        CastSession castSession = CastContext.getSharedInstance(mAppContext).getSessionManager()
-                .getCurrentCastSession();
-        return (castSession != null && castSession.isConnected());
+        return mRemoteConnected;
     }
 
     @Override
     public boolean isPlaying() {
-        return isConnected() && mRemoteMediaClient.isPlaying();
+        return isConnected() && mRemotePlaying;
     }
 
     @Override
@@ -189,6 +243,156 @@ public class CastPlayback implements Playback {
         return mPlaybackState;
     }
 
+    private void runOnMainThread(Runnable task) {
+        if (Looper.myLooper() == Looper.getMainLooper()) {
+            task.run();
+        } else {
+            mMainHandler.post(task);
+        }
+    }
+
+    /**
+     * Take a snapshot of the remote state, so it can be read from the playback thread.
+     * Must be called on the main thread.
+     */
+    private void refreshRemoteState() {
+        mRemoteConnected = mRemoteMediaClient.isConnected();
+        mRemotePlaying = mRemoteConnected && mRemoteMediaClient.isPlaying();
+        mRemotePosition = mRemoteConnected ? mRemoteMediaClient.getApproximateStreamPosition()
+                : mCurrentPosition;
+        mRemotePositionTime = SystemClock.elapsedRealtime();
+    }
+
+    /**
+     * Play a track that is already in the receiver queue, without loading anything.
+     *
+     * @return false if the track is not in the receiver queue.
+     */
+    private boolean playFromRemoteQueue(String mediaId) {
+        if (!mRemoteMediaClient.hasMediaSession()) {
+            return false;
+        }
+        MediaQueueItem item = findRemoteItem(mediaId);
+        if (item == null) {
+            return false;
+        }
+        MediaQueueItem currentItem = mRemoteMediaClient.getCurrentItem();
+        if (currentItem != null && currentItem.getItemId() == item.getItemId()) {
+            // The receiver got there on its own, e.g. the queue moved to the next track.
+            if (!mRemoteMediaClient.isPlaying()) {
+                mRemoteMediaClient.play();
+            }
+        } else {
+            if (!TextUtils.equals(mediaId, mCurrentMediaId)) {
+                mCurrentMediaId = mediaId;
+                mCurrentPosition = 0;
+            }
+            mRemoteMediaClient.queueJumpToItem(item.getItemId(), mCurrentPosition, null);
+        }
+        return true;
+    }
+
+    /**
+     * Replace the receiver queue with a window of the playing queue starting at the given track.
+     */
+    private void loadQueue(String mediaId) throws JSONException {
+        List<QueueItem> queue = mQueueManager.getPlayingQueue();
+        int index = QueueHelper.getMusicIndexOnQueue(queue, mediaId);
+        if (index < 0) {
+            loadMedia(mediaId, true);
+            return;
+        }
+        if (!TextUtils.equals(mediaId, mCurrentMediaId)) {
+            mCurrentMediaId = mediaId;
+            mCurrentPosition = 0;
+        }
+        MediaQueueItem[] items = toCastQueueItems(queue, index, QUEUE_WINDOW_SIZE + 1);
+        mLastAppendedAfter = null;
+        JSONObject customData = new JSONObject();
+        customData.put(ITEM_ID, mediaId);
+        mRemoteMediaClient.queueLoad(items, 0, mCurrentPosition, customData);
+    }
+
+    /**
+     * Keep {@link #QUEUE_WINDOW_SIZE} tracks queued on the receiver after the current one.
+     */
+    private void extendRemoteQueue() {
+        if (!mRemoteMediaClient.hasMediaSession()) {
+            return;
+        }
+        List<MediaQueueItem> remoteItems = mRemoteMediaClient.getQueueItems();
+        MediaQueueItem currentItem = mRemoteMediaClient.getCurrentItem();
+        if (remoteItems.isEmpty() || currentItem == null) {
+            return;
+        }
+        int currentIndex = -1;
+        for (int i = 0; i < remoteItems.size(); i++) {
+            if (remoteItems.get(i).getItemId() == currentItem.getItemId()) {
+                currentIndex = i;
+                break;
+            }
+        }
+        if (currentIndex < 0) {
+            return;
+        }
+        int missing = QUEUE_WINDOW_SIZE - (remoteItems.size() - 1 - currentIndex);
+        if (missing <= 0) {
+            return;
+        }
+        String lastMediaId = getMediaId(remoteItems.get(remoteItems.size() - 1));
+        if (lastMediaId == null || lastMediaId.equals(mLastAppendedAfter)) {
+            return;
+        }
+        List<QueueItem> queue = mQueueManager.getPlayingQueue();
+        int lastIndex = QueueHelper.getMusicIndexOnQueue(queue, lastMediaId);
+        if (lastIndex < 0 || lastIndex + 1 >= queue.size()) {
+            // The rest of the playing queue is already on the receiver.
+            return;
+        }
+        try {
+            MediaQueueItem[] items = toCastQueueItems(queue, lastIndex + 1, missing);
+            mLastAppendedAfter = lastMediaId;
+            mRemoteMediaClient.queueAppendItems(items, null);
+        } catch (JSONException e) {
+            LogHelper.e(TAG, e, "Exception extending the cast queue");
+        }
+    }
+
+    private MediaQueueItem findRemoteItem(String mediaId) {
+        for (MediaQueueItem item : mRemoteMediaClient.getQueueItems()) {
+            if (TextUtils.equals(mediaId, getMediaId(item))) {
+                return item;
+            }
+        }
+        return null;
+    }
+
+    private static String getMediaId(MediaQueueItem item) {
+        MediaInfo media = item.getMedia();
+        JSONObject customData = media == null ? null : media.getCustomData();
+        return customData == null ? null : customData.optString(ITEM_ID, null);
+    }
+
+    private MediaQueueItem[] toCastQueueItems(List<QueueItem> queue, int from, int count)
+            throws JSONException {
+        List<MediaQueueItem> items = new ArrayList<>(count);
+        for (int i = from; i < queue.size() && items.size() < count; i++) {
+            String mediaId = queue.get(i).getDescription().getMediaId();
+            MediaMetadataCompat track = mMusicProvider.getMusic(
+                    MediaIDHelper.extractMusicIDFromMediaID(mediaId));
+            if (track == null) {
+                continue;
+            }
+            JSONObject customData = new JSONObject();
+            customData.put(ITEM_ID, mediaId);
+            items.add(new MediaQueueItem.Builder(toCastMediaMetadata(track, customData))
+                    .setAutoplay(true)
+                    .setPreloadTime(PRELOAD_TIME_S)
+                    .build());
+        }
+        return items.toArray(new MediaQueueItem[items.size()]);
+    }
+
     private void loadMedia(String mediaId, boolean autoPlay) throws JSONException {
         String musicId = MediaIDHelper.extractMusicIDFromMediaID(mediaId);
         MediaMetadataCompat track = mMusicProvider.getMusic(musicId);
@@ -213,8 +417,8 @@ public class CastPlayback implements Playback {
      * @param customData custom data specifies the local mediaId used by the player.
      * @return mediaInfo {@link com.google.android.gms.cast.MediaInfo}
      */
-    private static MediaInfo toCastMediaMetadata(MediaMetadataCompat track,
-                                                 JSONObject customData) {
+    private MediaInfo toCastMediaMetadata(MediaMetadataCompat track,
+                                          JSONObject customData) {
         MediaMetadata mediaMetadata = new MediaMetadata(MediaMetadata.MEDIA_TYPE_MUSIC_TRACK);
         mediaMetadata.putString(MediaMetadata.KEY_TITLE,
                 track.getDescription().getTitle() == null ? "" :
@@ -226,25 +430,35 @@ public class CastPlayback implements Playback {
                 track.getString(MediaMetadataCompat.METADATA_KEY_ALBUM_ARTIST));
         mediaMetadata.putString(MediaMetadata.KEY_ALBUM_TITLE,
                 track.getString(MediaMetadataCompat.METADATA_KEY_ALBUM));
-        WebImage image = new WebImage(
-                new Uri.Builder().encodedPath(
-                        track.getString(MediaMetadataCompat.METADATA_KEY_ALBUM_ART_URI))
-                        .build());
+        String artUrl = toReceiverUrl(
+                track.getString(MediaMetadataCompat.METADATA_KEY_ALBUM_ART_URI));
+        WebImage image = new WebImage(artUrl != null && artUrl.startsWith("http")
+                ? Uri.parse(artUrl)
+                : new Uri.Builder().encodedPath(artUrl).build());
         // First image is used by the receiver for showing the audio album art.
         mediaMetadata.addImage(image);
         // Second image is used by Cast Companion Library on the full screen activity that is shown
         // when the cast dialog is clicked.
         mediaMetadata.addImage(image);
 
+        String source = track.getString(MusicProviderSource.CUSTOM_METADATA_TRACK_SOURCE);
         //noinspection ResourceType
-        return new MediaInfo.Builder(track.getString(MusicProviderSource.CUSTOM_METADATA_TRACK_SOURCE))
-                .setContentType(MIME_TYPE_AUDIO_MPEG)
+        return new MediaInfo.Builder(toReceiverUrl(source))
+                .setContentType(AssetHttpServer.getMimeType(source))
                 .setStreamType(MediaInfo.STREAM_TYPE_BUFFERED)
                 .setMetadata(mediaMetadata)
                 .setCustomData(customData)
                 .build();
     }
 
+    /**
+     * Bundled tracks and album art can not be fetched by the receiver as they are, so they are
+     * served by the asset server.
+     */
+    private String toReceiverUrl(String source) {
+        return mAssetServer != null ? mAssetServer.toServerUrl(source) : source;
+    }
+
     private void setMetadataFromRemote() {
         // Sync: We get the customData from the remote media information and update the local
         // metadata if it happens to be different from the one we are currently using.
@@ -273,6 +487,7 @@ public class CastPlayback implements Playback {
     }
 
     private void updatePlaybackState() {
+        refreshRemoteState();
         int status = mRemoteMediaClient.getPlayerState();
         int idleReason = mRemoteMediaClient.getIdleReason();
 
@@ -296,6 +511,7 @@ public class CastPlayback implements Playback {
             case MediaStatus.PLAYER_STATE_PLAYING:
                 mPlaybackState = PlaybackStateCompat.STATE_PLAYING;
                 setMetadataFromRemote();
+                extendRemoteQueue();
                 if (mCallback != null) {
                     mCallback.onPlaybackStatusChanged(mPlaybackState);
                 }
@@ -313,7 +529,7 @@ public class CastPlayback implements Playback {
         }
     }
 
-    private class CastMediaClientListener implements RemoteMediaClient.Listener {
+    private class CastMediaClientListener implements CastMediaClient.Listener {
 
         @Override
         public void onMetadataUpdated() {
@@ -327,20 +543,11 @@ public class CastPlayback implements Playback {
             updatePlaybackState();
         }
 
-        @Override
-        public void onSendingRemoteMediaRequest() {
-        }
-
-        @Override
-        public void onAdBreakStatusUpdated() {
-        }
-
         @Override
         public void onQueueStatusUpdated() {
-        }
-
-        @Override
-        public void onPreloadStatusUpdated() {
+            LogHelper.d(TAG, "RemoteMediaClient.onQueueStatusUpdated");
+            setMetadataFromRemote();
+            extendRemoteQueue();
         }
     }
 }
@@ -22,6 +22,8 @@ import android.content.IntentFilter;
 import android.media.AudioManager;
 import android.net.Uri;
 import android.net.wifi.WifiManager;
+import android.os.Handler;
+import android.os.Looper;
 import android.support.v4.media.MediaMetadataCompat;
 import android.support.v4.media.session.PlaybackStateCompat;
 import android.text.TextUtils;
@@ -57,6 +59,10 @@ import static com.google.android.exoplayer2.C.USAGE_MEDIA;
 /**
  * A class that implements local media playback using {@link
  * com.google.android.exoplayer2.ExoPlayer}
+ * <p>
+ * Everything touching the player runs on the playback looper given to the constructor: the
+ * player is created there, so its events are delivered there too, and audio focus and
+ * "becoming noisy" events are forwarded to it.
  */
 public final class LocalPlayback implements Playback {
 
@@ -76,17 +82,21 @@ public final class LocalPlayback implements Playback {
     private static final int AUDIO_FOCUSED = 2;
 
     private final Context mContext;
+    private final Handler mPlaybackHandler;
     private final WifiManager.WifiLock mWifiLock;
     private boolean mPlayOnFocusGain;
     private Callback mCallback;
     private final MusicProvider mMusicProvider;
     private boolean mAudioNoisyReceiverRegistered;
     private String mCurrentMediaId;
+    private String mCurrentSource;
 
     private int mCurrentAudioFocusState = AUDIO_NO_FOCUS_NO_DUCK;
     private final AudioManager mAudioManager;
     private SimpleExoPlayer mExoPlayer;
     private final ExoPlayerEventListener mEventListener = new ExoPlayerEventListener();
+    private final PlaybackErrorRecovery mErrorRecovery;
+    private final Runnable mRetryRunnable = this::retry;
 
     // Whether to return STATE_NONE or STATE_STOPPED when mExoPlayer is null;
     private boolean mExoPlayerNullIsStopped =  false;
@@ -107,10 +117,13 @@ public final class LocalPlayback implements Playback {
                 }
             };
 
-    public LocalPlayback(Context context, MusicProvider musicProvider) {
+    public LocalPlayback(Context context, MusicProvider musicProvider, Looper playbackLooper,
+                         PlaybackErrorRecovery errorRecovery) {
         Context applicationContext = context.getApplicationContext();
         this.mContext = applicationContext;
         this.mMusicProvider = musicProvider;
+        this.mPlaybackHandler = new Handler(playbackLooper);
+        this.mErrorRecovery = errorRecovery;
 
         this.mAudioManager =
                 (AudioManager) applicationContext.getSystemService(Context.AUDIO_SERVICE);
@@ -127,6 +140,7 @@ public final class LocalPlayback implements Playback {
 
     @Override
     public void stop(boolean notifyListeners) {
+        cancelRecovery();
         giveUpAudioFocus();
         unregisterAudioNoisyReceiver();
         releaseResources(true);
@@ -144,6 +158,10 @@ public final class LocalPlayback implements Playback {
                     ? PlaybackStateCompat.STATE_STOPPED
                     : PlaybackStateCompat.STATE_NONE;
         }
+        if (mErrorRecovery.isRecovering() && mExoPlayer.getPlaybackState() != Player.STATE_READY) {
+            // Waiting for a retry or a fallback source to load.
+            return PlaybackStateCompat.STATE_BUFFERING;
+        }
         switch (mExoPlayer.getPlaybackState()) {
             case Player.STATE_IDLE:
                 return PlaybackStateCompat.STATE_PAUSED;
@@ -192,6 +210,7 @@ public final class LocalPlayback implements Playback {
         }
 
         if (mediaHasChanged || mExoPlayer == null) {
+            cancelRecovery();
             releaseResources(false); // release everything except the player
             MediaMetadataCompat track =
                     mMusicProvider.getMusic(
@@ -222,22 +241,7 @@ public final class LocalPlayback implements Playback {
                     .build();
             mExoPlayer.setAudioAttributes(audioAttributes);
 
-            // Produces DataSource instances through which media data is loaded.
-            DataSource.Factory dataSourceFactory =
-                    new DefaultDataSourceFactory(
-                            mContext, Util.getUserAgent(mContext, "uamp"), null);
-            // Produces Extractor instances for parsing the media data.
-            ExtractorsFactory extractorsFactory = new DefaultExtractorsFactory();
-            // The MediaSource represents the media to be played.
-            ExtractorMediaSource.Factory extractorMediaFactory =
-                    new ExtractorMediaSource.Factory(dataSourceFactory);
-            extractorMediaFactory.setExtractorsFactory(extractorsFactory);
-            MediaSource mediaSource =
-                    extractorMediaFactory.createMediaSource(Uri.parse(source));
-
-            // Prepares media to play (happens on background thread) and triggers
-            // {@code onPlayerStateChanged} callback when the stream is ready to play.
-            mExoPlayer.prepare(mediaSource);
+            prepare(source, true);
 
             // If we are streaming from the internet, we want to hold a
             // Wifi lock, which prevents the Wifi radio from going to
@@ -248,6 +252,35 @@ public final class LocalPlayback implements Playback {
         configurePlayerState();
     }
 
+    /**
+     * Prepares the player to play the given source.
+     *
+     * @param resetPosition whether to start from the beginning, or from the current position
+     */
+    private void prepare(String source, boolean resetPosition) {
+        mCurrentSource = source;
+        // Produces DataSource instances through which media data is loaded.
+        DataSource.Factory dataSourceFactory =
+                new DefaultDataSourceFactory(
+                        mContext, Util.getUserAgent(mContext, "uamp"), null);
+        // Produces Extractor instances for parsing the media data. Bundled tracks come
+        // with a precomputed seek table, so seeking them does not bisect the file.
+        OggSeekTable seekTable = OggSeekTable.forSource(mContext, source);
+        ExtractorsFactory extractorsFactory = seekTable != null
+                ? SeekTableOggExtractor.factory(seekTable)
+                : new DefaultExtractorsFactory();
+        // The MediaSource represents the media to be played.
+        ExtractorMediaSource.Factory extractorMediaFactory =
+                new ExtractorMediaSource.Factory(dataSourceFactory);
+        extractorMediaFactory.setExtractorsFactory(extractorsFactory);
+        MediaSource mediaSource =
+                extractorMediaFactory.createMediaSource(Uri.parse(source));
+
+        // Prepares media to play (happens on background thread) and triggers
+        // {@code onPlayerStateChanged} callback when the stream is ready to play.
+        mExoPlayer.prepare(mediaSource, resetPosition, false);
+    }
+
     @Override
     public void pause() {
         // Pause player and cancel the 'foreground service' state.
@@ -338,6 +371,11 @@ public final class LocalPlayback implements Playback {
             new AudioManager.OnAudioFocusChangeListener() {
                 @Override
                 public void onAudioFocusChange(int focusChange) {
+                    // Delivered on the main thread; the player lives on the playback thread.
+                    mPlaybackHandler.post(() -> handleAudioFocusChange(focusChange));
+                }
+
+                private void handleAudioFocusChange(int focusChange) {
                     LogHelper.d(TAG, "onAudioFocusChange. focusChange=", focusChange);
                     switch (focusChange) {
                         case AudioManager.AUDIOFOCUS_GAIN:
@@ -389,9 +427,52 @@ public final class LocalPlayback implements Playback {
         }
     }
 
+    /**
+     * Tries to recover from a player error: retries transient errors after a backoff, then
+     * falls back to the bundled copy of a streamed track.
+     *
+     * @return false if there is nothing left to try and the error must be reported.
+     */
+    private boolean recoverFromError(ExoPlaybackException error) {
+        if (mExoPlayer == null) {
+            return false;
+        }
+        long retryDelay = mErrorRecovery.onError(error, mCurrentSource);
+        if (retryDelay >= 0) {
+            LogHelper.w(TAG, "Retrying playback in ", retryDelay, "ms");
+            mPlaybackHandler.removeCallbacks(mRetryRunnable);
+            mPlaybackHandler.postDelayed(mRetryRunnable, retryDelay);
+            return true;
+        }
+        String musicId = mCurrentMediaId == null
+                ? null : MediaIDHelper.extractMusicIDFromMediaID(mCurrentMediaId);
+        String fallbackSource = mErrorRecovery.getFallbackSource(musicId, mCurrentSource);
+        if (fallbackSource != null) {
+            LogHelper.w(TAG, "Falling back to the bundled source ", fallbackSource);
+            prepare(fallbackSource, false);
+            return true;
+        }
+        mErrorRecovery.onFailed();
+        LogHelper.i(TAG, "Playback recovery failed: ", mErrorRecovery.getMetrics());
+        return false;
+    }
+
+    private void retry() {
+        if (mExoPlayer != null && mCurrentSource != null) {
+            // The player keeps its position after an error, so playback resumes from there.
+            prepare(mCurrentSource, false);
+        }
+    }
+
+    private void cancelRecovery() {
+        mPlaybackHandler.removeCallbacks(mRetryRunnable);
+        mErrorRecovery.reset();
+    }
+
     private void registerAudioNoisyReceiver() {
         if (!mAudioNoisyReceiverRegistered) {
-            mContext.registerReceiver(mAudioNoisyReceiver, mAudioNoisyIntentFilter);
+            mContext.registerReceiver(mAudioNoisyReceiver, mAudioNoisyIntentFilter,
+                    null, mPlaybackHandler);
             mAudioNoisyReceiverRegistered = true;
         }
     }
@@ -423,9 +504,11 @@ public final class LocalPlayback implements Playback {
         @Override
         public void onPlayerStateChanged(boolean playWhenReady, int playbackState) {
             switch (playbackState) {
+                case Player.STATE_READY:
+                    mErrorRecovery.onRecovered();
+                    // fall through
                 case Player.STATE_IDLE:
                 case Player.STATE_BUFFERING:
-                case Player.STATE_READY:
                     if (mCallback != null) {
                         mCallback.onPlaybackStatusChanged(getState());
                     }
@@ -457,6 +540,12 @@ public final class LocalPlayback implements Playback {
             }
 
             LogHelper.e(TAG, "ExoPlayer error: what=" + what);
+            if (recoverFromError(error)) {
+                if (mCallback != null) {
+                    mCallback.onPlaybackStatusChanged(getState());
+                }
+                return;
+            }
             if (mCallback != null) {
                 mCallback.onError("ExoPlayer error " + what);
             }
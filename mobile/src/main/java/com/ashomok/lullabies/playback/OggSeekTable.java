@@ -0,0 +1,164 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ashomok.lullabies.playback;
+
+import android.content.Context;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import com.ashomok.lullabies.utils.LogHelper;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Granule to byte offset index of a bundled Ogg Vorbis track, generated at build time by the
+ * {@code generateOggSeekTables} Gradle task.
+ * <p>
+ * Ogg has no index of its own, so without a table every seek bisects through the file. With
+ * the table, a seek reads the page that starts right before the target directly.
+ * <p>
+ * File format (big-endian): magic {@code "OGST"}, int version, int sample rate, long total
+ * granules, int entry count, then for each audio page its long granule position and int byte
+ * offset, in file order.
+ */
+public final class OggSeekTable {
+
+    private static final String TAG = LogHelper.makeLogTag(OggSeekTable.class);
+
+    static final int MAGIC = 0x4F475354; // "OGST"
+    static final int VERSION = 1;
+
+    private static final String ASSET_URI_PREFIX = "file:///android_asset/";
+    private static final String SEEK_TABLES_DIR = "seek_tables/";
+    private static final String SEEK_TABLE_SUFFIX = ".seek";
+
+    // Tables are tiny and never change, so keep every table (or its absence) once read.
+    private static final ConcurrentMap<String, OggSeekTable> sTables = new ConcurrentHashMap<>();
+    private static final OggSeekTable NO_TABLE = new OggSeekTable(1, 0, new long[0], new long[0]);
+
+    private final int mSampleRate;
+    private final long mTotalGranules;
+    private final long[] mGranules;
+    private final long[] mOffsets;
+
+    OggSeekTable(int sampleRate, long totalGranules, long[] granules, long[] offsets) {
+        mSampleRate = sampleRate;
+        mTotalGranules = totalGranules;
+        mGranules = granules;
+        mOffsets = offsets;
+    }
+
+    /**
+     * Find the seek table of a track source.
+     *
+     * @param source track source, as in
+     *               {@link com.ashomok.lullabies.model.MusicProviderSource#CUSTOM_METADATA_TRACK_SOURCE}
+     * @return the table, or null if the source is not a bundled asset or has no table.
+     */
+    @Nullable
+    public static OggSeekTable forSource(@NonNull Context context, @Nullable String source) {
+        if (source == null || !source.startsWith(ASSET_URI_PREFIX)) {
+            return null;
+        }
+        String assetPath = source.substring(ASSET_URI_PREFIX.length());
+        OggSeekTable table = sTables.get(assetPath);
+        if (table == null) {
+            table = load(context, assetPath);
+            sTables.put(assetPath, table);
+        }
+        return table == NO_TABLE ? null : table;
+    }
+
+    private static OggSeekTable load(Context context, String assetPath) {
+        InputStream is = null;
+        try {
+            is = context.getAssets().open(SEEK_TABLES_DIR + assetPath + SEEK_TABLE_SUFFIX);
+            return read(is);
+        } catch (FileNotFoundException e) {
+            LogHelper.d(TAG, "No seek table for ", assetPath);
+        } catch (IOException e) {
+            LogHelper.e(TAG, e, "Could not read seek table for ", assetPath);
+        } finally {
+            if (is != null) {
+                try {
+                    is.close();
+                } catch (IOException e) {
+                    // ignore
+                }
+            }
+        }
+        return NO_TABLE;
+    }
+
+    static OggSeekTable read(InputStream is) throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(is));
+        if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+            throw new IOException("Unsupported seek table");
+        }
+        int sampleRate = in.readInt();
+        long totalGranules = in.readLong();
+        int count = in.readInt();
+        if (sampleRate <= 0 || count < 0) {
+            throw new IOException("Corrupt seek table");
+        }
+        long[] granules = new long[count];
+        long[] offsets = new long[count];
+        for (int i = 0; i < count; i++) {
+            granules[i] = in.readLong();
+            offsets[i] = in.readInt() & 0xFFFFFFFFL;
+        }
+        return new OggSeekTable(sampleRate, totalGranules, granules, offsets);
+    }
+
+    public long getDurationUs() {
+        return granuleToTimeUs(mTotalGranules);
+    }
+
+    public boolean isEmpty() {
+        return mGranules.length == 0;
+    }
+
+    /**
+     * @return index of the last page ending at or before {@code timeUs}, or -1 if the target
+     * lies in the first audio page.
+     */
+    int indexOf(long timeUs) {
+        long granule = timeUs * mSampleRate / 1000000L;
+        int index = Arrays.binarySearch(mGranules, granule);
+        return index >= 0 ? index : -index - 2;
+    }
+
+    long getTimeUs(int index) {
+        return granuleToTimeUs(mGranules[index]);
+    }
+
+    long getOffset(int index) {
+        return mOffsets[index];
+    }
+
+    private long granuleToTimeUs(long granule) {
+        return granule * 1000000L / mSampleRate;
+    }
+}
@@ -0,0 +1,163 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ashomok.lullabies.playback;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.os.Process;
+
+import androidx.annotation.NonNull;
+
+import com.ashomok.lullabies.utils.LogHelper;
+
+import java.util.ArrayDeque;
+
+/**
+ * Ordered queue of playback commands executed on a dedicated playback thread.
+ * <p>
+ * Commands are run one at a time in the order they were enqueued. A command that has not
+ * started yet may absorb the command enqueued right after it (see {@link Command#merge}), so
+ * a burst of skips or seeks collapses into a single command.
+ */
+public class PlaybackCommandQueue {
+
+    private static final String TAG = LogHelper.makeLogTag(PlaybackCommandQueue.class);
+
+    private final HandlerThread mThread;
+    private final Handler mHandler;
+
+    // Guarded by itself.
+    private final ArrayDeque<Command> mCommands = new ArrayDeque<>();
+    private boolean mDrainScheduled;
+    private final Runnable mDrainRunnable = this::drain;
+
+    public PlaybackCommandQueue() {
+        mThread = new HandlerThread("PlaybackThread", Process.THREAD_PRIORITY_AUDIO);
+        mThread.start();
+        mHandler = new Handler(mThread.getLooper());
+    }
+
+    /**
+     * @return the looper of the playback thread.
+     */
+    public Looper getLooper() {
+        return mThread.getLooper();
+    }
+
+    public boolean isPlaybackThread() {
+        return Looper.myLooper() == mThread.getLooper();
+    }
+
+    /**
+     * Add a command to the end of the queue, merging it into the last pending command if
+     * possible.
+     */
+    public void enqueue(@NonNull Command command) {
+        synchronized (mCommands) {
+            Command last = mCommands.peekLast();
+            if (last == null || !last.merge(command)) {
+                mCommands.addLast(command);
+            }
+            if (!mDrainScheduled) {
+                mDrainScheduled = true;
+                mHandler.post(mDrainRunnable);
+            }
+        }
+    }
+
+    /**
+     * Run the given task right away when called on the playback thread, otherwise enqueue it.
+     */
+    public void execute(@NonNull Runnable task) {
+        if (isPlaybackThread()) {
+            task.run();
+        } else {
+            enqueue(Command.of(task));
+        }
+    }
+
+    /**
+     * Run the given task on the playback thread after a delay, outside of the command order.
+     */
+    void postDelayed(@NonNull Runnable task, long delayMillis) {
+        mHandler.postDelayed(task, delayMillis);
+    }
+
+    void removeCallbacks(@NonNull Runnable task) {
+        mHandler.removeCallbacks(task);
+    }
+
+    /**
+     * Run the commands already enqueued, then stop the playback thread. Waits at most
+     * {@code timeoutMillis} for that to happen.
+     */
+    public void quit(long timeoutMillis) {
+        enqueue(Command.of(() -> {
+            mHandler.removeCallbacksAndMessages(null);
+            mThread.quit();
+        }));
+        try {
+            mThread.join(timeoutMillis);
+        } catch (InterruptedException e) {
+            LogHelper.w(TAG, "Interrupted while waiting for the playback thread to finish");
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void drain() {
+        while (true) {
+            Command command;
+            synchronized (mCommands) {
+                command = mCommands.pollFirst();
+                if (command == null) {
+                    mDrainScheduled = false;
+                    return;
+                }
+            }
+            try {
+                command.run();
+            } catch (RuntimeException e) {
+                LogHelper.e(TAG, e, "Playback command failed");
+            }
+        }
+    }
+
+    /**
+     * A unit of playback work.
+     */
+    public abstract static class Command implements Runnable {
+
+        /**
+         * Try to absorb a command enqueued right after this one, while this one has not run yet.
+         *
+         * @return true if {@code next} was merged and must not be enqueued on its own.
+         */
+        boolean merge(@NonNull Command next) {
+            return false;
+        }
+
+        static Command of(@NonNull Runnable task) {
+            return new Command() {
+                @Override
+                public void run() {
+                    task.run();
+                }
+            };
+        }
+    }
+}
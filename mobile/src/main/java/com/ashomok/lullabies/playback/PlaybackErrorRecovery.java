@@ -0,0 +1,251 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ashomok.lullabies.playback;
+
+import android.content.Context;
+import android.support.v4.media.MediaMetadataCompat;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import com.ashomok.lullabies.model.LocalJSONSource;
+import com.ashomok.lullabies.model.MusicProviderSource;
+import com.ashomok.lullabies.utils.LogHelper;
+import com.google.android.exoplayer2.ExoPlaybackException;
+import com.google.android.exoplayer2.ParserException;
+import com.google.android.exoplayer2.upstream.HttpDataSource;
+
+import java.io.IOException;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.net.UnknownHostException;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Decides how {@link LocalPlayback} recovers from player errors.
+ * <p>
+ * Transient source errors (network failures, timeouts, server errors) are retried with a
+ * bounded exponential backoff. Errors reading a bundled asset or any other local source are
+ * never transient: a missing or unreadable file stays that way. Once retries are exhausted,
+ * or for errors that retrying cannot fix, a track streamed from a remote URL falls back to the
+ * bundled asset with the same track id, if there is one. Only then is the error reported.
+ * <p>
+ * One instance lives as long as the service and is handed to each {@link LocalPlayback} it
+ * creates, so that its counters cover every playback since the service started. Everything but
+ * {@link #getMetrics()} must be called on the playback thread.
+ */
+public final class PlaybackErrorRecovery {
+
+    private static final String TAG = LogHelper.makeLogTag(PlaybackErrorRecovery.class);
+
+    static final int MAX_RETRIES = 4;
+    static final long INITIAL_RETRY_DELAY_MS = 1000;
+    static final long MAX_RETRY_DELAY_MS = 16000;
+
+    private static final String ASSET_URI_PREFIX = "file:///android_asset/";
+
+    private final Context mContext;
+
+    // Retries done since the last time the current track played.
+    private int mRetryCount;
+    private boolean mRecovering;
+
+    // Bundled sources by track id, read from the bundled catalog on first use.
+    private Map<String, String> mBundledSources;
+
+    private final AtomicInteger mErrorCount = new AtomicInteger();
+    private final AtomicInteger mRetryTotal = new AtomicInteger();
+    private final AtomicInteger mFallbackCount = new AtomicInteger();
+    private final AtomicInteger mRecoveredCount = new AtomicInteger();
+    private final AtomicInteger mFailedCount = new AtomicInteger();
+
+    public PlaybackErrorRecovery(@NonNull Context context) {
+        mContext = context.getApplicationContext();
+    }
+
+    /**
+     * Forget the recovery state of the previous track.
+     */
+    void reset() {
+        mRetryCount = 0;
+        mRecovering = false;
+    }
+
+    /**
+     * @return whether a retry or a fallback is in progress.
+     */
+    boolean isRecovering() {
+        return mRecovering;
+    }
+
+    /**
+     * Record an error and get the delay before the next retry.
+     *
+     * @param source the source the player was reading when the error happened.
+     * @return the delay in milliseconds, or -1 if the error must not be retried.
+     */
+    long onError(@NonNull ExoPlaybackException error, @Nullable String source) {
+        mErrorCount.incrementAndGet();
+        if (!isTransient(error, source) || mRetryCount >= MAX_RETRIES) {
+            return -1;
+        }
+        long delay = retryDelay(mRetryCount);
+        mRetryCount++;
+        mRetryTotal.incrementAndGet();
+        mRecovering = true;
+        return delay;
+    }
+
+    /**
+     * @return the delay before a retry, doubling from {@link #INITIAL_RETRY_DELAY_MS} with each
+     * retry already done, up to {@link #MAX_RETRY_DELAY_MS}.
+     */
+    static long retryDelay(int retryCount) {
+        return retryCount >= Long.numberOfLeadingZeros(INITIAL_RETRY_DELAY_MS) - 1
+                ? MAX_RETRY_DELAY_MS
+                : Math.min(INITIAL_RETRY_DELAY_MS << retryCount, MAX_RETRY_DELAY_MS);
+    }
+
+    /**
+     * Find a bundled replacement for a track that can not be played from its current source.
+     *
+     * @return the bundled source, or null if the track is not streamed or is not bundled.
+     */
+    @Nullable
+    String getFallbackSource(@Nullable String musicId, @Nullable String currentSource) {
+        if (musicId == null || currentSource == null
+                || currentSource.startsWith(ASSET_URI_PREFIX)) {
+            return null;
+        }
+        String fallback = getBundledSources().get(musicId);
+        if (fallback != null) {
+            mRetryCount = 0;
+            mRecovering = true;
+            mFallbackCount.incrementAndGet();
+        }
+        return fallback;
+    }
+
+    /**
+     * The track is playing again after a retry or a fallback.
+     */
+    void onRecovered() {
+        if (mRecovering) {
+            mRecovering = false;
+            mRetryCount = 0;
+            mRecoveredCount.incrementAndGet();
+        }
+    }
+
+    /**
+     * Recovery gave up and the error is going to be reported.
+     */
+    void onFailed() {
+        mRecovering = false;
+        mRetryCount = 0;
+        mFailedCount.incrementAndGet();
+    }
+
+    /**
+     * @return a snapshot of the recovery counters since the service started.
+     */
+    @NonNull
+    public Metrics getMetrics() {
+        return new Metrics(mErrorCount.get(), mRetryTotal.get(), mFallbackCount.get(),
+                mRecoveredCount.get(), mFailedCount.get());
+    }
+
+    static boolean isTransient(@NonNull ExoPlaybackException error, @Nullable String source) {
+        if (error.type != ExoPlaybackException.TYPE_SOURCE
+                || (source != null && source.startsWith(ASSET_URI_PREFIX))) {
+            return false;
+        }
+        IOException cause = error.getSourceException();
+        if (cause instanceof ParserException) {
+            // The data itself is broken; reading it again will not help.
+            return false;
+        }
+        if (cause instanceof HttpDataSource.InvalidResponseCodeException) {
+            int responseCode = ((HttpDataSource.InvalidResponseCodeException) cause).responseCode;
+            return responseCode >= 500 || responseCode == 408 || responseCode == 429;
+        }
+        return cause instanceof HttpDataSource.HttpDataSourceException || isNetworkError(cause);
+    }
+
+    /**
+     * @return whether the error, or one of its causes, is a failure of the network: a socket
+     * error, a timeout or a host that could not be resolved.
+     */
+    private static boolean isNetworkError(@Nullable Throwable error) {
+        for (Throwable cause = error; cause != null; cause = cause.getCause()) {
+            if (cause instanceof SocketException || cause instanceof SocketTimeoutException
+                    || cause instanceof UnknownHostException) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private Map<String, String> getBundledSources() {
+        if (mBundledSources == null) {
+            mBundledSources = new HashMap<>();
+            try {
+                Iterator<MediaMetadataCompat> tracks = new LocalJSONSource(mContext).iterator();
+                while (tracks.hasNext()) {
+                    MediaMetadataCompat track = tracks.next();
+                    String source = track.getString(
+                            MusicProviderSource.CUSTOM_METADATA_TRACK_SOURCE);
+                    if (source != null && source.startsWith(ASSET_URI_PREFIX)) {
+                        mBundledSources.put(track.getString(
+                                MediaMetadataCompat.METADATA_KEY_MEDIA_ID), source);
+                    }
+                }
+            } catch (RuntimeException e) {
+                LogHelper.e(TAG, e, "Could not read the bundled catalog");
+            }
+        }
+        return mBundledSources;
+    }
+
+    /**
+     * Recovery counters.
+     */
+    public static final class Metrics {
+        public final int errors;
+        public final int retries;
+        public final int fallbacks;
+        public final int recovered;
+        public final int failed;
+
+        Metrics(int errors, int retries, int fallbacks, int recovered, int failed) {
+            this.errors = errors;
+            this.retries = retries;
+            this.fallbacks = fallbacks;
+            this.recovered = recovered;
+            this.failed = failed;
+        }
+
+        @Override
+        public String toString() {
+            return "errors=" + errors + ", retries=" + retries + ", fallbacks=" + fallbacks
+                    + ", recovered=" + recovered + ", failed=" + failed;
+        }
+    }
+}
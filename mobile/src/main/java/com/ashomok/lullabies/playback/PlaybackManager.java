@@ -17,7 +17,6 @@
 package com.ashomok.lullabies.playback;
 
 import android.content.res.Resources;
-import android.os.AsyncTask;
 import android.os.Bundle;
 import android.os.SystemClock;
 import android.support.v4.media.MediaDescriptionCompat;
@@ -34,6 +33,10 @@ import com.ashomok.lullabies.utils.MediaIDHelper;
 
 /**
  * Manage the interactions among the container service, the queue manager and the actual playback.
+ * <p>
+ * Media session commands and playback callbacks are executed on the playback thread owned by a
+ * {@link PlaybackCommandQueue}, so the main thread never blocks on playback work. The
+ * {@code handle*Request} methods must only be called on that thread.
  */
 public class PlaybackManager implements Playback.Callback {
 
@@ -41,16 +44,40 @@ public class PlaybackManager implements Playback.Callback {
     // Action to thumbs up a media item
     private static final String CUSTOM_ACTION_THUMBS_UP = "com.ashomok.lullabies.THUMBS_UP";
 
+    // Skips closer to each other than this are treated as one burst: a lone skip plays at once,
+    // and the later skips of a burst only prepare the track it ends on, this long after the last.
+    static final long SKIP_SETTLE_MS = 300;
+
+    // How long the service waits for the playback thread to stop when it is destroyed.
+    private static final long RELEASE_TIMEOUT_MS = 1000;
+
     private MusicProvider mMusicProvider;
     private QueueManager mQueueManager;
     private Resources mResources;
-    private Playback mPlayback;
+    private volatile Playback mPlayback;
     private PlaybackServiceCallback mServiceCallback;
     private MediaSessionCallback mMediaSessionCallback;
+    private PlaybackStatePublisher mStatePublisher;
+    private final PlaybackCommandQueue mCommandQueue;
+
+    private final Runnable mDeferredPlayRequest = this::handlePlayRequest;
+    // When the last skip was handled, in elapsed realtime. Playback thread only.
+    private long mLastSkipTime = -SKIP_SETTLE_MS;
+
+    // The "Favorite" custom action only ever takes one of two forms, so build them once.
+    private PlaybackStateCompat.CustomAction mFavoriteAction;
+    private PlaybackStateCompat.CustomAction mNotFavoriteAction;
 
     public PlaybackManager(PlaybackServiceCallback serviceCallback, Resources resources,
                            MusicProvider musicProvider, QueueManager queueManager,
                            Playback playback) {
+        this(serviceCallback, resources, musicProvider, queueManager, playback,
+                new PlaybackCommandQueue());
+    }
+
+    public PlaybackManager(PlaybackServiceCallback serviceCallback, Resources resources,
+                           MusicProvider musicProvider, QueueManager queueManager,
+                           Playback playback, PlaybackCommandQueue commandQueue) {
         LogHelper.d(TAG, "on constructor");
 
         mMusicProvider = musicProvider;
@@ -58,6 +85,8 @@ public class PlaybackManager implements Playback.Callback {
         mResources = resources;
         mQueueManager = queueManager;
         mMediaSessionCallback = new MediaSessionCallback();
+        mCommandQueue = commandQueue;
+        mStatePublisher = new PlaybackStatePublisher(serviceCallback, commandQueue.getLooper());
         mPlayback = playback;
         mPlayback.setCallback(this);
     }
@@ -70,6 +99,38 @@ public class PlaybackManager implements Playback.Callback {
         return mMediaSessionCallback;
     }
 
+    /**
+     * Stop playback and the playback thread. Blocks until the stop has been processed, or for
+     * at most {@link #RELEASE_TIMEOUT_MS}.
+     */
+    public void release() {
+        mCommandQueue.enqueue(PlaybackCommandQueue.Command.of(() -> handleStopRequest(null)));
+        mCommandQueue.quit(RELEASE_TIMEOUT_MS);
+    }
+
+    /**
+     * Play the current music after a skip. A skip that follows another within
+     * {@link #SKIP_SETTLE_MS} is played once no other skip has come for that long: the queue
+     * position has already moved, so the metadata follows each skip, but the tracks skipped
+     * past in a burst are not prepared. Skips that queue up before the playback thread gets to
+     * them are merged by {@link SkipCommand} instead.
+     */
+    private void handlePlayRequestAfterSkip() {
+        long now = SystemClock.elapsedRealtime();
+        boolean inBurst = now - mLastSkipTime < SKIP_SETTLE_MS;
+        mLastSkipTime = now;
+        mCommandQueue.removeCallbacks(mDeferredPlayRequest);
+        if (inBurst) {
+            mCommandQueue.postDelayed(mDeferredPlayRequest, SKIP_SETTLE_MS);
+        } else {
+            handlePlayRequest();
+        }
+    }
+
+    private void cancelDeferredPlayRequest() {
+        mCommandQueue.removeCallbacks(mDeferredPlayRequest);
+    }
+
     /**
      * Handle a request to play music
      */
@@ -104,17 +165,25 @@ public class PlaybackManager implements Playback.Callback {
         LogHelper.d(TAG, "handleStopRequest: mState=" + mPlayback.getState() + " error=", withError);
         mPlayback.stop(true);
         mServiceCallback.onPlaybackStop();
-        updatePlaybackState(withError);
+        // The service may be about to release the session, so do not defer this one.
+        mStatePublisher.publishNow(buildPlaybackState(withError), getCurrentDescription());
     }
 
 
     /**
      * Update the current media player state, optionally showing an error message.
+     * <p>
+     * Updates are coalesced and diffed against the last published state by
+     * {@link PlaybackStatePublisher}, so calling this often is cheap.
      *
      * @param error if not null, error message to present to the user.
      */
     public void updatePlaybackState(@Nullable String error) {
         LogHelper.d(TAG, "updatePlaybackState with state=" + mPlayback.getState());
+        mStatePublisher.publish(buildPlaybackState(error), getCurrentDescription());
+    }
+
+    private PlaybackStateCompat buildPlaybackState(@Nullable String error) {
         long position = PlaybackStateCompat.PLAYBACK_POSITION_UNKNOWN;
         if (mPlayback != null && mPlayback.isConnected()) {
             position = mPlayback.getCurrentStreamPosition();
@@ -142,12 +211,13 @@ public class PlaybackManager implements Playback.Callback {
         if (currentMusic != null) {
             stateBuilder.setActiveQueueItemId(currentMusic.getQueueId());
         }
+        return stateBuilder.build();
+    }
 
-        mServiceCallback.onPlaybackStateUpdated(stateBuilder.build());
-
-        if (currentMusic != null) {
-            mServiceCallback.updateServiceState(stateBuilder.build(), currentMusic.getDescription());
-        }
+    @Nullable
+    private MediaDescriptionCompat getCurrentDescription() {
+        MediaSessionCompat.QueueItem currentMusic = mQueueManager.getCurrentMusic();
+        return currentMusic == null ? null : currentMusic.getDescription();
     }
 
     private void setCustomAction(PlaybackStateCompat.Builder stateBuilder) {
@@ -161,16 +231,25 @@ public class PlaybackManager implements Playback.Callback {
             return;
         }
         String musicId = MediaIDHelper.extractMusicIDFromMediaID(mediaId);
-        int favoriteIcon = mMusicProvider.isFavorite(musicId) ?
-                R.drawable.ic_star_white_24dp : R.drawable.ic_star_border_white_24dp;
+        boolean favorite = mMusicProvider.isFavorite(musicId);
         LogHelper.v(TAG, "updatePlaybackState, setting Favorite custom action of music ",
-                musicId, " current favorite=", mMusicProvider.isFavorite(musicId));
-        Bundle customActionExtras = new Bundle();
+                musicId, " current favorite=", favorite);
+        stateBuilder.addCustomAction(getFavoriteAction(favorite));
+    }
 
-        stateBuilder.addCustomAction(new PlaybackStateCompat.CustomAction.Builder(
-                CUSTOM_ACTION_THUMBS_UP, mResources.getString(R.string.favorite), favoriteIcon)
-                .setExtras(customActionExtras)
-                .build());
+    private PlaybackStateCompat.CustomAction getFavoriteAction(boolean favorite) {
+        if (mFavoriteAction == null) {
+            String name = mResources.getString(R.string.favorite);
+            mFavoriteAction = new PlaybackStateCompat.CustomAction.Builder(
+                    CUSTOM_ACTION_THUMBS_UP, name, R.drawable.ic_star_white_24dp)
+                    .setExtras(new Bundle())
+                    .build();
+            mNotFavoriteAction = new PlaybackStateCompat.CustomAction.Builder(
+                    CUSTOM_ACTION_THUMBS_UP, name, R.drawable.ic_star_border_white_24dp)
+                    .setExtras(new Bundle())
+                    .build();
+        }
+        return favorite ? mFavoriteAction : mNotFavoriteAction;
     }
 
     private long getAvailableActions() {
@@ -193,36 +272,39 @@ public class PlaybackManager implements Playback.Callback {
      */
     @Override
     public void onCompletion() {
-        // The media player finished playing the current song, so we go ahead
-        // and start the next.
-        if (mQueueManager.skipQueuePosition(1)) {
-            handlePlayRequest();
-            mQueueManager.updateMetadata();
-        } else {
-            // If skipping was not possible, we stop and release the resources:
-            handleStopRequest(null);
-        }
+        mCommandQueue.execute(() -> {
+            // The media player finished playing the current song, so we go ahead
+            // and start the next.
+            if (mQueueManager.skipQueuePosition(1)) {
+                handlePlayRequest();
+                mQueueManager.updateMetadata();
+            } else {
+                // If skipping was not possible, we stop and release the resources:
+                handleStopRequest(null);
+            }
+        });
     }
 
     @Override
     public void onPlaybackStatusChanged(int state) {
-        updatePlaybackState(null);
+        mCommandQueue.execute(() -> updatePlaybackState(null));
     }
 
     @Override
     public void onError(String error) {
-        updatePlaybackState(error);
+        mCommandQueue.execute(() -> updatePlaybackState(error));
     }
 
     @Override
     public void setCurrentMediaId(String mediaId) {
         LogHelper.d(TAG, "setCurrentMediaId", mediaId);
-        mQueueManager.setQueueFromMusic(mediaId);
+        mCommandQueue.execute(() -> mQueueManager.setQueueFromMusic(mediaId));
     }
 
 
     /**
      * Switch to a different Playback instance, maintaining all playback state, if possible.
+     * The switch itself happens on the playback thread.
      *
      * @param playback switch to this playback
      */
@@ -230,6 +312,11 @@ public class PlaybackManager implements Playback.Callback {
         if (playback == null) {
             throw new IllegalArgumentException("Playback cannot be null");
         }
+        mCommandQueue.execute(() -> doSwitchToPlayback(playback, resumePlaying));
+    }
+
+    private void doSwitchToPlayback(Playback playback, boolean resumePlaying) {
+        cancelDeferredPlayRequest();
         // Suspends current state.
         int oldState = mPlayback.getState();
         long pos = mPlayback.getCurrentStreamPosition();
@@ -241,6 +328,7 @@ public class PlaybackManager implements Playback.Callback {
         playback.start();
         // Swaps instance.
         mPlayback = playback;
+        mStatePublisher.reset();
         switch (oldState) {
             case PlaybackStateCompat.STATE_BUFFERING:
             case PlaybackStateCompat.STATE_CONNECTING:
@@ -265,84 +353,155 @@ public class PlaybackManager implements Playback.Callback {
     }
 
 
+    /**
+     * Moves the queue position by {@code amount} and plays the new current music. Consecutive
+     * skips that have not run yet are merged into one.
+     */
+    private class SkipCommand extends PlaybackCommandQueue.Command {
+        private int mAmount;
+
+        SkipCommand(int amount) {
+            mAmount = amount;
+        }
+
+        @Override
+        boolean merge(@NonNull PlaybackCommandQueue.Command next) {
+            if (next instanceof SkipCommand) {
+                mAmount += ((SkipCommand) next).mAmount;
+                return true;
+            }
+            return false;
+        }
+
+        @Override
+        public void run() {
+            LogHelper.d(TAG, "skip by ", mAmount);
+            if (mQueueManager.skipQueuePosition(mAmount)) {
+                handlePlayRequestAfterSkip();
+            } else {
+                cancelDeferredPlayRequest();
+                handleStopRequest("Cannot skip");
+            }
+            mQueueManager.updateMetadata();
+        }
+    }
+
+    /**
+     * Seeks the current music. Only the last of several consecutive seeks is performed.
+     */
+    private class SeekCommand extends PlaybackCommandQueue.Command {
+        private long mPosition;
+
+        SeekCommand(long position) {
+            mPosition = position;
+        }
+
+        @Override
+        boolean merge(@NonNull PlaybackCommandQueue.Command next) {
+            if (next instanceof SeekCommand) {
+                mPosition = ((SeekCommand) next).mPosition;
+                return true;
+            }
+            return false;
+        }
+
+        @Override
+        public void run() {
+            LogHelper.d(TAG, "onSeekTo:", mPosition);
+            mPlayback.seekTo(mPosition);
+        }
+    }
+
+    /**
+     * Receives media session commands, usually on the main thread, and forwards them to the
+     * playback thread.
+     */
     private class MediaSessionCallback extends MediaSessionCompat.Callback {
         @Override
         public void onPlay() {
             LogHelper.d(TAG, "play");
-            if (mQueueManager.getCurrentMusic() == null) {
-                mQueueManager.setRandomQueue();
-            }
-            handlePlayRequest();
+            mCommandQueue.enqueue(PlaybackCommandQueue.Command.of(() -> {
+                cancelDeferredPlayRequest();
+                if (mQueueManager.getCurrentMusic() == null) {
+                    mQueueManager.setRandomQueue();
+                }
+                handlePlayRequest();
+            }));
         }
 
         @Override
         public void onSkipToQueueItem(long queueId) {
             LogHelper.d(TAG, "OnSkipToQueueItem:" + queueId);
-            mQueueManager.setCurrentQueueItem(queueId);
-            mQueueManager.updateMetadata();
+            mCommandQueue.enqueue(PlaybackCommandQueue.Command.of(() -> {
+                cancelDeferredPlayRequest();
+                mQueueManager.setCurrentQueueItem(queueId);
+                mQueueManager.updateMetadata();
+            }));
         }
 
         @Override
         public void onSeekTo(long position) {
-            LogHelper.d(TAG, "onSeekTo:", position);
-            mPlayback.seekTo((int) position);
+            mCommandQueue.enqueue(new SeekCommand(position));
         }
 
         @Override
         public void onPlayFromMediaId(String mediaId, Bundle extras) {
             LogHelper.d(TAG, "playFromMediaId mediaId:", mediaId, "  extras=", extras);
-            mQueueManager.setQueueFromMusic(mediaId);
-            handlePlayRequest();
+            mCommandQueue.enqueue(PlaybackCommandQueue.Command.of(() -> {
+                cancelDeferredPlayRequest();
+                mQueueManager.setQueueFromMusic(mediaId);
+                handlePlayRequest();
+            }));
         }
 
         @Override
         public void onPause() {
-            LogHelper.d(TAG, "pause. current state=" + mPlayback.getState());
-            handlePauseRequest();
+            LogHelper.d(TAG, "pause");
+            mCommandQueue.enqueue(PlaybackCommandQueue.Command.of(() -> {
+                cancelDeferredPlayRequest();
+                handlePauseRequest();
+            }));
         }
 
         @Override
         public void onStop() {
-            LogHelper.d(TAG, "stop. current state=" + mPlayback.getState());
-            handleStopRequest(null);
+            LogHelper.d(TAG, "stop");
+            mCommandQueue.enqueue(PlaybackCommandQueue.Command.of(() -> {
+                cancelDeferredPlayRequest();
+                handleStopRequest(null);
+            }));
         }
 
         @Override
         public void onSkipToNext() {
             LogHelper.d(TAG, "skipToNext");
-            if (mQueueManager.skipQueuePosition(1)) {
-                handlePlayRequest();
-            } else {
-                handleStopRequest("Cannot skip");
-            }
-            mQueueManager.updateMetadata();
+            mCommandQueue.enqueue(new SkipCommand(1));
         }
 
         @Override
         public void onSkipToPrevious() {
-            if (mQueueManager.skipQueuePosition(-1)) {
-                handlePlayRequest();
-            } else {
-                handleStopRequest("Cannot skip");
-            }
-            mQueueManager.updateMetadata();
+            LogHelper.d(TAG, "skipToPrevious");
+            mCommandQueue.enqueue(new SkipCommand(-1));
         }
 
         @Override
         public void onCustomAction(@NonNull String action, Bundle extras) {
             if (CUSTOM_ACTION_THUMBS_UP.equals(action)) {
                 LogHelper.i(TAG, "onCustomAction: favorite for current track");
-                MediaSessionCompat.QueueItem currentMusic = mQueueManager.getCurrentMusic();
-                if (currentMusic != null) {
-                    String mediaId = currentMusic.getDescription().getMediaId();
-                    if (mediaId != null) {
-                        String musicId = MediaIDHelper.extractMusicIDFromMediaID(mediaId);
-                        mMusicProvider.setFavorite(musicId, !mMusicProvider.isFavorite(musicId));
+                mCommandQueue.enqueue(PlaybackCommandQueue.Command.of(() -> {
+                    MediaSessionCompat.QueueItem currentMusic = mQueueManager.getCurrentMusic();
+                    if (currentMusic != null) {
+                        String mediaId = currentMusic.getDescription().getMediaId();
+                        if (mediaId != null) {
+                            String musicId = MediaIDHelper.extractMusicIDFromMediaID(mediaId);
+                            mMusicProvider.setFavorite(musicId,
+                                    !mMusicProvider.isFavorite(musicId));
+                        }
                     }
-                }
-                // playback state needs to be updated because the "Favorite" icon on the
-                // custom action will change to reflect the new favorite state.
-                updatePlaybackState(null);
+                    // playback state needs to be updated because the "Favorite" icon on the
+                    // custom action will change to reflect the new favorite state.
+                    updatePlaybackState(null);
+                }));
             } else {
                 LogHelper.e(TAG, "Unsupported action: ", action);
             }
@@ -357,31 +516,32 @@ public class PlaybackManager implements Playback.Callback {
          * Threads and async handling:
          * Search, as a potentially slow operation, should run in another thread.
          * <p/>
-         * Since this method runs on the cast thread, most apps with non-trivial metadata
-         * should defer the actual search to another thread (for example, by using
-         * an {@link AsyncTask} as we do here).
+         * The catalog is loaded by {@link MusicProvider#retrieveMediaAsync}, which reports back
+         * on the main thread, so the search itself is sent back to the playback thread.
          **/
         @Override
         public void onPlayFromSearch(final String query, final Bundle extras) {
             LogHelper.d(TAG, "playFromSearch  query=", query, " extras=", extras);
 
-            mPlayback.setState(PlaybackStateCompat.STATE_CONNECTING);
-            mMusicProvider.retrieveMediaAsync(new MusicProvider.Callback() {
-                @Override
-                public void onMusicCatalogReady(boolean success) {
-                    if (!success) {
-                        updatePlaybackState("Could not load catalog");
-                    }
-
-                    boolean successSearch = mQueueManager.setQueueFromSearch(query, extras);
-                    if (successSearch) {
-                        handlePlayRequest();
-                        mQueueManager.updateMetadata();
-                    } else {
-                        updatePlaybackState("Could not find music");
-                    }
-                }
-            });
+            mCommandQueue.enqueue(PlaybackCommandQueue.Command.of(() -> {
+                cancelDeferredPlayRequest();
+                mPlayback.setState(PlaybackStateCompat.STATE_CONNECTING);
+                mMusicProvider.retrieveMediaAsync(success ->
+                        mCommandQueue.enqueue(PlaybackCommandQueue.Command.of(() -> {
+                            if (!success) {
+                                updatePlaybackState("Could not load catalog");
+                            }
+
+                            boolean successSearch =
+                                    mQueueManager.setQueueFromSearch(query, extras);
+                            if (successSearch) {
+                                handlePlayRequest();
+                                mQueueManager.updateMetadata();
+                            } else {
+                                updatePlaybackState("Could not find music");
+                            }
+                        })));
+            }));
         }
     }
 
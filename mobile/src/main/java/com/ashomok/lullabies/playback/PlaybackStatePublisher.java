@@ -0,0 +1,212 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ashomok.lullabies.playback;
+
+import android.net.Uri;
+import android.os.Handler;
+import android.os.Looper;
+import android.support.v4.media.MediaDescriptionCompat;
+import android.support.v4.media.session.PlaybackStateCompat;
+import android.text.TextUtils;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import com.ashomok.lullabies.utils.LogHelper;
+
+import java.util.List;
+
+/**
+ * Publishes playback states built by {@link PlaybackManager} to the service.
+ * <p>
+ * States published within one frame are coalesced, so only the latest one is delivered. A state
+ * that a media controller could not tell apart from the last delivered one (same state, actions
+ * and custom actions, and a position consistent with extrapolation) is dropped. The notification
+ * is only updated when something it shows has changed.
+ * <p>
+ * States may be published from any thread; they are delivered on the given looper.
+ */
+class PlaybackStatePublisher {
+
+    private static final String TAG = LogHelper.makeLogTag(PlaybackStatePublisher.class);
+
+    // Bursts of updates closer than this are delivered as a single update.
+    static final long FRAME_INTERVAL_MS = 16;
+
+    // Controllers extrapolate the position themselves, so a smaller drift is not worth sending.
+    static final long POSITION_DRIFT_TOLERANCE_MS = 100;
+
+    private final PlaybackManager.PlaybackServiceCallback mServiceCallback;
+    private final Handler mHandler;
+    private final Runnable mFlushRunnable = this::flush;
+
+    private PlaybackStateCompat mPendingState;
+    private MediaDescriptionCompat mPendingDescription;
+    private boolean mFlushScheduled;
+
+    private PlaybackStateCompat mLastState;
+    private MediaDescriptionCompat mLastDescription;
+
+    PlaybackStatePublisher(@NonNull PlaybackManager.PlaybackServiceCallback serviceCallback,
+                           @NonNull Looper looper) {
+        mServiceCallback = serviceCallback;
+        mHandler = new Handler(looper);
+    }
+
+    /**
+     * Queue a state for publishing. It is delivered at the end of the current frame unless a
+     * newer state replaces it first.
+     *
+     * @param description description of the current music, or null if there is none.
+     */
+    synchronized void publish(@NonNull PlaybackStateCompat state,
+                 @Nullable MediaDescriptionCompat description) {
+        mPendingState = state;
+        mPendingDescription = description;
+        if (!mFlushScheduled) {
+            mFlushScheduled = true;
+            mHandler.postDelayed(mFlushRunnable, FRAME_INTERVAL_MS);
+        }
+    }
+
+    /**
+     * Publish a state right away, together with anything still pending.
+     */
+    synchronized void publishNow(@NonNull PlaybackStateCompat state,
+                    @Nullable MediaDescriptionCompat description) {
+        mPendingState = state;
+        mPendingDescription = description;
+        flush();
+    }
+
+    /**
+     * Deliver the pending state, if any.
+     */
+    synchronized void flush() {
+        mHandler.removeCallbacks(mFlushRunnable);
+        mFlushScheduled = false;
+
+        PlaybackStateCompat state = mPendingState;
+        MediaDescriptionCompat description = mPendingDescription;
+        mPendingState = null;
+        mPendingDescription = null;
+        if (state == null) {
+            return;
+        }
+
+        boolean sessionChanged = !isSameSessionState(mLastState, state);
+        boolean notificationChanged = !isSameNotificationState(mLastState, state)
+                || !isSameDescription(mLastDescription, description);
+        if (!sessionChanged && !notificationChanged) {
+            LogHelper.v(TAG, "flush: dropping no-op playback state ", state.getState());
+            return;
+        }
+
+        if (sessionChanged) {
+            mServiceCallback.onPlaybackStateUpdated(state);
+        }
+        if (notificationChanged && description != null) {
+            mServiceCallback.updateServiceState(state, description);
+        }
+        mLastState = state;
+        mLastDescription = description;
+    }
+
+    /**
+     * Forget everything published so far, so the next state is always delivered.
+     */
+    synchronized void reset() {
+        mHandler.removeCallbacks(mFlushRunnable);
+        mFlushScheduled = false;
+        mPendingState = null;
+        mPendingDescription = null;
+        mLastState = null;
+        mLastDescription = null;
+    }
+
+    private static boolean isSameSessionState(@Nullable PlaybackStateCompat last,
+                                              @NonNull PlaybackStateCompat state) {
+        if (last == null) {
+            return false;
+        }
+        if (last.getState() != state.getState()
+                || last.getActions() != state.getActions()
+                || last.getActiveQueueItemId() != state.getActiveQueueItemId()
+                || last.getPlaybackSpeed() != state.getPlaybackSpeed()
+                || !TextUtils.equals(last.getErrorMessage(), state.getErrorMessage())
+                || !isSameCustomActions(last.getCustomActions(), state.getCustomActions())) {
+            return false;
+        }
+        if (last.getPosition() == PlaybackStateCompat.PLAYBACK_POSITION_UNKNOWN
+                || state.getPosition() == PlaybackStateCompat.PLAYBACK_POSITION_UNKNOWN) {
+            return last.getPosition() == state.getPosition();
+        }
+        long expectedPosition = last.getPosition();
+        if (last.getState() == PlaybackStateCompat.STATE_PLAYING) {
+            long elapsed = state.getLastPositionUpdateTime() - last.getLastPositionUpdateTime();
+            expectedPosition += (long) (elapsed * last.getPlaybackSpeed());
+        }
+        return Math.abs(expectedPosition - state.getPosition()) <= POSITION_DRIFT_TOLERANCE_MS;
+    }
+
+    private static boolean isSameCustomActions(List<PlaybackStateCompat.CustomAction> last,
+                                               List<PlaybackStateCompat.CustomAction> actions) {
+        if (last.size() != actions.size()) {
+            return false;
+        }
+        for (int i = 0; i < last.size(); i++) {
+            PlaybackStateCompat.CustomAction a = last.get(i);
+            PlaybackStateCompat.CustomAction b = actions.get(i);
+            if (a == b) {
+                continue;
+            }
+            if (!TextUtils.equals(a.getAction(), b.getAction())
+                    || a.getIcon() != b.getIcon()
+                    || !TextUtils.equals(a.getName(), b.getName())) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * The notification shows the play/pause button and the skip buttons, so only the state and
+     * the available actions matter for it.
+     */
+    private static boolean isSameNotificationState(@Nullable PlaybackStateCompat last,
+                                                   @NonNull PlaybackStateCompat state) {
+        return last != null
+                && last.getState() == state.getState()
+                && last.getActions() == state.getActions();
+    }
+
+    private static boolean isSameDescription(@Nullable MediaDescriptionCompat last,
+                                             @Nullable MediaDescriptionCompat description) {
+        if (last == description) {
+            return true;
+        }
+        if (last == null || description == null) {
+            return false;
+        }
+        Uri lastIconUri = last.getIconUri();
+        Uri iconUri = description.getIconUri();
+        return TextUtils.equals(last.getMediaId(), description.getMediaId())
+                && TextUtils.equals(last.getTitle(), description.getTitle())
+                && TextUtils.equals(last.getSubtitle(), description.getSubtitle())
+                && (lastIconUri == null ? iconUri == null : lastIconUri.equals(iconUri));
+    }
+}
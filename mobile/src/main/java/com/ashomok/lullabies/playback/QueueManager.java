@@ -18,6 +18,7 @@ package com.ashomok.lullabies.playback;
 
 import android.content.res.Resources;
 import android.graphics.Bitmap;
+import android.os.Build;
 import android.os.Bundle;
 import android.support.v4.media.MediaMetadataCompat;
 import android.support.v4.media.session.MediaSessionCompat;
@@ -44,13 +45,23 @@ import java.util.List;
 public class QueueManager {
     private static final String TAG = LogHelper.makeLogTag(QueueManager.class);
 
+    private static final AlbumArtCache.FetchListener PREFETCH_LISTENER =
+            new AlbumArtCache.FetchListener() {
+                @Override
+                public void onFetched(String artUrl, Bitmap bigImage, Bitmap iconImage) {
+                    // Only loaded into the cache.
+                }
+            };
+
     private MusicProvider mMusicProvider;
     private MetadataUpdateListener mListener;
     private Resources mResources;
 
-    // "Now playing" queue:
-    private List<MediaSessionCompat.QueueItem> mPlayingQueue;
-    private int mCurrentIndex;
+    // "Now playing" queue, never modified once set: replaced on the playback thread, and read
+    // from other threads too.
+    private volatile List<MediaSessionCompat.QueueItem> mPlayingQueue;
+    // Written on the playback thread, read by album art callbacks on the main thread.
+    private volatile int mCurrentIndex;
 
     public QueueManager(@NonNull MusicProvider musicProvider,
                         @NonNull Resources resources,
@@ -59,7 +70,7 @@ public class QueueManager {
         this.mListener = listener;
         this.mResources = resources;
 
-        mPlayingQueue = Collections.synchronizedList(new ArrayList<>());
+        mPlayingQueue = Collections.emptyList();
         mCurrentIndex = 0;
     }
 
@@ -150,16 +161,22 @@ public class QueueManager {
     }
 
     public MediaSessionCompat.QueueItem getCurrentMusic() {
-        if (!QueueHelper.isIndexPlayable(mCurrentIndex, mPlayingQueue)) {
+        List<MediaSessionCompat.QueueItem> queue = mPlayingQueue;
+        int index = mCurrentIndex;
+        if (!QueueHelper.isIndexPlayable(index, queue)) {
             return null;
         }
-        return mPlayingQueue.get(mCurrentIndex);
+        return queue.get(index);
+    }
+
+    /**
+     * @return the "now playing" queue, which can not be modified.
+     */
+    public List<MediaSessionCompat.QueueItem> getPlayingQueue() {
+        return mPlayingQueue;
     }
 
     public int getCurrentQueueSize() {
-        if (mPlayingQueue == null) {
-            return 0;
-        }
         return mPlayingQueue.size();
     }
 
@@ -169,13 +186,16 @@ public class QueueManager {
 
     protected void setCurrentQueue(String title, List<MediaSessionCompat.QueueItem> newQueue,
                                    String initialMediaId) {
-        mPlayingQueue = newQueue;
+        List<MediaSessionCompat.QueueItem> queue = newQueue == null
+                ? Collections.emptyList()
+                : Collections.unmodifiableList(new ArrayList<>(newQueue));
+        mPlayingQueue = queue;
         int index = 0;
         if (initialMediaId != null) {
-            index = QueueHelper.getMusicIndexOnQueue(mPlayingQueue, initialMediaId);
+            index = QueueHelper.getMusicIndexOnQueue(queue, initialMediaId);
         }
         mCurrentIndex = Math.max(index, 0);
-        mListener.onQueueUpdated(title, newQueue);
+        mListener.onQueueUpdated(title, queue);
     }
 
     public void updateMetadata() {
@@ -191,32 +211,76 @@ public class QueueManager {
             throw new IllegalArgumentException("Invalid musicId " + musicId);
         }
 
-        mListener.onMetadataChanged(metadata);
-
-        // Set the proper album artwork on the media session, so it can be shown in the
-        // locked screen and in other places.
-        if (metadata.getDescription().getIconBitmap() == null &&
-                metadata.getDescription().getIconUri() != null) {
-            String albumUri = metadata.getDescription().getIconUri().toString();
-            AlbumArtCache.getInstance().fetch(albumUri, new AlbumArtCache.FetchListener() {
+        // Load the album artwork shown on the locked screen and in other places.
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.R) {
+            updateSessionArt(musicId, metadata);
+        } else {
+            mListener.onMetadataChanged(metadata);
+            fetchAlbumArt(metadata, AlbumArtCache.Priority.VISIBLE);
+        }
 
+        // Prefetch the album art of the next item too, so that it is shown with the item.
+        List<MediaSessionCompat.QueueItem> queue = mPlayingQueue;
+        if (!queue.isEmpty()) {
+            int nextIndex = (mCurrentIndex + 1) % queue.size();
+            if (nextIndex != mCurrentIndex
+                    && QueueHelper.isIndexPlayable(nextIndex, queue)) {
+                String nextMusicId = MediaIDHelper.extractMusicIDFromMediaID(
+                        queue.get(nextIndex).getDescription().getMediaId());
+                MediaMetadataCompat nextMetadata = mMusicProvider.getMusic(nextMusicId);
+                if (nextMetadata != null) {
+                    fetchAlbumArt(nextMetadata, AlbumArtCache.Priority.NEXT);
+                }
+            }
+        }
+    }
 
-                @Override
-                public void onFetched(String artUrl, Bitmap bitmap, Bitmap icon) {
-                    mMusicProvider.updateMusicArt(musicId, bitmap, icon);
-
-                    // If we are still playing the same music, notify the listeners:
-                    MediaSessionCompat.QueueItem currentMusic = getCurrentMusic();
-                    if (currentMusic == null) {
-                        return;
-                    }
-                    String currentPlayingId = MediaIDHelper.extractMusicIDFromMediaID(
-                            currentMusic.getDescription().getMediaId());
-                    if (musicId.equals(currentPlayingId)) {
-                        mListener.onMetadataChanged(mMusicProvider.getMusic(currentPlayingId));
-                    }
+    /**
+     * Before Android 11, the lock screen and the system media controls only show an album art
+     * the session metadata carries as a bitmap: set the big image on the metadata once it is
+     * loaded. The catalog itself keeps the URIs only.
+     */
+    private void updateSessionArt(final String musicId, final MediaMetadataCompat metadata) {
+        if (metadata.getDescription().getIconUri() == null) {
+            mListener.onMetadataChanged(metadata);
+            return;
+        }
+        String artUrl = metadata.getDescription().getIconUri().toString();
+        Bitmap cached = AlbumArtCache.getInstance().getBigImage(artUrl);
+        if (cached != null) {
+            mListener.onMetadataChanged(withAlbumArt(metadata, cached));
+            return;
+        }
+        mListener.onMetadataChanged(metadata);
+        AlbumArtCache.getInstance().fetch(artUrl, new AlbumArtCache.FetchListener() {
+            @Override
+            public void onFetched(String artUrl, Bitmap bigImage, Bitmap iconImage) {
+                // If we are still playing the same music, notify the listeners:
+                MediaSessionCompat.QueueItem currentMusic = getCurrentMusic();
+                if (currentMusic == null) {
+                    return;
+                }
+                String currentPlayingId = MediaIDHelper.extractMusicIDFromMediaID(
+                        currentMusic.getDescription().getMediaId());
+                if (musicId.equals(currentPlayingId)) {
+                    mListener.onMetadataChanged(withAlbumArt(metadata, bigImage));
                 }
-            });
+            }
+        });
+    }
+
+    private static MediaMetadataCompat withAlbumArt(MediaMetadataCompat metadata, Bitmap art) {
+        return new MediaMetadataCompat.Builder(metadata)
+                .putBitmap(MediaMetadataCompat.METADATA_KEY_ALBUM_ART, art)
+                .build();
+    }
+
+    private void fetchAlbumArt(MediaMetadataCompat metadata, AlbumArtCache.Priority priority) {
+        // The metadata only carries the URI of the album art, which controllers outside the app
+        // read from the AlbumArtProvider: having it in the cache spares them a decode.
+        if (metadata.getDescription().getIconUri() != null) {
+            AlbumArtCache.getInstance().fetch(metadata.getDescription().getIconUri().toString(),
+                    priority, PREFETCH_LISTENER);
         }
     }
 
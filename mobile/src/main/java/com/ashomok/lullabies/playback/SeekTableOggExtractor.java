@@ -0,0 +1,131 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ashomok.lullabies.playback;
+
+import androidx.annotation.NonNull;
+
+import com.google.android.exoplayer2.extractor.Extractor;
+import com.google.android.exoplayer2.extractor.ExtractorInput;
+import com.google.android.exoplayer2.extractor.ExtractorOutput;
+import com.google.android.exoplayer2.extractor.ExtractorsFactory;
+import com.google.android.exoplayer2.extractor.PositionHolder;
+import com.google.android.exoplayer2.extractor.SeekMap;
+import com.google.android.exoplayer2.extractor.SeekPoint;
+import com.google.android.exoplayer2.extractor.TrackOutput;
+import com.google.android.exoplayer2.extractor.ogg.OggExtractor;
+
+import java.io.IOException;
+
+/**
+ * {@link OggExtractor} that seeks through a precomputed {@link OggSeekTable}.
+ * <p>
+ * The seek map reported by the Ogg extractor is replaced by one backed by the table, so a seek
+ * starts reading at the page right before the target. The Ogg seeker then finds that page
+ * within its match range on its first probe instead of bisecting the whole file.
+ */
+final class SeekTableOggExtractor implements Extractor {
+
+    private final OggExtractor mOggExtractor = new OggExtractor();
+    private final OggSeekTable mSeekTable;
+
+    SeekTableOggExtractor(@NonNull OggSeekTable seekTable) {
+        mSeekTable = seekTable;
+    }
+
+    /**
+     * @return a factory creating extractors for a track with the given seek table.
+     */
+    static ExtractorsFactory factory(@NonNull OggSeekTable seekTable) {
+        return () -> new Extractor[]{new SeekTableOggExtractor(seekTable)};
+    }
+
+    @Override
+    public boolean sniff(ExtractorInput input) throws IOException, InterruptedException {
+        return mOggExtractor.sniff(input);
+    }
+
+    @Override
+    public void init(ExtractorOutput output) {
+        mOggExtractor.init(new SeekTableOutput(output));
+    }
+
+    @Override
+    public int read(ExtractorInput input, PositionHolder seekPosition)
+            throws IOException, InterruptedException {
+        return mOggExtractor.read(input, seekPosition);
+    }
+
+    @Override
+    public void seek(long position, long timeUs) {
+        mOggExtractor.seek(position, timeUs);
+    }
+
+    @Override
+    public void release() {
+        mOggExtractor.release();
+    }
+
+    /**
+     * Forwards everything to the real output, except for the seek map.
+     */
+    private final class SeekTableOutput implements ExtractorOutput {
+        private final ExtractorOutput mOutput;
+
+        SeekTableOutput(ExtractorOutput output) {
+            mOutput = output;
+        }
+
+        @Override
+        public TrackOutput track(int id, int type) {
+            return mOutput.track(id, type);
+        }
+
+        @Override
+        public void endTracks() {
+            mOutput.endTracks();
+        }
+
+        @Override
+        public void seekMap(SeekMap seekMap) {
+            mOutput.seekMap(mSeekTable.isEmpty() ? seekMap : new SeekTableSeekMap());
+        }
+    }
+
+    private final class SeekTableSeekMap implements SeekMap {
+
+        @Override
+        public boolean isSeekable() {
+            return true;
+        }
+
+        @Override
+        public long getDurationUs() {
+            return mSeekTable.getDurationUs();
+        }
+
+        @Override
+        public SeekPoints getSeekPoints(long timeUs) {
+            int index = mSeekTable.indexOf(timeUs);
+            if (index < 0) {
+                // The target is in the first audio page: restart from the headers.
+                return new SeekPoints(new SeekPoint(0, 0));
+            }
+            return new SeekPoints(
+                    new SeekPoint(mSeekTable.getTimeUs(index), mSeekTable.getOffset(index)));
+        }
+    }
+}
@@ -4,9 +4,13 @@ import android.app.Activity;
 import android.app.DialogFragment;
 import android.graphics.Bitmap;
 import android.graphics.drawable.ColorDrawable;
+import android.net.Uri;
 import android.support.v4.media.MediaBrowserCompat;
 import android.support.v4.media.MediaDescriptionCompat;
+import android.support.v4.media.MediaMetadataCompat;
+import android.support.v4.media.session.MediaControllerCompat;
 import android.util.SparseArray;
+import android.util.SparseIntArray;
 import android.view.LayoutInflater;
 import android.view.View;
 import android.view.ViewGroup;
@@ -14,6 +18,7 @@ import android.widget.ImageView;
 import android.widget.TextView;
 
 import androidx.annotation.NonNull;
+import androidx.asynclayoutinflater.view.AsyncLayoutInflater;
 import androidx.viewpager.widget.PagerAdapter;
 
 import com.ashomok.lullabies.AlbumArtCache;
@@ -22,25 +27,51 @@ import com.ashomok.lullabies.utils.LogHelper;
 import com.ashomok.lullabies.utils.rate_app.RateAppAskerCallback;
 import com.ashomok.lullabies.utils.rate_app.RateAppAskerImpl;
 
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 import javax.inject.Inject;
 
+import static com.ashomok.lullabies.utils.MediaItemStateHelper.STATE_INVALID;
+import static com.ashomok.lullabies.utils.MediaItemStateHelper.STATE_NONE;
 import static com.ashomok.lullabies.utils.MediaItemStateHelper.STATE_PLAYING;
 import static com.ashomok.lullabies.utils.MediaItemStateHelper.getMediaItemState;
+import static com.ashomok.lullabies.utils.MediaItemStateHelper.getStateFromPlaybackState;
 import static com.ashomok.lullabies.utils.MediaItemStateHelper.initializeColorStateLists;
 import static com.ashomok.lullabies.utils.MediaItemStateHelper.sColorStateNotPlaying;
 import static com.ashomok.lullabies.utils.MediaItemStateHelper.sColorStatePlaying;
 
 public class MyViewPagerAdapter extends PagerAdapter implements RateAppAskerCallback {
     private static final String TAG = LogHelper.makeLogTag(MyViewPagerAdapter.class);
+
+    // Backgrounds are prefetched for the pages this far from the current one that the pager has
+    // not created yet: it creates one page on each side of the current one.
+    private static final int PREFETCH_DISTANCE = 2;
+
+    // The current page and the one on each side of it.
+    private static final int PRE_INFLATED_PAGES = 3;
+    // Pages outside of the pager, ready to be rebound.
+    private static final int MAX_RECYCLED_PAGES = 3;
     private final RateAppAskerImpl rateAppAsker; //todo better move to another class (music service?)
     private Activity activity;
 
     //pager views by position
     private SparseArray<View> views;
 
+    // State shown by each pager view, by position.
+    private final SparseIntArray mPageStates = new SparseIntArray();
+
+    // The controller's current media and its state, as of the last updatePageStates.
+    private String mPlayingMusicId;
+    private int mPlayingState = STATE_NONE;
+
     /**
      * Contains the list of objects that represent the data of this ArrayAdapter.
      * The content of this list is referred to as "the array" in the documentation.
@@ -53,6 +84,13 @@ public class MyViewPagerAdapter extends PagerAdapter implements RateAppAskerCall
      */
     private final Object mLock = new Object();
 
+    private int mPrimaryPosition = -1;
+
+    private final ArrayDeque<ViewGroup> mRecycledPages = new ArrayDeque<>();
+
+    // Background prefetches in progress, by album art URL.
+    private final Map<String, AlbumArtCache.FetchListener> mPrefetches = new HashMap<>();
+
 
     @Inject
     public MyViewPagerAdapter(Activity activity, RateAppAskerImpl rateAppAsker) {
@@ -62,6 +100,22 @@ public class MyViewPagerAdapter extends PagerAdapter implements RateAppAskerCall
         mObjects = new ArrayList<>();
     }
 
+    /**
+     * Inflate the first pages off the main thread, while the items are still being loaded.
+     * Pages that are instantiated before they are ready are inflated as usual.
+     */
+    public void preInflatePages(@NonNull ViewGroup container) {
+        AsyncLayoutInflater inflater = new AsyncLayoutInflater(activity);
+        for (int i = 0; i < PRE_INFLATED_PAGES; i++) {
+            inflater.inflate(R.layout.media_pager_item, container, (view, resid, parent) -> {
+                if (mRecycledPages.size() < MAX_RECYCLED_PAGES) {
+                    view.setTag(new PageViews(view));
+                    mRecycledPages.add((ViewGroup) view);
+                }
+            });
+        }
+    }
+
     @NonNull
     @Override
     public Object instantiateItem(@NonNull ViewGroup collection, int position) {
@@ -69,25 +123,28 @@ public class MyViewPagerAdapter extends PagerAdapter implements RateAppAskerCall
             initializeColorStateLists(activity);
         }
 
-        LayoutInflater inflater = LayoutInflater.from(activity);
-        ViewGroup convertView =
-                (ViewGroup) inflater.inflate(R.layout.media_pager_item, collection, false);
-
-        ImageView mBackgroundImage = convertView.findViewById(R.id.image);
-        TextView textViewName = convertView.findViewById(R.id.name);
-        TextView textViewGenre = convertView.findViewById(R.id.genre);
+        ViewGroup convertView = mRecycledPages.poll();
+        if (convertView == null) {
+            LayoutInflater inflater = LayoutInflater.from(activity);
+            convertView =
+                    (ViewGroup) inflater.inflate(R.layout.media_pager_item, collection, false);
+            convertView.setTag(new PageViews(convertView));
+        }
+        PageViews pageViews = (PageViews) convertView.getTag();
 
         MediaBrowserCompat.MediaItem mediaItem = mObjects.get(position);
         MediaDescriptionCompat description = mediaItem.getDescription();
-        fetchImageAsync(description, mBackgroundImage);
+        fetchImageAsync(description, pageViews.image, position == mPrimaryPosition
+                ? AlbumArtCache.Priority.VISIBLE : AlbumArtCache.Priority.NEXT);
 
         CharSequence name = description.getTitle();
         CharSequence category = description.getSubtitle();
-        textViewName.setText(name);
-        textViewGenre.setText(category);
+        pageViews.name.setText(name);
+        pageViews.genre.setText(category);
 
         collection.addView(convertView);
         views.put(position, convertView);
+        updatePageState(position, convertView);
 
         rateAppAsker.init(this);
 
@@ -99,6 +156,84 @@ public class MyViewPagerAdapter extends PagerAdapter implements RateAppAskerCall
     public void destroyItem(@NonNull ViewGroup container, int position, @NonNull Object view) {
         container.removeView((View) view);
         views.remove(position);
+        mPageStates.delete(position);
+        PageViews pageViews = (PageViews) ((View) view).getTag();
+        releaseImage(pageViews.image);
+        // Rebound by the next page instead of inflating another one.
+        if (mRecycledPages.size() < MAX_RECYCLED_PAGES) {
+            mRecycledPages.add((ViewGroup) view);
+        }
+    }
+
+    @Override
+    public void setPrimaryItem(@NonNull ViewGroup container, int position,
+                               @NonNull Object object) {
+        super.setPrimaryItem(container, position, object);
+        if (position == mPrimaryPosition) {
+            return;
+        }
+        mPrimaryPosition = position;
+        // The page was created as a neighbour, so its background may still be queued behind
+        // the current one's.
+        ImageView image = ((PageViews) ((View) object).getTag()).image;
+        if (image.getTag() instanceof PageArt) {
+            PageArt pageArt = (PageArt) image.getTag();
+            if (pageArt.listener != null) {
+                AlbumArtCache.getInstance().fetchBackground(pageArt.artUrl,
+                        AlbumArtCache.Priority.VISIBLE, pageArt.listener);
+            }
+        }
+        prefetchBackgrounds(position);
+    }
+
+    /**
+     * Prefetch the backgrounds of the pages around a position that the pager has not created
+     * yet, and cancel the prefetches of the pages that are not around it anymore.
+     */
+    private void prefetchBackgrounds(int position) {
+        AlbumArtCache cache = AlbumArtCache.getInstance();
+        Set<String> artUrls = new HashSet<>();
+        for (int i = Math.max(0, position - PREFETCH_DISTANCE);
+             i <= Math.min(mObjects.size() - 1, position + PREFETCH_DISTANCE); i++) {
+            Uri iconUri = mObjects.get(i).getDescription().getIconUri();
+            if (views.get(i) == null && iconUri != null) {
+                artUrls.add(iconUri.toString());
+            }
+        }
+        for (Iterator<Map.Entry<String, AlbumArtCache.FetchListener>> it =
+             mPrefetches.entrySet().iterator(); it.hasNext(); ) {
+            Map.Entry<String, AlbumArtCache.FetchListener> prefetch = it.next();
+            if (!artUrls.remove(prefetch.getKey())) {
+                cache.cancel(prefetch.getKey(), prefetch.getValue());
+                it.remove();
+            }
+        }
+        for (String artUrl : artUrls) {
+            AlbumArtCache.FetchListener listener = new AlbumArtCache.FetchListener() {
+                @Override
+                public void onFetched(String artUrl, Bitmap bitmap, Bitmap icon) {
+                    if (mPrefetches.get(artUrl) == this) {
+                        mPrefetches.remove(artUrl);
+                    }
+                    // It stays in the cache for the page to take.
+                    cache.releaseBackground(bitmap);
+                }
+            };
+            mPrefetches.put(artUrl, listener);
+            cache.fetchBackground(artUrl, AlbumArtCache.Priority.SPECULATIVE, listener);
+        }
+    }
+
+    /**
+     * Cancel the background prefetches, whose pages may not exist anymore.
+     */
+    private void cancelPrefetches() {
+        AlbumArtCache cache = AlbumArtCache.getInstance();
+        for (Map.Entry<String, AlbumArtCache.FetchListener> prefetch : mPrefetches.entrySet()) {
+            cache.cancel(prefetch.getKey(), prefetch.getValue());
+        }
+        mPrefetches.clear();
+        mPrimaryPosition = -1;
     }
 
     @Override
@@ -111,29 +246,37 @@ public class MyViewPagerAdapter extends PagerAdapter implements RateAppAskerCall
         return view == object;
     }
 
-    @Override
-    public void notifyDataSetChanged() {
-        try {
-            int key;
-            for (int i = 0; i < views.size(); i++) {
-                key = views.keyAt(i);
-                View view = views.get(key);
-
-                MediaBrowserCompat.MediaItem mediaItem = mObjects.get(key);
-                // If the state of convertView is different, we need to adapt the view to the new state.
-                int state = getMediaItemState(activity, mediaItem);
-
-                final ImageView tapMeImage = view.findViewById(R.id.tap_me_btn);
-                if (state == STATE_PLAYING) {
-                    tapMeImage.setVisibility(View.GONE);
-                } else {
-                    tapMeImage.setVisibility(View.VISIBLE);
-                }
-            }
-        } catch (Exception e) {
-            //ignore
+    /**
+     * Show the playback state of the controller on the pages, after its metadata or playback
+     * state changed. Only the pages whose state changed are updated.
+     */
+    public void updatePageStates() {
+        MediaControllerCompat controller = MediaControllerCompat.getMediaController(activity);
+        MediaMetadataCompat metadata = controller == null ? null : controller.getMetadata();
+        if (metadata == null) {
+            mPlayingMusicId = null;
+            mPlayingState = STATE_NONE;
+        } else {
+            mPlayingMusicId = metadata.getDescription().getMediaId();
+            mPlayingState = getStateFromPlaybackState(controller.getPlaybackState());
+        }
+        for (int i = 0; i < views.size(); i++) {
+            updatePageState(views.keyAt(i), views.valueAt(i));
+        }
+    }
+
+    private void updatePageState(int position, View view) {
+        if (position >= mObjects.size()) {
+            return;
+        }
+        int state = getMediaItemState(mObjects.get(position), mPlayingMusicId, mPlayingState);
+        if (state == mPageStates.get(position, STATE_INVALID)) {
+            return;
         }
-        super.notifyDataSetChanged();
+        mPageStates.put(position, state);
+        // If the state of the page is different, we need to adapt the view to the new state.
+        View tapMeImage = ((PageViews) view.getTag()).tapMe;
+        tapMeImage.setVisibility(state == STATE_PLAYING ? View.GONE : View.VISIBLE);
     }
 
     public void add(MediaBrowserCompat.MediaItem item) {
@@ -143,6 +286,16 @@ public class MyViewPagerAdapter extends PagerAdapter implements RateAppAskerCall
         notifyDataSetChanged();
     }
 
+    /**
+     * Add all the items at once, with a single data set change.
+     */
+    public void addAll(Collection<? extends MediaBrowserCompat.MediaItem> items) {
+        synchronized (mLock) {
+            mObjects.addAll(items);
+        }
+        notifyDataSetChanged();
+    }
+
     /**
      * Remove all elements from the list.
      */
@@ -150,6 +303,9 @@ public class MyViewPagerAdapter extends PagerAdapter implements RateAppAskerCall
         synchronized (mLock) {
             mObjects.clear();
         }
+        // The pages left are shown for the new items, whose state is yet to be shown.
+        mPageStates.clear();
+        cancelPrefetches();
         notifyDataSetChanged();
     }
 
@@ -157,34 +313,93 @@ public class MyViewPagerAdapter extends PagerAdapter implements RateAppAskerCall
         return mObjects.get(position);
     }
 
-    private void fetchImageAsync(
-            @NonNull MediaDescriptionCompat description, ImageView mBackgroundImage) {
+    private void fetchImageAsync(@NonNull MediaDescriptionCompat description,
+                                 ImageView mBackgroundImage, AlbumArtCache.Priority priority) {
         if (description.getIconUri() == null) {
             return;
         }
         String artUrl = description.getIconUri().toString();
         AlbumArtCache cache = AlbumArtCache.getInstance();
-        Bitmap art = cache.getBigImage(artUrl);
+        PageArt pageArt = new PageArt(artUrl);
+        mBackgroundImage.setTag(pageArt);
+        pageArt.background = cache.getBackgroundImage(artUrl);
+        Bitmap art = pageArt.background;
         if (art == null) {
             art = description.getIconBitmap();
         }
         if (art != null) {
             // if we have the art cached or from the MediaDescription, use it:
             mBackgroundImage.setImageBitmap(art);
-        } else {
+        }
+        if (pageArt.background == null) {
             // otherwise, fetch a high res version and update:
 
-            //set placeholder
-            ColorDrawable cd = new ColorDrawable(
-                    activity.getResources().getColor(R.color.colorPrimarySecond));
-            mBackgroundImage.setImageDrawable(cd);
-            cache.fetch(artUrl, new AlbumArtCache.FetchListener() {
+            if (art == null) {
+                //set placeholder
+                ColorDrawable cd = new ColorDrawable(
+                        activity.getResources().getColor(R.color.colorPrimarySecond));
+                mBackgroundImage.setImageDrawable(cd);
+            }
+            pageArt.listener = new AlbumArtCache.FetchListener() {
 
                 @Override
                 public void onFetched(String artUrl, Bitmap bitmap, Bitmap icon) {
+                    pageArt.listener = null;
+                    pageArt.background = bitmap;
                     mBackgroundImage.setImageBitmap(bitmap);
                 }
-            });
+            };
+            cache.fetchBackground(artUrl, priority, pageArt.listener);
+        }
+    }
+
+    /**
+     * Give the background of a destroyed page back to the cache, so that its memory can be
+     * reused for the next pages.
+     */
+    private static void releaseImage(ImageView image) {
+        if (!(image.getTag() instanceof PageArt)) {
+            return;
+        }
+        PageArt pageArt = (PageArt) image.getTag();
+        image.setTag(null);
+        image.setImageDrawable(null);
+        AlbumArtCache cache = AlbumArtCache.getInstance();
+        if (pageArt.listener != null) {
+            cache.cancel(pageArt.artUrl, pageArt.listener);
+        }
+        if (pageArt.background != null) {
+            cache.releaseBackground(pageArt.background);
+        }
+    }
+
+    /**
+     * The views of a page, found once when it is inflated.
+     */
+    private static final class PageViews {
+        final ImageView image;
+        final TextView name;
+        final TextView genre;
+        final View tapMe;
+
+        PageViews(View page) {
+            image = page.findViewById(R.id.image);
+            name = page.findViewById(R.id.name);
+            genre = page.findViewById(R.id.genre);
+            tapMe = page.findViewById(R.id.tap_me_btn);
+        }
+    }
+
+    /**
+     * The album art shown by a page.
+     */
+    private static final class PageArt {
+        final String artUrl;
+        Bitmap background;
+        AlbumArtCache.FetchListener listener;
+
+        PageArt(String artUrl) {
+            this.artUrl = artUrl;
         }
     }
 
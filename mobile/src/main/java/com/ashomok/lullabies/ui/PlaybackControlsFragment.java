@@ -54,6 +54,8 @@ public class PlaybackControlsFragment extends Fragment {
     private TextView mExtraInfo;
     private ImageView mAlbumArt;
     private String mArtUrl;
+    private String mArtFetchUrl;
+    private AlbumArtCache.FetchListener mArtFetchListener;
     // Receive callbacks from the MediaController. Here we update our state such as which queue
     // is being shown, the current title and description and the PlaybackState.
     private final MediaControllerCompat.Callback mCallback = new MediaControllerCompat.Callback() {
@@ -154,28 +156,37 @@ public class PlaybackControlsFragment extends Fragment {
         }
         if (!TextUtils.equals(artUrl, mArtUrl)) {
             mArtUrl = artUrl;
-            Bitmap art = metadata.getDescription().getIconBitmap();
             AlbumArtCache cache = AlbumArtCache.getInstance();
+            int artSize = getResources().getDimensionPixelSize(
+                    R.dimen.playback_controls_albumart_size);
+            Bitmap art = mArtUrl == null ? null : cache.getImage(mArtUrl, artSize, artSize);
             if (art == null) {
-                art = cache.getIconImage(mArtUrl);
+                art = metadata.getDescription().getIconBitmap();
+            }
+            if (mArtFetchListener != null) {
+                // The previous track's art is not wanted anymore.
+                cache.cancel(mArtFetchUrl, artSize, artSize, mArtFetchListener);
+                mArtFetchListener = null;
             }
             if (art != null) {
                 mAlbumArt.setImageBitmap(art);
-            } else {
-                cache.fetch(artUrl, new AlbumArtCache.FetchListener() {
+            } else if (artUrl != null) {
+                mArtFetchUrl = artUrl;
+                mArtFetchListener = new AlbumArtCache.FetchListener() {
 
                     @Override
                             public void onFetched(String artUrl, Bitmap bitmap, Bitmap icon) {
-                                if (icon != null) {
-                                    LogHelper.d(TAG, "album art icon of w=", icon.getWidth(),
-                                            " h=", icon.getHeight());
+                                mArtFetchListener = null;
+                                if (bitmap != null) {
+                                    LogHelper.d(TAG, "album art thumbnail of w=",
+                                            bitmap.getWidth(), " h=", bitmap.getHeight());
                                     if (isAdded()) {
-                                        mAlbumArt.setImageBitmap(icon);
+                                        mAlbumArt.setImageBitmap(bitmap);
                                     }
                                 }
                             }
-                        }
-                );
+                        };
+                cache.fetch(artUrl, artSize, artSize, mArtFetchListener);
             }
         }
     }
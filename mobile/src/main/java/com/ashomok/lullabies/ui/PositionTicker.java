@@ -0,0 +1,210 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ashomok.lullabies.ui;
+
+import android.os.SystemClock;
+import android.support.v4.media.session.PlaybackStateCompat;
+import android.view.Choreographer;
+
+import androidx.annotation.MainThread;
+import androidx.annotation.NonNull;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Moves the progress UIs (seek bars, time labels) along with the playback position.
+ * <p>
+ * The position is extrapolated from the last {@link PlaybackStateCompat}, with its position,
+ * update time and speed, so the session is not asked for it again. While the state is playing
+ * and something listens, the position is computed on each display frame, and each listener is
+ * told only when it moves by the listener's resolution. There is no thread or timer: nothing
+ * runs while nothing listens or playback is not moving, and the ticker forgets the state once
+ * the last listener is gone.
+ * <p>
+ * Listeners register while they are visible, from onStart to onStop. Main thread only.
+ */
+@MainThread
+public final class PositionTicker implements Choreographer.FrameCallback {
+
+    // One display frame: listeners are never told more often than that.
+    private static final long MIN_RESOLUTION_MS = 16;
+    private static final long DEFAULT_RESOLUTION_MS = 1000;
+
+    private static PositionTicker sInstance;
+
+    private final List<Registration> mRegistrations = new ArrayList<>();
+    private PlaybackStateCompat mState;
+    private boolean mFrameScheduled;
+
+    public static PositionTicker getInstance() {
+        if (sInstance == null) {
+            sInstance = new PositionTicker();
+        }
+        return sInstance;
+    }
+
+    private PositionTicker() {
+    }
+
+    /**
+     * @return the time one pixel of a progress bar of the given width stands for, as a listener
+     * resolution.
+     */
+    public static long resolutionFor(long durationMs, int widthPx) {
+        if (durationMs <= 0 || widthPx <= 0) {
+            return DEFAULT_RESOLUTION_MS;
+        }
+        return Math.max(MIN_RESOLUTION_MS, durationMs / widthPx);
+    }
+
+    /**
+     * @return the position of the playback state at the given {@link SystemClock#elapsedRealtime}.
+     */
+    public static long positionAt(@NonNull PlaybackStateCompat state, long elapsedRealtime) {
+        long position = state.getPosition();
+        if (state.getState() == PlaybackStateCompat.STATE_PLAYING) {
+            // Unless paused, (delta * speed) + the last position is approximately the position.
+            long timeDelta = elapsedRealtime - state.getLastPositionUpdateTime();
+            position += (long) (timeDelta * state.getPlaybackSpeed());
+        }
+        return Math.max(0, position);
+    }
+
+    /**
+     * Start telling the listener the position whenever it moves by the resolution, right away if
+     * the playback state is known. Registering a listener again changes its resolution.
+     */
+    public void addListener(@NonNull Listener listener, long resolutionMs) {
+        Registration registration = find(listener);
+        if (registration == null) {
+            registration = new Registration(listener);
+            mRegistrations.add(registration);
+        }
+        registration.resolutionMs = Math.max(MIN_RESOLUTION_MS, resolutionMs);
+        registration.lastStep = -1;
+        if (mState != null) {
+            tick(SystemClock.elapsedRealtime());
+        }
+        scheduleFrame();
+    }
+
+    public void removeListener(@NonNull Listener listener) {
+        Registration registration = find(listener);
+        if (registration == null) {
+            return;
+        }
+        mRegistrations.remove(registration);
+        if (mRegistrations.isEmpty()) {
+            // Nothing is visible anymore: stop, and do not hold on to a state that will be stale
+            // by the time someone listens again.
+            mState = null;
+            cancelFrame();
+        }
+    }
+
+    /**
+     * Follow a new playback state, as given by the media controller.
+     */
+    public void setPlaybackState(PlaybackStateCompat state) {
+        if (mRegistrations.isEmpty()) {
+            return;
+        }
+        mState = state;
+        for (Registration registration : mRegistrations) {
+            registration.lastStep = -1;
+        }
+        if (state != null) {
+            tick(SystemClock.elapsedRealtime());
+        }
+        if (isMoving()) {
+            scheduleFrame();
+        } else {
+            cancelFrame();
+        }
+    }
+
+    @Override
+    public void doFrame(long frameTimeNanos) {
+        mFrameScheduled = false;
+        if (!isMoving()) {
+            return;
+        }
+        // Frame time is on the System.nanoTime() clock, which does not advance in deep sleep;
+        // the playback state is on the elapsedRealtime clock, which does.
+        tick(SystemClock.elapsedRealtime());
+        scheduleFrame();
+    }
+
+    private void tick(long elapsedRealtime) {
+        long position = positionAt(mState, elapsedRealtime);
+        // A copy, since listeners may unregister while they are told.
+        for (Registration registration : new ArrayList<>(mRegistrations)) {
+            long step = position / registration.resolutionMs;
+            if (step != registration.lastStep) {
+                registration.lastStep = step;
+                registration.listener.onPositionChanged(position);
+            }
+        }
+    }
+
+    private boolean isMoving() {
+        return mState != null && !mRegistrations.isEmpty()
+                && mState.getState() == PlaybackStateCompat.STATE_PLAYING
+                && mState.getPlaybackSpeed() != 0;
+    }
+
+    private void scheduleFrame() {
+        if (!mFrameScheduled && isMoving()) {
+            mFrameScheduled = true;
+            Choreographer.getInstance().postFrameCallback(this);
+        }
+    }
+
+    private void cancelFrame() {
+        if (mFrameScheduled) {
+            mFrameScheduled = false;
+            Choreographer.getInstance().removeFrameCallback(this);
+        }
+    }
+
+    private Registration find(Listener listener) {
+        for (Registration registration : mRegistrations) {
+            if (registration.listener == listener) {
+                return registration;
+            }
+        }
+        return null;
+    }
+
+    public interface Listener {
+        /**
+         * @param positionMs the current playback position.
+         */
+        void onPositionChanged(long positionMs);
+    }
+
+    private static final class Registration {
+        final Listener listener;
+        long resolutionMs;
+        long lastStep;
+
+        Registration(Listener listener) {
+            this.listener = listener;
+        }
+    }
+}
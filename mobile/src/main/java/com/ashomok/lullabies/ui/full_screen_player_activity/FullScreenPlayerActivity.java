@@ -20,9 +20,7 @@ import android.content.Intent;
 import android.graphics.Bitmap;
 import android.graphics.drawable.Drawable;
 import android.os.Bundle;
-import android.os.Handler;
 import android.os.RemoteException;
-import android.os.SystemClock;
 import android.support.v4.media.MediaBrowserCompat;
 import android.support.v4.media.MediaDescriptionCompat;
 import android.support.v4.media.MediaMetadataCompat;
@@ -40,6 +38,7 @@ import android.widget.TextView;
 
 import androidx.annotation.NonNull;
 import androidx.core.content.ContextCompat;
+import androidx.lifecycle.Lifecycle;
 
 import com.ashomok.lullabies.AlbumArtCache;
 import com.ashomok.lullabies.MusicService;
@@ -47,14 +46,10 @@ import com.ashomok.lullabies.R;
 import com.ashomok.lullabies.Settings;
 import com.ashomok.lullabies.ad.AdMobAd;
 import com.ashomok.lullabies.ui.ActionBarCastActivity;
+import com.ashomok.lullabies.ui.PositionTicker;
 import com.ashomok.lullabies.ui.main_activity.MusicPlayerActivity;
 import com.ashomok.lullabies.utils.LogHelper;
 
-import java.util.concurrent.Executors;
-import java.util.concurrent.ScheduledExecutorService;
-import java.util.concurrent.ScheduledFuture;
-import java.util.concurrent.TimeUnit;
-
 import javax.inject.Inject;
 
 import static android.view.View.INVISIBLE;
@@ -67,8 +62,6 @@ import static android.view.View.VISIBLE;
 public class FullScreenPlayerActivity extends ActionBarCastActivity
         implements FullScreenPlayerContract.View {
     private static final String TAG = LogHelper.makeLogTag(FullScreenPlayerActivity.class);
-    private static final long PROGRESS_UPDATE_INTERNAL = 1000;
-    private static final long PROGRESS_UPDATE_INITIAL_INTERVAL = 100;
 
     private ImageView mSkipPrev;
     private ImageView mSkipNext;
@@ -86,7 +79,6 @@ public class FullScreenPlayerActivity extends ActionBarCastActivity
     private ImageView mBackgroundImage;
 
     private String mCurrentArtUrl;
-    private final Handler mHandler = new Handler();
     private MediaBrowserCompat mMediaBrowser;
 
     @Inject
@@ -95,13 +87,14 @@ public class FullScreenPlayerActivity extends ActionBarCastActivity
     @Inject
     AdMobAd adMobAd;
 
-    private final Runnable mUpdateProgressTask = () -> updateProgress();
-
-    private final ScheduledExecutorService mExecutorService =
-            Executors.newSingleThreadScheduledExecutor();
-
-    private ScheduledFuture<?> mScheduleFuture;
-    private PlaybackStateCompat mLastPlaybackState;
+    // While the user drags the seek bar, it stays registered so that the ticker keeps following
+    // the session, but the thumb is left where the user puts it.
+    private boolean mTrackingTouch;
+    private final PositionTicker.Listener mPositionListener = position -> {
+        if (!mTrackingTouch) {
+            mSeekbar.setProgress((int) position);
+        }
+    };
 
     private final MediaControllerCompat.Callback mCallback = new MediaControllerCompat.Callback() {
         @Override
@@ -185,12 +178,10 @@ public class FullScreenPlayerActivity extends ActionBarCastActivity
                     case PlaybackStateCompat.STATE_PLAYING: // fall through
                     case PlaybackStateCompat.STATE_BUFFERING:
                         controls.pause();
-                        stopSeekbarUpdate();
                         break;
                     case PlaybackStateCompat.STATE_PAUSED:
                     case PlaybackStateCompat.STATE_STOPPED:
                         controls.play();
-                        scheduleSeekbarUpdate();
                         break;
                     default:
                         LogHelper.d(TAG, "onClick with state ", state.getState());
@@ -215,14 +206,14 @@ public class FullScreenPlayerActivity extends ActionBarCastActivity
 
             @Override
             public void onStartTrackingTouch(SeekBar seekBar) {
-                stopSeekbarUpdate();
+                mTrackingTouch = true;
             }
 
             @Override
             public void onStopTrackingTouch(SeekBar seekBar) {
+                mTrackingTouch = false;
                 MediaControllerCompat.getMediaController(FullScreenPlayerActivity.this)
                         .getTransportControls().seekTo(seekBar.getProgress());
-                scheduleSeekbarUpdate();
             }
         });
 
@@ -267,11 +258,6 @@ public class FullScreenPlayerActivity extends ActionBarCastActivity
             updateMediaDescription(metadata.getDescription());
             updateDuration(metadata);
         }
-        updateProgress();
-        if (state != null && (state.getState() == PlaybackStateCompat.STATE_PLAYING ||
-                state.getState() == PlaybackStateCompat.STATE_BUFFERING)) {
-            scheduleSeekbarUpdate();
-        }
     }
 
     private void updateFromParams(Intent intent) {
@@ -284,24 +270,14 @@ public class FullScreenPlayerActivity extends ActionBarCastActivity
         }
     }
 
-    private void scheduleSeekbarUpdate() {
-        stopSeekbarUpdate();
-        if (!mExecutorService.isShutdown()) {
-            mScheduleFuture = mExecutorService.scheduleAtFixedRate(
-                    new Runnable() {
-                        @Override
-                        public void run() {
-                            mHandler.post(mUpdateProgressTask);
-                        }
-                    }, PROGRESS_UPDATE_INITIAL_INTERVAL,
-                    PROGRESS_UPDATE_INTERNAL, TimeUnit.MILLISECONDS);
-        }
-    }
-
-    private void stopSeekbarUpdate() {
-        if (mScheduleFuture != null) {
-            mScheduleFuture.cancel(false);
-        }
+    /**
+     * Move the seek bar along with playback, as finely as one pixel of it.
+     */
+    private void followPosition() {
+        int width = mSeekbar.getWidth() > 0
+                ? mSeekbar.getWidth() : getResources().getDisplayMetrics().widthPixels;
+        PositionTicker.getInstance().addListener(mPositionListener,
+                PositionTicker.resolutionFor(mSeekbar.getMax(), width));
     }
 
     @Override
@@ -310,11 +286,19 @@ public class FullScreenPlayerActivity extends ActionBarCastActivity
         if (mMediaBrowser != null) {
             mMediaBrowser.connect();
         }
+        followPosition();
+        // The ticker forgot the state when the last listener went away.
+        MediaControllerCompat controller =
+                MediaControllerCompat.getMediaController(FullScreenPlayerActivity.this);
+        if (controller != null) {
+            updatePlaybackState(controller.getPlaybackState());
+        }
     }
 
     @Override
     public void onStop() {
         super.onStop();
+        PositionTicker.getInstance().removeListener(mPositionListener);
         if (mMediaBrowser != null) {
             mMediaBrowser.disconnect();
         }
@@ -325,13 +309,6 @@ public class FullScreenPlayerActivity extends ActionBarCastActivity
         }
     }
 
-    @Override
-    public void onDestroy() {
-        super.onDestroy();
-        stopSeekbarUpdate();
-        mExecutorService.shutdown();
-    }
-
     private void fetchImageAsync(@NonNull MediaDescriptionCompat description) {
         if (description.getIconUri() == null) {
             return;
@@ -380,13 +357,17 @@ public class FullScreenPlayerActivity extends ActionBarCastActivity
         int duration = (int) metadata.getLong(MediaMetadataCompat.METADATA_KEY_DURATION);
         mSeekbar.setMax(duration);
         mEnd.setText(DateUtils.formatElapsedTime(duration / 1000));
+        if (getLifecycle().getCurrentState().isAtLeast(Lifecycle.State.STARTED)) {
+            // The seek bar stands for a different time per pixel now.
+            followPosition();
+        }
     }
 
     private void updatePlaybackState(PlaybackStateCompat state) {
         if (state == null) {
             return;
         }
-        mLastPlaybackState = state;
+        PositionTicker.getInstance().setPlaybackState(state);
         MediaControllerCompat controllerCompat =
                 MediaControllerCompat.getMediaController(FullScreenPlayerActivity.this);
         if (controllerCompat != null && controllerCompat.getExtras() != null) {
@@ -402,27 +383,23 @@ public class FullScreenPlayerActivity extends ActionBarCastActivity
                 mPlayPause.setVisibility(VISIBLE);
                 mPlayPause.setImageDrawable(mPauseDrawable);
                 mControllers.setVisibility(VISIBLE);
-                scheduleSeekbarUpdate();
                 break;
             case PlaybackStateCompat.STATE_PAUSED:
                 mControllers.setVisibility(VISIBLE);
                 mLoading.setVisibility(INVISIBLE);
                 mPlayPause.setVisibility(VISIBLE);
                 mPlayPause.setImageDrawable(mPlayDrawable);
-                stopSeekbarUpdate();
                 break;
             case PlaybackStateCompat.STATE_NONE:
             case PlaybackStateCompat.STATE_STOPPED:
                 mLoading.setVisibility(INVISIBLE);
                 mPlayPause.setVisibility(VISIBLE);
                 mPlayPause.setImageDrawable(mPlayDrawable);
-                stopSeekbarUpdate();
                 break;
             case PlaybackStateCompat.STATE_BUFFERING:
                 mPlayPause.setVisibility(INVISIBLE);
                 mLoading.setVisibility(VISIBLE);
                 mLine3.setText(R.string.loading);
-                stopSeekbarUpdate();
                 break;
             default:
                 LogHelper.d(TAG, "Unhandled state ", state.getState());
@@ -434,23 +411,6 @@ public class FullScreenPlayerActivity extends ActionBarCastActivity
                 ? INVISIBLE : VISIBLE);
     }
 
-    private void updateProgress() {
-        if (mLastPlaybackState == null) {
-            return;
-        }
-        long currentPosition = mLastPlaybackState.getPosition();
-        if (mLastPlaybackState.getState() == PlaybackStateCompat.STATE_PLAYING) {
-            // Calculate the elapsed time between the last position update and now and unless
-            // paused, we can assume (delta * speed) + current position is approximately the
-            // latest position. This ensure that we do not repeatedly call the getPlaybackState()
-            // on MediaControllerCompat.
-            long timeDelta = SystemClock.elapsedRealtime() -
-                    mLastPlaybackState.getLastPositionUpdateTime();
-            currentPosition += (int) timeDelta * mLastPlaybackState.getPlaybackSpeed();
-        }
-        mSeekbar.setProgress((int) currentPosition);
-    }
-
     private void initBannerAd() {
         adMobAd.initAd(findViewById(R.id.ads_container));
         adMobAd.showAd(Settings.isAdsActive);
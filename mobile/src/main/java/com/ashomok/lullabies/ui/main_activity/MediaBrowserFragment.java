@@ -36,6 +36,7 @@ import android.widget.TextView;
 import androidx.annotation.NonNull;
 
 import com.ashomok.lullabies.R;
+import com.ashomok.lullabies.model.Catalog;
 import com.ashomok.lullabies.tools.CirclesViewPagerPageIndicatorView;
 import com.ashomok.lullabies.tools.ClickableViewPager;
 import com.ashomok.lullabies.ui.MyViewPagerAdapter;
@@ -44,13 +45,11 @@ import com.ashomok.lullabies.utils.MediaIDHelper;
 import com.ashomok.lullabies.utils.NetworkHelper;
 import com.ashomok.lullabies.utils.rate_app.RateAppAskerImpl;
 
-import java.util.List;
-
 import javax.inject.Inject;
 
 import dagger.android.support.DaggerFragment;
 import io.reactivex.Completable;
-import io.reactivex.schedulers.Schedulers;
+import io.reactivex.disposables.Disposable;
 
 import static android.view.View.VISIBLE;
 
@@ -81,6 +80,11 @@ public class MediaBrowserFragment extends DaggerFragment {
     @Inject
     RateAppAskerImpl rateAppAsker; //todo inject interface instead
 
+    @Inject
+    Catalog mCatalog;
+
+    private Disposable mLoadDisposable;
+
     // Receive callbacks from the MediaController. Here we update our state such as which queue
     // is being shown, the current title and description and the PlaybackState.
     private final MediaControllerCompat.Callback mMediaControllerCallback =
@@ -93,7 +97,7 @@ public class MediaBrowserFragment extends DaggerFragment {
                     }
                     LogHelper.d(TAG, "Received metadata change to media ",
                             metadata.getDescription().getMediaId());
-                    mBrowserAdapter.notifyDataSetChanged();
+                    mBrowserAdapter.updatePageStates();
                 }
 
                 @Override
@@ -101,45 +105,28 @@ public class MediaBrowserFragment extends DaggerFragment {
                     super.onPlaybackStateChanged(state);
                     LogHelper.d(TAG, "Received state change: ", state);
                     checkForUserVisibleErrors(false);
-                    mBrowserAdapter.notifyDataSetChanged();
+                    mBrowserAdapter.updatePageStates();
                     updateLoadingView(state);
                 }
             };
 
-    Completable loadMediaComplatable = Completable.create(emitter ->
-            mMediaFragmentListener.getMediaBrowser().subscribe(mMediaId,
-                    new MediaBrowserCompat.SubscriptionCallback() {
-                        @Override
-                        public void onChildrenLoaded(@NonNull String parentId,
-                                                     @NonNull List<MediaBrowserCompat.MediaItem> children) {
-                            try {
-                                LogHelper.d(TAG, "fragment onChildrenLoaded, parentId=" + parentId +
-                                        "  count=" + children.size());
-                                checkForUserVisibleErrors(children.isEmpty());
-
-                                if (mBrowserAdapter == null) {
-                                    LogHelper.e(TAG, "mBrowserAdapter == null - unexpected");
-                                }
-
-                                mBrowserAdapter.clear();
-                                for (MediaBrowserCompat.MediaItem item : children) {
-                                    mBrowserAdapter.add(item);
-                                }
-                                mBrowserAdapter.notifyDataSetChanged();
-
-                                emitter.onComplete();
-                            } catch (Throwable t) {
-                                LogHelper.e(TAG, "Error on childrenloaded ", t);
-                                emitter.onError(t);
-                            }
-                        }
+    // Read in process, with no round trip through the MusicService binder.
+    Completable loadMediaComplatable = Completable.defer(() ->
+            mCatalog.getChildren(mMediaId)
+                    .doOnSuccess(children -> {
+                        LogHelper.d(TAG, "fragment onChildrenLoaded, parentId=" + mMediaId +
+                                "  count=" + children.size());
+                        checkForUserVisibleErrors(children.isEmpty());
 
-                        @Override
-                        public void onError(@NonNull String id) {
-                            LogHelper.e(TAG, "browse fragment subscription onError, id=" + id);
-                            emitter.onError(new Exception(id));
+                        if (mBrowserAdapter == null) {
+                            LogHelper.e(TAG, "mBrowserAdapter == null - unexpected");
                         }
-                    }));
+
+                        mBrowserAdapter.clear();
+                        mBrowserAdapter.addAll(children);
+                        mBrowserAdapter.updatePageStates();
+                    })
+                    .ignoreElement());
 
     @Override
     public void onAttach(Activity activity) {
@@ -175,6 +162,7 @@ public class MediaBrowserFragment extends DaggerFragment {
         //init pager
         viewPager = rootView.findViewById(R.id.pager);
         viewPager.setAdapter(mBrowserAdapter);
+        mBrowserAdapter.preInflatePages(viewPager);
 
         viewPager.setOnItemClickListener(position -> {
             Log.d(TAG, "onPageClicked, position " + position);
@@ -213,9 +201,9 @@ public class MediaBrowserFragment extends DaggerFragment {
     @Override
     public void onStop() {
         super.onStop();
-        MediaBrowserCompat mediaBrowser = mMediaFragmentListener.getMediaBrowser();
-        if (mediaBrowser != null && mediaBrowser.isConnected() && mMediaId != null) {
-            mediaBrowser.unsubscribe(mMediaId);
+        if (mLoadDisposable != null) {
+            mLoadDisposable.dispose();
+            mLoadDisposable = null;
         }
         MediaControllerCompat controller = MediaControllerCompat.getMediaController(getActivity());
         if (controller != null) {
@@ -253,20 +241,10 @@ public class MediaBrowserFragment extends DaggerFragment {
         }
         updateTitle();
 
-        loadMediaComplatable
-                .doOnSubscribe(disposable -> {
-                    // Unsubscribing before subscribing is required if this mediaId already has a subscriber
-                    // on this MediaBrowser instance. Subscribing to an already subscribed mediaId will replace
-                    // the callback, but won't trigger the initial callback.onChildrenLoaded.
-                    //
-                    // This is temporary: A bug is being fixed that will make subscribe
-                    // consistently call onChildrenLoaded initially, no matter if it is replacing an existing
-                    // subscriber or not. Currently this only happens if the mediaID has no previous
-                    // subscriber or if the media content changes on the service side, so we need to
-                    // unsubscribe first.
-                    mMediaFragmentListener.getMediaBrowser().unsubscribe(mMediaId);
-                })
-                .subscribeOn(Schedulers.io())
+        if (mLoadDisposable != null) {
+            mLoadDisposable.dispose();
+        }
+        mLoadDisposable = loadMediaComplatable
                 .subscribe(() -> {
                     LogHelper.d(TAG, "complatable finished");
                     progressBar.setVisibility(View.GONE);
@@ -49,7 +49,6 @@ import androidx.viewpager.widget.ViewPager;
 import com.ashomok.lullabies.R;
 import com.ashomok.lullabies.Settings;
 import com.ashomok.lullabies.ad.AdMobAd;
-import com.ashomok.lullabies.ad.AdMobNativeBannerAd;
 import com.ashomok.lullabies.billing_kotlin.localdb.AugmentedSkuDetails;
 import com.ashomok.lullabies.ui.BaseActivity;
 import com.ashomok.lullabies.ui.ExitDialogFragment;
@@ -59,6 +58,7 @@ import com.ashomok.lullabies.utils.FirebaseAnalyticsHelper;
 import com.ashomok.lullabies.utils.InfoSnackbarUtil;
 import com.ashomok.lullabies.utils.LogHelper;
 import com.ashomok.lullabies.utils.NetworkHelper;
+import com.ashomok.lullabies.utils.StartupOrchestrator;
 import com.ashomok.lullabies.utils.rate_app.RateAppUtil;
 import com.google.android.material.navigation.NavigationView;
 
@@ -66,7 +66,7 @@ import java.util.List;
 
 import javax.inject.Inject;
 
-import io.reactivex.schedulers.Schedulers;
+import dagger.Lazy;
 
 import static android.view.Menu.NONE;
 
@@ -104,14 +104,12 @@ public class MusicPlayerActivity extends BaseActivity implements MediaFragmentLi
 
     private Bundle mVoiceSearchParams;
 
-    @Inject
-    public AdMobNativeBannerAd adProvider;
-
     @Inject
     MusicPlayerPresenter mPresenter;
 
+    // Created after the first frame, since creating it initializes the ads SDK.
     @Inject
-    AdMobAd adMobAd;
+    Lazy<AdMobAd> adMobAd;
 
     @Inject
     FirebaseAnalyticsHelper firebaseAnalyticsHelper;
@@ -122,6 +120,7 @@ public class MusicPlayerActivity extends BaseActivity implements MediaFragmentLi
     private DrawerLayout mDrawerLayout;
     private NavigationView navigationView;
     private List<MediaBrowserCompat.MediaItem> categories;
+    private StartupOrchestrator mStartup;
 
     @Override
     public void onCreate(Bundle savedInstanceState) {
@@ -143,24 +142,29 @@ public class MusicPlayerActivity extends BaseActivity implements MediaFragmentLi
             startFullScreenActivityIfNeeded(getIntent());
         }
 
-        initAd();
+        // Neither the ad nor billing is needed for the first frame. Billing may show or hide
+        // the ad, so the ad goes first.
+        mStartup = new StartupOrchestrator("MusicPlayerActivity");
+        StartupOrchestrator.Component<Void> ad = mStartup.add("Ad",
+                StartupOrchestrator.Mode.AFTER_FIRST_FRAME, false, () -> {
+                    initAd();
+                    return null;
+                });
+        mStartup.add("Billing", StartupOrchestrator.Mode.AFTER_FIRST_FRAME, false, () -> {
+            mPresenter.initBilling();
+            return null;
+        }, ad);
+        mStartup.startAfterFirstFrame(getWindow().getDecorView());
+    }
+
+    @Override
+    protected void onDestroy() {
+        mStartup.cancel();
+        super.onDestroy();
     }
 
     private void initMediaBrowserLoader(String mediaId) {
-        mPresenter.initMediaBrowserLoader(INIT_MEDIA_ID_VALUE_ROOT, getMediaBrowser())
-                .doOnSubscribe(disposable -> {
-                    // Unsubscribing before subscribing is required if this mediaId already has a subscriber
-                    // on this MediaBrowser instance. Subscribing to an already subscribed mediaId will replace
-                    // the callback, but won't trigger the initial callback.onChildrenLoaded.
-                    //
-                    // This is temporary: A bug is being fixed that will make subscribe
-                    // consistently call onChildrenLoaded initially, no matter if it is replacing an existing
-                    // subscriber or not. Currently this only happens if the mediaID has no previous
-                    // subscriber or if the media content changes on the service side, so we need to
-                    // unsubscribe first.
-                    getMediaBrowser().unsubscribe(INIT_MEDIA_ID_VALUE_ROOT);
-                })
-                .subscribeOn(Schedulers.io())
+        mPresenter.initMediaBrowserLoader(INIT_MEDIA_ID_VALUE_ROOT)
                 .subscribe(mediaItems -> {
                     browseMedia(mediaId);
                 }, throwable -> {
@@ -418,7 +422,7 @@ public class MusicPlayerActivity extends BaseActivity implements MediaFragmentLi
     }
 
     private void initAd() {
-        adMobAd.initAd(findViewById(R.id.ads_container));
+        adMobAd.get().initAd(findViewById(R.id.ads_container));
     }
 
     @Override
@@ -438,7 +442,7 @@ public class MusicPlayerActivity extends BaseActivity implements MediaFragmentLi
 
     @Override
     public void updateViewForAd(boolean isAdsActive) {
-        adMobAd.showAd(isAdsActive);
+        adMobAd.get().showAd(isAdsActive);
         invalidateOptionsMenu();
     }
 
@@ -40,9 +40,13 @@ public class MusicPlayerContract {
 
         void proposeRemoveAds();
 
-        Single<List<MediaBrowserCompat.MediaItem>> initMediaBrowserLoader(
-                String rootMediaId, MediaBrowserCompat mediaBrowser);
+        Single<List<MediaBrowserCompat.MediaItem>> initMediaBrowserLoader(String rootMediaId);
 
         void rateApp();
+
+        /**
+         * Connect to billing, once the view is shown.
+         */
+        void initBilling();
     }
 }
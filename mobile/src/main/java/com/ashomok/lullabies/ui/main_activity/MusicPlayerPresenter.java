@@ -2,7 +2,6 @@ package com.ashomok.lullabies.ui.main_activity;
 
 import android.support.v4.media.MediaBrowserCompat;
 
-import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
 import androidx.appcompat.app.AppCompatActivity;
 import androidx.lifecycle.Observer;
@@ -14,6 +13,7 @@ import com.ashomok.lullabies.billing_kotlin.BillingRepository;
 import com.ashomok.lullabies.billing_kotlin.localdb.AdsFreeForever;
 import com.ashomok.lullabies.billing_kotlin.localdb.AugmentedSkuDetails;
 import com.ashomok.lullabies.billing_kotlin.viewmodels.BillingViewModel;
+import com.ashomok.lullabies.model.Catalog;
 import com.ashomok.lullabies.utils.LogHelper;
 import com.ashomok.lullabies.utils.NetworkHelper;
 import com.ashomok.lullabies.utils.rate_app.RateAppUtil;
@@ -32,9 +32,11 @@ public class MusicPlayerPresenter implements MusicPlayerContract.Presenter {
     private BillingViewModel billingViewModel;
     private AugmentedSkuDetails removeAdsSkuRow;
     private AppCompatActivity activity; //todo why not simple Activity?
+    private final Catalog catalog;
 
     @Inject
-    MusicPlayerPresenter() {
+    MusicPlayerPresenter(Catalog catalog) {
+        this.catalog = catalog;
     }
 
     @Override
@@ -73,7 +75,12 @@ public class MusicPlayerPresenter implements MusicPlayerContract.Presenter {
     private void init() {
         if (view != null) {
             activity = view.getActivity();
+        }
+    }
 
+    @Override
+    public void initBilling() {
+        if (view != null && activity != null) {
             billingViewModel = ViewModelProviders.of(activity).get(BillingViewModel.class); //todo fix deprecated https://startandroid.ru/ru/courses/architecture-components/27-course/architecture-components/527-urok-4-viewmodel.html
 
             billingViewModel.
@@ -111,32 +118,17 @@ public class MusicPlayerPresenter implements MusicPlayerContract.Presenter {
     }
 
     @Override
-    public Single<List<MediaBrowserCompat.MediaItem>> initMediaBrowserLoader(
-            String rootMediaId, MediaBrowserCompat mediaBrowser) {
-        return Single.create(emitter -> mediaBrowser.subscribe(rootMediaId,
-                        new MediaBrowserCompat.SubscriptionCallback() {
-                            @Override
-                            public void onChildrenLoaded(@NonNull String parentId,
-                                                         @NonNull List<MediaBrowserCompat.MediaItem> children) {
-                                try {
-                                    LogHelper.d(TAG, "onChildrenLoaded, parentId=" + parentId +
-                                            "  count=" + children.size());
-                                    checkForUserVisibleErrors(children.isEmpty());
-                                    if (view != null) {
-                                        view.addMenuItems(children);
-                                    }
-                                    emitter.onSuccess(children);
-                                } catch (Throwable t) {
-                                    LogHelper.e(TAG, "Error on childrenloaded ", t);
-                                    emitter.onError(t);
-                                }
-                            }
-                            @Override
-                            public void onError(@NonNull String id) {
-                                LogHelper.e(TAG, "browse fragment subscription onError, id=" + id);
-                                emitter.onError(new Exception(id));
-                            }
-                        }));
+    public Single<List<MediaBrowserCompat.MediaItem>> initMediaBrowserLoader(String rootMediaId) {
+        // Read in process, with no round trip through the MusicService binder.
+        return catalog.getChildren(rootMediaId)
+                .doOnSuccess(children -> {
+                    LogHelper.d(TAG, "onChildrenLoaded, parentId=" + rootMediaId +
+                            "  count=" + children.size());
+                    checkForUserVisibleErrors(children.isEmpty());
+                    if (view != null) {
+                        view.addMenuItems(children);
+                    }
+                });
     }
 
     @Override
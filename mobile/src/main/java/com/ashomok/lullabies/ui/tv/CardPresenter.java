@@ -83,6 +83,7 @@ public class CardPresenter extends Presenter {
         final CardViewHolder cardViewHolder = (CardViewHolder) viewHolder;
         cardViewHolder.setState(MediaItemStateHelper.STATE_NONE);
         cardViewHolder.setBadgeImage(null);
+        cardViewHolder.unbind();
     }
 
     @Override
@@ -32,6 +32,7 @@ import android.support.v4.media.MediaDescriptionCompat;
 import android.view.View;
 
 import androidx.annotation.NonNull;
+import androidx.collection.SimpleArrayMap;
 import androidx.leanback.widget.ImageCardView;
 import androidx.leanback.widget.Presenter;
 
@@ -47,6 +48,10 @@ public class CardViewHolder extends Presenter.ViewHolder {
     private final ImageCardView mCardView;
     private int mItemState;
 
+    // The album art being fetched for the card, if any.
+    private String mArtUrl;
+    private AlbumArtCache.FetchListener mArtListener;
+
     public CardViewHolder(View view) {
         super(view);
         mCardView = (ImageCardView) view;
@@ -84,6 +89,8 @@ public class CardViewHolder extends Presenter.ViewHolder {
      *
      **/
     public void setupCardView(final Context context, MediaDescriptionCompat description) {
+        // A holder that is bound again without being unbound drops its previous image first.
+        cancelArtFetch();
         mCardView.setTitleText(description.getTitle());
         mCardView.setContentText(description.getSubtitle());
         mCardView.setMainImageDimensions(CARD_WIDTH, CARD_HEIGHT);
@@ -99,33 +106,78 @@ public class CardViewHolder extends Presenter.ViewHolder {
             // IconUri potentially has a better resolution than iconBitmap.
             String artUrl = artUri.toString();
             AlbumArtCache cache = AlbumArtCache.getInstance();
-            if (cache.getBigImage(artUrl) != null) {
+            Bitmap art = cache.getImage(artUrl, CARD_WIDTH, CARD_HEIGHT);
+            if (art != null) {
                 // So, we use it immediately if it's cached:
-                setCardImage(context, cache.getBigImage(artUrl));
+                setCardImage(context, art);
             } else {
                 // Otherwise, we use iconBitmap if available while we wait for iconURI
                 setCardImage(context, description.getIconBitmap());
-                cache.fetch(artUrl, new AlbumArtCache.FetchListener() {
+                mArtUrl = artUrl;
+                mArtListener = new AlbumArtCache.FetchListener() {
                     @Override
                     public void onFetched(String artUrl, Bitmap bitmap, Bitmap icon) {
+                        if (mArtListener != this) {
+                            // The holder was unbound or bound to another item since.
+                            return;
+                        }
+                        mArtUrl = null;
+                        mArtListener = null;
                         setCardImage(context, bitmap);
                     }
-                });
+
+                    @Override
+                    public void onError(String artUrl, Exception e) {
+                        if (mArtListener == this) {
+                            mArtUrl = null;
+                            mArtListener = null;
+                        }
+                    }
+                };
+                cache.fetch(artUrl, CARD_WIDTH, CARD_HEIGHT, mArtListener);
             }
         }
     }
 
+    /**
+     * Release the view in this holder once it does not represent its item anymore: its album art
+     * is not loaded for it anymore, unless another card still waits for it.
+     */
+    public void unbind() {
+        cancelArtFetch();
+        mCardView.setMainImage(null);
+    }
+
+    private void cancelArtFetch() {
+        if (mArtListener != null) {
+            AlbumArtCache.getInstance().cancel(mArtUrl, CARD_WIDTH, CARD_HEIGHT, mArtListener);
+            mArtUrl = null;
+            mArtListener = null;
+        }
+    }
+
     private void setCardImage(Context context, Bitmap art) {
         if (mCardView == null) {
             return;
         }
         Drawable artDrawable = null;
+        Drawable current = mCardView.getMainImage();
         if (art != null) {
+            if (current instanceof BitmapDrawable
+                    && ((BitmapDrawable) current).getBitmap() == art) {
+                // Bound again to the same album art.
+                return;
+            }
             artDrawable = new BitmapDrawable(context.getResources(), art);
         } else {
             CharSequence title = mCardView.getTitleText();
             if (title != null && title.length() > 0) {
-                artDrawable = new TextDrawable(String.valueOf(title.charAt(0)));
+                String letter = String.valueOf(title.charAt(0));
+                if (current instanceof TextDrawable
+                        && ((TextDrawable) current).state.text.equals(letter)) {
+                    return;
+                }
+                artDrawable = TextDrawable.forLetter(letter);
             }
         }
         mCardView.setMainImage(artDrawable);
@@ -134,47 +186,93 @@ public class CardViewHolder extends Presenter.ViewHolder {
     /**
      * Simple drawable that draws a text (letter, in this case). Used with the media title when
      * the MediaDescription has no corresponding album art.
+     * <p>
+     * The drawables of a letter share its state, paint included, which is kept once created: the
+     * alpha and color filter of each drawable are applied to the paint as it draws.
      */
     private static class TextDrawable extends Drawable {
 
-        private final String text;
-        private final Paint paint;
-
-        public TextDrawable(String text) {
-            this.text = text;
-            this.paint = new Paint();
-            paint.setColor(Color.WHITE);
-            paint.setTextSize(280f);
-            paint.setAntiAlias(true);
-            paint.setFakeBoldText(true);
-            paint.setStyle(Paint.Style.FILL);
-            paint.setTextAlign(Paint.Align.CENTER);
+        // By letter. Main thread only.
+        private static final SimpleArrayMap<String, TextState> sStates = new SimpleArrayMap<>();
+
+        private final TextState state;
+        private int alpha = 255;
+        private ColorFilter colorFilter;
+
+        static TextDrawable forLetter(String letter) {
+            TextState state = sStates.get(letter);
+            if (state == null) {
+                state = new TextState(letter);
+                sStates.put(letter, state);
+            }
+            return new TextDrawable(state);
+        }
+
+        private TextDrawable(TextState state) {
+            this.state = state;
         }
 
         @Override
         public void draw(@NonNull Canvas canvas) {
+            Paint paint = state.paint;
+            paint.setAlpha(alpha);
+            paint.setColorFilter(colorFilter);
             Rect r = getBounds();
             int count = canvas.save();
             canvas.translate(r.left, r.top);
             float midW = r.width() / 2;
             float midH = r.height() / 2 - ((paint.descent() + paint.ascent()) / 2);
-            canvas.drawText(text, midW, midH, paint);
+            canvas.drawText(state.text, midW, midH, paint);
             canvas.restoreToCount(count);
         }
 
         @Override
         public void setAlpha(int alpha) {
-            paint.setAlpha(alpha);
+            this.alpha = alpha;
+            invalidateSelf();
         }
 
         @Override
         public void setColorFilter(ColorFilter cf) {
-            paint.setColorFilter(cf);
+            this.colorFilter = cf;
+            invalidateSelf();
         }
 
         @Override
         public int getOpacity() {
             return PixelFormat.TRANSLUCENT;
         }
+
+        @Override
+        public ConstantState getConstantState() {
+            return state;
+        }
+
+        private static final class TextState extends ConstantState {
+            final String text;
+            final Paint paint;
+
+            TextState(String text) {
+                this.text = text;
+                this.paint = new Paint();
+                paint.setColor(Color.WHITE);
+                paint.setTextSize(280f);
+                paint.setAntiAlias(true);
+                paint.setFakeBoldText(true);
+                paint.setStyle(Paint.Style.FILL);
+                paint.setTextAlign(Paint.Align.CENTER);
+            }
+
+            @NonNull
+            @Override
+            public Drawable newDrawable() {
+                return new TextDrawable(this);
+            }
+
+            @Override
+            public int getChangingConfigurations() {
+                return 0;
+            }
+        }
     }
-}
\ No newline at end of file
+}
@@ -27,8 +27,13 @@ import androidx.fragment.app.FragmentActivity;
 
 import com.ashomok.lullabies.MusicService;
 import com.ashomok.lullabies.R;
+import com.ashomok.lullabies.model.Catalog;
 import com.ashomok.lullabies.utils.LogHelper;
 
+import javax.inject.Inject;
+
+import dagger.android.AndroidInjection;
+
 /**
  * Main activity for the Android TV user interface.
  */
@@ -39,6 +44,9 @@ public class TvBrowseActivity extends FragmentActivity
     public static final String SAVED_MEDIA_ID="com.ashomok.lullabies.MEDIA_ID";
     public static final String BROWSE_TITLE = "com.ashomok.lullabies.BROWSE_TITLE";
 
+    @Inject
+    Catalog mCatalog;
+
     private MediaBrowserCompat mMediaBrowser;
 
     private String mMediaId;
@@ -46,6 +54,7 @@ public class TvBrowseActivity extends FragmentActivity
 
     @Override
     public void onCreate(Bundle savedInstanceState) {
+        AndroidInjection.inject(this);
         super.onCreate(savedInstanceState);
         LogHelper.d(TAG, "Activity onCreate");
 
@@ -104,6 +113,11 @@ public class TvBrowseActivity extends FragmentActivity
         return mMediaBrowser;
     }
 
+    @Override
+    public Catalog getCatalog() {
+        return mCatalog;
+    }
+
     private final MediaBrowserCompat.ConnectionCallback mConnectionCallback =
             new MediaBrowserCompat.ConnectionCallback() {
                 @Override
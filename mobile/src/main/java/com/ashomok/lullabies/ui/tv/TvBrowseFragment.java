@@ -36,13 +36,16 @@ import androidx.leanback.widget.Row;
 import androidx.leanback.widget.RowPresenter;
 
 import com.ashomok.lullabies.R;
+import com.ashomok.lullabies.model.Catalog;
 import com.ashomok.lullabies.utils.LogHelper;
+import com.ashomok.lullabies.utils.MediaIDHelper;
 import com.ashomok.lullabies.utils.QueueHelper;
 
-import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
 
+import io.reactivex.disposables.CompositeDisposable;
+
 import static android.support.v4.media.MediaBrowserCompat.MediaItem;
 
 /**
@@ -61,9 +64,9 @@ import static android.support.v4.media.MediaBrowserCompat.MediaItem;
  * <p/>
  * <p/>
  * It uses a {@link android.support.v4.media.MediaBrowserCompat} to connect to the {@link com.ashomok.lullabies.MusicService}.
- * Once connected, the fragment subscribes to get the children of level 1 and then, for each
- * children, it adds a ListRow and subscribes for its children, which, when received, are
- * added to the ListRow. These items (like "Rock"), when clicked, will open a
+ * Once connected, the fragment reads the children of level 1 from the in-process {@link Catalog}
+ * and then, for each children, it adds a ListRow and reads its children, which, when received,
+ * are added to the ListRow. These items (like "Rock"), when clicked, will open a
  * TvVerticalGridActivity that lists all songs of the specified category on a grid-like UI.
  * <p/>
  * This fragment also shows the MediaSession queue ("now playing" list), in case there is
@@ -73,12 +76,15 @@ public class TvBrowseFragment extends BrowseSupportFragment {
 
     private static final String TAG = LogHelper.makeLogTag(TvBrowseFragment.class);
 
+    // Cards each row gets along with the rows, in the same request.
+    private static final int ROW_PAGE_SIZE = 25;
+
     private ArrayObjectAdapter mRowsAdapter;
     private ArrayObjectAdapter mListRowAdapter;
     private MediaFragmentListener mMediaFragmentListener;
 
     private MediaBrowserCompat mMediaBrowser;
-    private HashSet<String> mSubscribedMediaIds;
+    private final CompositeDisposable mLoads = new CompositeDisposable();
 
     // Receive callbacks from the MediaController. Here we update our state such as which queue
     // is being shown, the current title and description and the PlaybackState.
@@ -150,10 +156,13 @@ public class TvBrowseFragment extends BrowseSupportFragment {
                         ArrayObjectAdapter listRowAdapter = new ArrayObjectAdapter(cardPresenter);
                         mRowsAdapter.add(new ListRow(header, listRowAdapter));
 
+                        List<MediaItem> rowItems = MediaIDHelper.getEmbeddedChildren(item);
                         if (item.isPlayable()) {
                             listRowAdapter.add(item);
+                        } else if (item.isBrowsable() && rowItems != null) {
+                            listRowAdapter.addAll(0, rowItems);
                         } else if (item.isBrowsable()) {
-                            subscribeToMediaId(item.getMediaId(),
+                            subscribeToMediaId(item.getMediaId(), 0,
                                     new RowSubscriptionCallback(listRowAdapter));
                         } else {
                             LogHelper.e(TAG, "Item should be playable or browsable.");
@@ -220,8 +229,6 @@ public class TvBrowseFragment extends BrowseSupportFragment {
         super.onActivityCreated(savedInstanceState);
         LogHelper.d(TAG, "onActivityCreated");
 
-        mSubscribedMediaIds = new HashSet<>();
-
         // set search icon color
         setSearchAffordanceColor(getResources().getColor(R.color.tv_search_button));
 
@@ -292,12 +299,7 @@ public class TvBrowseFragment extends BrowseSupportFragment {
     @Override
     public void onStop() {
         super.onStop();
-        if (mMediaBrowser != null && mMediaBrowser.isConnected()) {
-            for (String mediaId : mSubscribedMediaIds) {
-                mMediaBrowser.unsubscribe(mediaId);
-            }
-            mSubscribedMediaIds.clear();
-        }
+        mLoads.clear();
         MediaControllerCompat mediaController = MediaControllerCompat.getMediaController(getActivity());
         if (mediaController != null) {
             mediaController.unregisterCallback(mMediaControllerCallback);
@@ -319,7 +321,8 @@ public class TvBrowseFragment extends BrowseSupportFragment {
             mediaId = mMediaBrowser.getRoot();
         }
 
-        subscribeToMediaId(mediaId, mSubscriptionCallback);
+        // The rows come with their first cards, so the whole screen fills from one load.
+        subscribeToMediaId(mediaId, ROW_PAGE_SIZE, mSubscriptionCallback);
 
         // Add MediaController callback so we can redraw the list when metadata changes:
         MediaControllerCompat mediaController = MediaControllerCompat.getMediaController(getActivity());
@@ -328,17 +331,17 @@ public class TvBrowseFragment extends BrowseSupportFragment {
         }
     }
 
-    private void subscribeToMediaId(String mediaId, MediaBrowserCompat.SubscriptionCallback callback) {
-        if (mSubscribedMediaIds.contains(mediaId)) {
-            mMediaBrowser.unsubscribe(mediaId);
-        } else {
-            mSubscribedMediaIds.add(mediaId);
-        }
-        mMediaBrowser.subscribe(mediaId, callback);
+    private void subscribeToMediaId(String mediaId, int childrenPageSize,
+                                    MediaBrowserCompat.SubscriptionCallback callback) {
+        // Read in process, with no round trip through the MusicService binder.
+        mLoads.add(mMediaFragmentListener.getCatalog()
+                .loadChildren(mediaId, childrenPageSize, callback));
     }
 
     public interface MediaFragmentListener {
         MediaBrowserCompat getMediaBrowser();
+
+        Catalog getCatalog();
     }
 
 }
@@ -20,8 +20,6 @@ import android.graphics.drawable.BitmapDrawable;
 import android.graphics.drawable.Drawable;
 import android.net.Uri;
 import android.os.Bundle;
-import android.os.Handler;
-import android.os.SystemClock;
 import android.support.v4.media.MediaMetadataCompat;
 import android.support.v4.media.session.MediaControllerCompat;
 import android.support.v4.media.session.MediaSessionCompat;
@@ -47,8 +45,10 @@ import androidx.leanback.widget.PlaybackControlsRowPresenter;
 import androidx.leanback.widget.Presenter;
 import androidx.leanback.widget.Row;
 import androidx.leanback.widget.RowPresenter;
+import androidx.lifecycle.Lifecycle;
 
 import com.ashomok.lullabies.AlbumArtCache;
+import com.ashomok.lullabies.ui.PositionTicker;
 import com.ashomok.lullabies.utils.LogHelper;
 import com.ashomok.lullabies.utils.QueueHelper;
 
@@ -61,8 +61,6 @@ public class TvPlaybackFragment extends PlaybackSupportFragment {
     private static final String TAG = LogHelper.makeLogTag(TvPlaybackFragment.class);
 
     private static final int BACKGROUND_TYPE = PlaybackSupportFragment.BG_DARK;
-    private static final int DEFAULT_UPDATE_PERIOD = 1000;
-    private static final int UPDATE_PERIOD = 16;
 
     private ArrayObjectAdapter mRowsAdapter;
     private ArrayObjectAdapter mPrimaryActionsAdapter;
@@ -72,11 +70,11 @@ public class TvPlaybackFragment extends PlaybackSupportFragment {
     private PlaybackControlsRow mPlaybackControlsRow;
     private List <MediaSessionCompat.QueueItem> mPlaylistQueue;
     private int mDuration;
-    private Handler mHandler;
-    private Runnable mRunnable;
-
-    private long mLastPosition;
-    private long mLastPositionUpdateTime;
+    private final PositionTicker.Listener mPositionListener = position -> {
+        if (mPlaybackControlsRow != null) {
+            mPlaybackControlsRow.setCurrentTime((int) Math.min(mDuration, position));
+        }
+    };
 
     private BackgroundManager mBackgroundManager;
     private ArrayObjectAdapter mListRowAdapter;
@@ -91,7 +89,6 @@ public class TvPlaybackFragment extends PlaybackSupportFragment {
 
         mBackgroundManager = BackgroundManager.getInstance(getActivity());
         mBackgroundManager.attach(getActivity().getWindow());
-        mHandler = new Handler();
         mListRowAdapter = new ArrayObjectAdapter(new CardPresenter(getActivity()));
         mPresenterSelector = new ClassPresenterSelector();
         mRowsAdapter = new ArrayObjectAdapter(mPresenterSelector);
@@ -218,36 +215,25 @@ public class TvPlaybackFragment extends PlaybackSupportFragment {
                 mRowsAdapter.indexOf(mPlaybackControlsRow), 1);
     }
 
-    private int getUpdatePeriod() {
-        if (getView() == null || mPlaybackControlsRow.getTotalTime() <= 0) {
-            return DEFAULT_UPDATE_PERIOD;
-        }
-        return Math.max(UPDATE_PERIOD, mPlaybackControlsRow.getTotalTime() / getView().getWidth());
+    @Override
+    public void onStart() {
+        super.onStart();
+        followPosition();
     }
 
-    protected void startProgressAutomation() {
-        if (mHandler != null && mRunnable != null) {
-            mHandler.removeCallbacks(mRunnable);
-        }
-        mRunnable = new Runnable() {
-            @Override
-            public void run() {
-                long elapsedTime = SystemClock.elapsedRealtime() - mLastPositionUpdateTime;
-                int currentPosition = Math.min(mDuration, (int) (mLastPosition + elapsedTime));
-                mPlaybackControlsRow.setCurrentTime(currentPosition);
-                mHandler.postDelayed(this, getUpdatePeriod());
-            }
-        };
-        mHandler.postDelayed(mRunnable, getUpdatePeriod());
-        setFadingEnabled(true);
+    @Override
+    public void onStop() {
+        super.onStop();
+        PositionTicker.getInstance().removeListener(mPositionListener);
     }
 
-    protected void stopProgressAutomation() {
-        if (mHandler != null && mRunnable != null) {
-            mHandler.removeCallbacks(mRunnable);
-            setFadingEnabled(false);
-        }
-        mPlaybackControlsRow.setCurrentTime((int) mLastPosition);
+    /**
+     * Move the progress bar along with playback, as finely as one pixel of it.
+     */
+    private void followPosition() {
+        int width = getView() != null ? getView().getWidth() : 0;
+        PositionTicker.getInstance().addListener(mPositionListener,
+                PositionTicker.resolutionFor(mDuration, width));
     }
 
     private void updateAlbumArt(Uri artUri) {
@@ -275,6 +261,10 @@ public class TvPlaybackFragment extends PlaybackSupportFragment {
         }
         mDuration = (int) metadata.getLong(MediaMetadataCompat.METADATA_KEY_DURATION);
         mPlaybackControlsRow.setTotalTime(mDuration);
+        if (getLifecycle().getCurrentState().isAtLeast(Lifecycle.State.STARTED)) {
+            // The progress bar stands for a different time per pixel now.
+            followPosition();
+        }
         ((MutableMediaMetadataHolder) mPlaybackControlsRow.getItem()).metadata = metadata;
         mRowsAdapter.notifyArrayItemRangeChanged(
                 mRowsAdapter.indexOf(mPlaybackControlsRow), 1);
@@ -286,15 +276,14 @@ public class TvPlaybackFragment extends PlaybackSupportFragment {
             // We only update playback state after we get a valid metadata.
             return;
         }
-        mLastPosition = state.getPosition();
-        mLastPositionUpdateTime = state.getLastPositionUpdateTime();
+        PositionTicker.getInstance().setPlaybackState(state);
         switch (state.getState()) {
             case PlaybackStateCompat.STATE_PLAYING:
-                startProgressAutomation();
+                setFadingEnabled(true);
                 mPlayPauseAction.setIndex(PlayPauseAction.PAUSE);
                 break;
             case PlaybackStateCompat.STATE_PAUSED:
-                stopProgressAutomation();
+                setFadingEnabled(false);
                 mPlayPauseAction.setIndex(PlayPauseAction.PLAY);
                 break;
         }
@@ -25,13 +25,22 @@ import androidx.fragment.app.FragmentActivity;
 
 import com.ashomok.lullabies.MusicService;
 import com.ashomok.lullabies.R;
+import com.ashomok.lullabies.model.Catalog;
 import com.ashomok.lullabies.utils.LogHelper;
 
+import javax.inject.Inject;
+
+import dagger.android.AndroidInjection;
+
 public class TvVerticalGridActivity extends FragmentActivity
         implements TvVerticalGridFragment.MediaFragmentListener {
 
     private static final String TAG = LogHelper.makeLogTag(TvVerticalGridActivity.class);
     public static final String SHARED_ELEMENT_NAME = "hero";
+
+    @Inject
+    Catalog mCatalog;
+
     private MediaBrowserCompat mMediaBrowser;
     private String mMediaId;
     private String mTitle;
@@ -39,6 +48,7 @@ public class TvVerticalGridActivity extends FragmentActivity
     @Override
     public void onCreate(Bundle savedInstanceState)
     {
+        AndroidInjection.inject(this);
         super.onCreate(savedInstanceState);
         setContentView(R.layout.tv_vertical_grid);
 
@@ -78,6 +88,11 @@ public class TvVerticalGridActivity extends FragmentActivity
         return mMediaBrowser;
     }
 
+    @Override
+    public Catalog getCatalog() {
+        return mCatalog;
+    }
+
     private final MediaBrowserCompat.ConnectionCallback mConnectionCallback =
             new MediaBrowserCompat.ConnectionCallback() {
                 @Override
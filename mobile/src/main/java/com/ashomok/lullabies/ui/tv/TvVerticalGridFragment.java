@@ -33,11 +33,14 @@ import androidx.leanback.widget.Row;
 import androidx.leanback.widget.RowPresenter;
 import androidx.leanback.widget.VerticalGridPresenter;
 
+import com.ashomok.lullabies.model.Catalog;
 import com.ashomok.lullabies.utils.LogHelper;
 import com.ashomok.lullabies.utils.MediaIDHelper;
 
 import java.util.List;
 
+import io.reactivex.disposables.Disposable;
+
 /*
  * VerticalGridFragment shows a grid of music songs
  */
@@ -49,6 +52,7 @@ public class TvVerticalGridFragment extends VerticalGridSupportFragment {
     private ArrayObjectAdapter mAdapter;
     private String mMediaId;
     private MediaFragmentListener mMediaFragmentListener;
+    private Disposable mLoadDisposable;
 
     @Override
     public void onCreate(Bundle savedInstanceState) {
@@ -81,23 +85,25 @@ public class TvVerticalGridFragment extends VerticalGridSupportFragment {
         }
         MediaBrowserCompat mediaBrowser = mMediaFragmentListener.getMediaBrowser();
 
-        // First, unsubscribe from old mediaId:
-        if (mMediaId != null) {
-            mediaBrowser.unsubscribe(mMediaId);
+        // First, stop loading the old mediaId:
+        if (mLoadDisposable != null) {
+            mLoadDisposable.dispose();
         }
         if (mediaId == null) {
             mediaId = mediaBrowser.getRoot();
         }
         mMediaId = mediaId;
-        mediaBrowser.subscribe(mMediaId, mSubscriptionCallback);
+        // Read in process, with no round trip through the MusicService binder.
+        mLoadDisposable = mMediaFragmentListener.getCatalog()
+                .loadChildren(mMediaId, 0, mSubscriptionCallback);
     }
 
     @Override
     public void onStop() {
         super.onStop();
-        MediaBrowserCompat mediaBrowser = mMediaFragmentListener.getMediaBrowser();
-        if (mediaBrowser != null && mediaBrowser.isConnected() && mMediaId != null) {
-            mediaBrowser.unsubscribe(mMediaId);
+        if (mLoadDisposable != null) {
+            mLoadDisposable.dispose();
+            mLoadDisposable = null;
         }
     }
 
@@ -109,6 +115,8 @@ public class TvVerticalGridFragment extends VerticalGridSupportFragment {
 
     public interface MediaFragmentListener {
         MediaBrowserCompat getMediaBrowser();
+
+        Catalog getCatalog();
     }
 
     private final class ItemViewClickedListener implements OnItemViewClickedListener {
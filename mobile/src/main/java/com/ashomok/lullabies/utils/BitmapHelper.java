@@ -17,14 +17,20 @@ package com.ashomok.lullabies.utils;
 
 import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.Paint;
+import android.os.Build;
 
 import com.ashomok.lullabies.AlbumArtCache;
 
 import java.io.BufferedInputStream;
+import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.net.URL;
 import java.net.URLConnection;
+import java.nio.channels.FileChannel;
 
 import javax.inject.Inject;
 
@@ -36,6 +42,12 @@ public class BitmapHelper {
     // Max read limit that we allow our input stream to mark/reset.
     private static final int MAX_READ_LIMIT_PER_IMG = 1024 * 1024;
 
+    // Keeps a size that is whole but for a floating point error from being rounded up.
+    private static final double COVER_ROUNDING_SLACK = 1e-6;
+
+    // Filtered, since album arts are scaled down by large factors for small views.
+    private static final Paint SCALE_PAINT = new Paint(Paint.FILTER_BITMAP_FLAG);
+
     public static Bitmap scaleBitmap(Bitmap src, int maxWidth, int maxHeight) {
         double scaleFactor = Math.min(
                 ((double) maxWidth) / src.getWidth(), ((double) maxHeight) / src.getHeight());
@@ -43,6 +55,51 @@ public class BitmapHelper {
                 (int) (src.getWidth() * scaleFactor), (int) (src.getHeight() * scaleFactor), false);
     }
 
+    /**
+     * Like {@link #scaleBitmap(Bitmap, int, int)}, but draws into a bitmap of the given config
+     * taken from the pool instead of allocating a copy.
+     */
+    public static Bitmap scaleBitmap(Bitmap src, int maxWidth, int maxHeight,
+                                     Bitmap.Config config, BitmapPool pool) {
+        double scaleFactor = Math.min(
+                ((double) maxWidth) / src.getWidth(), ((double) maxHeight) / src.getHeight());
+        return drawScaled(src, Math.max(1, (int) (src.getWidth() * scaleFactor)),
+                Math.max(1, (int) (src.getHeight() * scaleFactor)), config, pool);
+    }
+
+    /**
+     * Scale a bitmap down to the smallest size that covers width x height, keeping its aspect
+     * ratio, into a bitmap taken from the pool.
+     *
+     * @return the bitmap itself if it is not bigger than that size in the given config.
+     */
+    public static Bitmap scaleBitmapToCover(Bitmap src, int width, int height,
+                                            Bitmap.Config config, BitmapPool pool) {
+        double scaleFactor = Math.max(
+                ((double) width) / src.getWidth(), ((double) height) / src.getHeight());
+        if (scaleFactor >= 1 && src.getConfig() == config) {
+            return src;
+        }
+        scaleFactor = Math.min(1, scaleFactor);
+        return drawScaled(src,
+                Math.max(1, (int) Math.ceil(src.getWidth() * scaleFactor - COVER_ROUNDING_SLACK)),
+                Math.max(1, (int) Math.ceil(src.getHeight() * scaleFactor - COVER_ROUNDING_SLACK)),
+                config, pool);
+    }
+
+    private static Bitmap drawScaled(Bitmap src, int width, int height,
+                                     Bitmap.Config config, BitmapPool pool) {
+        Bitmap scaled = pool.get(width, height, config);
+        if (config != Bitmap.Config.RGB_565) {
+            // Pooled bitmaps keep their old pixels, which would show through transparent ones.
+            scaled.eraseColor(Color.TRANSPARENT);
+        }
+        Canvas canvas = new Canvas(scaled);
+        canvas.scale(((float) width) / src.getWidth(), ((float) height) / src.getHeight());
+        canvas.drawBitmap(src, 0, 0, SCALE_PAINT);
+        return scaled;
+    }
+
     public static Bitmap scaleBitmap(int scaleFactor, InputStream is) {
         // Get the dimensions of the bitmap
         BitmapFactory.Options bmOptions = new BitmapFactory.Options();
@@ -68,6 +125,17 @@ public class BitmapHelper {
 
     public static Bitmap fetchAndRescaleBitmap(String path, int width, int height)
             throws Exception {
+        return fetchAndRescaleBitmap(path, width, height, Bitmap.Config.ARGB_8888, null);
+    }
+
+    /**
+     * Decode the image at path, subsampled towards width x height, in the given config.
+     *
+     * @param pool if not null, the image is decoded into a bitmap taken from it.
+     */
+    public static Bitmap fetchAndRescaleBitmap(String path, int width, int height,
+                                               Bitmap.Config config, BitmapPool pool)
+            throws Exception {
         InputStream is = null;
         try {
             URL url;
@@ -79,16 +147,91 @@ public class BitmapHelper {
             }
             URLConnection urlConnection = url.openConnection();
             is = new BufferedInputStream(urlConnection.getInputStream());
-            is.mark(MAX_READ_LIMIT_PER_IMG);
-            int scaleFactor = findScaleFactor(width, height, is);
-            LogHelper.d(TAG, "Scaling bitmap ", path, " by factor ", scaleFactor,
+            LogHelper.d(TAG, "Scaling bitmap ", path,
                     " to support ", width, "x", height, "requested dimension");
-            is.reset();
-            return scaleBitmap(scaleFactor, is);
+            return decodeAndRescaleBitmap(is, width, height, config, pool);
         } finally {
             if (is != null) {
                 is.close();
             }
         }
     }
+
+    /**
+     * Decode an image subsampled by a power of two, but no smaller than width x height unless
+     * the image itself is, in the given config.
+     *
+     * @param is a stream that supports {@link InputStream#mark}.
+     * @param pool if not null, the image is decoded into a bitmap taken from it.
+     */
+    public static Bitmap decodeAndRescaleBitmap(final InputStream is, int width, int height,
+                                                Bitmap.Config config, BitmapPool pool)
+            throws IOException {
+        is.mark(MAX_READ_LIMIT_PER_IMG);
+        return decodeAndRescaleBitmap(options -> {
+            is.reset();
+            return BitmapFactory.decodeStream(is, null, options);
+        }, width, height, config, pool);
+    }
+
+    /**
+     * Like {@link #decodeAndRescaleBitmap(InputStream, int, int, Bitmap.Config, BitmapPool)},
+     * for an image that starts at an offset of a seekable file. The file is read in place, once
+     * for the bounds and once for the pixels, without buffering it.
+     */
+    public static Bitmap decodeAndRescaleBitmap(final FileInputStream in, final long offset,
+                                                int width, int height,
+                                                Bitmap.Config config, BitmapPool pool)
+            throws IOException {
+        final FileChannel channel = in.getChannel();
+        return decodeAndRescaleBitmap(options -> {
+            channel.position(offset);
+            return BitmapFactory.decodeFileDescriptor(in.getFD(), null, options);
+        }, width, height, config, pool);
+    }
+
+    private static Bitmap decodeAndRescaleBitmap(Decoder decoder, int width, int height,
+                                                 Bitmap.Config config, BitmapPool pool)
+            throws IOException {
+        BitmapFactory.Options bounds = new BitmapFactory.Options();
+        bounds.inJustDecodeBounds = true;
+        decoder.decode(bounds);
+        // The largest power of two that keeps the image at least width x height: decoders
+        // round other sample sizes down to one anyway.
+        int scaleFactor = 1;
+        while (bounds.outWidth / (scaleFactor * 2) >= width
+                && bounds.outHeight / (scaleFactor * 2) >= height) {
+            scaleFactor *= 2;
+        }
+
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inSampleSize = scaleFactor;
+        options.inPreferredConfig = config;
+        if (pool == null || bounds.outWidth <= 0 || bounds.outHeight <= 0
+                || Build.VERSION.SDK_INT < Build.VERSION_CODES.KITKAT) {
+            // Before KitKat, inBitmap only takes images of the very same size and no subsampling.
+            return decoder.decode(options);
+        }
+        options.inMutable = true;
+        // Rounded up, since some decoders round the subsampled size up.
+        options.inBitmap = pool.get(
+                (bounds.outWidth + scaleFactor - 1) / scaleFactor,
+                (bounds.outHeight + scaleFactor - 1) / scaleFactor, config);
+        try {
+            return decoder.decode(options);
+        } catch (IllegalArgumentException e) {
+            // The decoder could not reuse the bitmap after all.
+            LogHelper.w(TAG, e, "Could not decode into a pooled bitmap");
+            pool.put(options.inBitmap);
+            options.inBitmap = null;
+            return decoder.decode(options);
+        }
+    }
+
+    /**
+     * Decodes an image from its start, with the given options.
+     */
+    private interface Decoder {
+        Bitmap decode(BitmapFactory.Options options) throws IOException;
+    }
 }
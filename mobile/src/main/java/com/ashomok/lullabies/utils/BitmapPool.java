@@ -0,0 +1,172 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.ashomok.lullabies.utils;
+
+import android.annotation.TargetApi;
+import android.graphics.Bitmap;
+import android.os.Build;
+
+import androidx.annotation.NonNull;
+
+import java.util.ArrayDeque;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Pool of bitmaps that are no longer displayed, so that new album art can be decoded or drawn
+ * into them instead of into new allocations.
+ * <p>
+ * Bitmaps are bucketed by allocation size, and a request is served from the smallest bucket
+ * that is big enough but not wastefully so. Reusing a bitmap for another size or config needs
+ * {@link Bitmap#reconfigure}, so the pool only keeps bitmaps on KitKat and later; on older
+ * versions every request is a new allocation.
+ */
+public final class BitmapPool {
+
+    private static final String TAG = LogHelper.makeLogTag(BitmapPool.class);
+
+    // Do not hand out a bitmap more than this many times bigger than what was asked for.
+    private static final int MAX_SIZE_MULTIPLE = 2;
+
+    private final int mMaxSize;
+
+    // Pooled bitmaps by allocation byte count. Guarded by this.
+    private final TreeMap<Integer, ArrayDeque<Bitmap>> mBuckets = new TreeMap<>();
+    private int mSize;
+    private long mAllocatedBytes;
+    private int mHitCount;
+    private int mMissCount;
+
+    public BitmapPool(int maxSize) {
+        mMaxSize = maxSize;
+    }
+
+    /**
+     * @return a mutable bitmap of the given size and config, taken from the pool if one fits.
+     * Its content is undefined.
+     */
+    @NonNull
+    public Bitmap get(int width, int height, @NonNull Bitmap.Config config) {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT) {
+            Bitmap bitmap = take(width, height, config);
+            if (bitmap != null) {
+                return bitmap;
+            }
+        }
+        Bitmap bitmap = Bitmap.createBitmap(width, height, config);
+        synchronized (this) {
+            mMissCount++;
+            mAllocatedBytes += bitmap.getByteCount();
+        }
+        return bitmap;
+    }
+
+    /**
+     * Give a bitmap to the pool. The caller must not use it anymore.
+     */
+    public void put(@NonNull Bitmap bitmap) {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.KITKAT
+                || !bitmap.isMutable() || bitmap.isRecycled()) {
+            return;
+        }
+        int size = bitmap.getAllocationByteCount();
+        if (size > mMaxSize) {
+            return;
+        }
+        synchronized (this) {
+            ArrayDeque<Bitmap> bucket = mBuckets.get(size);
+            if (bucket == null) {
+                bucket = new ArrayDeque<>();
+                mBuckets.put(size, bucket);
+            }
+            bucket.push(bitmap);
+            mSize += size;
+            trimToSize(mMaxSize);
+        }
+    }
+
+    /**
+     * Drop the pooled bitmaps.
+     */
+    public synchronized void clear() {
+        LogHelper.d(TAG, "clear: dropping ", mSize, " bytes");
+        trimToSize(0);
+    }
+
+    public synchronized int size() {
+        return mSize;
+    }
+
+    /**
+     * @return the bytes of the bitmaps this pool had to allocate because none could be reused.
+     */
+    public synchronized long getAllocatedBytes() {
+        return mAllocatedBytes;
+    }
+
+    public synchronized int getHitCount() {
+        return mHitCount;
+    }
+
+    public synchronized int getMissCount() {
+        return mMissCount;
+    }
+
+    @TargetApi(Build.VERSION_CODES.KITKAT)
+    private Bitmap take(int width, int height, Bitmap.Config config) {
+        int needed = width * height * bytesPerPixel(config);
+        Bitmap bitmap;
+        synchronized (this) {
+            Integer size = mBuckets.ceilingKey(needed);
+            if (size == null || size > needed * MAX_SIZE_MULTIPLE) {
+                return null;
+            }
+            ArrayDeque<Bitmap> bucket = mBuckets.get(size);
+            bitmap = bucket.pop();
+            if (bucket.isEmpty()) {
+                mBuckets.remove(size);
+            }
+            mSize -= size;
+            mHitCount++;
+        }
+        bitmap.reconfigure(width, height, config);
+        return bitmap;
+    }
+
+    private void trimToSize(int maxSize) {
+        // Drop the biggest bitmaps first: they are the least likely to fit a request.
+        while (mSize > maxSize) {
+            Map.Entry<Integer, ArrayDeque<Bitmap>> largest = mBuckets.lastEntry();
+            largest.getValue().removeLast();
+            if (largest.getValue().isEmpty()) {
+                mBuckets.remove(largest.getKey());
+            }
+            mSize -= largest.getKey();
+        }
+    }
+
+    private static int bytesPerPixel(Bitmap.Config config) {
+        switch (config) {
+            case ALPHA_8:
+                return 1;
+            case RGB_565:
+            case ARGB_4444:
+                return 2;
+            default:
+                return 4;
+        }
+    }
+}
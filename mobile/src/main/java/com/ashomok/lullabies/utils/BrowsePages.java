@@ -0,0 +1,109 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.ashomok.lullabies.utils;
+
+import android.os.Bundle;
+import android.os.Parcel;
+import android.support.v4.media.MediaBrowserCompat;
+import android.support.v4.media.MediaBrowserCompat.MediaItem;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Cuts browse results into the pages the browse options ask for, and keeps each reply within
+ * what a binder transaction can carry.
+ * <p>
+ * A compat media browser gets the children of a media ID in a single message, and the binder
+ * buffer of a process is about 1 MB, shared by all its transactions in flight: a reply larger
+ * than that fails with a TransactionTooLargeException. The items of a browse reply carry their
+ * art as URIs only, so that one page of them stays small.
+ */
+public final class BrowsePages {
+
+    private static final String TAG = LogHelper.makeLogTag(BrowsePages.class);
+
+    /**
+     * The most a browse reply may take in a parcel, with room left for other transactions.
+     */
+    public static final int MAX_PAGE_BYTES = 128 * 1024;
+
+    private BrowsePages() {
+    }
+
+    /**
+     * @param options the browse options, with {@link MediaBrowserCompat#EXTRA_PAGE} and
+     *                {@link MediaBrowserCompat#EXTRA_PAGE_SIZE}, or null for all the items.
+     * @return the page of the items the options ask for, cut down to {@link #MAX_PAGE_BYTES}.
+     */
+    @NonNull
+    public static List<MediaItem> page(@NonNull List<MediaItem> items, @Nullable Bundle options) {
+        int page = options == null ? -1 : options.getInt(MediaBrowserCompat.EXTRA_PAGE, -1);
+        int pageSize = options == null
+                ? -1 : options.getInt(MediaBrowserCompat.EXTRA_PAGE_SIZE, -1);
+        List<MediaItem> paged = items;
+        if (page >= 0 && pageSize >= 1) {
+            int from = page * pageSize;
+            paged = from >= items.size() ? new ArrayList<>()
+                    : items.subList(from, Math.min(from + pageSize, items.size()));
+        }
+        return fit(paged, MAX_PAGE_BYTES);
+    }
+
+    /**
+     * @return the longest head of the items that takes at most maxBytes in a parcel. A client
+     * that asks for more should page, see {@link #page}.
+     */
+    @NonNull
+    public static List<MediaItem> fit(@NonNull List<MediaItem> items, int maxBytes) {
+        int count = 0;
+        Parcel parcel = Parcel.obtain();
+        try {
+            for (MediaItem item : items) {
+                item.writeToParcel(parcel, 0);
+                if (parcel.dataSize() > maxBytes) {
+                    break;
+                }
+                count++;
+            }
+        } finally {
+            parcel.recycle();
+        }
+        if (count < items.size()) {
+            LogHelper.w(TAG, "Browse reply cut to ", count, " of ", items.size(),
+                    " items to fit in ", maxBytes, " bytes, the client should page");
+        }
+        return new ArrayList<>(items.subList(0, count));
+    }
+
+    /**
+     * @return the size of the items in a parcel.
+     */
+    public static int sizeOf(@NonNull List<MediaItem> items) {
+        Parcel parcel = Parcel.obtain();
+        try {
+            for (MediaItem item : items) {
+                item.writeToParcel(parcel, 0);
+            }
+            return parcel.dataSize();
+        } finally {
+            parcel.recycle();
+        }
+    }
+}
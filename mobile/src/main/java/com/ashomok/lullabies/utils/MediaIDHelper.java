@@ -17,13 +17,16 @@
 package com.ashomok.lullabies.utils;
 
 import android.app.Activity;
+import android.os.Bundle;
 import android.support.v4.media.MediaBrowserCompat;
 import android.support.v4.media.session.MediaControllerCompat;
 import android.text.TextUtils;
 
 import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
 
 import java.util.Arrays;
+import java.util.List;
 
 /**
  * Utility class to help on queue related tasks.
@@ -36,6 +39,15 @@ public class MediaIDHelper {
     public static final String MEDIA_ID_MUSICS_BY_CATEGORY = "__BY_CATEGORY__";
     public static final String MEDIA_ID_MUSICS_BY_SEARCH = "__BY_SEARCH__";
 
+    // Batched browse: a client that passes OPTION_CHILDREN_PAGE_SIZE in the browse options gets
+    // the first page of the children of each browsable item in the item's description extras,
+    // under EXTRA_CHILDREN, and their total count under EXTRA_CHILDREN_COUNT. A two-level screen
+    // then fills from a single request.
+    public static final String OPTION_CHILDREN_PAGE_SIZE =
+            "com.ashomok.lullabies.OPTION_CHILDREN_PAGE_SIZE";
+    public static final String EXTRA_CHILDREN = "com.ashomok.lullabies.EXTRA_CHILDREN";
+    public static final String EXTRA_CHILDREN_COUNT = "com.ashomok.lullabies.EXTRA_CHILDREN_COUNT";
+
     private static final char CATEGORY_SEPARATOR = '/';
     private static final char LEAF_SEPARATOR = '|';
 
@@ -162,4 +174,20 @@ public class MediaIDHelper {
         }
         return false;
     }
+
+    /**
+     * @return the first page of the children of a browsable item, as sent in a batched browse
+     * (see {@link #OPTION_CHILDREN_PAGE_SIZE}), or null if the item does not carry them.
+     */
+    @Nullable
+    public static List<MediaBrowserCompat.MediaItem> getEmbeddedChildren(
+            @NonNull MediaBrowserCompat.MediaItem mediaItem) {
+        Bundle extras = mediaItem.getDescription().getExtras();
+        if (extras == null) {
+            return null;
+        }
+        // Extras that went through binder IPC need to know where MediaItem comes from.
+        extras.setClassLoader(MediaBrowserCompat.MediaItem.class.getClassLoader());
+        return extras.getParcelableArrayList(EXTRA_CHILDREN);
+    }
 }
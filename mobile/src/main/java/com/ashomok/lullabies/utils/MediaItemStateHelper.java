@@ -8,6 +8,7 @@ import android.graphics.drawable.Drawable;
 import android.support.v4.media.MediaBrowserCompat;
 import android.support.v4.media.session.MediaControllerCompat;
 import android.support.v4.media.session.PlaybackStateCompat;
+import android.text.TextUtils;
 
 import androidx.core.content.ContextCompat;
 import androidx.core.graphics.drawable.DrawableCompat;
@@ -71,11 +72,33 @@ public class MediaItemStateHelper {
         return state;
     }
 
+    /**
+     * Like {@link #getMediaItemState(Activity, MediaBrowserCompat.MediaItem)}, for many items
+     * against the same controller state.
+     *
+     * @param playingMusicId the music id of the controller's current media, or null.
+     * @param playingState the state of the current media, from {@link #getStateFromPlaybackState}.
+     */
+    public static int getMediaItemState(MediaBrowserCompat.MediaItem mediaItem,
+                                        String playingMusicId, int playingState) {
+        if (!mediaItem.isPlayable()) {
+            return STATE_NONE;
+        }
+        if (playingMusicId != null && TextUtils.equals(playingMusicId,
+                MediaIDHelper.extractMusicIDFromMediaID(mediaItem.getDescription().getMediaId()))) {
+            return playingState;
+        }
+        return STATE_PLAYABLE;
+    }
+
     public static int getStateFromController(Activity context) {
 
         MediaControllerCompat controller = MediaControllerCompat.getMediaController(context);
 
-        PlaybackStateCompat pbState = controller.getPlaybackState();
+        return getStateFromPlaybackState(controller.getPlaybackState());
+    }
+
+    public static int getStateFromPlaybackState(PlaybackStateCompat pbState) {
         if (pbState == null ||
                 pbState.getState() == PlaybackStateCompat.STATE_ERROR) {
             return MediaItemStateHelper.STATE_NONE;
@@ -0,0 +1,308 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.ashomok.lullabies.utils;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.view.View;
+import android.view.ViewTreeObserver;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import androidx.core.os.TraceCompat;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+import io.reactivex.schedulers.Schedulers;
+
+/**
+ * Starts the components of an activity or a service in the order their dependencies need, and
+ * no sooner than they are needed. Each component declares when it starts:
+ * <ul>
+ * <li>{@link Mode#CRITICAL}: right away, on the calling thread, when it is added.</li>
+ * <li>{@link Mode#AFTER_FIRST_FRAME}: once {@link #start} is called, typically after the first
+ * frame is drawn (see {@link #startAfterFirstFrame}). Components that may run in the background
+ * start in parallel on background threads, the others on the main thread, one message each so
+ * that input is handled in between.</li>
+ * <li>{@link Mode#ON_FIRST_USE}: when first asked for with {@link #get}.</li>
+ * </ul>
+ * A component starts only once its dependencies are done. Asking for a component that has not
+ * started yet starts it on the calling thread, or on the main thread if it may not run in the
+ * background, and asking for one that is starting waits for it.
+ * <p>
+ * Each component runs in a trace section named after it, so that the cold start timeline can be
+ * measured with systrace.
+ */
+public final class StartupOrchestrator {
+
+    private static final String TAG = LogHelper.makeLogTag(StartupOrchestrator.class);
+
+    public enum Mode {
+        CRITICAL,
+        AFTER_FIRST_FRAME,
+        ON_FIRST_USE
+    }
+
+    public interface Initializer<T> {
+        T create() throws Exception;
+    }
+
+    private final String mName;
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+
+    // Guarded by this.
+    private final List<Component<?>> mComponents = new ArrayList<>();
+    private boolean mStarted;
+    private boolean mCancelled;
+
+    /**
+     * @param name prefixes the trace sections of the components.
+     */
+    public StartupOrchestrator(@NonNull String name) {
+        mName = name;
+    }
+
+    /**
+     * Add a component. A {@link Mode#CRITICAL} component is created before this returns.
+     *
+     * @param background whether the component may be created on a background thread, rather
+     *                   than on the main thread.
+     * @param dependencies components that must be done before this one is created.
+     * @return the handle to {@link #get} the component with.
+     */
+    public <T> Component<T> add(@NonNull String name, @NonNull Mode mode, boolean background,
+                                @NonNull Initializer<T> initializer,
+                                Component<?>... dependencies) {
+        Component<T> component = new Component<>(mName + ":" + name, mode, background,
+                initializer, dependencies);
+        synchronized (this) {
+            mComponents.add(component);
+        }
+        if (mode == Mode.CRITICAL) {
+            get(component);
+        } else {
+            scheduleReady();
+        }
+        return component;
+    }
+
+    /**
+     * Start the {@link Mode#AFTER_FIRST_FRAME} components, and those added afterwards.
+     */
+    public void start() {
+        synchronized (this) {
+            mStarted = true;
+        }
+        scheduleReady();
+    }
+
+    /**
+     * {@link #start} once the view has drawn its first frame.
+     */
+    public void startAfterFirstFrame(@NonNull final View view) {
+        view.getViewTreeObserver().addOnPreDrawListener(new ViewTreeObserver.OnPreDrawListener() {
+            @Override
+            public boolean onPreDraw() {
+                view.getViewTreeObserver().removeOnPreDrawListener(this);
+                // The frame is drawn once this returns, and the start runs right after it.
+                mMainHandler.postAtFrontOfQueue(StartupOrchestrator.this::start);
+                return true;
+            }
+        });
+    }
+
+    /**
+     * Do not start the components that have not started yet, unless they are asked for.
+     */
+    public synchronized void cancel() {
+        mCancelled = true;
+    }
+
+    /**
+     * @return the component, created on the calling thread if it has not started yet, or once
+     * it is done if it is starting. A component that may not run in the background is created
+     * on the main thread, and a caller on another thread waits for it.
+     * @throws IllegalStateException if the component, or one of its dependencies, failed.
+     */
+    public <T> T get(@NonNull Component<T> component) {
+        if (!component.background && Looper.myLooper() != Looper.getMainLooper()
+                && !isDone(component)) {
+            // Claimed on the main thread, so that the main thread asking for it meanwhile
+            // creates it itself rather than waiting for this message.
+            mMainHandler.post(() -> {
+                if (claim(component)) {
+                    run(component);
+                }
+            });
+            awaitUninterruptibly(component.done);
+        } else if (claim(component)) {
+            run(component);
+        } else {
+            awaitUninterruptibly(component.done);
+        }
+        if (component.error != null) {
+            throw new IllegalStateException(component.name + " could not start",
+                    component.error);
+        }
+        return component.value;
+    }
+
+    /**
+     * @return the component if it is done, or null if it did not start, is starting or failed.
+     */
+    @Nullable
+    public <T> T peek(@NonNull Component<T> component) {
+        synchronized (this) {
+            if (component.state != Component.DONE) {
+                return null;
+            }
+        }
+        return component.error == null ? component.value : null;
+    }
+
+    private synchronized boolean isDone(Component<?> component) {
+        return component.state == Component.DONE;
+    }
+
+    private synchronized boolean claim(Component<?> component) {
+        if (component.state != Component.NEW) {
+            return false;
+        }
+        component.state = Component.RUNNING;
+        return true;
+    }
+
+    private <T> void run(Component<T> component) {
+        TraceCompat.beginSection(component.name);
+        long start = SystemClock.elapsedRealtime();
+        try {
+            for (Component<?> dependency : component.dependencies) {
+                get(dependency);
+            }
+            component.value = component.initializer.create();
+        } catch (Throwable t) {
+            LogHelper.e(TAG, t, component.name, " could not start");
+            component.error = t;
+        } finally {
+            TraceCompat.endSection();
+        }
+        LogHelper.d(TAG, component.name, " started in ", SystemClock.elapsedRealtime() - start,
+                " ms on ", Thread.currentThread().getName());
+        synchronized (this) {
+            component.state = Component.DONE;
+        }
+        component.done.countDown();
+        scheduleReady();
+    }
+
+    /**
+     * Schedule the {@link Mode#AFTER_FIRST_FRAME} components whose deferred dependencies are
+     * done. The others are created inline by the component that depends on them.
+     */
+    private void scheduleReady() {
+        List<Component<?>> ready = new ArrayList<>();
+        synchronized (this) {
+            if (!mStarted || mCancelled) {
+                return;
+            }
+            for (Component<?> component : mComponents) {
+                if (component.mode == Mode.AFTER_FIRST_FRAME && !component.scheduled
+                        && component.state == Component.NEW && isReady(component)) {
+                    component.scheduled = true;
+                    ready.add(component);
+                }
+            }
+        }
+        for (final Component<?> component : ready) {
+            Runnable task = () -> {
+                synchronized (this) {
+                    if (mCancelled) {
+                        return;
+                    }
+                }
+                if (claim(component)) {
+                    run(component);
+                }
+            };
+            if (component.background) {
+                Schedulers.computation().scheduleDirect(task);
+            } else {
+                mMainHandler.post(task);
+            }
+        }
+    }
+
+    // Guarded by this.
+    private static boolean isReady(Component<?> component) {
+        for (Component<?> dependency : component.dependencies) {
+            if (dependency.mode == Mode.AFTER_FIRST_FRAME && dependency.state != Component.DONE) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static void awaitUninterruptibly(CountDownLatch latch) {
+        boolean interrupted = false;
+        while (true) {
+            try {
+                latch.await();
+                break;
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * A handle on a component of a {@link StartupOrchestrator}.
+     */
+    public static final class Component<T> {
+        static final int NEW = 0;
+        static final int RUNNING = 1;
+        static final int DONE = 2;
+
+        final String name;
+        final Mode mode;
+        final boolean background;
+        final Initializer<T> initializer;
+        final Component<?>[] dependencies;
+        final CountDownLatch done = new CountDownLatch(1);
+
+        // Guarded by the orchestrator.
+        int state = NEW;
+        boolean scheduled;
+
+        // Written before done counts down, read after.
+        T value;
+        Throwable error;
+
+        Component(String name, Mode mode, boolean background, Initializer<T> initializer,
+                  Component<?>[] dependencies) {
+            this.name = name;
+            this.mode = mode;
+            this.background = background;
+            this.initializer = initializer;
+            this.dependencies = dependencies;
+        }
+    }
+}
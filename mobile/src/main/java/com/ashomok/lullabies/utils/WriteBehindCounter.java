@@ -0,0 +1,101 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.ashomok.lullabies.utils;
+
+import android.content.SharedPreferences;
+
+import androidx.annotation.NonNull;
+
+import java.util.concurrent.TimeUnit;
+
+import io.reactivex.schedulers.Schedulers;
+
+/**
+ * An int preference that is read and written in memory, for counters that change often on the
+ * main thread. It is read once, off the main thread, and changes are written back off it too, at
+ * most once per {@link #FLUSH_DELAY_MS}.
+ * <p>
+ * Changes made with {@link #set} in the last {@link #FLUSH_DELAY_MS} before the process dies
+ * are lost. A single instance must own the preference, otherwise each one writes back the value
+ * it read over the changes of the others.
+ */
+public final class WriteBehindCounter {
+
+    static final long FLUSH_DELAY_MS = 5000;
+
+    private final SharedPreferences mPreferences;
+    private final String mKey;
+
+    // Guarded by this.
+    private boolean mLoaded;
+    private int mValue;
+    private boolean mFlushScheduled;
+
+    public WriteBehindCounter(@NonNull SharedPreferences preferences, @NonNull String key,
+                              int defaultValue) {
+        mPreferences = preferences;
+        mKey = key;
+        Schedulers.io().scheduleDirect(() -> {
+            int value = mPreferences.getInt(mKey, defaultValue);
+            synchronized (this) {
+                if (!mLoaded) {
+                    mValue = value;
+                    mLoaded = true;
+                }
+            }
+        });
+    }
+
+    /**
+     * @return whether the value was read yet. Until then, {@link #get} has no meaning.
+     */
+    public synchronized boolean isLoaded() {
+        return mLoaded;
+    }
+
+    public synchronized int get() {
+        return mValue;
+    }
+
+    /**
+     * Set the value, which is written back a little later. A value set before the preference
+     * was read replaces it.
+     */
+    public synchronized void set(int value) {
+        mValue = value;
+        mLoaded = true;
+        if (!mFlushScheduled) {
+            mFlushScheduled = true;
+            Schedulers.io().scheduleDirect(this::flush, FLUSH_DELAY_MS, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Set the value and write it back right away, for a change that must outlive the process.
+     */
+    public synchronized void setNow(int value) {
+        mValue = value;
+        mLoaded = true;
+        // Under the lock, like the flush: the writes reach the preferences in the order the
+        // values were set, so a flush of an older value can not land after this one.
+        mPreferences.edit().putInt(mKey, value).apply();
+    }
+
+    private synchronized void flush() {
+        mFlushScheduled = false;
+        mPreferences.edit().putInt(mKey, mValue).apply();
+    }
+}
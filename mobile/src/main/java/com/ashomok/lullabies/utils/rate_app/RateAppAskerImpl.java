@@ -5,14 +5,20 @@ import android.content.SharedPreferences;
 
 import com.ashomok.lullabies.R;
 import com.ashomok.lullabies.utils.LogHelper;
+import com.ashomok.lullabies.utils.WriteBehindCounter;
+
+import java.lang.ref.WeakReference;
 
 import javax.inject.Inject;
+import javax.inject.Singleton;
 
 
 /**
  * Created by iuliia on 10/5/16.
+ * <p>
+ * One per process, so that every screen counts on the same usage counter.
  */
-
+@Singleton
 public class RateAppAskerImpl implements RateAppAsker {
 
     /**
@@ -20,38 +26,44 @@ public class RateAppAskerImpl implements RateAppAsker {
      */
     public static final int RATE_APP_COUNT = 70;
     public static final int NEVER_ASK = -1;
-    private final Context context;
-    private SharedPreferences sharedPreferences;
+    private final WriteBehindCounter usageCounter;
     private static final String TAG = LogHelper.makeLogTag(RateAppAskerImpl.class);
-    RateAppAskerCallback callback;
+    // The screen that last asked, not kept alive by the asker.
+    private WeakReference<RateAppAskerCallback> callback = new WeakReference<>(null);
 
 
     @Inject
     public RateAppAskerImpl(SharedPreferences sharedPreferences, Context context) {
-        this.sharedPreferences = sharedPreferences;
-        this.context = context;
+        // Counted on every page the pager shows, so kept off the disk while swiping.
+        this.usageCounter = new WriteBehindCounter(sharedPreferences,
+                context.getString(R.string.times_app_was_used), 0);
     }
 
     public void init(RateAppAskerCallback callback) {
-        this.callback = callback;
+        this.callback = new WeakReference<>(callback);
 
-        int timesAppWasUsed = sharedPreferences.getInt(context.getString(R.string.times_app_was_used), 0);
+        if (!usageCounter.isLoaded()) {
+            // Only the first pages shown at startup can go uncounted.
+            return;
+        }
+        int timesAppWasUsed = usageCounter.get();
         LogHelper.d(TAG, "adapter shows views count: " + timesAppWasUsed);
 
         if (timesAppWasUsed != NEVER_ASK) {
-            SharedPreferences.Editor editor = sharedPreferences.edit();
             if (timesAppWasUsed >= RATE_APP_COUNT) {
                 askToRate();
-                editor.putInt(context.getString(R.string.times_app_was_used), 0);
+                usageCounter.set(0);
             } else {
-
-                editor.putInt(context.getString(R.string.times_app_was_used), ++timesAppWasUsed);
+                usageCounter.set(++timesAppWasUsed);
             }
-            editor.apply();
         }
     }
 
     private void askToRate() {
+        RateAppAskerCallback callback = this.callback.get();
+        if (callback == null) {
+            return;
+        }
         RateAppDialog1Fragment rateAppDialog1Fragment = RateAppDialog1Fragment.newInstance();
         rateAppDialog1Fragment.setRateAppAsker(this);
         callback.showDialogFragment(rateAppDialog1Fragment);
@@ -59,13 +71,16 @@ public class RateAppAskerImpl implements RateAppAsker {
 
     @Override
     public void onStopAsk() {
-        SharedPreferences.Editor editor = sharedPreferences.edit();
-        editor.putInt(context.getString(R.string.times_app_was_used), NEVER_ASK);
-        editor.apply();
+        // Written at once: the user must not be asked again if the app is killed right after.
+        usageCounter.setNow(NEVER_ASK);
     }
 
     @Override
     public void onEnjoyAppClicked() {
+        RateAppAskerCallback callback = this.callback.get();
+        if (callback == null) {
+            return;
+        }
         RateAppDialog2Fragment rateAppDialog2Fragment = RateAppDialog2Fragment.newInstance();
         rateAppDialog2Fragment.setRateAppAsker(this);
         callback.showDialogFragment(rateAppDialog2Fragment);